@@ -2,22 +2,59 @@ package dev.dsf.fhir.validator.cache;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.util.Objects;
 import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.hl7.fhir.r4.model.Resource;
 import org.springframework.beans.factory.InitializingBean;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.model.api.annotation.ResourceDef;
+import ca.uhn.fhir.parser.DataFormatException;
 import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.VersionUtil;
 import jakarta.ws.rs.WebApplicationException;
 
 public abstract class AbstractFhirResourceFileSystemCache<T, R extends Resource> extends AbstractFileSystemCache<T>
 		implements InitializingBean
 {
+	/**
+	 * Content encoding of cache entries.
+	 */
+	public static enum Format
+	{
+		/**
+		 * FHIR JSON
+		 */
+		JSON(JSON_SUFFIX),
+
+		/**
+		 * {@link BinaryResourceFormat}, opt-in, JSON entries are migrated on first read
+		 */
+		BINARY(".bin");
+
+		private final String contentSuffix;
+
+		private Format(String contentSuffix)
+		{
+			this.contentSuffix = contentSuffix;
+		}
+
+		public String getContentSuffix()
+		{
+			return contentSuffix;
+		}
+	}
+
+	private final Format format;
 	private final Class<R> resourceType;
 	private final FhirContext fhirContext;
 
@@ -36,11 +73,7 @@ public abstract class AbstractFhirResourceFileSystemCache<T, R extends Resource>
 	 */
 	public AbstractFhirResourceFileSystemCache(Path cacheFolder, Class<R> resourceType, FhirContext fhirContext)
 	{
-		super(cacheFolder, AbstractFileSystemCache.FILENAME_SUFFIX, AbstractFileSystemCache.OUT_COMPRESSOR_FACTORY,
-				AbstractFileSystemCache.IN_COMPRESSOR_FACTORY);
-
-		this.resourceType = resourceType;
-		this.fhirContext = fhirContext;
+		this(cacheFolder, Format.JSON, CacheCodec.GZIP, null, resourceType, fhirContext);
 	}
 
 	public AbstractFhirResourceFileSystemCache(Path cacheFolder, String fileNameSuffix,
@@ -50,6 +83,31 @@ public abstract class AbstractFhirResourceFileSystemCache<T, R extends Resource>
 	{
 		super(cacheFolder, fileNameSuffix, outCompressorFactory, inCompressorFactory);
 
+		this.format = Format.JSON;
+		this.resourceType = resourceType;
+		this.fhirContext = fhirContext;
+	}
+
+	/**
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @param format
+	 *            not <code>null</code>
+	 * @param codec
+	 *            not <code>null</code>
+	 * @param memoryCache
+	 *            may be <code>null</code>, resources are copied when read from or written to the in-memory tier
+	 * @param resourceType
+	 *            not <code>null</code>
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 */
+	public AbstractFhirResourceFileSystemCache(Path cacheFolder, Format format, CacheCodec codec,
+			MemoryCache memoryCache, Class<R> resourceType, FhirContext fhirContext)
+	{
+		super(cacheFolder, format == null ? null : format.getContentSuffix(), codec, memoryCache);
+
+		this.format = format;
 		this.resourceType = resourceType;
 		this.fhirContext = fhirContext;
 	}
@@ -59,6 +117,7 @@ public abstract class AbstractFhirResourceFileSystemCache<T, R extends Resource>
 	{
 		super.afterPropertiesSet();
 
+		Objects.requireNonNull(format, "format");
 		Objects.requireNonNull(resourceType, "resourceType");
 		Objects.requireNonNull(fhirContext, "fhirContext");
 	}
@@ -68,12 +127,123 @@ public abstract class AbstractFhirResourceFileSystemCache<T, R extends Resource>
 		return fhirContext.newJsonParser();
 	}
 
-	protected T readResourceFromCache(String url, String version, Function<R, T> fromResource)
+	private R copy(R resource)
+	{
+		return resourceType.cast(resource.copy());
+	}
+
+	private R decodeJson(InputStream in) throws IOException
+	{
+		try
+		{
+			return getJsonParser().parseResource(resourceType, new InputStreamReader(in, StandardCharsets.UTF_8));
+		}
+		catch (DataFormatException e)
+		{
+			throw new IOException(e);
+		}
+	}
+
+	private void encodeJson(OutputStream out, R resource) throws IOException
+	{
+		Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		getJsonParser().encodeResourceToWriter(resource, writer);
+		writer.flush();
+	}
+
+	private R decodeBinary(InputStream in) throws IOException
+	{
+		Resource resource = BinaryResourceFormat.read(in);
+		if (!resourceType.isInstance(resource))
+			throw new IOException("Cached resource not a " + resourceType.getSimpleName() + " but "
+					+ resource.getResourceType().name());
+
+		return resourceType.cast(resource);
+	}
+
+	private void encodeBinary(OutputStream out, R resource) throws IOException
+	{
+		BinaryResourceFormat.write(resource, out);
+	}
+
+	/**
+	 * Reads the resource from the cache or, if not found, creates it while holding a lock for the entry shared by all
+	 * threads and processes using the same cache folder.
+	 *
+	 * @param cacheEntryId
+	 *            not <code>null</code>
+	 * @param fromResource
+	 *            not <code>null</code>
+	 * @param create
+	 *            not <code>null</code>, should write the created value to the cache
+	 * @return read or created value
+	 * @see #cacheEntryId(String, String, Resource, Stream)
+	 * @see #readOrCreate(String, String, SupplierWithIoException, SupplierWithIoException)
+	 */
+	protected T readResourceFromCacheOrCreate(String cacheEntryId, Function<R, T> fromResource,
+			SupplierWithIoException<T> create)
+	{
+		try
+		{
+			return readOrCreate(cacheEntryId, getCacheEntryType(),
+					() -> readResourceFromCache(cacheEntryId, fromResource), create);
+		}
+		catch (IOException e)
+		{
+			throw new WebApplicationException(e);
+		}
+	}
+
+	private String getCacheEntryType()
+	{
+		return resourceType.getAnnotation(ResourceDef.class).name();
+	}
+
+	/**
+	 * Cache entries are content addressed, the returned id changes if the input content, one of the dependencies or
+	 * the HAPI version changes.
+	 *
+	 * @param url
+	 *            not <code>null</code>, url of the input resource
+	 * @param version
+	 *            not <code>null</code>, version of the input resource
+	 * @param input
+	 *            not <code>null</code>, resource the cached value is created from
+	 * @param dependencyFingerprints
+	 *            not <code>null</code>, fingerprints of other resources and configuration the cached value depends
+	 *            on, in a stable order
+	 * @return <code>url|version|fingerprint</code>
+	 * @see BinaryResourceFormat#fingerprint(org.hl7.fhir.r4.model.Base, String...)
+	 */
+	protected String cacheEntryId(String url, String version, R input, Stream<String> dependencyFingerprints)
+	{
+		String fingerprint = Sha256.hex(Stream
+				.concat(Stream.of("hapi:" + VersionUtil.getVersion(),
+						"content:" + BinaryResourceFormat.fingerprint(input)), dependencyFingerprints)
+				.collect(Collectors.joining("\n")));
+
+		return url + "|" + version + "|" + fingerprint;
+	}
+
+	protected T readResourceFromCache(String cacheEntryId, Function<R, T> fromResource)
 	{
+		String cacheEntryType = getCacheEntryType();
+
 		try
 		{
-			return readFromCache(url + "|" + version, resourceType.getAnnotation(ResourceDef.class).name(),
-					reader -> getJsonParser().parseResource(resourceType, reader), fromResource);
+			if (Format.BINARY.equals(format))
+			{
+				T read = readStreamFromCache(cacheEntryId, cacheEntryType, this::decodeBinary, this::copy,
+						fromResource);
+				if (read != null)
+					return read;
+
+				R migrated = migrateFromCache(cacheEntryId, cacheEntryType, Format.JSON.getContentSuffix(),
+						this::decodeJson, this::encodeBinary, this::copy);
+				return migrated == null ? null : fromResource.apply(migrated);
+			}
+			else
+				return readStreamFromCache(cacheEntryId, cacheEntryType, this::decodeJson, this::copy, fromResource);
 		}
 		catch (IOException e)
 		{
@@ -81,13 +251,12 @@ public abstract class AbstractFhirResourceFileSystemCache<T, R extends Resource>
 		}
 	}
 
-	protected T writeResourceToCache(T value, Function<T, R> toResource, Function<R, String> toUrl,
-			Function<R, String> toVersion)
+	protected T writeResourceToCache(T value, Function<T, R> toResource, String cacheEntryId)
 	{
 		try
 		{
-			return writeToCache(value, r -> toUrl.apply(r) + "|" + toVersion.apply(r), r -> r.getResourceType().name(),
-					(w, r) -> getJsonParser().encodeResourceToWriter(r, w), toResource);
+			return writeStreamToCache(value, r -> cacheEntryId, r -> r.getResourceType().name(),
+					Format.BINARY.equals(format) ? this::encodeBinary : this::encodeJson, this::copy, toResource);
 		}
 		catch (IOException e)
 		{
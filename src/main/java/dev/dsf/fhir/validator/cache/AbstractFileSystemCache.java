@@ -2,19 +2,42 @@ package dev.dsf.fhir.validator.cache;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
 import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
@@ -25,6 +48,7 @@ import org.springframework.beans.factory.InitializingBean;
 public abstract class AbstractFileSystemCache<T> implements InitializingBean
 {
 	public static final String FILENAME_SUFFIX = ".json.gz";
+	public static final String JSON_SUFFIX = ".json";
 	public static final FunctionWithIoException<OutputStream, OutputStream> OUT_COMPRESSOR_FACTORY = GzipCompressorOutputStream::new;
 	public static final FunctionWithIoException<InputStream, InputStream> IN_COMPRESSOR_FACTORY = GzipCompressorInputStream::new;
 
@@ -40,12 +64,47 @@ public abstract class AbstractFileSystemCache<T> implements InitializingBean
 		void accept(T t, U u) throws IOException;
 	}
 
+	@FunctionalInterface
+	public interface ConsumerWithIoException<T>
+	{
+		void accept(T t) throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface SupplierWithIoException<T>
+	{
+		T get() throws IOException;
+	}
+
 	private static final Logger logger = LoggerFactory.getLogger(AbstractFileSystemCache.class);
 
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final String LOCK_FILE_SUFFIX = ".lock";
+	private static final Duration STALE_TEMP_FILE_AGE = Duration.ofHours(1);
+
+	/**
+	 * Maximum time to wait for another thread or process creating the same entry, the entry is created without lock
+	 * afterwards.
+	 */
+	private static final Duration ENTRY_LOCK_TIMEOUT = Duration.ofMinutes(10);
+	private static final long ENTRY_LOCK_POLL_MILLIS = 50;
+
+	private static final class EntryLock
+	{
+		final ReentrantLock lock = new ReentrantLock();
+		int users;
+		FileChannel channel;
+	}
+
+	// shared by all caches, multiple caches may use the same cache folder
+	private static final ConcurrentMap<Path, EntryLock> ENTRY_LOCKS = new ConcurrentHashMap<>();
+
 	private final Path cacheFolder;
-	private final String filenameSuffix;
-	private final FunctionWithIoException<OutputStream, OutputStream> outCompressorFactory;
-	private final FunctionWithIoException<InputStream, InputStream> inCompressorFactory;
+	private final String contentSuffix;
+	private final CacheCodec codec;
+	private final List<CacheCodec> legacyCodecs;
+	private final MemoryCache memoryCache;
+	private final CacheIndex index;
 
 	/**
 	 * For JSON content with gzip compression using the <code>.json.gz</code> file name suffix.
@@ -64,31 +123,318 @@ public abstract class AbstractFileSystemCache<T> implements InitializingBean
 	public AbstractFileSystemCache(Path cacheFolder, String filenameSuffix,
 			FunctionWithIoException<OutputStream, OutputStream> outCompressorFactory,
 			FunctionWithIoException<InputStream, InputStream> inCompressorFactory)
+	{
+		this(cacheFolder, "", CacheCodec.of("custom", filenameSuffix, outCompressorFactory, inCompressorFactory),
+				null);
+	}
+
+	/**
+	 * Entries written with gzip compression by earlier versions are migrated to the given codec on first read, if the
+	 * codec is not gzip.
+	 *
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @param contentSuffix
+	 *            not <code>null</code>, file name suffix of the encoded content, e.g. {@link #JSON_SUFFIX}, followed by
+	 *            the file name suffix of the codec
+	 * @param codec
+	 *            not <code>null</code>
+	 * @param memoryCache
+	 *            may be <code>null</code>, in-memory tier used by reads and writes with copy function, may be shared
+	 *            with other caches using the same cache folder
+	 */
+	public AbstractFileSystemCache(Path cacheFolder, String contentSuffix, CacheCodec codec, MemoryCache memoryCache)
 	{
 		this.cacheFolder = cacheFolder;
-		this.filenameSuffix = filenameSuffix;
-		this.outCompressorFactory = outCompressorFactory;
-		this.inCompressorFactory = inCompressorFactory;
+		this.contentSuffix = contentSuffix;
+		this.codec = codec;
+		this.legacyCodecs = codec == null || contentSuffix == null || contentSuffix.isEmpty()
+				|| CacheCodec.GZIP.getFileNameSuffix().equals(codec.getFileNameSuffix()) ? List.of()
+						: List.of(CacheCodec.GZIP);
+		this.memoryCache = memoryCache;
+		this.index = cacheFolder == null ? null : CacheIndex.of(cacheFolder);
 	}
 
 	@Override
 	public void afterPropertiesSet() throws Exception
 	{
 		Objects.requireNonNull(cacheFolder, "cacheFolder");
-		Objects.requireNonNull(filenameSuffix, "filenameSuffix");
-		Objects.requireNonNull(outCompressorFactory, "outCompressorFactory");
-		Objects.requireNonNull(inCompressorFactory, "inCompressorFactory");
+		Objects.requireNonNull(contentSuffix, "contentSuffix");
+		Objects.requireNonNull(codec, "codec");
 
 		if (!Files.isWritable(cacheFolder))
 			throw new IOException("Folder " + cacheFolder.toAbsolutePath().toString() + "not writable");
+
+		deleteStaleTempFiles();
+	}
+
+	/**
+	 * Temp files are left behind if a process is killed while writing, files younger than
+	 * {@link #STALE_TEMP_FILE_AGE} may still be written by other processes.
+	 */
+	private void deleteStaleTempFiles() throws IOException
+	{
+		FileTime staleBefore = FileTime.from(Instant.now().minus(STALE_TEMP_FILE_AGE));
+
+		try (Stream<Path> files = Files.list(cacheFolder))
+		{
+			for (Path file : files.filter(f -> f.getFileName().toString().endsWith(TEMP_FILE_SUFFIX)).toList())
+			{
+				try
+				{
+					if (Files.getLastModifiedTime(file).compareTo(staleBefore) < 0 && Files.deleteIfExists(file))
+						logger.debug("Stale cache temp file {} deleted", file.toString());
+				}
+				catch (IOException e)
+				{
+					logger.warn("Unable to delete stale cache temp file {}: {} - {}", file.toString(),
+							e.getClass().getName(), e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Content addressed, file names of different cache entry ids do not collide.
+	 */
+	private static String toFileName(String cacheEntryId)
+	{
+		return Sha256.hex(cacheEntryId);
+	}
+
+	private Path cacheFile(String cacheEntryId, String contentSuffix, CacheCodec codec)
+	{
+		return cacheFolder.resolve(toFileName(cacheEntryId) + contentSuffix + codec.getFileNameSuffix());
+	}
+
+	/**
+	 * Independent of content encoding and codec, caches with different configurations share entry locks.
+	 */
+	private Path lockFile(String cacheEntryId)
+	{
+		return cacheFolder.resolve("." + toFileName(cacheEntryId) + LOCK_FILE_SUFFIX);
+	}
+
+	/**
+	 * Writes to a temp file in the cache folder and renames the temp file to the given cache file, readers in other
+	 * threads or processes never see partially written files. Size and checksum of the written file are added to the
+	 * cache index.
+	 */
+	private void writeAtomically(Path cacheFile, ConsumerWithIoException<OutputStream> writer) throws IOException
+	{
+		Path tempFile = cacheFolder
+				.resolve("." + cacheFile.getFileName().toString() + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+
+		try
+		{
+			CRC32C checksum = new CRC32C();
+			try (OutputStream out = Files.newOutputStream(tempFile, StandardOpenOption.CREATE_NEW,
+					StandardOpenOption.WRITE);
+					CheckedOutputStream cOut = new CheckedOutputStream(new BufferedOutputStream(out), checksum))
+			{
+				writer.accept(cOut);
+			}
+
+			long size = Files.size(tempFile);
+
+			try
+			{
+				Files.move(tempFile, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			index.put(cacheFile, size, checksum.getValue());
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * Adds entry files written by other processes to the cache index, or removes entry files deleted by other
+	 * processes.
+	 */
+	private void refreshIndex(String cacheEntryId) throws IOException
+	{
+		for (CacheCodec c : Stream.concat(Stream.of(codec), legacyCodecs.stream()).toList())
+			index.refresh(cacheFile(cacheEntryId, contentSuffix, c));
 	}
 
-	private Path cacheFile(String cacheEntryId)
+	/**
+	 * Reads the entry and, if not found, creates it while holding a lock for the entry. The lock is held by one thread
+	 * of all processes using the same cache folder, threads and processes waiting for the lock read the entry created
+	 * by the lock holder instead of creating it again.
+	 *
+	 * @param cacheEntryId
+	 *            not <code>null</code>
+	 * @param cacheEntryType
+	 *            not <code>null</code>
+	 * @param read
+	 *            not <code>null</code>, returns <code>null</code> if not found
+	 * @param create
+	 *            not <code>null</code>, should write the created entry to the cache
+	 * @return read or created entry
+	 * @throws IOException
+	 */
+	protected final T readOrCreate(String cacheEntryId, String cacheEntryType, SupplierWithIoException<T> read,
+			SupplierWithIoException<T> create) throws IOException
 	{
-		cacheEntryId = cacheEntryId.replace("://", "_").replaceAll("/", "_").replace(":", "_").replace("|", "_")
-				.replace("\\", "_");
+		T value = read.get();
+		if (value != null)
+			return value;
+
+		Path lockFile = lockFile(cacheEntryId);
+		EntryLock entryLock = ENTRY_LOCKS.compute(lockFile, (f, l) ->
+		{
+			l = l == null ? new EntryLock() : l;
+			l.users++;
+			return l;
+		});
 
-		return cacheFolder.resolve(cacheEntryId + filenameSuffix);
+		try
+		{
+			boolean locked = lock(entryLock, lockFile);
+			if (!locked)
+				logger.warn("Timeout while waiting for lock on {} {}, creating without lock", cacheEntryType,
+						cacheEntryId);
+
+			try
+			{
+				// created by another thread or process while waiting, not in the index if created by another process
+				refreshIndex(cacheEntryId);
+				value = read.get();
+				return value != null ? value : create.get();
+			}
+			finally
+			{
+				if (locked)
+					unlock(entryLock);
+			}
+		}
+		finally
+		{
+			ENTRY_LOCKS.compute(lockFile, (f, l) -> --l.users == 0 ? null : l);
+		}
+	}
+
+	private boolean lock(EntryLock entryLock, Path lockFile) throws IOException
+	{
+		long deadline = System.nanoTime() + ENTRY_LOCK_TIMEOUT.toNanos();
+
+		try
+		{
+			if (!entryLock.lock.tryLock(ENTRY_LOCK_TIMEOUT.toNanos(), TimeUnit.NANOSECONDS))
+				return false;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for lock on " + lockFile.toString());
+		}
+
+		// reentrant, file lock already held by this thread
+		if (entryLock.lock.getHoldCount() > 1)
+			return true;
+
+		FileChannel channel = null;
+		try
+		{
+			channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+
+			FileLock fileLock = channel.tryLock();
+			while (fileLock == null && System.nanoTime() < deadline)
+			{
+				Thread.sleep(ENTRY_LOCK_POLL_MILLIS);
+				fileLock = channel.tryLock();
+			}
+
+			if (fileLock != null)
+			{
+				entryLock.channel = channel;
+				return true;
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			closeAndUnlock(channel, entryLock);
+			throw new InterruptedIOException("Interrupted while waiting for lock on " + lockFile.toString());
+		}
+		catch (IOException | RuntimeException e)
+		{
+			closeAndUnlock(channel, entryLock);
+			throw e;
+		}
+
+		closeAndUnlock(channel, entryLock);
+		return false;
+	}
+
+	private void closeAndUnlock(FileChannel channel, EntryLock entryLock) throws IOException
+	{
+		try
+		{
+			if (channel != null)
+				channel.close();
+		}
+		finally
+		{
+			entryLock.lock.unlock();
+		}
+	}
+
+	private void unlock(EntryLock entryLock) throws IOException
+	{
+		if (entryLock.lock.getHoldCount() > 1)
+		{
+			entryLock.lock.unlock();
+			return;
+		}
+
+		// closing the channel releases the file lock
+		FileChannel channel = entryLock.channel;
+		entryLock.channel = null;
+		closeAndUnlock(channel, entryLock);
+	}
+
+	private boolean migrateFromLegacyCodec(String cacheEntryId, String cacheEntryType, Path cacheFile)
+			throws IOException
+	{
+		for (CacheCodec legacyCodec : legacyCodecs)
+		{
+			Path legacyFile = cacheFile(cacheEntryId, contentSuffix, legacyCodec);
+			if (index.get(legacyFile) == null)
+				continue;
+
+			try (InputStream in = legacyCodec.decompress(new BufferedInputStream(Files.newInputStream(legacyFile))))
+			{
+				writeAtomically(cacheFile, out ->
+				{
+					try (OutputStream cOut = codec.compress(out))
+					{
+						in.transferTo(cOut);
+					}
+				});
+			}
+			catch (NoSuchFileException e)
+			{
+				index.remove(legacyFile);
+				continue;
+			}
+
+			Files.deleteIfExists(legacyFile);
+			index.remove(legacyFile);
+
+			logger.debug("Cache file for {} {} migrated from {} to {}", cacheEntryType, cacheEntryId,
+					legacyCodec.getName(), codec.getName());
+			return true;
+		}
+
+		return false;
 	}
 
 	protected final T readFromCache(String cacheEntryId, String cacheEntryType,
@@ -100,29 +446,231 @@ public abstract class AbstractFileSystemCache<T> implements InitializingBean
 	protected final <R> T readFromCache(String cacheEntryId, String cacheEntryType,
 			FunctionWithIoException<Reader, R> decoder, Function<R, T> fromResource) throws IOException
 	{
-		Path cacheFile = cacheFile(cacheEntryId);
+		return readFromCache(cacheEntryId, cacheEntryType, decoder, null, fromResource);
+	}
+
+	/**
+	 * @param <R>
+	 *            decoded type
+	 * @param cacheEntryId
+	 *            not <code>null</code>
+	 * @param cacheEntryType
+	 *            not <code>null</code>
+	 * @param decoder
+	 *            not <code>null</code>
+	 * @param copy
+	 *            may be <code>null</code>, in-memory tier only used if not <code>null</code>, needs to return a deep
+	 *            copy since decoded values are shared via the in-memory tier
+	 * @param fromResource
+	 *            not <code>null</code>
+	 * @return <code>null</code> if not found in the in-memory tier or file system
+	 * @throws IOException
+	 */
+	protected final <R> T readFromCache(String cacheEntryId, String cacheEntryType,
+			FunctionWithIoException<Reader, R> decoder, UnaryOperator<R> copy, Function<R, T> fromResource)
+			throws IOException
+	{
+		return readStreamFromCache(cacheEntryId, cacheEntryType, toStreamDecoder(decoder), copy, fromResource);
+	}
+
+	/**
+	 * @param <R>
+	 *            decoded type
+	 * @param cacheEntryId
+	 *            not <code>null</code>
+	 * @param cacheEntryType
+	 *            not <code>null</code>
+	 * @param decoder
+	 *            not <code>null</code>, decodes the uncompressed content
+	 * @param copy
+	 *            may be <code>null</code>, in-memory tier only used if not <code>null</code>, needs to return a deep
+	 *            copy since decoded values are shared via the in-memory tier
+	 * @param fromResource
+	 *            not <code>null</code>
+	 * @return <code>null</code> if not found in the in-memory tier or file system
+	 * @throws IOException
+	 */
+	protected final <R> T readStreamFromCache(String cacheEntryId, String cacheEntryType,
+			FunctionWithIoException<InputStream, R> decoder, UnaryOperator<R> copy, Function<R, T> fromResource)
+			throws IOException
+	{
+		Path cacheFile = cacheFile(cacheEntryId, contentSuffix, codec);
 
-		if (!Files.exists(cacheFile))
+		if (memoryCache != null && copy != null)
+		{
+			R cached = memoryCache.get(cacheFile, copy);
+			if (cached != null)
+			{
+				logger.debug("Reading {} {} from memory cache", cacheEntryType, cacheEntryId);
+
+				// access time used for eviction of least recently used files
+				CacheIndex.Entry indexEntry = index.get(cacheFile);
+				if (indexEntry != null)
+					index.touch(indexEntry);
+
+				return fromResource.apply(cached);
+			}
+		}
+
+		CacheIndex.Entry indexEntry = index.get(cacheFile);
+		if (indexEntry == null && migrateFromLegacyCodec(cacheEntryId, cacheEntryType, cacheFile))
+			indexEntry = index.get(cacheFile);
+
+		if (indexEntry == null)
 		{
 			logger.debug("Cache file for {} {} does not exist", cacheEntryType, cacheEntryId);
 			return null;
 		}
-		else if (Files.exists(cacheFile) && !Files.isReadable(cacheFile))
+
+		logger.debug("Reading {} {} from cache at {}", cacheEntryType, cacheEntryId, cacheFile.toString());
+		R decoded = readOrDelete(cacheEntryId, cacheEntryType, cacheFile, indexEntry, decoder, copy, true);
+
+		return decoded == null ? null : fromResource.apply(decoded);
+	}
+
+	/**
+	 * @param refresh
+	 *            <code>true</code> to refresh the index entry and read again if the file can not be read, e.g. because
+	 *            it was replaced by another process after the index entry was read
+	 * @return <code>null</code> if the file does not exist, is not readable or was deleted because it could not be read
+	 */
+	private <R> R readOrDelete(String cacheEntryId, String cacheEntryType, Path cacheFile, CacheIndex.Entry indexEntry,
+			FunctionWithIoException<InputStream, R> decoder, UnaryOperator<R> copy, boolean refresh) throws IOException
+	{
+		try
+		{
+			R decoded = read(cacheFile, indexEntry, codec, decoder, copy);
+			index.touch(indexEntry);
+
+			return decoded;
+		}
+		catch (NoSuchFileException e)
+		{
+			logger.debug("Cache file for {} {} deleted", cacheEntryType, cacheEntryId);
+			index.remove(cacheFile);
+			return null;
+		}
+		catch (AccessDeniedException e)
 		{
 			logger.error("Cache file for {} {} exist in cache but is not readable", cacheEntryType, cacheEntryId);
 			return null;
 		}
+		catch (IOException e)
+		{
+			CacheIndex.Entry refreshed = refresh ? index.refresh(cacheFile) : null;
+			if (refreshed != null && !refreshed.equals(indexEntry))
+			{
+				logger.debug("Cache file for {} {} changed, reading again: {} - {}", cacheEntryType, cacheEntryId,
+						e.getClass().getName(), e.getMessage());
+				return readOrDelete(cacheEntryId, cacheEntryType, cacheFile, refreshed, decoder, copy, false);
+			}
 
+			// e.g. truncated by an earlier version not writing atomically
+			logger.warn("Unable to read cache file for {} {}, deleting file: {} - {}", cacheEntryType, cacheEntryId,
+					e.getClass().getName(), e.getMessage());
+			Files.deleteIfExists(cacheFile);
+			index.remove(cacheFile);
+			return null;
+		}
+	}
+
+	private <R> R read(Path cacheFile, CacheIndex.Entry indexEntry, CacheCodec codec,
+			FunctionWithIoException<InputStream, R> decoder, UnaryOperator<R> copy) throws IOException
+	{
+		// checksum below the buffer, decompressors may use mark and reset
+		CRC32C checksum = new CRC32C();
 		try (InputStream in = Files.newInputStream(cacheFile);
-				BufferedInputStream bIn = new BufferedInputStream(in);
-				InputStream cIn = inCompressorFactory.apply(bIn);
-				InputStreamReader reader = new InputStreamReader(cIn, StandardCharsets.UTF_8))
+				BufferedInputStream bIn = new BufferedInputStream(new CheckedInputStream(in, checksum));
+				InputStream cIn = codec.decompress(bIn))
 		{
-			logger.debug("Reading {} {} from cache at {}", cacheEntryType, cacheEntryId, cacheFile.toString());
-			return fromResource.apply(decoder.apply(reader));
+			R decoded;
+			byte[] content = null;
+			if (memoryCache != null && copy != null)
+			{
+				content = cIn.readAllBytes();
+				decoded = decoder.apply(new ByteArrayInputStream(content));
+			}
+			else
+				decoded = decoder.apply(cIn);
+
+			verifyChecksum(cacheFile, indexEntry, bIn, checksum);
+
+			if (content != null)
+				memoryCache.put(cacheFile, copy.apply(decoded), content.length);
+
+			return decoded;
 		}
 	}
 
+	/**
+	 * Decoders and decompressors may not read the file to the end, the remaining content is included in the checksum.
+	 */
+	private void verifyChecksum(Path cacheFile, CacheIndex.Entry indexEntry, InputStream in, CRC32C crc32c)
+			throws IOException
+	{
+		in.transferTo(OutputStream.nullOutputStream());
+		long checksum = crc32c.getValue();
+
+		if (!indexEntry.hasChecksum())
+			index.putChecksum(indexEntry, checksum);
+		else if (indexEntry.checksum() != checksum)
+			throw new IOException("Checksum of cache file " + cacheFile.toString() + " does not match cache index");
+	}
+
+	/**
+	 * Reads an entry written with a different content encoding, e.g. by earlier versions, writes it with the current
+	 * content encoding and codec and deletes the read file.
+	 *
+	 * @param <R>
+	 *            decoded type
+	 * @param cacheEntryId
+	 *            not <code>null</code>
+	 * @param cacheEntryType
+	 *            not <code>null</code>
+	 * @param legacyContentSuffix
+	 *            not <code>null</code>, looked up with the current codec and gzip
+	 * @param legacyDecoder
+	 *            not <code>null</code>, decodes the uncompressed legacy content
+	 * @param encoder
+	 *            not <code>null</code>, encodes with the current content encoding
+	 * @param copy
+	 *            may be <code>null</code>, in-memory tier only used if not <code>null</code>
+	 * @return <code>null</code> if no legacy entry found
+	 * @throws IOException
+	 */
+	protected final <R> R migrateFromCache(String cacheEntryId, String cacheEntryType, String legacyContentSuffix,
+			FunctionWithIoException<InputStream, R> legacyDecoder, BiConsumerWithIoException<OutputStream, R> encoder,
+			UnaryOperator<R> copy) throws IOException
+	{
+		for (CacheCodec legacyCodec : Stream.concat(Stream.of(codec), legacyCodecs.stream()).distinct().toList())
+		{
+			Path legacyFile = cacheFile(cacheEntryId, legacyContentSuffix, legacyCodec);
+			if (index.get(legacyFile) == null)
+				continue;
+
+			R decoded;
+			try (InputStream in = legacyCodec.decompress(new BufferedInputStream(Files.newInputStream(legacyFile))))
+			{
+				decoded = legacyDecoder.apply(in);
+			}
+			catch (NoSuchFileException e)
+			{
+				index.remove(legacyFile);
+				continue;
+			}
+
+			write(decoded, cacheEntryId, cacheEntryType, encoder, copy);
+			Files.deleteIfExists(legacyFile);
+			index.remove(legacyFile);
+
+			logger.debug("Cache file for {} {} migrated from {}{} to {}{}", cacheEntryType, cacheEntryId,
+					legacyContentSuffix, legacyCodec.getFileNameSuffix(), contentSuffix, codec.getFileNameSuffix());
+			return decoded;
+		}
+
+		return null;
+	}
+
 	protected final T writeToCache(T value, Function<T, String> toCacheId, Function<T, String> toCacheEntryType,
 			BiConsumerWithIoException<Writer, T> encoder) throws IOException
 	{
@@ -131,23 +679,114 @@ public abstract class AbstractFileSystemCache<T> implements InitializingBean
 
 	protected final <R> T writeToCache(T value, Function<R, String> toCacheId, Function<R, String> toCacheEntryType,
 			BiConsumerWithIoException<Writer, R> encoder, Function<T, R> toResource) throws IOException
+	{
+		return writeToCache(value, toCacheId, toCacheEntryType, encoder, null, toResource);
+	}
+
+	/**
+	 * @param <R>
+	 *            encoded type
+	 * @param value
+	 *            not <code>null</code>
+	 * @param toCacheId
+	 *            not <code>null</code>
+	 * @param toCacheEntryType
+	 *            not <code>null</code>
+	 * @param encoder
+	 *            not <code>null</code>
+	 * @param copy
+	 *            may be <code>null</code>, in-memory tier only used if not <code>null</code>, needs to return a deep
+	 *            copy since the given value may be modified by the caller after this call
+	 * @param toResource
+	 *            not <code>null</code>
+	 * @return the given value
+	 * @throws IOException
+	 */
+	protected final <R> T writeToCache(T value, Function<R, String> toCacheId, Function<R, String> toCacheEntryType,
+			BiConsumerWithIoException<Writer, R> encoder, UnaryOperator<R> copy, Function<T, R> toResource)
+			throws IOException
+	{
+		return writeStreamToCache(value, toCacheId, toCacheEntryType, toStreamEncoder(encoder), copy, toResource);
+	}
+
+	/**
+	 * @param <R>
+	 *            encoded type
+	 * @param value
+	 *            not <code>null</code>
+	 * @param toCacheId
+	 *            not <code>null</code>
+	 * @param toCacheEntryType
+	 *            not <code>null</code>
+	 * @param encoder
+	 *            not <code>null</code>, writes the uncompressed content
+	 * @param copy
+	 *            may be <code>null</code>, in-memory tier only used if not <code>null</code>, needs to return a deep
+	 *            copy since the given value may be modified by the caller after this call
+	 * @param toResource
+	 *            not <code>null</code>
+	 * @return the given value
+	 * @throws IOException
+	 */
+	protected final <R> T writeStreamToCache(T value, Function<R, String> toCacheId,
+			Function<R, String> toCacheEntryType, BiConsumerWithIoException<OutputStream, R> encoder,
+			UnaryOperator<R> copy, Function<T, R> toResource) throws IOException
 	{
 		R resource = toResource.apply(value);
-		String cacheId = toCacheId.apply(resource);
-		String cacheEntryType = toCacheEntryType.apply(resource);
+		write(resource, toCacheId.apply(resource), toCacheEntryType.apply(resource), encoder, copy);
 
-		Path cacheFile = cacheFile(cacheId);
+		return value;
+	}
 
-		try (OutputStream out = Files.newOutputStream(cacheFile, StandardOpenOption.CREATE,
-				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
-				BufferedOutputStream bOut = new BufferedOutputStream(out);
-				OutputStream cOut = outCompressorFactory.apply(bOut);
-				OutputStreamWriter writer = new OutputStreamWriter(cOut, StandardCharsets.UTF_8))
+	private <R> void write(R resource, String cacheId, String cacheEntryType,
+			BiConsumerWithIoException<OutputStream, R> encoder, UnaryOperator<R> copy) throws IOException
+	{
+		Path cacheFile = cacheFile(cacheId, contentSuffix, codec);
+		logger.debug("Writing {} {} to cache at {}", cacheEntryType, cacheId, cacheFile.toString());
+
+		if (memoryCache != null && copy != null)
 		{
-			logger.debug("Writing {} {} to cache at {}", cacheEntryType, cacheId, cacheFile.toString());
-			encoder.accept(writer, resource);
+			ByteArrayOutputStream content = new ByteArrayOutputStream();
+			encoder.accept(content, resource);
+
+			writeAtomically(cacheFile, out ->
+			{
+				try (OutputStream cOut = codec.compress(out))
+				{
+					content.writeTo(cOut);
+				}
+			});
+
+			memoryCache.put(cacheFile, copy.apply(resource), content.size());
 		}
+		else
+		{
+			writeAtomically(cacheFile, out ->
+			{
+				try (OutputStream cOut = codec.compress(out))
+				{
+					encoder.accept(cOut, resource);
+				}
+			});
+		}
+	}
 
-		return value;
+	private static <R> FunctionWithIoException<InputStream, R> toStreamDecoder(
+			FunctionWithIoException<Reader, R> decoder)
+	{
+		return in -> decoder.apply(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	private static <R> BiConsumerWithIoException<OutputStream, R> toStreamEncoder(
+			BiConsumerWithIoException<Writer, R> encoder)
+	{
+		return (out, resource) ->
+		{
+			// closing the writer closes the given stream, encoders may close the writer
+			try (OutputStreamWriter writer = new OutputStreamWriter(out, StandardCharsets.UTF_8))
+			{
+				encoder.accept(writer, resource);
+			}
+		};
 	}
 }
@@ -0,0 +1,387 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.exceptions.FHIRException;
+import org.hl7.fhir.r4.model.BackboneElement;
+import org.hl7.fhir.r4.model.BackboneType;
+import org.hl7.fhir.r4.model.Base;
+import org.hl7.fhir.r4.model.DomainResource;
+import org.hl7.fhir.r4.model.Element;
+import org.hl7.fhir.r4.model.Narrative;
+import org.hl7.fhir.r4.model.PrimitiveType;
+import org.hl7.fhir.r4.model.Property;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.ResourceFactory;
+
+/**
+ * Compact binary encoding of FHIR R4 resources for file system cache entries. The element tree is written as is using
+ * the generated <code>listChildren</code>, <code>makeProperty</code> and <code>setProperty</code> methods of the HAPI
+ * model, all strings (element names, types, values) are interned in a table built while reading and writing. Decoding
+ * does not need reflection or a JSON tokenizer, repeated urls, codes and element names are only stored once.
+ * <p>
+ * Format: magic <code>DSFB</code>, format version, root resource node. A node is written as kind, type and, for
+ * primitives, the value; followed by named child nodes terminated by a <code>null</code> name. Narrative
+ * <code>div</code> elements are written as XHTML strings. Strings are written as unsigned LEB128 references: 0 for
+ * <code>null</code>, 1..n for strings already in the table, n+1 for a new string followed by its UTF-8 length and
+ * bytes.
+ */
+public final class BinaryResourceFormat
+{
+	private static final byte[] MAGIC = { 'D', 'S', 'F', 'B' };
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int RESOURCE = 0;
+	private static final int ELEMENT = 1;
+	private static final int PRIMITIVE = 2;
+
+	private static final String CHOICE_SUFFIX = "[x]";
+
+	private BinaryResourceFormat()
+	{
+	}
+
+	/**
+	 * @param in
+	 *            not <code>null</code>
+	 * @return <code>true</code> if the stream starts with the magic bytes of this format, the stream needs to support
+	 *         mark/reset
+	 * @throws IOException
+	 */
+	public static boolean matches(InputStream in) throws IOException
+	{
+		in.mark(MAGIC.length);
+		try
+		{
+			return Arrays.equals(MAGIC, in.readNBytes(MAGIC.length));
+		}
+		finally
+		{
+			in.reset();
+		}
+	}
+
+	/**
+	 * @param resource
+	 *            not <code>null</code>
+	 * @param out
+	 *            not <code>null</code>, not closed by this method
+	 * @throws IOException
+	 */
+	public static void write(Resource resource, OutputStream out) throws IOException
+	{
+		Writer writer = new Writer(new DataOutputStream(out));
+		writer.out.write(MAGIC);
+		writer.out.writeByte(FORMAT_VERSION);
+		writer.writeNode(resource);
+		writer.out.flush();
+	}
+
+	/**
+	 * Content fingerprint independent of JSON or XML formatting, equal for equal element trees.
+	 *
+	 * @param node
+	 *            not <code>null</code>, resource or element
+	 * @param excludedElements
+	 *            names of top level elements not included in the fingerprint, e.g. <code>snapshot</code>
+	 * @return hex encoded SHA-256 of the encoded element tree
+	 */
+	public static String fingerprint(Base node, String... excludedElements)
+	{
+		try
+		{
+			MessageDigest digest = Sha256.newDigest();
+
+			Writer writer = new Writer(new DataOutputStream(new DigestOutputStream(OutputStream.nullOutputStream(),
+					digest)));
+			writer.out.writeByte(FORMAT_VERSION);
+			writer.writeNode(node, Set.of(excludedElements));
+			writer.out.flush();
+
+			return HexFormat.of().formatHex(digest.digest());
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param in
+	 *            not <code>null</code>, not closed by this method
+	 * @return decoded resource
+	 * @throws IOException
+	 *             if the stream does not contain a resource in this format
+	 */
+	public static Resource read(InputStream in) throws IOException
+	{
+		Reader reader = new Reader(new DataInputStream(in));
+
+		byte[] magic = reader.in.readNBytes(MAGIC.length);
+		if (!Arrays.equals(MAGIC, magic))
+			throw new IOException("Not a binary resource, magic bytes do not match");
+
+		int version = reader.in.readUnsignedByte();
+		if (version != FORMAT_VERSION)
+			throw new IOException("Binary resource format version " + version + " not supported");
+
+		try
+		{
+			if (reader.in.readUnsignedByte() != RESOURCE)
+				throw new IOException("Binary resource root node not a resource");
+
+			Resource resource = ResourceFactory.createResource(reader.readString());
+			reader.readChildren(resource);
+			return resource;
+		}
+		catch (FHIRException | IllegalArgumentException | ClassCastException e)
+		{
+			throw new IOException("Unable to decode binary resource", e);
+		}
+	}
+
+	private static final class Writer
+	{
+		final DataOutputStream out;
+		final Map<String, Integer> strings = new HashMap<>();
+
+		Writer(DataOutputStream out)
+		{
+			this.out = out;
+		}
+
+		void writeNode(Base node) throws IOException
+		{
+			writeNode(node, Set.of());
+		}
+
+		void writeNode(Base node, Set<String> excludedElements) throws IOException
+		{
+			if (node instanceof Resource)
+				out.writeByte(RESOURCE);
+			else if (node instanceof PrimitiveType<?>)
+				out.writeByte(PRIMITIVE);
+			else
+				out.writeByte(ELEMENT);
+
+			writeString(node.fhirType());
+
+			if (node instanceof PrimitiveType<?> p)
+				writeString(p.hasValue() ? p.getValueAsString() : null);
+
+			List<Property> children = node.children();
+
+			Set<String> listed = new HashSet<>(excludedElements);
+			children.forEach(p -> listed.add(p.getName()));
+
+			writeInheritedChildren(node, listed);
+			for (Property property : children)
+			{
+				if (!excludedElements.contains(property.getName()))
+					writeChildren(property.getName(), property.getValues());
+			}
+			writeString(null);
+
+			if (node instanceof Narrative n)
+				writeString(n.hasDiv() ? n.getDivAsString() : null);
+		}
+
+		/**
+		 * Generated <code>listChildren</code> methods of most resources and complex types do not list the elements of
+		 * their super types, elements already listed or excluded are skipped.
+		 */
+		void writeInheritedChildren(Base node, Set<String> listed) throws IOException
+		{
+			if (node instanceof Resource r)
+			{
+				writeChild("id", r.hasIdElement() ? r.getIdElement() : null, listed);
+				writeChild("meta", r.hasMeta() ? r.getMeta() : null, listed);
+				writeChild("implicitRules", r.hasImplicitRulesElement() ? r.getImplicitRulesElement() : null, listed);
+				writeChild("language", r.hasLanguageElement() ? r.getLanguageElement() : null, listed);
+			}
+
+			if (node instanceof DomainResource r)
+			{
+				writeChild("text", r.hasText() ? r.getText() : null, listed);
+				writeChildren("contained", r.getContained(), listed);
+				writeChildren("extension", r.getExtension(), listed);
+				writeChildren("modifierExtension", r.getModifierExtension(), listed);
+			}
+			else if (node instanceof Element e)
+			{
+				writeChild("id", e.hasIdElement() ? e.getIdElement() : null, listed);
+				writeChildren("extension", e.getExtension(), listed);
+			}
+
+			if (node instanceof BackboneElement e)
+				writeChildren("modifierExtension", e.getModifierExtension(), listed);
+			else if (node instanceof BackboneType t)
+				writeChildren("modifierExtension", t.getModifierExtension(), listed);
+		}
+
+		void writeChild(String name, Base value, Set<String> listed) throws IOException
+		{
+			if (!listed.contains(name))
+				writeChild(name, value);
+		}
+
+		void writeChildren(String name, List<? extends Base> values, Set<String> listed) throws IOException
+		{
+			if (!listed.contains(name))
+				writeChildren(name, values);
+		}
+
+		void writeChild(String name, Base value) throws IOException
+		{
+			if (value != null && !value.isEmpty())
+			{
+				writeString(name);
+				writeNode(value);
+			}
+		}
+
+		void writeChildren(String name, List<? extends Base> values) throws IOException
+		{
+			for (Base value : values)
+				writeChild(name, value);
+		}
+
+		void writeString(String value) throws IOException
+		{
+			if (value == null)
+			{
+				writeUnsigned(0);
+				return;
+			}
+
+			Integer reference = strings.get(value);
+			if (reference != null)
+				writeUnsigned(reference);
+			else
+			{
+				int next = strings.size() + 1;
+				strings.put(value, next);
+
+				byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+				writeUnsigned(next);
+				writeUnsigned(bytes.length);
+				out.write(bytes);
+			}
+		}
+
+		void writeUnsigned(int value) throws IOException
+		{
+			while ((value & ~0x7F) != 0)
+			{
+				out.writeByte((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			out.writeByte(value);
+		}
+	}
+
+	private static final class Reader
+	{
+		final DataInputStream in;
+		final List<String> strings = new ArrayList<>();
+
+		Reader(DataInputStream in)
+		{
+			this.in = in;
+		}
+
+		void readChildren(Base parent) throws IOException
+		{
+			for (String name = readString(); name != null; name = readString())
+			{
+				int kind = in.readUnsignedByte();
+				String type = readString();
+
+				if (kind == RESOURCE)
+				{
+					Resource child = ResourceFactory.createResource(type);
+					readChildren(child);
+					parent.setProperty(name, child);
+				}
+				else if (name.endsWith(CHOICE_SUFFIX))
+				{
+					Base child = ResourceFactory.createType(type);
+					readContent(child, kind);
+					parent.setProperty(name, child);
+				}
+				else
+					readContent(parent.makeProperty(name.hashCode(), name), kind);
+			}
+		}
+
+		void readContent(Base node, int kind) throws IOException
+		{
+			if (kind == PRIMITIVE)
+			{
+				String value = readString();
+				if (value != null)
+					((PrimitiveType<?>) node).setValueAsString(value);
+			}
+
+			readChildren(node);
+
+			if (node instanceof Narrative n)
+			{
+				String div = readString();
+				if (div != null)
+					n.setDivAsString(div);
+			}
+		}
+
+		String readString() throws IOException
+		{
+			int reference = readUnsigned();
+			if (reference == 0)
+				return null;
+			else if (reference <= strings.size())
+				return strings.get(reference - 1);
+			else if (reference == strings.size() + 1)
+			{
+				byte[] bytes = new byte[readUnsigned()];
+				in.readFully(bytes);
+
+				String value = new String(bytes, StandardCharsets.UTF_8);
+				strings.add(value);
+				return value;
+			}
+			else
+				throw new IOException("Invalid string reference " + reference);
+		}
+
+		int readUnsigned() throws IOException
+		{
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7)
+			{
+				int b = in.readUnsignedByte();
+				value |= (b & 0x7F) << shift;
+
+				if ((b & 0x80) == 0)
+					return value;
+			}
+
+			throw new EOFException("Invalid unsigned LEB128 value");
+		}
+	}
+}
@@ -0,0 +1,385 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import ca.uhn.fhir.util.VersionUtil;
+
+/**
+ * Uncompressed tar archive of the files in the package store and the file system cache folders, written after
+ * downloading packages, expanding ValueSets and generating snapshots. Other validator instances load the archive at
+ * startup and need neither network access nor recomputation, as long as they are configured with the same packages,
+ * modifier classes and terminology server base url.
+ * <p>
+ * The first archive entry is a JSON {@link Manifest} with the format version, a content version, the packages and a
+ * per cache type summary as well as size and SHA-256 hash of every file. Files are stored as
+ * <code>&lt;cacheType&gt;/&lt;fileName&gt;</code>, hidden lock and temp files are not included. While loading, every
+ * file is verified against the manifest before it is atomically moved into the cache folder, cache indexes of the
+ * cache folders are recreated on next use.
+ */
+public class CacheBundle implements InitializingBean
+{
+	private static final Logger logger = LoggerFactory.getLogger(CacheBundle.class);
+
+	public static final int FORMAT_VERSION = 1;
+	public static final String MANIFEST_ENTRY_NAME = "manifest.json";
+
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static record Manifest(@JsonProperty("formatVersion") int formatVersion,
+			@JsonProperty("version") String version, @JsonProperty("created") String created,
+			@JsonProperty("hapiVersion") String hapiVersion, @JsonProperty("packages") List<String> packages,
+			@JsonProperty("summary") Map<String, Summary> summary, @JsonProperty("entries") List<Entry> entries)
+	{
+		@JsonCreator
+		public Manifest
+		{
+		}
+	}
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static record Summary(@JsonProperty("files") long files, @JsonProperty("bytes") long bytes)
+	{
+		@JsonCreator
+		public Summary
+		{
+		}
+	}
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static record Entry(@JsonProperty("path") String path, @JsonProperty("size") long size,
+			@JsonProperty("sha256") String sha256)
+	{
+		@JsonCreator
+		public Entry
+		{
+		}
+	}
+
+	private final Map<String, Path> cacheFolders = new LinkedHashMap<>();
+	private final ObjectMapper objectMapper;
+
+	/**
+	 * @param cacheFolders
+	 *            not <code>null</code>, cache folders by cache type, e.g. <code>ValueSet</code>
+	 * @param objectMapper
+	 *            not <code>null</code>
+	 */
+	public CacheBundle(Map<String, Path> cacheFolders, ObjectMapper objectMapper)
+	{
+		if (cacheFolders != null)
+			this.cacheFolders.putAll(cacheFolders);
+
+		this.objectMapper = objectMapper;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception
+	{
+		Objects.requireNonNull(objectMapper, "objectMapper");
+
+		for (Map.Entry<String, Path> folder : cacheFolders.entrySet())
+		{
+			if (folder.getKey().isBlank() || folder.getKey().contains("/"))
+				throw new IllegalArgumentException("Cache type '" + folder.getKey() + "' not valid");
+
+			Objects.requireNonNull(folder.getValue(), "cacheFolders." + folder.getKey());
+		}
+	}
+
+	/**
+	 * Writes all files of the configured cache folders to the given archive, the archive is written to a temp file
+	 * first and atomically moved. Cache folders should only contain files of the packages given, e.g. fresh folders
+	 * used for a single prepare run.
+	 *
+	 * @param archive
+	 *            not <code>null</code>
+	 * @param packages
+	 *            not <code>null</code>, identifiers of the packages the caches were created for
+	 * @return manifest of the written archive
+	 * @throws IOException
+	 */
+	public Manifest write(Path archive, List<String> packages) throws IOException
+	{
+		Objects.requireNonNull(archive, "archive");
+		Objects.requireNonNull(packages, "packages");
+
+		List<Entry> entries = new ArrayList<>();
+		Map<String, Path> files = new HashMap<>();
+
+		for (Map.Entry<String, Path> folder : cacheFolders.entrySet())
+		{
+			try (Stream<Path> list = Files.list(folder.getValue()))
+			{
+				for (Path file : list.filter(this::isBundled).sorted().toList())
+				{
+					String path = folder.getKey() + "/" + file.getFileName().toString();
+					entries.add(new Entry(path, Files.size(file), sha256(file)));
+					files.put(path, file);
+				}
+			}
+		}
+
+		Manifest manifest = new Manifest(FORMAT_VERSION, contentVersion(entries),
+				ZonedDateTime.now().format(DateTimeFormatter.ISO_OFFSET_DATE_TIME), VersionUtil.getVersion(),
+				packages, summarize(entries), entries);
+		byte[] manifestBytes = objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(manifest);
+
+		Path absoluteArchive = archive.toAbsolutePath();
+		Path tempFile = absoluteArchive.resolveSibling(
+				"." + absoluteArchive.getFileName().toString() + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+
+		try
+		{
+			try (TarArchiveOutputStream out = new TarArchiveOutputStream(
+					new BufferedOutputStream(Files.newOutputStream(tempFile, StandardOpenOption.CREATE_NEW))))
+			{
+				out.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+
+				TarArchiveEntry manifestEntry = new TarArchiveEntry(MANIFEST_ENTRY_NAME);
+				manifestEntry.setSize(manifestBytes.length);
+				out.putArchiveEntry(manifestEntry);
+				out.write(manifestBytes);
+				out.closeArchiveEntry();
+
+				for (Entry entry : entries)
+				{
+					// entry size taken from manifest, archive stream fails if the file was modified in between
+					TarArchiveEntry tarEntry = new TarArchiveEntry(entry.path());
+					tarEntry.setSize(entry.size());
+					out.putArchiveEntry(tarEntry);
+					Files.copy(files.get(entry.path()), out);
+					out.closeArchiveEntry();
+				}
+			}
+
+			try
+			{
+				Files.move(tempFile, absoluteArchive, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (IOException e)
+			{
+				Files.move(tempFile, absoluteArchive, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+
+		logger.info("Cache bundle version {} written to {}: {}", manifest.version(), absoluteArchive.toString(),
+				toString(manifest));
+
+		return manifest;
+	}
+
+	/**
+	 * Extracts all files of the given archive into the configured cache folders, files of cache types not configured
+	 * are skipped. Files extracted before an integrity check fails remain in the cache folders, they are verified
+	 * individually.
+	 *
+	 * @param archive
+	 *            not <code>null</code>
+	 * @return manifest of the loaded archive
+	 * @throws IOException
+	 *             if the archive can't be read, the format version is not supported or a file does not match the
+	 *             manifest
+	 */
+	public Manifest load(Path archive) throws IOException
+	{
+		Objects.requireNonNull(archive, "archive");
+
+		logger.info("Loading cache bundle from {}", archive.toAbsolutePath().toString());
+
+		try (TarArchiveInputStream in = new TarArchiveInputStream(
+				new BufferedInputStream(Files.newInputStream(archive))))
+		{
+			TarArchiveEntry manifestEntry = in.getNextEntry();
+			if (manifestEntry == null || !MANIFEST_ENTRY_NAME.equals(manifestEntry.getName()))
+				throw new IOException("Cache bundle " + archive.toString() + " does not start with a manifest");
+
+			Manifest manifest = objectMapper.readValue(in.readAllBytes(), Manifest.class);
+			if (manifest.formatVersion() != FORMAT_VERSION)
+				throw new IOException("Cache bundle format version " + manifest.formatVersion() + " not supported");
+
+			if (!VersionUtil.getVersion().equals(manifest.hapiVersion()))
+				logger.warn("Cache bundle created with HAPI version {}, running {}, cache entries will not be used",
+						manifest.hapiVersion(), VersionUtil.getVersion());
+
+			Map<String, Entry> expected = manifest.entries() == null ? Map.of()
+					: manifest.entries().stream().collect(Collectors.toMap(Entry::path, e -> e));
+			Set<String> extracted = new HashSet<>();
+			Set<Path> targetFolders = new HashSet<>();
+
+			try
+			{
+				for (TarArchiveEntry tarEntry = in.getNextEntry(); tarEntry != null; tarEntry = in.getNextEntry())
+				{
+					Entry entry = expected.get(tarEntry.getName());
+					if (entry == null)
+						throw new IOException("Cache bundle file " + tarEntry.getName() + " not listed in manifest");
+
+					Path target = target(entry);
+					if (target == null)
+					{
+						logger.debug("Skipping cache bundle file {}, cache type not configured", entry.path());
+						extracted.add(entry.path());
+						continue;
+					}
+
+					targetFolders.add(target.getParent());
+					extract(in, entry, target);
+					extracted.add(entry.path());
+				}
+			}
+			finally
+			{
+				// extracted files not in cache indexes
+				for (Path folder : targetFolders)
+					CacheIndex.invalidate(folder);
+			}
+
+			if (!extracted.containsAll(expected.keySet()))
+				throw new IOException("Cache bundle " + archive.toString() + " incomplete, "
+						+ (expected.size() - extracted.size()) + " files missing");
+
+			logger.info("Cache bundle version {} created {} loaded: {}", manifest.version(), manifest.created(),
+					toString(manifest));
+
+			return manifest;
+		}
+	}
+
+	private boolean isBundled(Path file)
+	{
+		String fileName = file.getFileName().toString();
+		return Files.isRegularFile(file) && !fileName.startsWith(".") && !fileName.endsWith(TEMP_FILE_SUFFIX);
+	}
+
+	private Path target(Entry entry) throws IOException
+	{
+		String[] typeAndFileName = entry.path().split("/");
+		if (typeAndFileName.length != 2 || typeAndFileName[1].startsWith(".") || typeAndFileName[1].contains("\\"))
+			throw new IOException("Cache bundle file name " + entry.path() + " not valid");
+
+		Path folder = cacheFolders.get(typeAndFileName[0]);
+		return folder == null ? null : folder.resolve(typeAndFileName[1]);
+	}
+
+	private void extract(InputStream in, Entry entry, Path target) throws IOException
+	{
+		Path tempFile = target.resolveSibling(
+				"." + target.getFileName().toString() + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+
+		try
+		{
+			MessageDigest digest = Sha256.newDigest();
+			long size;
+			try (OutputStream out = new DigestOutputStream(
+					Files.newOutputStream(tempFile, StandardOpenOption.CREATE_NEW), digest))
+			{
+				size = in.transferTo(out);
+			}
+
+			String sha256 = HexFormat.of().formatHex(digest.digest());
+			if (size != entry.size() || !sha256.equals(entry.sha256()))
+				throw new IOException("Cache bundle file " + entry.path() + " does not match manifest, expected "
+						+ entry.size() + " bytes with SHA-256 " + entry.sha256() + ", got " + size + " bytes with "
+						+ sha256);
+
+			try
+			{
+				Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (IOException e)
+			{
+				Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private Map<String, Summary> summarize(List<Entry> entries)
+	{
+		Map<String, Summary> summary = new LinkedHashMap<>();
+		cacheFolders.keySet().forEach(type -> summary.put(type, new Summary(0, 0)));
+
+		for (Entry entry : entries)
+		{
+			summary.compute(entry.path().substring(0, entry.path().indexOf('/')),
+					(type, s) -> new Summary(s.files() + 1, s.bytes() + entry.size()));
+		}
+
+		return summary;
+	}
+
+	private String contentVersion(List<Entry> entries)
+	{
+		MessageDigest digest = Sha256.newDigest();
+		entries.forEach(e -> digest.update((e.path() + " " + e.sha256() + "\n").getBytes(StandardCharsets.UTF_8)));
+		return HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+	}
+
+	private String toString(Manifest manifest)
+	{
+		return (manifest.packages() == null ? 0 : manifest.packages().size()) + " packages, "
+				+ (manifest.summary() == null ? "no files"
+						: manifest.summary().entrySet().stream()
+								.map(e -> e.getKey() + " " + e.getValue().files() + " files "
+										+ e.getValue().bytes() / 1024 + " KiB")
+								.collect(Collectors.joining(", ")));
+	}
+
+	private static String sha256(Path file) throws IOException
+	{
+		MessageDigest digest = Sha256.newDigest();
+		try (InputStream in = new DigestInputStream(new BufferedInputStream(Files.newInputStream(file)), digest))
+		{
+			in.transferTo(OutputStream.nullOutputStream());
+		}
+
+		return HexFormat.of().formatHex(digest.digest());
+	}
+}
@@ -0,0 +1,153 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Objects;
+
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorInputStream;
+import org.apache.commons.compress.compressors.deflate.DeflateCompressorOutputStream;
+import org.apache.commons.compress.compressors.deflate.DeflateParameters;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorInputStream;
+import org.apache.commons.compress.compressors.lz4.FramedLZ4CompressorOutputStream;
+
+import dev.dsf.fhir.validator.cache.AbstractFileSystemCache.FunctionWithIoException;
+
+/**
+ * Compression of file system cache entries. Implementations for other algorithms (e.g. zstd) can be plugged in via
+ * {@link #of(String, String, FunctionWithIoException, FunctionWithIoException)} or by implementing this interface, the
+ * file name suffix needs to be unique per algorithm and parameters that change the encoded format. The suffix is
+ * appended to the content suffix of the cache, e.g. <code>.json</code>.
+ */
+public interface CacheCodec
+{
+	/**
+	 * Codecs selectable via configuration.
+	 */
+	public static enum Type
+	{
+		NONE, GZIP, DEFLATE, LZ4;
+
+		/**
+		 * @param deflateLevel
+		 *            0-9, only used by {@link #DEFLATE}
+		 * @return codec of this type
+		 */
+		public CacheCodec toCodec(int deflateLevel)
+		{
+			return switch (this)
+			{
+				case NONE -> CacheCodec.NONE;
+				case GZIP -> CacheCodec.GZIP;
+				case DEFLATE -> CacheCodec.deflate(deflateLevel);
+				case LZ4 -> CacheCodec.LZ4;
+			};
+		}
+	}
+
+	CacheCodec NONE = of("none", "", out -> out, in -> in);
+	CacheCodec GZIP = of("gzip", ".gz", GzipCompressorOutputStream::new, GzipCompressorInputStream::new);
+	CacheCodec LZ4 = of("lz4", ".lz4", FramedLZ4CompressorOutputStream::new, FramedLZ4CompressorInputStream::new);
+
+	/**
+	 * Raw deflate without zlib header, the suffix does not include the level since all levels share one format.
+	 *
+	 * @param level
+	 *            0-9
+	 * @return deflate codec with the given compression level
+	 */
+	static CacheCodec deflate(int level)
+	{
+		if (level < 0 || level > 9)
+			throw new IllegalArgumentException("level not in 0-9");
+
+		return of("deflate-" + level, ".deflate", out ->
+		{
+			DeflateParameters parameters = new DeflateParameters();
+			parameters.setCompressionLevel(level);
+			parameters.setWithZlibHeader(false);
+			return new DeflateCompressorOutputStream(out, parameters);
+		}, in ->
+		{
+			DeflateParameters parameters = new DeflateParameters();
+			parameters.setWithZlibHeader(false);
+			return new DeflateCompressorInputStream(in, parameters);
+		});
+	}
+
+	/**
+	 * @param name
+	 *            not <code>null</code>, used for logging
+	 * @param fileNameSuffix
+	 *            not <code>null</code>
+	 * @param compressor
+	 *            not <code>null</code>
+	 * @param decompressor
+	 *            not <code>null</code>
+	 * @return codec using the given factories
+	 */
+	static CacheCodec of(String name, String fileNameSuffix,
+			FunctionWithIoException<OutputStream, OutputStream> compressor,
+			FunctionWithIoException<InputStream, InputStream> decompressor)
+	{
+		Objects.requireNonNull(name, "name");
+		Objects.requireNonNull(fileNameSuffix, "fileNameSuffix");
+		Objects.requireNonNull(compressor, "compressor");
+		Objects.requireNonNull(decompressor, "decompressor");
+
+		return new CacheCodec()
+		{
+			@Override
+			public String getName()
+			{
+				return name;
+			}
+
+			@Override
+			public String getFileNameSuffix()
+			{
+				return fileNameSuffix;
+			}
+
+			@Override
+			public OutputStream compress(OutputStream out) throws IOException
+			{
+				return compressor.apply(out);
+			}
+
+			@Override
+			public InputStream decompress(InputStream in) throws IOException
+			{
+				return decompressor.apply(in);
+			}
+
+			@Override
+			public String toString()
+			{
+				return name;
+			}
+		};
+	}
+
+	String getName();
+
+	String getFileNameSuffix();
+
+	/**
+	 * @param out
+	 *            not <code>null</code>
+	 * @return compressing stream, closing the returned stream closes the given stream
+	 * @throws IOException
+	 */
+	OutputStream compress(OutputStream out) throws IOException;
+
+	/**
+	 * @param in
+	 *            not <code>null</code>
+	 * @return decompressing stream, closing the returned stream closes the given stream
+	 * @throws IOException
+	 */
+	InputStream decompress(InputStream in) throws IOException;
+}
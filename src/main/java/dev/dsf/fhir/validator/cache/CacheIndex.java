@@ -0,0 +1,379 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory index of the files in a cache folder, shared by all file system caches using the folder. Existence checks
+ * and size and checksum lookups do not touch the file system.
+ * <p>
+ * The index is persisted as append-only log <code>.index</code> in the cache folder with one line per written
+ * (<code>+ fileName size crc32c created accessed</code>), accessed (<code>@ fileName accessed</code>) or deleted
+ * (<code>- fileName</code>) file. Access times are recorded at most once per {@link #ACCESS_RECORD_INTERVAL} per
+ * entry. The log is read once on first use and compacted if it contains mostly outdated lines. If the log does not
+ * exist, it is created from a listing of the cache folder, checksums of listed files are recorded on first read. Files
+ * written by other processes after the log was read are not in the index, callers can {@link #refresh(Path)} single
+ * entries.
+ */
+final class CacheIndex
+{
+	private static final Logger logger = LoggerFactory.getLogger(CacheIndex.class);
+
+	static final String INDEX_FILE_NAME = ".index";
+	static final long UNKNOWN_CHECKSUM = -1;
+
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final int COMPACT_MIN_OUTDATED_LINES = 1000;
+	private static final Duration ACCESS_RECORD_INTERVAL = Duration.ofHours(1);
+
+	static record Entry(String fileName, long size, long checksum, long created, long accessed)
+	{
+		boolean hasChecksum()
+		{
+			return checksum != UNKNOWN_CHECKSUM;
+		}
+
+		Entry withChecksum(long checksum)
+		{
+			return new Entry(fileName, size, checksum, created, accessed);
+		}
+
+		Entry withAccessed(long accessed)
+		{
+			return new Entry(fileName, size, checksum, created, accessed);
+		}
+	}
+
+	// shared by all caches, multiple caches may use the same cache folder
+	private static final ConcurrentMap<Path, CacheIndex> INDEXES = new ConcurrentHashMap<>();
+
+	/**
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @return index shared by all callers with the same cache folder
+	 */
+	static CacheIndex of(Path cacheFolder)
+	{
+		return INDEXES.computeIfAbsent(cacheFolder.toAbsolutePath().normalize(), CacheIndex::new);
+	}
+
+	/**
+	 * Deletes the persisted index of the given cache folder, e.g. after files were added by other means. The index
+	 * is recreated from a listing of the cache folder on next use.
+	 *
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @throws IOException
+	 */
+	static void invalidate(Path cacheFolder) throws IOException
+	{
+		CacheIndex index = of(cacheFolder);
+		synchronized (index)
+		{
+			Files.deleteIfExists(index.indexFile);
+			index.entries = null;
+		}
+	}
+
+	private final Path cacheFolder;
+	private final Path indexFile;
+
+	private Map<String, Entry> entries;
+	private long logLines;
+
+	private CacheIndex(Path cacheFolder)
+	{
+		this.cacheFolder = cacheFolder;
+		this.indexFile = cacheFolder.resolve(INDEX_FILE_NAME);
+	}
+
+	/**
+	 * @param file
+	 *            not <code>null</code>, file in the cache folder
+	 * @return <code>null</code> if the file is not in the index
+	 * @throws IOException
+	 *             if the index could not be loaded
+	 */
+	synchronized Entry get(Path file) throws IOException
+	{
+		return entries().get(file.getFileName().toString());
+	}
+
+	/**
+	 * @param file
+	 *            not <code>null</code>, file in the cache folder
+	 * @param size
+	 *            size of the file in bytes
+	 * @param checksum
+	 *            CRC32C of the file content or {@link #UNKNOWN_CHECKSUM}
+	 * @return the added entry
+	 * @throws IOException
+	 */
+	synchronized Entry put(Path file, long size, long checksum) throws IOException
+	{
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry(file.getFileName().toString(), size, checksum, now, now);
+		entries().put(entry.fileName(), entry);
+		append("+ " + toLine(entry));
+
+		return entry;
+	}
+
+	/**
+	 * Records the checksum of an entry written without checksum, e.g. listed while creating the index.
+	 *
+	 * @param entry
+	 *            not <code>null</code>
+	 * @param checksum
+	 *            CRC32C of the file content
+	 * @throws IOException
+	 */
+	synchronized void putChecksum(Entry entry, long checksum) throws IOException
+	{
+		Entry withChecksum = entry.withChecksum(checksum);
+		if (entries().replace(entry.fileName(), entry, withChecksum))
+			append("+ " + toLine(withChecksum));
+	}
+
+	/**
+	 * Records the access time of the given entry if the last recorded access is older than
+	 * {@link #ACCESS_RECORD_INTERVAL}.
+	 *
+	 * @param entry
+	 *            not <code>null</code>
+	 * @throws IOException
+	 */
+	synchronized void touch(Entry entry) throws IOException
+	{
+		long now = System.currentTimeMillis();
+		if (now - entry.accessed() < ACCESS_RECORD_INTERVAL.toMillis())
+			return;
+
+		Entry current = entries().get(entry.fileName());
+		if (current != null && now - current.accessed() >= ACCESS_RECORD_INTERVAL.toMillis())
+		{
+			entries.put(current.fileName(), current.withAccessed(now));
+			append("@ " + current.fileName() + " " + now);
+		}
+	}
+
+	/**
+	 * @return snapshot of all entries
+	 * @throws IOException
+	 *             if the index could not be loaded
+	 */
+	synchronized List<Entry> list() throws IOException
+	{
+		return new ArrayList<>(entries().values());
+	}
+
+	/**
+	 * @param file
+	 *            not <code>null</code>, file in the cache folder
+	 * @throws IOException
+	 */
+	synchronized void remove(Path file) throws IOException
+	{
+		if (entries().remove(file.getFileName().toString()) != null)
+			append("- " + file.getFileName().toString());
+	}
+
+	/**
+	 * Updates the index entry of the given file from the file system, e.g. for files written by other processes. The
+	 * entry is replaced by an entry without checksum if size differs or the file was modified after the entry was
+	 * created.
+	 *
+	 * @param file
+	 *            not <code>null</code>, file in the cache folder
+	 * @return <code>null</code> if the file does not exist
+	 * @throws IOException
+	 */
+	synchronized Entry refresh(Path file) throws IOException
+	{
+		Entry entry = get(file);
+
+		try
+		{
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			if (entry == null || entry.size() != attributes.size()
+					|| attributes.lastModifiedTime().toMillis() > entry.created())
+				return put(file, attributes.size(), UNKNOWN_CHECKSUM);
+			else
+				return entry;
+		}
+		catch (NoSuchFileException e)
+		{
+			remove(file);
+			return null;
+		}
+	}
+
+	private Map<String, Entry> entries() throws IOException
+	{
+		if (entries == null)
+		{
+			if (Files.exists(indexFile))
+				load();
+			else
+				create();
+		}
+
+		return entries;
+	}
+
+	private void load() throws IOException
+	{
+		Map<String, Entry> loaded = new HashMap<>();
+		long lines = 0;
+
+		try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8))
+		{
+			for (String line = reader.readLine(); line != null; line = reader.readLine())
+			{
+				lines++;
+
+				// partially written lines of killed processes are ignored
+				String[] values = line.split(" ");
+				try
+				{
+					if (values.length == 6 && "+".equals(values[0]))
+						loaded.put(values[1], new Entry(values[1], Long.parseLong(values[2]),
+								Long.parseLong(values[3]), Long.parseLong(values[4]), Long.parseLong(values[5])));
+					else if (values.length == 3 && "@".equals(values[0]))
+						loaded.computeIfPresent(values[1], (k, v) -> v.withAccessed(Long.parseLong(values[2])));
+					else if (values.length == 2 && "-".equals(values[0]))
+						loaded.remove(values[1]);
+					else
+						logger.debug("Ignoring malformed line in cache index {}", indexFile.toString());
+				}
+				catch (NumberFormatException e)
+				{
+					logger.debug("Ignoring malformed line in cache index {}", indexFile.toString());
+				}
+			}
+		}
+
+		entries = loaded;
+		logLines = lines;
+
+		logger.debug("Cache index {} loaded with {} entries", indexFile.toString(), entries.size());
+
+		if (logLines - entries.size() > Math.max(COMPACT_MIN_OUTDATED_LINES, entries.size()))
+			compact();
+	}
+
+	private void create() throws IOException
+	{
+		Map<String, Entry> listed = new HashMap<>();
+
+		try (Stream<Path> files = Files.list(cacheFolder))
+		{
+			for (Path file : files.toList())
+			{
+				String fileName = file.getFileName().toString();
+				if (fileName.startsWith("."))
+					continue;
+
+				try
+				{
+					BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+					if (attributes.isRegularFile())
+						listed.put(fileName, new Entry(fileName, attributes.size(), UNKNOWN_CHECKSUM,
+								attributes.creationTime().toMillis(), attributes.lastModifiedTime().toMillis()));
+				}
+				catch (NoSuchFileException e)
+				{
+					// deleted while listing
+				}
+			}
+		}
+
+		entries = listed;
+		compact();
+
+		logger.debug("Cache index {} created with {} entries", indexFile.toString(), entries.size());
+	}
+
+	/**
+	 * Rewrites the persisted index with one line per entry. Lines appended by other processes while compacting are
+	 * lost, the affected entries are found again via {@link #refresh(Path)}.
+	 *
+	 * @throws IOException
+	 */
+	synchronized void compact() throws IOException
+	{
+		if (entries == null)
+		{
+			// compacted while loading if needed
+			entries();
+			return;
+		}
+
+		Path tempFile = cacheFolder.resolve(INDEX_FILE_NAME + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+
+		try
+		{
+			try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8,
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+			{
+				for (Entry entry : entries.values())
+				{
+					writer.write("+ " + toLine(entry));
+					writer.newLine();
+				}
+			}
+
+			try
+			{
+				Files.move(tempFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (AtomicMoveNotSupportedException e)
+			{
+				Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+
+			logLines = entries.size();
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	/**
+	 * Single small appends, not interleaved with appends of other processes on local file systems.
+	 */
+	private void append(String line) throws IOException
+	{
+		Files.write(indexFile, (line + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		logLines++;
+	}
+
+	private static String toLine(Entry entry)
+	{
+		return entry.fileName() + " " + entry.size() + " " + entry.checksum() + " " + entry.created() + " "
+				+ entry.accessed();
+	}
+}
@@ -0,0 +1,365 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Enforces size and age budgets of cache folders by deleting least recently used files. Access times are taken from
+ * the {@link CacheIndex} of indexed cache folders and from the last modified time of files otherwise, e.g. for the
+ * package store. Every pass also compacts cache indexes and deletes hidden lock and temp files older than
+ * {@link #STALE_FILE_AGE} not locked by other threads or processes.
+ * <p>
+ * Files deleted while in use are recreated by the file system caches, packages are downloaded again.
+ */
+public class CachePruner implements InitializingBean, DisposableBean
+{
+	private static final Logger logger = LoggerFactory.getLogger(CachePruner.class);
+
+	private static final String LOCK_FILE_SUFFIX = ".lock";
+	private static final String TEMP_FILE_SUFFIX = ".tmp";
+	private static final Duration STALE_FILE_AGE = Duration.ofHours(1);
+
+	/**
+	 * @param cacheType
+	 *            not <code>null</code>, used for logging
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @param maxBytes
+	 *            maximum size of all files in the cache folder, <code>0</code> for unlimited
+	 * @param maxAge
+	 *            maximum time since last access, <code>null</code> or zero for unlimited
+	 */
+	public static record Budget(String cacheType, Path cacheFolder, long maxBytes, Duration maxAge)
+	{
+		boolean isLimited()
+		{
+			return maxBytes > 0 || (maxAge != null && maxAge.toMillis() > 0);
+		}
+	}
+
+	/**
+	 * @param cacheType
+	 *            cache type of the budget
+	 * @param files
+	 *            number of files before pruning
+	 * @param bytes
+	 *            size of all files before pruning
+	 * @param prunedFiles
+	 *            number of files deleted or to be deleted
+	 * @param prunedBytes
+	 *            size of files deleted or to be deleted
+	 * @param staleFiles
+	 *            number of stale lock and temp files deleted or to be deleted
+	 * @param leastRecentAccess
+	 *            <code>null</code> if the cache folder is empty
+	 */
+	public static record Report(String cacheType, long files, long bytes, long prunedFiles, long prunedBytes,
+			long staleFiles, Instant leastRecentAccess)
+	{
+	}
+
+	private static record CacheFile(Path file, long size, long accessed)
+	{
+	}
+
+	private final List<Budget> budgets = new ArrayList<>();
+	private final Duration interval;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param budgets
+	 *            may be <code>null</code>
+	 * @param interval
+	 *            time between background passes, <code>null</code> or zero for a single pass after {@link #start()}
+	 */
+	public CachePruner(List<Budget> budgets, Duration interval)
+	{
+		if (budgets != null)
+			this.budgets.addAll(budgets);
+
+		this.interval = interval;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception
+	{
+		for (Budget budget : budgets)
+		{
+			Objects.requireNonNull(budget.cacheType(), "budget.cacheType");
+			Objects.requireNonNull(budget.cacheFolder(), "budget.cacheFolder");
+
+			if (budget.maxBytes() < 0)
+				throw new IllegalArgumentException(budget.cacheType() + " budget maxBytes < 0");
+			if (budget.maxAge() != null && budget.maxAge().isNegative())
+				throw new IllegalArgumentException(budget.cacheType() + " budget maxAge < 0");
+		}
+	}
+
+	/**
+	 * Starts pruning in background if at least one budget is limited, repeated every configured interval.
+	 */
+	public synchronized void start()
+	{
+		if (executor != null || budgets.stream().noneMatch(Budget::isLimited))
+			return;
+
+		executor = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "cache-pruner");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		if (interval != null && interval.toMillis() > 0)
+		{
+			logger.debug("Pruning caches every {} ms", interval.toMillis());
+			executor.scheduleWithFixedDelay(this::pruneInBackground, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		else
+			executor.execute(this::pruneInBackground);
+	}
+
+	private void pruneInBackground()
+	{
+		try
+		{
+			log(prune(), true);
+		}
+		catch (Exception e)
+		{
+			logger.warn("Unable to prune caches: {} - {}", e.getClass().getName(), e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized void destroy() throws Exception
+	{
+		if (executor != null)
+			executor.shutdownNow();
+	}
+
+	/**
+	 * @return reports of all budgets, nothing is deleted
+	 * @throws IOException
+	 */
+	public List<Report> report() throws IOException
+	{
+		List<Report> reports = new ArrayList<>();
+		for (Budget budget : budgets)
+			reports.add(pass(budget, false));
+
+		return reports;
+	}
+
+	/**
+	 * Deletes least recently used files exceeding the budgets as well as stale lock and temp files, compacts cache
+	 * indexes.
+	 *
+	 * @return reports of all budgets
+	 * @throws IOException
+	 */
+	public synchronized List<Report> prune() throws IOException
+	{
+		List<Report> reports = new ArrayList<>();
+		for (Budget budget : budgets)
+			reports.add(pass(budget, true));
+
+		return reports;
+	}
+
+	/**
+	 * @param reports
+	 *            not <code>null</code>
+	 * @param pruned
+	 *            <code>true</code> if the reports were created by {@link #prune()}
+	 */
+	public void log(List<Report> reports, boolean pruned)
+	{
+		for (Report r : reports)
+		{
+			logger.info(
+					"{} cache: {} files {} KiB, least recent access {}, {} files {} KiB {}, {} stale lock and temp files {}",
+					r.cacheType(), r.files(), r.bytes() / 1024, r.leastRecentAccess(), r.prunedFiles(),
+					r.prunedBytes() / 1024, pruned ? "pruned" : "to prune", r.staleFiles(),
+					pruned ? "deleted" : "to delete");
+		}
+	}
+
+	private Report pass(Budget budget, boolean prune) throws IOException
+	{
+		Path cacheFolder = budget.cacheFolder();
+		CacheIndex index = Files.exists(cacheFolder.resolve(CacheIndex.INDEX_FILE_NAME))
+				? CacheIndex.of(cacheFolder)
+				: null;
+
+		List<CacheFile> files = index != null ? indexedFiles(cacheFolder, index) : listedFiles(cacheFolder);
+		files.sort(Comparator.comparingLong(CacheFile::accessed));
+
+		long bytes = files.stream().mapToLong(CacheFile::size).sum();
+		long expiredBefore = budget.maxAge() != null && budget.maxAge().toMillis() > 0
+				? System.currentTimeMillis() - budget.maxAge().toMillis()
+				: Long.MIN_VALUE;
+
+		long remainingBytes = bytes, prunedFiles = 0, prunedBytes = 0;
+		for (CacheFile file : files)
+		{
+			boolean expired = file.accessed() < expiredBefore;
+			boolean overBudget = budget.maxBytes() > 0 && remainingBytes > budget.maxBytes();
+
+			// sorted by access time, all following files accessed more recently
+			if (!expired && !overBudget)
+				break;
+
+			if (prune && !delete(file.file(), index))
+				continue;
+
+			prunedFiles++;
+			prunedBytes += file.size();
+			remainingBytes -= file.size();
+		}
+
+		if (prune && index != null)
+			index.compact();
+
+		long staleFiles = staleFiles(cacheFolder, prune);
+
+		return new Report(budget.cacheType(), files.size(), bytes, prunedFiles, prunedBytes, staleFiles,
+				files.isEmpty() ? null : Instant.ofEpochMilli(files.get(0).accessed()));
+	}
+
+	private List<CacheFile> indexedFiles(Path cacheFolder, CacheIndex index) throws IOException
+	{
+		return new ArrayList<>(index.list().stream()
+				.map(e -> new CacheFile(cacheFolder.resolve(e.fileName()), e.size(), e.accessed())).toList());
+	}
+
+	private List<CacheFile> listedFiles(Path cacheFolder) throws IOException
+	{
+		List<CacheFile> files = new ArrayList<>();
+
+		try (Stream<Path> list = Files.list(cacheFolder))
+		{
+			for (Path file : list.toList())
+			{
+				String fileName = file.getFileName().toString();
+				if (fileName.startsWith(".") || fileName.endsWith(TEMP_FILE_SUFFIX))
+					continue;
+
+				try
+				{
+					BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+					if (attributes.isRegularFile())
+						files.add(new CacheFile(file, attributes.size(), attributes.lastModifiedTime().toMillis()));
+				}
+				catch (NoSuchFileException e)
+				{
+					// deleted while listing
+				}
+			}
+		}
+
+		return files;
+	}
+
+	private boolean delete(Path file, CacheIndex index)
+	{
+		try
+		{
+			Files.deleteIfExists(file);
+
+			if (index != null)
+				index.remove(file);
+
+			logger.debug("Cache file {} pruned", file.toString());
+			return true;
+		}
+		catch (IOException e)
+		{
+			logger.warn("Unable to delete cache file {}: {} - {}", file.toString(), e.getClass().getName(),
+					e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Lock files are created for every cache entry created, but never deleted by the file system caches. Deleting a
+	 * lock file opened but not yet locked by another process may result in an entry being created twice.
+	 */
+	private long staleFiles(Path cacheFolder, boolean delete) throws IOException
+	{
+		Instant staleBefore = Instant.now().minus(STALE_FILE_AGE);
+		long count = 0;
+
+		try (Stream<Path> list = Files.list(cacheFolder))
+		{
+			for (Path file : list.toList())
+			{
+				String fileName = file.getFileName().toString();
+				boolean lockFile = fileName.startsWith(".") && fileName.endsWith(LOCK_FILE_SUFFIX);
+				boolean tempFile = fileName.endsWith(TEMP_FILE_SUFFIX);
+
+				try
+				{
+					if ((!lockFile && !tempFile)
+							|| !Files.getLastModifiedTime(file).toInstant().isBefore(staleBefore))
+						continue;
+
+					if (!delete || (lockFile ? deleteUnlocked(file) : Files.deleteIfExists(file)))
+						count++;
+				}
+				catch (NoSuchFileException e)
+				{
+					// deleted by other thread or process
+				}
+				catch (IOException e)
+				{
+					logger.warn("Unable to delete stale file {}: {} - {}", file.toString(), e.getClass().getName(),
+							e.getMessage());
+				}
+			}
+		}
+
+		return count;
+	}
+
+	private boolean deleteUnlocked(Path lockFile) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.WRITE))
+		{
+			FileLock fileLock = channel.tryLock();
+			if (fileLock == null)
+				return false;
+
+			// deleted while holding the lock, closing the channel releases the lock
+			return Files.deleteIfExists(lockFile);
+		}
+		catch (OverlappingFileLockException e)
+		{
+			// locked by this process
+			return false;
+		}
+	}
+}
@@ -0,0 +1,109 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.nio.file.Path;
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+/**
+ * Size bounded in-memory tier in front of {@link AbstractFileSystemCache}s, may be shared by all file system caches
+ * of one cache type using the same cache folder. Entries are keyed by cache file and weighted by the size of the
+ * uncompressed encoded content, least recently used entries are evicted if the configured maximum is exceeded. The
+ * heap used by decoded entries is typically a multiple of the configured maximum.
+ * <p>
+ * Cached values are not handed out directly, file system caches copy values when reading from and writing to the
+ * in-memory tier.
+ */
+public class MemoryCache implements DisposableBean
+{
+	private static final Logger logger = LoggerFactory.getLogger(MemoryCache.class);
+
+	public static record Statistics(String cacheType, long hits, long misses, long evictions, long entries,
+			long weightBytes, long maxWeightBytes)
+	{
+		public double hitRatio()
+		{
+			return hits + misses == 0 ? 0d : (double) hits / (hits + misses);
+		}
+	}
+
+	private static record Entry(Object value, int weight)
+	{
+	}
+
+	private final String cacheType;
+	private final long maxWeightBytes;
+	private final Cache<Path, Entry> entries;
+
+	/**
+	 * @param cacheType
+	 *            not <code>null</code>, used for logging
+	 * @param maxWeightBytes
+	 *            &gt; 0, maximum size of the uncompressed encoded content of all entries
+	 */
+	public MemoryCache(String cacheType, long maxWeightBytes)
+	{
+		Objects.requireNonNull(cacheType, "cacheType");
+		if (maxWeightBytes <= 0)
+			throw new IllegalArgumentException("maxWeightBytes <= 0");
+
+		this.cacheType = cacheType;
+		this.maxWeightBytes = maxWeightBytes;
+		this.entries = Caffeine.newBuilder().maximumWeight(maxWeightBytes)
+				.<Path, Entry> weigher((k, v) -> Math.max(1, v.weight())).recordStats().build();
+	}
+
+	/**
+	 * @param <R>
+	 *            value type, must match the type given to {@link #put(Path, Object, int)}
+	 * @param cacheFile
+	 *            not <code>null</code>
+	 * @param copy
+	 *            not <code>null</code>, applied to a found value
+	 * @return copy of the cached value, <code>null</code> if not cached
+	 */
+	@SuppressWarnings("unchecked")
+	<R> R get(Path cacheFile, UnaryOperator<R> copy)
+	{
+		Entry entry = entries.getIfPresent(cacheFile);
+		return entry == null ? null : copy.apply((R) entry.value());
+	}
+
+	/**
+	 * @param cacheFile
+	 *            not <code>null</code>
+	 * @param value
+	 *            not <code>null</code>, must not be modified after this call
+	 * @param weight
+	 *            size of the uncompressed encoded value in bytes
+	 */
+	void put(Path cacheFile, Object value, int weight)
+	{
+		entries.put(cacheFile, new Entry(value, weight));
+	}
+
+	public Statistics getStatistics()
+	{
+		CacheStats stats = entries.stats();
+		long weight = entries.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L);
+
+		return new Statistics(cacheType, stats.hitCount(), stats.missCount(), stats.evictionCount(),
+				entries.estimatedSize(), weight, maxWeightBytes);
+	}
+
+	@Override
+	public void destroy() throws Exception
+	{
+		Statistics s = getStatistics();
+		logger.info("{} memory cache: {} hits, {} misses (hit ratio {}), {} evictions, {} entries, {} of {} KiB",
+				s.cacheType(), s.hits(), s.misses(), String.format("%.2f", s.hitRatio()), s.evictions(), s.entries(),
+				s.weightBytes() / 1024, s.maxWeightBytes() / 1024);
+	}
+}
@@ -0,0 +1,41 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * SHA-256 used for content addressed file names and fingerprints of caches, package store and validation images.
+ */
+public final class Sha256
+{
+	private Sha256()
+	{
+	}
+
+	/**
+	 * @return new SHA-256 message digest
+	 */
+	public static MessageDigest newDigest()
+	{
+		try
+		{
+			return MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param value
+	 *            not <code>null</code>
+	 * @return hex encoded SHA-256 of the UTF-8 encoded value
+	 */
+	public static String hex(String value)
+	{
+		return HexFormat.of().formatHex(newDigest().digest(value.getBytes(StandardCharsets.UTF_8)));
+	}
+}
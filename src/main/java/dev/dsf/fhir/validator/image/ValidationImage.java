@@ -0,0 +1,386 @@
+package dev.dsf.fhir.validator.image;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Single file containing parsed conformance resources, expanded {@link ValueSet}s and {@link StructureDefinition}
+ * snapshots. The file is memory-mapped, resources are deserialized lazily on first access by canonical URL.
+ * <p>
+ * File format: magic bytes, format version, fingerprint, the JSON encoded resources, index (resource type, url,
+ * version, file offset and length per entry) and the file offset of the index. Resources are streamed to the file
+ * while writing, the index is written last. Files larger than 2 GiB are mapped in multiple regions, every entry is
+ * contained in a single region.
+ */
+public class ValidationImage
+{
+	private static final Logger logger = LoggerFactory.getLogger(ValidationImage.class);
+
+	private static final int MAGIC = 0x44534656; // DSFV
+	public static final int FORMAT_VERSION = 2;
+
+	private static final int INDEX_OFFSET_BYTES = Long.BYTES;
+
+	public static enum EntryType
+	{
+		STRUCTURE_DEFINITION(StructureDefinition.class), CODE_SYSTEM(CodeSystem.class), VALUE_SET(ValueSet.class);
+
+		private final Class<? extends MetadataResource> resourceType;
+
+		private EntryType(Class<? extends MetadataResource> resourceType)
+		{
+			this.resourceType = resourceType;
+		}
+
+		public Class<? extends MetadataResource> getResourceType()
+		{
+			return resourceType;
+		}
+
+		public static EntryType from(MetadataResource resource)
+		{
+			if (resource instanceof StructureDefinition)
+				return STRUCTURE_DEFINITION;
+			else if (resource instanceof CodeSystem)
+				return CODE_SYSTEM;
+			else if (resource instanceof ValueSet)
+				return VALUE_SET;
+			else
+				throw new IllegalArgumentException(
+						"Resource of type " + resource.getResourceType().name() + " not supported");
+		}
+	}
+
+	public record Entry(EntryType type, String url, String version, long offset, int length)
+	{
+	}
+
+	/**
+	 * Writes the given resources to a temporary file and moves the file to the given path afterwards.
+	 *
+	 * @param file
+	 *            not <code>null</code>
+	 * @param fingerprint
+	 *            not <code>null</code>
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param resources
+	 *            not <code>null</code>, resources without url are ignored
+	 * @throws IOException
+	 */
+	public static void write(Path file, String fingerprint, FhirContext fhirContext,
+			Collection<? extends MetadataResource> resources) throws IOException
+	{
+		Objects.requireNonNull(file, "file");
+		Objects.requireNonNull(fingerprint, "fingerprint");
+		Objects.requireNonNull(fhirContext, "fhirContext");
+		Objects.requireNonNull(resources, "resources");
+
+		List<Entry> entries = new ArrayList<>();
+
+		Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+		try
+		{
+			try (OutputStream out = Files.newOutputStream(tempFile, StandardOpenOption.TRUNCATE_EXISTING,
+					StandardOpenOption.WRITE);
+					DataOutputStream dOut = new DataOutputStream(new BufferedOutputStream(out)))
+			{
+				dOut.writeInt(MAGIC);
+				dOut.writeInt(FORMAT_VERSION);
+				dOut.writeUTF(fingerprint);
+
+				// DataOutputStream#size() overflows at 2 GiB
+				long offset = dOut.size();
+
+				for (MetadataResource resource : resources)
+				{
+					if (!resource.hasUrl())
+						continue;
+
+					byte[] encoded = fhirContext.newJsonParser().encodeResourceToString(resource)
+							.getBytes(StandardCharsets.UTF_8);
+					entries.add(new Entry(EntryType.from(resource), resource.getUrl(), resource.getVersion(), offset,
+							encoded.length));
+					dOut.write(encoded);
+
+					offset += encoded.length;
+				}
+
+				long indexOffset = offset;
+
+				dOut.writeInt(entries.size());
+				for (Entry entry : entries)
+				{
+					dOut.writeByte(entry.type().ordinal());
+					dOut.writeUTF(entry.url());
+					dOut.writeBoolean(entry.version() != null);
+					if (entry.version() != null)
+						dOut.writeUTF(entry.version());
+					dOut.writeLong(entry.offset());
+					dOut.writeInt(entry.length());
+				}
+
+				dOut.writeLong(indexOffset);
+			}
+
+			Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+
+		logger.debug("Validation image with {} entries, {} bytes written to {}", entries.size(), Files.size(file),
+				file.toString());
+	}
+
+	/**
+	 * @param file
+	 *            not <code>null</code>
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @return validation image, lazily deserializing resources from the memory-mapped file
+	 * @throws IOException
+	 *             if the file can not be read or is not a validation image in the current format version
+	 */
+	public static ValidationImage read(Path file, FhirContext fhirContext) throws IOException
+	{
+		Objects.requireNonNull(file, "file");
+		Objects.requireNonNull(fhirContext, "fhirContext");
+
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+		{
+			long size = channel.size();
+			if (size < 3 * Integer.BYTES + INDEX_OFFSET_BYTES)
+				throw new IOException("File " + file.toString() + " is not a validation image");
+
+			// magic, format version and fingerprint of max 64 KiB
+			DataInputStream header = new DataInputStream(new ByteBufferInputStream(
+					channel.map(MapMode.READ_ONLY, 0, Math.min(size, 2 * Integer.BYTES + 2 + 0xffff))));
+			if (header.readInt() != MAGIC)
+				throw new IOException("File " + file.toString() + " is not a validation image");
+
+			int formatVersion = header.readInt();
+			if (formatVersion != FORMAT_VERSION)
+				throw new IOException("Validation image " + file.toString() + " has format version " + formatVersion
+						+ ", expected " + FORMAT_VERSION);
+
+			String fingerprint = header.readUTF();
+
+			ByteBuffer indexOffsetBuffer = ByteBuffer.allocate(INDEX_OFFSET_BYTES);
+			while (indexOffsetBuffer.hasRemaining())
+				if (channel.read(indexOffsetBuffer,
+						size - INDEX_OFFSET_BYTES + indexOffsetBuffer.position()) < 0)
+					throw new IOException("Validation image " + file.toString() + " truncated");
+			long indexOffset = indexOffsetBuffer.flip().getLong();
+
+			if (indexOffset < 0 || indexOffset > size - INDEX_OFFSET_BYTES
+					|| size - INDEX_OFFSET_BYTES - indexOffset > Integer.MAX_VALUE)
+				throw new IOException("Validation image " + file.toString() + " has invalid index offset");
+
+			DataInputStream index = new DataInputStream(new ByteBufferInputStream(
+					channel.map(MapMode.READ_ONLY, indexOffset, size - INDEX_OFFSET_BYTES - indexOffset)));
+			int entryCount = index.readInt();
+
+			List<Entry> entries = new ArrayList<>(entryCount);
+			for (int i = 0; i < entryCount; i++)
+			{
+				EntryType type = EntryType.values()[index.readByte()];
+				String url = index.readUTF();
+				String version = index.readBoolean() ? index.readUTF() : null;
+				Entry entry = new Entry(type, url, version, index.readLong(), index.readInt());
+
+				if (entry.offset() < 0 || entry.length() < 0 || entry.offset() + entry.length() > indexOffset)
+					throw new IOException("Validation image " + file.toString() + " has invalid entry for "
+							+ entry.url() + "|" + entry.version());
+
+				entries.add(entry);
+			}
+
+			return new ValidationImage(fingerprint, entries, mapRegions(channel, entries), fhirContext);
+		}
+	}
+
+	/**
+	 * Maps the data section in regions of at most 2 GiB, entries are written in file order and never span two
+	 * regions. Mappings stay valid after the channel is closed.
+	 */
+	private static Map<Entry, ByteBuffer> mapRegions(FileChannel channel, List<Entry> entries) throws IOException
+	{
+		Map<Entry, ByteBuffer> buffers = new HashMap<>();
+
+		int regionStart = 0;
+		while (regionStart < entries.size())
+		{
+			long start = entries.get(regionStart).offset();
+
+			int regionEnd = regionStart;
+			while (regionEnd < entries.size() && entries.get(regionEnd).offset() + entries.get(regionEnd).length()
+					- start <= Integer.MAX_VALUE)
+				regionEnd++;
+
+			Entry last = entries.get(regionEnd - 1);
+			MappedByteBuffer region = channel.map(MapMode.READ_ONLY, start, last.offset() + last.length() - start);
+
+			for (Entry entry : entries.subList(regionStart, regionEnd))
+				buffers.put(entry, region.slice((int) (entry.offset() - start), entry.length()));
+
+			regionStart = regionEnd;
+		}
+
+		return buffers;
+	}
+
+	private static final class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			if (!buffer.hasRemaining())
+				return -1;
+
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available()
+		{
+			return buffer.remaining();
+		}
+	}
+
+	private final String fingerprint;
+	private final List<Entry> entries;
+	private final Map<Entry, ByteBuffer> data;
+	private final FhirContext fhirContext;
+
+	private final Map<EntryType, Map<String, Entry>> entriesByTypeAndUrl = new HashMap<>();
+	private final Map<Entry, MetadataResource> resourcesByEntry = new ConcurrentHashMap<>();
+
+	private ValidationImage(String fingerprint, List<Entry> entries, Map<Entry, ByteBuffer> data,
+			FhirContext fhirContext)
+	{
+		this.fingerprint = fingerprint;
+		this.entries = entries;
+		this.data = data;
+		this.fhirContext = fhirContext;
+
+		for (EntryType type : EntryType.values())
+			entriesByTypeAndUrl.put(type, new HashMap<>());
+
+		entries.forEach(e ->
+		{
+			Map<String, Entry> byUrl = entriesByTypeAndUrl.get(e.type());
+			byUrl.put(e.url(), e);
+			if (e.version() != null)
+				byUrl.put(e.url() + "|" + e.version(), e);
+		});
+	}
+
+	public String getFingerprint()
+	{
+		return fingerprint;
+	}
+
+	public List<Entry> getEntries()
+	{
+		return Collections.unmodifiableList(entries);
+	}
+
+	/**
+	 * @param <R>
+	 *            resource type
+	 * @param type
+	 *            not <code>null</code>
+	 * @param url
+	 *            canonical url with optional <code>|version</code> suffix, may be <code>null</code>
+	 * @return <code>null</code> if not part of this image
+	 */
+	@SuppressWarnings("unchecked")
+	public <R extends MetadataResource> R get(EntryType type, String url)
+	{
+		if (url == null)
+			return null;
+
+		Entry entry = entriesByTypeAndUrl.get(type).get(url);
+		if (entry == null)
+			return null;
+
+		return (R) resourcesByEntry.computeIfAbsent(entry, this::parse);
+	}
+
+	/**
+	 * Deserializes all resources of the given type, use sparingly.
+	 *
+	 * @param <R>
+	 *            resource type
+	 * @param type
+	 *            not <code>null</code>
+	 * @return all resources of the given type
+	 */
+	@SuppressWarnings("unchecked")
+	public <R extends MetadataResource> List<R> getAll(EntryType type)
+	{
+		return entries.stream().filter(e -> type.equals(e.type()))
+				.map(e -> (R) resourcesByEntry.computeIfAbsent(e, this::parse)).toList();
+	}
+
+	public boolean contains(EntryType type, String url)
+	{
+		return url != null && entriesByTypeAndUrl.get(type).containsKey(url);
+	}
+
+	private MetadataResource parse(Entry entry)
+	{
+		// duplicate, buffer position not shared between threads
+		String json = StandardCharsets.UTF_8.decode(data.get(entry).duplicate()).toString();
+
+		logger.trace("Deserializing {} {}|{} from validation image", entry.type(), entry.url(), entry.version());
+		return fhirContext.newJsonParser().parseResource(entry.type().getResourceType(), json);
+	}
+}
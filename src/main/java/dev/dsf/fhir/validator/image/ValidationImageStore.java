@@ -0,0 +1,202 @@
+package dev.dsf.fhir.validator.image;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.Enumerations.BindingStrength;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.VersionUtil;
+import dev.dsf.fhir.validator.cache.Sha256;
+import dev.dsf.fhir.validator.implementation_guide.ConformanceResourcePruner;
+import dev.dsf.fhir.validator.implementation_guide.ValidationPackage;
+import dev.dsf.fhir.validator.implementation_guide.ValidationPackageIdentifier;
+import dev.dsf.fhir.validator.implementation_guide.ValidationPackageWithDepedencies;
+
+/**
+ * Reads and writes {@link ValidationImage}s for a set of packages. An image is stale and will not be used if its
+ * fingerprint does not match the fingerprint calculated from the package identifiers (incl. dependencies),
+ * StructureDefinition and ValueSet modifier classes, ValueSet binding strengths, the terminology server base url used
+ * for external expansions, the conformance resource pruning configuration, the image format version and the HAPI
+ * version.
+ */
+public class ValidationImageStore implements InitializingBean
+{
+	private static final Logger logger = LoggerFactory.getLogger(ValidationImageStore.class);
+
+	private static final String FILENAME_PREFIX = "validation_image_";
+	private static final String FILENAME_SUFFIX = ".bin";
+
+	private final Path imageFolder;
+	private final FhirContext fhirContext;
+	private final List<String> modifierClasses = new ArrayList<>();
+	private final EnumSet<BindingStrength> valueSetBindingStrengths;
+	private final String terminologyServerBaseUrl;
+	private final ConformanceResourcePruner conformanceResourcePruner;
+
+	/**
+	 * @param imageFolder
+	 *            not <code>null</code>
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param modifierClasses
+	 *            may be <code>null</code>, StructureDefinition and ValueSet modifier class names in order of
+	 *            execution
+	 * @param valueSetBindingStrengths
+	 *            not <code>null</code>
+	 * @param terminologyServerBaseUrl
+	 *            not <code>null</code>
+	 */
+	public ValidationImageStore(Path imageFolder, FhirContext fhirContext, Collection<String> modifierClasses,
+			EnumSet<BindingStrength> valueSetBindingStrengths, String terminologyServerBaseUrl)
+	{
+		this(imageFolder, fhirContext, modifierClasses, valueSetBindingStrengths, terminologyServerBaseUrl, null);
+	}
+
+	/**
+	 * @param imageFolder
+	 *            not <code>null</code>
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param modifierClasses
+	 *            may be <code>null</code>, StructureDefinition and ValueSet modifier class names in order of
+	 *            execution
+	 * @param valueSetBindingStrengths
+	 *            not <code>null</code>
+	 * @param terminologyServerBaseUrl
+	 *            not <code>null</code>
+	 * @param conformanceResourcePruner
+	 *            may be <code>null</code> if pruning is disabled
+	 */
+	public ValidationImageStore(Path imageFolder, FhirContext fhirContext, Collection<String> modifierClasses,
+			EnumSet<BindingStrength> valueSetBindingStrengths, String terminologyServerBaseUrl,
+			ConformanceResourcePruner conformanceResourcePruner)
+	{
+		this.imageFolder = imageFolder;
+		this.fhirContext = fhirContext;
+
+		if (modifierClasses != null)
+			this.modifierClasses.addAll(modifierClasses);
+
+		this.valueSetBindingStrengths = valueSetBindingStrengths;
+		this.terminologyServerBaseUrl = terminologyServerBaseUrl;
+		this.conformanceResourcePruner = conformanceResourcePruner;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception
+	{
+		Objects.requireNonNull(imageFolder, "imageFolder");
+		Objects.requireNonNull(fhirContext, "fhirContext");
+		Objects.requireNonNull(valueSetBindingStrengths, "valueSetBindingStrengths");
+		Objects.requireNonNull(terminologyServerBaseUrl, "terminologyServerBaseUrl");
+
+		if (!Files.isWritable(imageFolder))
+			throw new IOException("Folder " + imageFolder.toAbsolutePath().toString() + " not writable");
+	}
+
+	/**
+	 * @param packagesWithDependencies
+	 *            not <code>null</code>
+	 * @return {@link ValidationImage} if one with matching fingerprint exists
+	 */
+	public Optional<ValidationImage> read(Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	{
+		Objects.requireNonNull(packagesWithDependencies, "packagesWithDependencies");
+
+		List<String> identifiers = getIdentifiers(packagesWithDependencies);
+		Path file = imageFile(identifiers);
+
+		if (!Files.isReadable(file))
+		{
+			logger.debug("Validation image for {} does not exist", identifiers);
+			return Optional.empty();
+		}
+
+		try
+		{
+			ValidationImage image = ValidationImage.read(file, fhirContext);
+			String expectedFingerprint = fingerprint(identifiers);
+
+			if (!expectedFingerprint.equals(image.getFingerprint()))
+			{
+				logger.info("Validation image {} is stale, fingerprint {} does not match expected {}", file.toString(),
+						image.getFingerprint(), expectedFingerprint);
+				return Optional.empty();
+			}
+
+			logger.info("Using validation image {} with {} entries", file.toString(), image.getEntries().size());
+			return Optional.of(image);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Unable to read validation image {}: {} - {}", file.toString(), e.getClass().getName(),
+					e.getMessage());
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @param packagesWithDependencies
+	 *            not <code>null</code>
+	 * @param resources
+	 *            not <code>null</code>
+	 */
+	public void write(Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies,
+			Collection<? extends MetadataResource> resources)
+	{
+		Objects.requireNonNull(packagesWithDependencies, "packagesWithDependencies");
+		Objects.requireNonNull(resources, "resources");
+
+		List<String> identifiers = getIdentifiers(packagesWithDependencies);
+		Path file = imageFile(identifiers);
+
+		try
+		{
+			logger.info("Writing validation image with {} resources to {}", resources.size(), file.toString());
+			ValidationImage.write(file, fingerprint(identifiers), fhirContext, resources);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Unable to write validation image {}: {} - {}", file.toString(), e.getClass().getName(),
+					e.getMessage());
+		}
+	}
+
+	private List<String> getIdentifiers(Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	{
+		return packagesWithDependencies.stream()
+				.flatMap(p -> Stream.concat(Stream.of(p), p.getDependencies().stream()))
+				.map(ValidationPackage::getIdentifier).map(ValidationPackageIdentifier::toString).distinct().sorted()
+				.toList();
+	}
+
+	private Path imageFile(List<String> identifiers)
+	{
+		return imageFolder.resolve(FILENAME_PREFIX + Sha256.hex(String.join(",", identifiers)) + FILENAME_SUFFIX);
+	}
+
+	private String fingerprint(List<String> identifiers)
+	{
+		return Sha256.hex(Stream.of("format:" + ValidationImage.FORMAT_VERSION, "hapi:" + VersionUtil.getVersion(),
+				"packages:" + String.join(",", identifiers), "modifiers:" + String.join(",", modifierClasses),
+				"bindingStrengths:" + valueSetBindingStrengths.stream().map(BindingStrength::toCode).sorted()
+						.collect(Collectors.joining(",")),
+				"terminologyServer:" + terminologyServerBaseUrl,
+				"pruning:" + (conformanceResourcePruner == null ? "none" : conformanceResourcePruner.getFingerprint()))
+				.collect(Collectors.joining("\n")));
+	}
+}
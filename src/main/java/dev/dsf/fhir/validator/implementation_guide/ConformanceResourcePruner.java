@@ -0,0 +1,174 @@
+package dev.dsf.fhir.validator.implementation_guide;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.MetadataResource;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * Removes StructureDefinitions, ValueSets and CodeSystems not reachable from a set of root profiles from parsed
+ * packages, see {@link ReachableConformanceResources}. Root profiles are either configured explicitly or all
+ * StructureDefinitions of the root packages (not including dependencies). Pruned resources are not expanded,
+ * snapshotted or kept in memory.
+ */
+public class ConformanceResourcePruner
+{
+	private static final Logger logger = LoggerFactory.getLogger(ConformanceResourcePruner.class);
+
+	public static record Report(int structureDefinitions, int droppedStructureDefinitions, int droppedElements,
+			int skippedSnapshots, int valueSets, int droppedValueSets, int skippedExpansions, int codeSystems,
+			int droppedCodeSystems, int droppedConcepts, int droppedUnparsedCodeSystems, long durationMillis)
+	{
+	}
+
+	private final FhirContext fhirContext;
+	private final List<String> profiles = new ArrayList<>();
+
+	/**
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param profiles
+	 *            may be <code>null</code>, canonical urls (url or url|version) of root profiles, StructureDefinitions
+	 *            of the root packages are used as root profiles if <code>null</code> or empty
+	 */
+	public ConformanceResourcePruner(FhirContext fhirContext, Collection<String> profiles)
+	{
+		this.fhirContext = Objects.requireNonNull(fhirContext, "fhirContext");
+
+		if (profiles != null)
+			profiles.stream().filter(p -> p != null && !p.isBlank()).map(String::trim).forEach(this.profiles::add);
+	}
+
+	/**
+	 * @return value identifying the pruning configuration
+	 */
+	public String getFingerprint()
+	{
+		return profiles.isEmpty() ? "rootPackages" : profiles.stream().sorted().collect(Collectors.joining(","));
+	}
+
+	/**
+	 * Package resources need to be parsed.
+	 *
+	 * @param packagesWithDependencies
+	 *            not <code>null</code>
+	 * @return pruning statistics
+	 * @see ValidationPackage#parseResources(FhirContext)
+	 */
+	public Report prune(Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	{
+		Objects.requireNonNull(packagesWithDependencies, "packagesWithDependencies");
+
+		long start = System.currentTimeMillis();
+
+		// dependencies may be shared by multiple packages
+		Set<ValidationPackage> distinct = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<ValidationPackage> packages = packagesWithDependencies.stream()
+				.flatMap(p -> Stream.concat(Stream.of(p), p.getDependencies().stream())).filter(distinct::add)
+				.toList();
+
+		List<StructureDefinition> structureDefinitions = getAll(packages,
+				ValidationSupportResources::getStructureDefinitions);
+		List<ValueSet> valueSets = getAll(packages, ValidationSupportResources::getValueSets);
+		List<LazyMetadataResource<CodeSystem>> codeSystems = getAll(packages,
+				ValidationSupportResources::getLazyCodeSystems);
+
+		ReachableConformanceResources reachable = ReachableConformanceResources
+				.from(getRoots(packagesWithDependencies, structureDefinitions), structureDefinitions, valueSets);
+
+		List<StructureDefinition> droppedStructureDefinitions = structureDefinitions.stream()
+				.filter(sd -> !reachable.contains(sd)).toList();
+		List<ValueSet> droppedValueSets = valueSets.stream().filter(vs -> !reachable.contains(vs)).toList();
+		List<LazyMetadataResource<CodeSystem>> droppedCodeSystems = codeSystems.stream()
+				.filter(cs -> !reachable.containsCodeSystem(cs.getUrl())).toList();
+
+		packages.forEach(p -> p.retainResources(reachable));
+
+		List<CodeSystem> droppedParsedCodeSystems = droppedCodeSystems.stream()
+				.filter(LazyMetadataResource::isParsed).map(LazyMetadataResource::get).filter(Objects::nonNull)
+				.toList();
+
+		Report report = new Report(structureDefinitions.size(), droppedStructureDefinitions.size(),
+				droppedStructureDefinitions.stream()
+						.mapToInt(sd -> sd.getDifferential().getElement().size() + sd.getSnapshot().getElement().size())
+						.sum(),
+				(int) droppedStructureDefinitions.stream().filter(sd -> !sd.hasSnapshot()).count(), valueSets.size(),
+				droppedValueSets.size(),
+				(int) droppedValueSets.stream().filter(vs -> vs.hasCompose() && !vs.hasExpansion()).count(),
+				codeSystems.size(), droppedCodeSystems.size(),
+				droppedParsedCodeSystems.stream().mapToInt(cs -> cs.getConcept().size()).sum(),
+				droppedCodeSystems.size() - droppedParsedCodeSystems.size(), System.currentTimeMillis() - start);
+
+		logger.info(
+				"Pruned conformance resources not reachable from {} in {} ms: StructureDefinitions {} of {} dropped ({} elements, {} snapshot generations skipped), ValueSets {} of {} dropped ({} expansions skipped), CodeSystems {} of {} dropped ({} concepts, {} never parsed)",
+				profiles.isEmpty() ? "root package profiles" : profiles, report.durationMillis(),
+				report.droppedStructureDefinitions(), report.structureDefinitions(), report.droppedElements(),
+				report.skippedSnapshots(), report.droppedValueSets(), report.valueSets(), report.skippedExpansions(),
+				report.droppedCodeSystems(), report.codeSystems(), report.droppedConcepts(),
+				report.droppedUnparsedCodeSystems());
+
+		if (logger.isDebugEnabled())
+		{
+			Stream.concat(droppedStructureDefinitions.stream(), Stream.concat(droppedValueSets.stream(),
+					droppedParsedCodeSystems.stream())).forEach(r -> logger.debug("Dropped {} {}|{}",
+							r.getResourceType().name(), r.getUrl(), r.getVersion()));
+
+			logger.debug("Dropped parsed resources ~{} KiB JSON encoded",
+					Stream.concat(droppedStructureDefinitions.stream(),
+							Stream.concat(droppedValueSets.stream(), droppedParsedCodeSystems.stream()))
+							.mapToLong(this::encodedLength).sum() / 1024);
+		}
+
+		return report;
+	}
+
+	private long encodedLength(MetadataResource resource)
+	{
+		return fhirContext.newJsonParser().encodeResourceToString(resource).length();
+	}
+
+	private List<StructureDefinition> getRoots(
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies,
+			List<StructureDefinition> structureDefinitions)
+	{
+		if (profiles.isEmpty())
+			return getAll(packagesWithDependencies, ValidationSupportResources::getStructureDefinitions);
+
+		List<StructureDefinition> roots = new ArrayList<>();
+		for (String profile : profiles)
+		{
+			List<StructureDefinition> found = structureDefinitions.stream()
+					.filter(sd -> profile.equals(sd.getUrl()) || profile.equals(sd.getUrl() + "|" + sd.getVersion()))
+					.toList();
+
+			if (found.isEmpty())
+				logger.warn("Root profile {} not found in packages", profile);
+
+			roots.addAll(found);
+		}
+
+		return roots;
+	}
+
+	private static <R> List<R> getAll(Collection<? extends ValidationPackage> packages,
+			Function<ValidationSupportResources, List<R>> accessor)
+	{
+		return packages.stream().map(ValidationPackage::getValidationSupportResources).map(accessor)
+				.flatMap(List::stream).toList();
+	}
+}
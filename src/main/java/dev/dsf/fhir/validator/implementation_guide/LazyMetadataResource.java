@@ -0,0 +1,82 @@
+package dev.dsf.fhir.validator.implementation_guide;
+
+import java.util.Objects;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.MetadataResource;
+
+/**
+ * Thread safe holder of a resource parsed on first access. <code>url</code> and <code>version</code> are known
+ * without parsing the resource.
+ *
+ * @param <R>
+ *            resource type
+ */
+public final class LazyMetadataResource<R extends MetadataResource>
+{
+	/**
+	 * @param <R>
+	 *            resource type
+	 * @param resource
+	 *            not <code>null</code>
+	 * @return holder of an already parsed resource
+	 */
+	public static <R extends MetadataResource> LazyMetadataResource<R> of(R resource)
+	{
+		Objects.requireNonNull(resource, "resource");
+
+		LazyMetadataResource<R> lazy = new LazyMetadataResource<>(resource.getUrl(), resource.getVersion(),
+				() -> resource);
+		lazy.resource = resource;
+		lazy.parsed = true;
+
+		return lazy;
+	}
+
+	private final String url;
+	private final String version;
+	private final Supplier<R> parser;
+
+	private R resource;
+	private boolean parsed;
+
+	/**
+	 * @param url
+	 *            not <code>null</code>
+	 * @param version
+	 *            may be <code>null</code>
+	 * @param parser
+	 *            not <code>null</code>, may return <code>null</code> if the resource can not be parsed, called at
+	 *            most once
+	 */
+	public LazyMetadataResource(String url, String version, Supplier<R> parser)
+	{
+		this.url = Objects.requireNonNull(url, "url");
+		this.version = version;
+		this.parser = Objects.requireNonNull(parser, "parser");
+	}
+
+	public String getUrl()
+	{
+		return url;
+	}
+
+	public String getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * @return parsed resource, <code>null</code> if the resource could not be parsed
+	 */
+	public synchronized R get()
+	{
+		if (!parsed)
+		{
+			resource = parser.get();
+			parsed = true;
+		}
+
+		return resource;
+	}
+}
@@ -0,0 +1,155 @@
+package dev.dsf.fhir.validator.implementation_guide;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.Type;
+import org.hl7.fhir.r4.model.ValueSet;
+
+/**
+ * Closure of conformance resources reachable from a set of root profiles. Reachable are all StructureDefinitions the
+ * roots depend on (see {@link StructureDefinitionDependencyGraph}), ValueSets bound to elements of reachable
+ * StructureDefinitions incl. ValueSets imported by reachable ValueSets, and CodeSystems included or excluded by
+ * reachable ValueSets or used in fixed and pattern values of reachable StructureDefinitions.
+ */
+public final class ReachableConformanceResources
+{
+	/**
+	 * @param roots
+	 *            not <code>null</code>
+	 * @param structureDefinitions
+	 *            not <code>null</code>, all StructureDefinitions dependencies are resolved against
+	 * @param valueSets
+	 *            not <code>null</code>, all ValueSets bindings are resolved against
+	 * @return reachable resources
+	 */
+	public static ReachableConformanceResources from(Collection<? extends StructureDefinition> roots,
+			Collection<? extends StructureDefinition> structureDefinitions, Collection<? extends ValueSet> valueSets)
+	{
+		StructureDefinitionDependencyGraph graph = StructureDefinitionDependencyGraph.from(structureDefinitions);
+
+		Set<StructureDefinition> reachableStructureDefinitions = Collections.newSetFromMap(new IdentityHashMap<>());
+		roots.forEach(root ->
+		{
+			reachableStructureDefinitions.add(root);
+			reachableStructureDefinitions.addAll(graph.getDependencies(root));
+		});
+
+		Map<String, List<ValueSet>> valueSetsByCanonicalUrl = new HashMap<>();
+		valueSets.stream().filter(ValueSet::hasUrl).forEach(vs ->
+		{
+			valueSetsByCanonicalUrl.computeIfAbsent(vs.getUrl(), k -> new ArrayList<>()).add(vs);
+			if (vs.hasVersion())
+				valueSetsByCanonicalUrl.computeIfAbsent(vs.getUrl() + "|" + vs.getVersion(), k -> new ArrayList<>())
+						.add(vs);
+		});
+
+		Set<String> codeSystemUrls = new HashSet<>();
+		Deque<String> valueSetUrls = new ArrayDeque<>();
+
+		reachableStructureDefinitions.stream().flatMap(ReachableConformanceResources::elements).forEach(e ->
+		{
+			if (e.hasBinding() && e.getBinding().hasValueSet())
+				valueSetUrls.add(e.getBinding().getValueSet());
+
+			if (e.hasFixed())
+				addCodeSystemUrls(e.getFixed(), codeSystemUrls);
+			if (e.hasPattern())
+				addCodeSystemUrls(e.getPattern(), codeSystemUrls);
+		});
+
+		Set<ValueSet> reachableValueSets = Collections.newSetFromMap(new IdentityHashMap<>());
+		while (!valueSetUrls.isEmpty())
+		{
+			for (ValueSet valueSet : valueSetsByCanonicalUrl.getOrDefault(valueSetUrls.poll(), List.of()))
+			{
+				if (!reachableValueSets.add(valueSet) || !valueSet.hasCompose())
+					continue;
+
+				Stream.concat(valueSet.getCompose().getInclude().stream(),
+						valueSet.getCompose().getExclude().stream()).forEach(c ->
+						{
+							if (c.hasSystem())
+								codeSystemUrls.add(c.getSystem());
+
+							c.getValueSet().forEach(v -> valueSetUrls.add(v.getValue()));
+						});
+			}
+		}
+
+		return new ReachableConformanceResources(reachableStructureDefinitions, reachableValueSets, codeSystemUrls);
+	}
+
+	private static Stream<ElementDefinition> elements(StructureDefinition structureDefinition)
+	{
+		return Stream.concat(
+				structureDefinition.hasDifferential() ? structureDefinition.getDifferential().getElement().stream()
+						: Stream.empty(),
+				structureDefinition.hasSnapshot() ? structureDefinition.getSnapshot().getElement().stream()
+						: Stream.empty());
+	}
+
+	private static void addCodeSystemUrls(Type value, Set<String> codeSystemUrls)
+	{
+		if (value instanceof Coding c && c.hasSystem())
+			codeSystemUrls.add(c.getSystem());
+		else if (value instanceof CodeableConcept c)
+			c.getCoding().stream().filter(Coding::hasSystem).map(Coding::getSystem).forEach(codeSystemUrls::add);
+	}
+
+	private final Set<StructureDefinition> structureDefinitions;
+	private final Set<ValueSet> valueSets;
+	private final Set<String> codeSystemUrls;
+
+	private ReachableConformanceResources(Set<StructureDefinition> structureDefinitions, Set<ValueSet> valueSets,
+			Set<String> codeSystemUrls)
+	{
+		this.structureDefinitions = Collections.unmodifiableSet(structureDefinitions);
+		this.valueSets = Collections.unmodifiableSet(valueSets);
+		this.codeSystemUrls = Collections.unmodifiableSet(codeSystemUrls);
+	}
+
+	public boolean contains(StructureDefinition structureDefinition)
+	{
+		return structureDefinitions.contains(structureDefinition);
+	}
+
+	public boolean contains(ValueSet valueSet)
+	{
+		return valueSets.contains(valueSet);
+	}
+
+	/**
+	 * @param url
+	 *            may be <code>null</code>
+	 * @return <code>true</code> if CodeSystems with the given url are reachable, all versions
+	 */
+	public boolean containsCodeSystem(String url)
+	{
+		return url != null && codeSystemUrls.contains(url);
+	}
+
+	public int getStructureDefinitionCount()
+	{
+		return structureDefinitions.size();
+	}
+
+	public int getValueSetCount()
+	{
+		return valueSets.size();
+	}
+}
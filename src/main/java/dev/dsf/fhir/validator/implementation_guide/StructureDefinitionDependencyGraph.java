@@ -0,0 +1,187 @@
+package dev.dsf.fhir.validator.implementation_guide;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.hl7.fhir.r4.model.ElementDefinition;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.UriType;
+
+/**
+ * Immutable dependency graph of {@link StructureDefinition}s. Dependencies are base definitions, extensions referenced
+ * via fixed <code>Extension.url</code> values, type profiles and target profiles from differential elements.
+ * Transitive dependencies are computed once for all StructureDefinitions of the graph.
+ */
+public final class StructureDefinitionDependencyGraph
+{
+	/**
+	 * @param structureDefinitions
+	 *            not <code>null</code>, StructureDefinitions without url are ignored
+	 * @return dependency graph of the given StructureDefinitions, dependencies are resolved within the given
+	 *         StructureDefinitions by url or url|version
+	 */
+	public static StructureDefinitionDependencyGraph from(
+			Collection<? extends StructureDefinition> structureDefinitions)
+	{
+		Map<String, List<StructureDefinition>> byCanonicalUrl = new HashMap<>();
+
+		structureDefinitions.stream().filter(StructureDefinition::hasUrl).forEach(sd ->
+		{
+			byCanonicalUrl.computeIfAbsent(sd.getUrl(), k -> new ArrayList<>()).add(sd);
+			if (sd.hasVersion())
+				byCanonicalUrl.computeIfAbsent(sd.getUrl() + "|" + sd.getVersion(), k -> new ArrayList<>()).add(sd);
+		});
+
+		Function<String, List<StructureDefinition>> resolve = url -> url == null ? List.of()
+				: byCanonicalUrl.getOrDefault(url, List.of());
+
+		Map<StructureDefinition, List<StructureDefinition>> directDependencies = new LinkedHashMap<>();
+		structureDefinitions.stream().filter(StructureDefinition::hasUrl)
+				.forEach(sd -> directDependencies.put(sd, findDirectDependencies(sd, resolve)));
+
+		return new StructureDefinitionDependencyGraph(directDependencies, resolve);
+	}
+
+	private static List<StructureDefinition> findDirectDependencies(StructureDefinition structureDefinition,
+			Function<String, List<StructureDefinition>> resolve)
+	{
+		Set<StructureDefinition> dependencies = new LinkedHashSet<>();
+		getDirectDependencyUrls(structureDefinition).forEach(url -> dependencies.addAll(resolve.apply(url)));
+
+		return List.copyOf(dependencies);
+	}
+
+	/**
+	 * @param structureDefinition
+	 *            not <code>null</code>
+	 * @return canonical urls of direct dependencies in order of occurrence without duplicates, base definition first
+	 */
+	public static List<String> getDirectDependencyUrls(StructureDefinition structureDefinition)
+	{
+		Set<String> urls = new LinkedHashSet<>();
+		if (structureDefinition.hasBaseDefinition())
+			urls.add(structureDefinition.getBaseDefinition());
+
+		if (!structureDefinition.hasDifferential())
+			return List.copyOf(urls);
+
+		for (ElementDefinition e : structureDefinition.getDifferential().getElement())
+		{
+			if (e.hasPath() && "Extension.url".equals(e.getPath()) && e.hasFixed() && e.getFixed() instanceof UriType t
+					&& t.hasValue())
+				urls.add(t.getValue());
+
+			if (e.hasType())
+			{
+				e.getType().forEach(t ->
+				{
+					if (t.hasProfile())
+						t.getProfile().stream().filter(p -> p.hasValue()).forEach(p -> urls.add(p.getValue()));
+					if (t.hasTargetProfile())
+						t.getTargetProfile().stream().filter(p -> p.hasValue()).forEach(p -> urls.add(p.getValue()));
+				});
+			}
+		}
+
+		return List.copyOf(urls);
+	}
+
+	private final Map<StructureDefinition, List<StructureDefinition>> directDependencies;
+	private final Map<StructureDefinition, List<StructureDefinition>> transitiveDependencies;
+	private final Function<String, List<StructureDefinition>> resolve;
+
+	private StructureDefinitionDependencyGraph(Map<StructureDefinition, List<StructureDefinition>> directDependencies,
+			Function<String, List<StructureDefinition>> resolve)
+	{
+		this.directDependencies = Collections.unmodifiableMap(directDependencies);
+		this.resolve = resolve;
+
+		Map<StructureDefinition, List<StructureDefinition>> transitiveDependencies = new HashMap<>();
+		directDependencies.keySet().forEach(sd -> transitiveDependencies.put(sd, computeTransitiveDependencies(sd)));
+		this.transitiveDependencies = Collections.unmodifiableMap(transitiveDependencies);
+	}
+
+	private List<StructureDefinition> computeTransitiveDependencies(StructureDefinition structureDefinition)
+	{
+		Set<StructureDefinition> visited = new HashSet<>();
+		visited.add(structureDefinition);
+
+		Set<StructureDefinition> dependencies = new LinkedHashSet<>();
+		collect(structureDefinition, visited, dependencies);
+		dependencies.remove(structureDefinition);
+
+		return List.copyOf(dependencies);
+	}
+
+	private void collect(StructureDefinition structureDefinition, Set<StructureDefinition> visited,
+			Set<StructureDefinition> dependencies)
+	{
+		for (StructureDefinition dependency : getDirectDependencies(structureDefinition))
+		{
+			if (visited.add(dependency))
+				collect(dependency, visited, dependencies);
+
+			// dependencies first
+			dependencies.add(dependency);
+		}
+	}
+
+	/**
+	 * @param structureDefinition
+	 *            not <code>null</code>
+	 * @return direct dependencies, computed on every call for StructureDefinitions not part of this graph
+	 */
+	public List<StructureDefinition> getDirectDependencies(StructureDefinition structureDefinition)
+	{
+		List<StructureDefinition> dependencies = directDependencies.get(structureDefinition);
+		return dependencies != null ? dependencies : findDirectDependencies(structureDefinition, resolve);
+	}
+
+	/**
+	 * @param structureDefinition
+	 *            not <code>null</code>
+	 * @return transitive dependencies in dependency first order, not including the given StructureDefinition,
+	 *         computed on every call for StructureDefinitions not part of this graph
+	 */
+	public List<StructureDefinition> getDependencies(StructureDefinition structureDefinition)
+	{
+		List<StructureDefinition> dependencies = transitiveDependencies.get(structureDefinition);
+		return dependencies != null ? dependencies : computeTransitiveDependencies(structureDefinition);
+	}
+
+	public int getNodeCount()
+	{
+		return directDependencies.size();
+	}
+
+	public int getEdgeCount()
+	{
+		return directDependencies.values().stream().mapToInt(List::size).sum();
+	}
+
+	/**
+	 * @return direct dependencies as <code>url|version</code> by <code>url|version</code>, for diagnostics
+	 */
+	public Map<String, List<String>> getAdjacencyByCanonicalUrl()
+	{
+		return directDependencies.entrySet().stream()
+				.collect(Collectors.toMap(e -> canonical(e.getKey()),
+						e -> e.getValue().stream().map(StructureDefinitionDependencyGraph::canonical).toList(),
+						(l1, l2) -> l1, LinkedHashMap::new));
+	}
+
+	private static String canonical(StructureDefinition structureDefinition)
+	{
+		return structureDefinition.getUrl() + "|" + structureDefinition.getVersion();
+	}
+}
@@ -1,21 +1,42 @@
 package dev.dsf.fhir.validator.implementation_guide;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.function.Consumer;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarFile;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CodeSystem;
@@ -32,6 +53,7 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
 
 public class ValidationPackage
 {
@@ -39,6 +61,21 @@ public class ValidationPackage
 
 	private static final String PACKAGE_JSON_FILENAME = "package/package.json";
 
+	private static final String CODE_SYSTEM = "CodeSystem";
+	private static final String STRUCTURE_DEFINITION = "StructureDefinition";
+	private static final String LOGICAL_KIND = "logical";
+	private static final Set<String> SUPPORTED_RESOURCE_TYPES = Set.of(CODE_SYSTEM, "NamingSystem",
+			STRUCTURE_DEFINITION, "ValueSet");
+
+	private static final ObjectMapper INDEX_MAPPER = new ObjectMapper();
+
+	private static record ParsedEntry(Optional<IBaseResource> resource, LazyMetadataResource<CodeSystem> lazyCodeSystem)
+	{
+	}
+
+	private static final Pattern INVALID_HTML = Pattern.compile("<h2>[\\s\\w\\[\\]]*</tt>");
+	private static final byte[] INVALID_HTML_START = "<h2>".getBytes(StandardCharsets.UTF_8);
+
 	public static ValidationPackage from(String name, String version, InputStream in) throws IOException
 	{
 		try (BufferedInputStream bufferedIn = new BufferedInputStream(in);
@@ -59,6 +96,83 @@ public class ValidationPackage
 		}
 	}
 
+	/**
+	 * Reads the entry index of the given uncompressed tar file, entry content is read on demand from the
+	 * memory-mapped file.
+	 *
+	 * @param name
+	 *            not <code>null</code>
+	 * @param version
+	 *            not <code>null</code>
+	 * @param tarFile
+	 *            not <code>null</code>
+	 * @return {@link ValidationPackage} with lazily loaded entries
+	 * @throws IOException
+	 * @see #writeTar(Path)
+	 */
+	public static ValidationPackage fromTar(String name, String version, Path tarFile) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(tarFile, StandardOpenOption.READ);
+				TarFile tar = new TarFile(channel))
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("Package file " + tarFile.toString() + " larger than 2 GiB");
+
+			// mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+
+			List<ValidationPackageEntry> entries = tar.getEntries().stream().filter(TarArchiveEntry::isFile)
+					.filter(e -> !e.isSparse()).map(e -> new ValidationPackageEntry(e.getName(),
+							e.getLastModifiedDate(), () -> read(buffer, e.getDataOffset(), e.getSize())))
+					.toList();
+
+			return new ValidationPackage(name, version, entries);
+		}
+	}
+
+	private static byte[] read(MappedByteBuffer buffer, long offset, long size)
+	{
+		byte[] content = new byte[(int) size];
+		buffer.slice((int) offset, content.length).get(content);
+		return content;
+	}
+
+	/**
+	 * Writes all entries to an uncompressed tar file.
+	 *
+	 * @param tarFile
+	 *            not <code>null</code>
+	 * @throws IOException
+	 * @see #fromTar(String, String, Path)
+	 */
+	public void writeTar(Path tarFile) throws IOException
+	{
+		try (OutputStream out = Files.newOutputStream(tarFile, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+				BufferedOutputStream bufferedOut = new BufferedOutputStream(out);
+				TarArchiveOutputStream tarOut = new TarArchiveOutputStream(bufferedOut))
+		{
+			tarOut.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+			tarOut.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+
+			for (ValidationPackageEntry entry : entries)
+			{
+				byte[] content = entry.getContent();
+
+				TarArchiveEntry tarEntry = new TarArchiveEntry(entry.getFileName());
+				tarEntry.setSize(content.length);
+				if (entry.getLastModified() != null)
+					tarEntry.setModTime(entry.getLastModified());
+
+				tarOut.putArchiveEntry(tarEntry);
+				tarOut.write(content);
+				tarOut.closeArchiveEntry();
+			}
+
+			tarOut.finish();
+		}
+	}
+
 	private final String name;
 	private final String version;
 	private final List<ValidationPackageEntry> entries = new ArrayList<>();
@@ -67,6 +181,8 @@ public class ValidationPackage
 
 	private ValidationSupportResources resources;
 
+	private Optional<ValidationPackageIndex> index;
+
 	/**
 	 * @param name
 	 *            not <code>null</code>
@@ -130,67 +246,244 @@ public class ValidationPackage
 		return mapper.readValue(packageJson.getContent(), ValidationPackageDescriptor.class);
 	}
 
-	public void parseResources(FhirContext context)
+	/**
+	 * @return index from the <code>package/.index.json</code> entry, empty if not present or not readable
+	 */
+	@JsonIgnore
+	public synchronized Optional<ValidationPackageIndex> getIndex()
 	{
-		if (resources == null)
+		if (index == null)
 		{
-			List<CodeSystem> codeSystems = new ArrayList<>();
-			List<NamingSystem> namingSystems = new ArrayList<>();
-			List<StructureDefinition> structureDefinitions = new ArrayList<>();
-			List<ValueSet> valueSets = new ArrayList<>();
+			ValidationPackageEntry indexJson = getEntriesByFileName().get(ValidationPackageIndex.INDEX_FILENAME);
 
-			getEntries()
-					.forEach(doParseResources(context, codeSystems, namingSystems, structureDefinitions, valueSets));
+			try
+			{
+				index = indexJson == null ? Optional.empty()
+						: Optional.of(INDEX_MAPPER.readValue(indexJson.getContent(), ValidationPackageIndex.class));
+			}
+			catch (Exception e)
+			{
+				logger.warn("Ignoring index of package {}|{}, {}: {}", name, version, e.getClass().getName(),
+						e.getMessage());
 
-			resources = new ValidationSupportResources(codeSystems, namingSystems, structureDefinitions, valueSets);
+				index = Optional.empty();
+			}
 		}
+
+		return index;
+	}
+
+	public void parseResources(FhirContext context)
+	{
+		parseResources(context, null);
+	}
+
+	/**
+	 * Does nothing if resources already parsed.
+	 *
+	 * @param context
+	 *            not <code>null</code>
+	 * @param executor
+	 *            may be <code>null</code>, resources are parsed sequentially on the calling thread if <code>null</code>
+	 */
+	public void parseResources(FhirContext context, Executor executor)
+	{
+		parseResources(List.of(this), context, executor);
 	}
 
-	private Consumer<ValidationPackageEntry> doParseResources(FhirContext context, List<CodeSystem> codeSystems,
-			List<NamingSystem> namingSystems, List<StructureDefinition> structureDefinitions, List<ValueSet> valueSets)
+	/**
+	 * Parses resources of all given packages, entries from all packages are parsed concurrently if an executor is
+	 * given. Packages with already parsed resources are ignored.
+	 *
+	 * @param packages
+	 *            not <code>null</code>
+	 * @param context
+	 *            not <code>null</code>
+	 * @param executor
+	 *            may be <code>null</code>, resources are parsed sequentially on the calling thread if <code>null</code>
+	 */
+	public static void parseResources(Collection<ValidationPackage> packages, FhirContext context,
+			Executor executor)
 	{
-		return entry ->
+		// parsers are not thread safe, each parser used by one entry at a time
+		Queue<IParser> parsers = new ConcurrentLinkedQueue<>();
+		Function<ValidationPackageEntry, ParsedEntry> parse = entry ->
 		{
-			if ("package/package.json".equals(entry.getFileName()) || (entry.getFileName() != null
-					&& (entry.getFileName().startsWith("package/example") || entry.getFileName().endsWith(".index.json")
-							|| entry.getFileName().endsWith(".schema.json") || !entry.getFileName().endsWith(".json"))))
+			IParser parser = parsers.poll();
+			if (parser == null)
+				parser = context.newJsonParser();
+
+			try
+			{
+				return new ParsedEntry(parseResource(entry, parser), null);
+			}
+			finally
 			{
-				logger.debug("Ignoring {}", entry.getFileName());
-				return;
+				parsers.add(parser);
 			}
+		};
 
-			logger.debug("Reading {}", entry.getFileName());
+		Map<ValidationPackage, List<CompletableFuture<ParsedEntry>>> parsing = new LinkedHashMap<>();
+		packages.stream().filter(p -> p.resources == null).distinct().forEach(p ->
+		{
+			Optional<ValidationPackageIndex> index = p.getIndex();
 
-			try
+			parsing.put(p, p.getEntries().stream().filter(ValidationPackage::isResourceEntry).flatMap(e ->
 			{
-				String resourceString = new String(entry.getContent(), StandardCharsets.UTF_8);
-				// fix profiles because their text contains invalid html
-				// Issue: https://github.com/medizininformatik-initiative/kerndatensatzmodul-mikrobiologie/issues/18
-				resourceString = resourceString.replaceAll("<h2>[\\s\\w\\[\\]]*</tt>", "");
-				IBaseResource resource = context.newJsonParser().parseResource(resourceString);
-
-				if (resource instanceof CodeSystem c)
-					codeSystems.add(c);
-				else if (resource instanceof NamingSystem n)
-					namingSystems.add(n);
-				else if (resource instanceof StructureDefinition s)
+				Optional<ValidationPackageIndexFile> file = index.flatMap(i -> i.getFile(e.getFileName()));
+
+				if (file.isPresent() && !isSupported(file.get()))
+				{
+					logger.debug("Ignoring {} with resourceType {}{} according to package index", e.getFileName(),
+							file.get().getResourceType(),
+							file.get().getKind() != null ? " and kind " + file.get().getKind() : "");
+					return Stream.empty();
+				}
+				else if (file.isPresent() && CODE_SYSTEM.equals(file.get().getResourceType())
+						&& file.get().getUrl() != null)
 				{
-					if (!StructureDefinitionKind.LOGICAL.equals(s.getKind()))
-						structureDefinitions.add(s);
-					else
-						logger.debug("Ignoring StructureDefinition with kind = logical");
+					return Stream.of(CompletableFuture.completedFuture(new ParsedEntry(Optional.empty(),
+							new LazyMetadataResource<>(file.get().getUrl(), file.get().getVersion(),
+									() -> parseCodeSystem(e, context)))));
 				}
-				else if (resource instanceof ValueSet v)
-					valueSets.add(v);
 				else
-					logger.debug("Ignoring resource of type {}", resource.getClass().getName());
+					return Stream.of(executor == null ? CompletableFuture.completedFuture(parse.apply(e))
+							: CompletableFuture.supplyAsync(() -> parse.apply(e), executor));
+			}).toList());
+		});
+
+		parsing.forEach((p, futures) -> p.resources = toValidationSupportResources(
+				futures.stream().map(CompletableFuture::join).toList()));
+	}
+
+	private static boolean isSupported(ValidationPackageIndexFile file)
+	{
+		return file.getResourceType() == null || (SUPPORTED_RESOURCE_TYPES.contains(file.getResourceType())
+				&& !(STRUCTURE_DEFINITION.equals(file.getResourceType()) && LOGICAL_KIND.equals(file.getKind())));
+	}
+
+	private static CodeSystem parseCodeSystem(ValidationPackageEntry entry, FhirContext context)
+	{
+		Optional<IBaseResource> resource = parseResource(entry, context.newJsonParser());
+
+		if (resource.isPresent() && !(resource.get() instanceof CodeSystem))
+			logger.warn("Ignoring {}, resource of type {} but CodeSystem expected according to package index",
+					entry.getFileName(), resource.get().getClass().getName());
+
+		return resource.filter(r -> r instanceof CodeSystem).map(r -> (CodeSystem) r).orElse(null);
+	}
+
+	private static boolean isResourceEntry(ValidationPackageEntry entry)
+	{
+		if (PACKAGE_JSON_FILENAME.equals(entry.getFileName()) || (entry.getFileName() != null
+				&& (entry.getFileName().startsWith("package/example") || entry.getFileName().endsWith(".index.json")
+						|| entry.getFileName().endsWith(".schema.json") || !entry.getFileName().endsWith(".json"))))
+		{
+			logger.debug("Ignoring {}", entry.getFileName());
+			return false;
+		}
+
+		return true;
+	}
+
+	private static Optional<IBaseResource> parseResource(ValidationPackageEntry entry, IParser parser)
+	{
+		logger.debug("Reading {}", entry.getFileName());
+
+		try
+		{
+			byte[] content = entry.getContent();
+
+			// fix profiles because their text contains invalid html
+			// Issue: https://github.com/medizininformatik-initiative/kerndatensatzmodul-mikrobiologie/issues/18
+			if (indexOf(content, INVALID_HTML_START) >= 0)
+			{
+				String resourceString = new String(content, StandardCharsets.UTF_8);
+				return Optional.of(parser.parseResource(INVALID_HTML.matcher(resourceString).replaceAll("")));
 			}
-			catch (Exception e)
+			else
 			{
-				logger.warn("Ignoring resource with error while parsing {}, {}: {}", entry.getFileName(),
-						e.getClass().getName(), e.getMessage());
+				InputStreamReader reader = new InputStreamReader(new ByteArrayInputStream(content),
+						StandardCharsets.UTF_8);
+				return Optional.of(parser.parseResource(reader));
 			}
-		};
+		}
+		catch (Exception e)
+		{
+			logger.warn("Ignoring resource with error while parsing {}, {}: {}", entry.getFileName(),
+					e.getClass().getName(), e.getMessage());
+
+			return Optional.empty();
+		}
+	}
+
+	private static int indexOf(byte[] content, byte[] value)
+	{
+		outer: for (int i = 0; i <= content.length - value.length; i++)
+		{
+			for (int j = 0; j < value.length; j++)
+			{
+				if (content[i + j] != value[j])
+					continue outer;
+			}
+
+			return i;
+		}
+
+		return -1;
+	}
+
+	private static ValidationSupportResources toValidationSupportResources(List<ParsedEntry> entries)
+	{
+		List<LazyMetadataResource<CodeSystem>> codeSystems = new ArrayList<>();
+		List<NamingSystem> namingSystems = new ArrayList<>();
+		List<StructureDefinition> structureDefinitions = new ArrayList<>();
+		List<ValueSet> valueSets = new ArrayList<>();
+
+		for (ParsedEntry entry : entries)
+		{
+			if (entry.lazyCodeSystem() != null)
+			{
+				codeSystems.add(entry.lazyCodeSystem());
+				continue;
+			}
+			else if (entry.resource().isEmpty())
+				continue;
+
+			IBaseResource resource = entry.resource().get();
+
+			if (resource instanceof CodeSystem c)
+				codeSystems.add(LazyMetadataResource.of(c));
+			else if (resource instanceof NamingSystem n)
+				namingSystems.add(n);
+			else if (resource instanceof StructureDefinition s)
+			{
+				if (!StructureDefinitionKind.LOGICAL.equals(s.getKind()))
+					structureDefinitions.add(s);
+				else
+					logger.debug("Ignoring StructureDefinition with kind = logical");
+			}
+			else if (resource instanceof ValueSet v)
+				valueSets.add(v);
+			else
+				logger.debug("Ignoring resource of type {}", resource.getClass().getName());
+		}
+
+		return ValidationSupportResources.withLazyCodeSystems(codeSystems, namingSystems, structureDefinitions,
+				valueSets);
+	}
+
+	/**
+	 * Removes not reachable StructureDefinitions, ValueSets and CodeSystems from the parsed resources.
+	 *
+	 * @param reachable
+	 *            not <code>null</code>
+	 * @throws IllegalStateException
+	 *             if resources not parsed
+	 */
+	public void retainResources(ReachableConformanceResources reachable)
+	{
+		resources = getValidationSupportResources().retain(reachable);
 	}
 
 	@JsonIgnore
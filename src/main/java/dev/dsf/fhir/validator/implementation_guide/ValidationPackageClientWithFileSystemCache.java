@@ -67,14 +67,11 @@ public class ValidationPackageClientWithFileSystemCache extends AbstractFileSyst
 	{
 		Objects.requireNonNull(identifier, "identifier");
 
-		ValidationPackage read = readFromCache(identifier.toString(), "validation package",
-				r -> mapper.readValue(r, ValidationPackage.class));
-
-		if (read != null)
-			return read;
-		else
-			return writeToCache(delegate.download(identifier), p -> p.getIdentifier().toString(),
-					p -> "validation package", mapper::writeValue);
+		return readOrCreate(identifier.toString(), "validation package",
+				() -> readFromCache(identifier.toString(), "validation package",
+						r -> mapper.readValue(r, ValidationPackage.class)),
+				() -> writeToCache(delegate.download(identifier), p -> p.getIdentifier().toString(),
+						p -> "validation package", mapper::writeValue));
 	}
 
 	@Override
@@ -0,0 +1,201 @@
+package dev.dsf.fhir.validator.implementation_guide;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import dev.dsf.fhir.validator.cache.Sha256;
+import jakarta.ws.rs.ProcessingException;
+import jakarta.ws.rs.WebApplicationException;
+
+/**
+ * Stores downloaded packages as uncompressed tar files. Packages read from the store are backed by the memory-mapped
+ * tar file, entry content is only read when accessed.
+ * <p>
+ * Package version lists are stored as <code>.versions.json</code> files and returned if the delegate fails, wildcard
+ * versions can be resolved without network access. File names are SHA-256 hashes of the package identifier or name,
+ * file names of different packages do not collide. Files written by earlier versions are not read.
+ * <p>
+ * The last modified time of package files is updated when read, at most once per {@link #ACCESS_RECORD_INTERVAL}, and
+ * used as access time for eviction of least recently used packages.
+ */
+public class ValidationPackageClientWithTarStore implements ValidationPackageClient, InitializingBean
+{
+	private static final Logger logger = LoggerFactory.getLogger(ValidationPackageClientWithTarStore.class);
+
+	private static final String FILENAME_SUFFIX = ".tar";
+	private static final String VERSIONS_FILENAME_SUFFIX = ".versions.json";
+	private static final Duration ACCESS_RECORD_INTERVAL = Duration.ofHours(1);
+
+	private final Path storeFolder;
+	private final ObjectMapper objectMapper;
+	private final ValidationPackageClient delegate;
+
+	/**
+	 * @param storeFolder
+	 *            not <code>null</code>
+	 * @param objectMapper
+	 *            not <code>null</code>
+	 * @param delegate
+	 *            not <code>null</code>
+	 */
+	public ValidationPackageClientWithTarStore(Path storeFolder, ObjectMapper objectMapper,
+			ValidationPackageClient delegate)
+	{
+		this.storeFolder = storeFolder;
+		this.objectMapper = objectMapper;
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception
+	{
+		Objects.requireNonNull(storeFolder, "storeFolder");
+		Objects.requireNonNull(objectMapper, "objectMapper");
+		Objects.requireNonNull(delegate, "delegate");
+
+		if (!Files.isWritable(storeFolder))
+			throw new IOException("Folder " + storeFolder.toAbsolutePath().toString() + " not writable");
+	}
+
+	private Path storeFile(ValidationPackageIdentifier identifier)
+	{
+		return storeFolder.resolve(toFileName(identifier.toString()) + FILENAME_SUFFIX);
+	}
+
+	private Path versionsFile(String name)
+	{
+		return storeFolder.resolve(toFileName(name) + VERSIONS_FILENAME_SUFFIX);
+	}
+
+	/**
+	 * Content addressed like the file system caches, file names of different identifiers do not collide.
+	 */
+	private static String toFileName(String value)
+	{
+		return Sha256.hex(value);
+	}
+
+	@Override
+	public ValidationPackage download(ValidationPackageIdentifier identifier)
+			throws IOException, WebApplicationException
+	{
+		Objects.requireNonNull(identifier, "identifier");
+
+		Path storeFile = storeFile(identifier);
+
+		if (Files.isReadable(storeFile))
+		{
+			logger.debug("Reading validation package {} from store at {}", identifier.toString(),
+					storeFile.toString());
+			touch(storeFile);
+			return ValidationPackage.fromTar(identifier.name(), identifier.version(), storeFile);
+		}
+
+		ValidationPackage downloaded = delegate.download(identifier);
+
+		logger.debug("Writing validation package {} to store at {}", identifier.toString(), storeFile.toString());
+
+		Path tempFile = Files.createTempFile(storeFolder, storeFile.getFileName().toString(), ".tmp");
+		try
+		{
+			downloaded.writeTar(tempFile);
+			Files.move(tempFile, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile);
+		}
+
+		// releasing downloaded content, entries read from store on demand
+		return ValidationPackage.fromTar(downloaded.getName(), downloaded.getVersion(), storeFile);
+	}
+
+	private void touch(Path storeFile)
+	{
+		try
+		{
+			Instant now = Instant.now();
+			if (Files.getLastModifiedTime(storeFile).toInstant().isBefore(now.minus(ACCESS_RECORD_INTERVAL)))
+				Files.setLastModifiedTime(storeFile, FileTime.from(now));
+		}
+		catch (IOException e)
+		{
+			logger.debug("Unable to update last modified time of {}: {}", storeFile.toString(), e.getMessage());
+		}
+	}
+
+	@Override
+	public PackageVersions list(String name) throws WebApplicationException
+	{
+		Objects.requireNonNull(name, "name");
+
+		Path versionsFile = versionsFile(name);
+
+		try
+		{
+			PackageVersions versions = delegate.list(name);
+			writeVersions(versions, versionsFile);
+			return versions;
+		}
+		catch (WebApplicationException | ProcessingException e)
+		{
+			if (!Files.isReadable(versionsFile))
+				throw e;
+
+			logger.warn("Unable to list versions of validation package {}, reading from store at {}: {}", name,
+					versionsFile.toString(), e.getMessage());
+
+			try (InputStream in = Files.newInputStream(versionsFile))
+			{
+				return objectMapper.readValue(in, PackageVersions.class);
+			}
+			catch (IOException e1)
+			{
+				logger.warn("Unable to read validation package versions from {}: {}", versionsFile.toString(),
+						e1.getMessage());
+				throw e;
+			}
+		}
+	}
+
+	private void writeVersions(PackageVersions versions, Path versionsFile)
+	{
+		try
+		{
+			Path tempFile = Files.createTempFile(storeFolder, versionsFile.getFileName().toString(), ".tmp");
+			try
+			{
+				try (OutputStream out = Files.newOutputStream(tempFile))
+				{
+					objectMapper.writeValue(out, versions);
+				}
+
+				Files.move(tempFile, versionsFile, StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			finally
+			{
+				Files.deleteIfExists(tempFile);
+			}
+		}
+		catch (IOException e)
+		{
+			logger.warn("Unable to write validation package versions to store at {}: {}", versionsFile.toString(),
+					e.getMessage());
+		}
+	}
+}
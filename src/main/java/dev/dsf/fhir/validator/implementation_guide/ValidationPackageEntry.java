@@ -2,6 +2,7 @@ package dev.dsf.fhir.validator.implementation_guide;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Date;
 import java.util.Objects;
 
@@ -14,6 +15,12 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 public class ValidationPackageEntry
 {
+	@FunctionalInterface
+	public interface ContentLoader
+	{
+		byte[] load() throws IOException;
+	}
+
 	/**
 	 * Does not close the input stream.
 	 *
@@ -42,6 +49,7 @@ public class ValidationPackageEntry
 	private final String fileName;
 	private final Date lastModified;
 	private final byte[] content;
+	private final ContentLoader contentLoader;
 
 	@JsonCreator
 	public ValidationPackageEntry(@JsonProperty("fileName") String fileName,
@@ -50,6 +58,25 @@ public class ValidationPackageEntry
 		this.fileName = fileName;
 		this.lastModified = lastModified;
 		this.content = content;
+		this.contentLoader = null;
+	}
+
+	/**
+	 * Content is loaded on every call to {@link #getContent()} and not kept in memory.
+	 *
+	 * @param fileName
+	 *            not <code>null</code>
+	 * @param lastModified
+	 *            may be <code>null</code>
+	 * @param contentLoader
+	 *            not <code>null</code>
+	 */
+	public ValidationPackageEntry(String fileName, Date lastModified, ContentLoader contentLoader)
+	{
+		this.fileName = fileName;
+		this.lastModified = lastModified;
+		this.content = null;
+		this.contentLoader = Objects.requireNonNull(contentLoader, "contentLoader");
 	}
 
 	@JsonProperty("fileName")
@@ -64,9 +91,24 @@ public class ValidationPackageEntry
 		return lastModified;
 	}
 
+	/**
+	 * @return content
+	 * @throws UncheckedIOException
+	 *             if the content of a lazily loaded entry can not be read
+	 */
 	@JsonProperty("content")
 	public byte[] getContent()
 	{
-		return content;
+		if (contentLoader == null)
+			return content;
+
+		try
+		{
+			return contentLoader.load();
+		}
+		catch (IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
 	}
 }
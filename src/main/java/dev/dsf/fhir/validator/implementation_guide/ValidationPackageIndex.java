@@ -0,0 +1,70 @@
+package dev.dsf.fhir.validator.implementation_guide;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/**
+ * Content of the <code>package/.index.json</code> file, see
+ * <a href="https://confluence.hl7.org/display/FHIR/NPM+Package+Specification">NPM Package Specification</a>
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ValidationPackageIndex
+{
+	public static final String INDEX_FILENAME = "package/.index.json";
+
+	private static final String PACKAGE_FOLDER = "package/";
+
+	private final Integer indexVersion;
+	private final List<ValidationPackageIndexFile> files = new ArrayList<>();
+
+	private Map<String, ValidationPackageIndexFile> filesByEntryFileName;
+
+	@JsonCreator
+	public ValidationPackageIndex(@JsonProperty("index-version") Integer indexVersion,
+			@JsonProperty("files") List<ValidationPackageIndexFile> files)
+	{
+		this.indexVersion = indexVersion;
+
+		if (files != null)
+			this.files.addAll(files);
+	}
+
+	@JsonProperty("index-version")
+	public Integer getIndexVersion()
+	{
+		return indexVersion;
+	}
+
+	@JsonProperty("files")
+	public List<ValidationPackageIndexFile> getFiles()
+	{
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * @param entryFileName
+	 *            package entry file name, e.g. <code>package/StructureDefinition-example.json</code>
+	 * @return empty if the given entry is not listed in this index
+	 */
+	@JsonIgnore
+	public synchronized Optional<ValidationPackageIndexFile> getFile(String entryFileName)
+	{
+		if (filesByEntryFileName == null)
+		{
+			filesByEntryFileName = new HashMap<>();
+			files.stream().filter(f -> f.getFileName() != null)
+					.forEach(f -> filesByEntryFileName.put(PACKAGE_FOLDER + f.getFileName(), f));
+		}
+
+		return Optional.ofNullable(filesByEntryFileName.get(entryFileName));
+	}
+}
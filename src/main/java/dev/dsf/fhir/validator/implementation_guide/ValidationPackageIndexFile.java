@@ -0,0 +1,77 @@
+package dev.dsf.fhir.validator.implementation_guide;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ValidationPackageIndexFile
+{
+	private final String fileName;
+	private final String resourceType;
+	private final String id;
+	private final String url;
+	private final String version;
+	private final String kind;
+	private final String type;
+
+	@JsonCreator
+	public ValidationPackageIndexFile(@JsonProperty("filename") String fileName,
+			@JsonProperty("resourceType") String resourceType, @JsonProperty("id") String id,
+			@JsonProperty("url") String url, @JsonProperty("version") String version,
+			@JsonProperty("kind") String kind, @JsonProperty("type") String type)
+	{
+		this.fileName = fileName;
+		this.resourceType = resourceType;
+		this.id = id;
+		this.url = url;
+		this.version = version;
+		this.kind = kind;
+		this.type = type;
+	}
+
+	/**
+	 * @return file name relative to the folder of the index file
+	 */
+	@JsonProperty("filename")
+	public String getFileName()
+	{
+		return fileName;
+	}
+
+	@JsonProperty("resourceType")
+	public String getResourceType()
+	{
+		return resourceType;
+	}
+
+	@JsonProperty("id")
+	public String getId()
+	{
+		return id;
+	}
+
+	@JsonProperty("url")
+	public String getUrl()
+	{
+		return url;
+	}
+
+	@JsonProperty("version")
+	public String getVersion()
+	{
+		return version;
+	}
+
+	@JsonProperty("kind")
+	public String getKind()
+	{
+		return kind;
+	}
+
+	@JsonProperty("type")
+	public String getType()
+	{
+		return type;
+	}
+}
@@ -8,6 +8,15 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -32,7 +41,7 @@ public class ValidationPackageManagerImpl implements InitializingBean, Validatio
 	private final FhirContext fhirContext;
 
 	private final List<ValidationPackageIdentifier> noDownloadPackages = new ArrayList<>();
-
+	private final int maxConcurrentDownloads;
 
 	public ValidationPackageManagerImpl(ValidationPackageClient validationPackageClient, ObjectMapper mapper,
 			FhirContext fhirContext)
@@ -42,6 +51,25 @@ public class ValidationPackageManagerImpl implements InitializingBean, Validatio
 
 	public ValidationPackageManagerImpl(ValidationPackageClient validationPackageClient, ObjectMapper mapper,
 			FhirContext fhirContext, Collection<ValidationPackageIdentifier> noDownloadPackages)
+	{
+		this(validationPackageClient, mapper, fhirContext, noDownloadPackages, 1);
+	}
+
+	/**
+	 * @param validationPackageClient
+	 *            not <code>null</code>
+	 * @param mapper
+	 *            not <code>null</code>
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param noDownloadPackages
+	 *            may be <code>null</code>
+	 * @param maxConcurrentDownloads
+	 *            maximum number of concurrent package server requests, values &lt; 1 are treated as 1
+	 */
+	public ValidationPackageManagerImpl(ValidationPackageClient validationPackageClient, ObjectMapper mapper,
+			FhirContext fhirContext, Collection<ValidationPackageIdentifier> noDownloadPackages,
+			int maxConcurrentDownloads)
 	{
 		this.validationPackageClient = validationPackageClient;
 		this.mapper = mapper;
@@ -49,6 +77,8 @@ public class ValidationPackageManagerImpl implements InitializingBean, Validatio
 
 		if (noDownloadPackages != null)
 			this.noDownloadPackages.addAll(noDownloadPackages);
+
+		this.maxConcurrentDownloads = Math.max(1, maxConcurrentDownloads);
 	}
 
 	@Override
@@ -63,82 +93,200 @@ public class ValidationPackageManagerImpl implements InitializingBean, Validatio
 	public List<ValidationPackageWithDepedencies> downloadPackagesWithDependencies(
 			Collection<? extends ValidationPackageIdentifier> identifiers)
 	{
-		Map<ValidationPackageIdentifier, ValidationPackage> allPackagesByNameAndVersion = new HashMap<>();
-
-		List<ValidationPackageWithDepedencies> packages = new ArrayList<>();
-		for (ValidationPackageIdentifier identifier : identifiers)
+		Downloads downloads = new Downloads();
+		try
 		{
-			Map<ValidationPackageIdentifier, ValidationPackage> packagesByNameAndVersion = new HashMap<>();
-			downloadPackageWithDependencies(identifier, packagesByNameAndVersion, allPackagesByNameAndVersion);
-			packages.add(ValidationPackageWithDepedencies.from(packagesByNameAndVersion, identifier));
-		}
+			identifiers.forEach(downloads::fetch);
+			downloads.awaitAll();
 
-		logger.info("Validating with packages {}",
-				packages.stream().map(p -> p.getIdentifier().toString() + " {dependencies: "
-						+ p.getDependencies().stream().map(ValidationPackage::getIdentifier)
-								.map(ValidationPackageIdentifier::toString).sorted().collect(Collectors.joining(", "))
-						+ "}").collect(Collectors.joining(", ", "[", "]")));
+			List<ValidationPackageWithDepedencies> packages = new ArrayList<>();
+			for (ValidationPackageIdentifier identifier : identifiers)
+			{
+				Map<ValidationPackageIdentifier, ValidationPackage> packagesByNameAndVersion = new HashMap<>();
+				ValidationPackageIdentifier resolved = downloads.collect(identifier, packagesByNameAndVersion);
+				packages.add(ValidationPackageWithDepedencies.from(packagesByNameAndVersion,
+						resolved != null ? resolved : identifier));
+			}
 
-		return packages;
+			logger.info("Validating with packages {}",
+					packages.stream().map(p -> p.getIdentifier().toString() + " {dependencies: "
+							+ p.getDependencies().stream().map(ValidationPackage::getIdentifier)
+									.map(ValidationPackageIdentifier::toString).sorted()
+									.collect(Collectors.joining(", "))
+							+ "}").collect(Collectors.joining(", ", "[", "]")));
+
+			return packages;
+		}
+		finally
+		{
+			downloads.close();
+		}
 	}
 
-	private void downloadPackageWithDependencies(ValidationPackageIdentifier identifier,
-			Map<ValidationPackageIdentifier, ValidationPackage> packagesByNameAndVersion,
-			Map<ValidationPackageIdentifier, ValidationPackage> allPackagesByNameAndVersion)
+	/**
+	 * Resolves wildcard versions and downloads packages with dependencies concurrently. Every identifier is resolved
+	 * and every package downloaded at most once, independent of the number of packages depending on it.
+	 */
+	private final class Downloads
 	{
-		if (allPackagesByNameAndVersion.containsKey(identifier))
+		private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+		private final Semaphore connections = new Semaphore(maxConcurrentDownloads);
+
+		private final Map<ValidationPackageIdentifier, CompletableFuture<ValidationPackageIdentifier>> resolvedVersions
+				= new ConcurrentHashMap<>();
+		private final Map<ValidationPackageIdentifier, CompletableFuture<ValidationPackage>> packages
+				= new ConcurrentHashMap<>();
+		private final Map<ValidationPackageIdentifier, List<ValidationPackageIdentifier>> dependencies
+				= new ConcurrentHashMap<>();
+		private final Queue<CompletableFuture<?>> pending = new ConcurrentLinkedQueue<>();
+
+		void fetch(ValidationPackageIdentifier identifier)
 		{
-			ValidationPackage dependency = allPackagesByNameAndVersion.get(identifier);
-			packagesByNameAndVersion.put(identifier, dependency);
+			if (noDownloadPackages.contains(identifier))
+			{
+				logger.debug("Not downloading package {}", identifier.toString());
+				return;
+			}
 
-			// already downloaded
-			return;
+			pending.add(resolve(identifier).thenAccept(resolved ->
+			{
+				// check again, as the identifier may have changed from a A.B.x wildcard
+				if (noDownloadPackages.contains(resolved))
+					logger.debug("Not using package {}", resolved.toString());
+				else
+					pending.add(download(resolved));
+			}));
 		}
-		else if (noDownloadPackages.contains(identifier))
+
+		private CompletableFuture<ValidationPackageIdentifier> resolve(ValidationPackageIdentifier identifier)
 		{
-			logger.debug("Not downloading package {}", identifier.toString());
-			return;
+			if (!identifier.version().matches("\\d+\\.\\d+\\.x"))
+				return CompletableFuture.completedFuture(identifier);
+
+			return once(resolvedVersions, identifier, () -> withConnection(() -> resolveWildcard(identifier)));
 		}
 
-		ValidationPackage vPackage = downloadAndHandleException(identifier);
-		identifier = vPackage.getIdentifier();
+		private CompletableFuture<ValidationPackage> download(ValidationPackageIdentifier identifier)
+		{
+			return once(packages, identifier, () ->
+			{
+				ValidationPackage vPackage = withConnection(() -> downloadAndHandleException(identifier));
+
+				List<ValidationPackageIdentifier> dependencyIdentifiers = getDescriptorAndHandleException(vPackage)
+						.getDependencyIdentifiers();
+				dependencies.put(identifier, dependencyIdentifiers);
 
-		// check again, as the identifier may have changed from a A.B.x wildcard
-		if (allPackagesByNameAndVersion.containsKey(identifier))
+				// added to pending before this download completes
+				dependencyIdentifiers.forEach(this::fetch);
+
+				return vPackage;
+			});
+		}
+
+		private <T> CompletableFuture<T> once(Map<ValidationPackageIdentifier, CompletableFuture<T>> futures,
+				ValidationPackageIdentifier identifier, Supplier<T> task)
+		{
+			CompletableFuture<T> future = new CompletableFuture<>();
+			CompletableFuture<T> existing = futures.putIfAbsent(identifier, future);
+			if (existing != null)
+				return existing;
+
+			executor.execute(() ->
+			{
+				try
+				{
+					future.complete(task.get());
+				}
+				catch (Throwable e)
+				{
+					future.completeExceptionally(e);
+				}
+			});
+
+			return future;
+		}
+
+		private <T> T withConnection(Supplier<T> task)
 		{
-			ValidationPackage dependency = allPackagesByNameAndVersion.get(identifier);
-			packagesByNameAndVersion.put(identifier, dependency);
+			try
+			{
+				connections.acquire();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			}
 
-			// already downloaded
-			return;
+			try
+			{
+				return task.get();
+			}
+			finally
+			{
+				connections.release();
+			}
 		}
-		else if (noDownloadPackages.contains(identifier))
+
+		void awaitAll()
 		{
-			logger.debug("Not using package {}", identifier.toString());
-			return;
+			CompletableFuture<?> future;
+			while ((future = pending.poll()) != null)
+			{
+				try
+				{
+					future.join();
+				}
+				catch (CompletionException e)
+				{
+					if (e.getCause() instanceof RuntimeException r)
+						throw r;
+					else
+						throw e;
+				}
+			}
 		}
 
-		packagesByNameAndVersion.put(identifier, vPackage);
-		allPackagesByNameAndVersion.put(identifier, vPackage);
+		/**
+		 * @return resolved identifier, <code>null</code> if the package is not downloaded
+		 */
+		ValidationPackageIdentifier collect(ValidationPackageIdentifier identifier,
+				Map<ValidationPackageIdentifier, ValidationPackage> packagesByNameAndVersion)
+		{
+			if (noDownloadPackages.contains(identifier))
+				return null;
+
+			ValidationPackageIdentifier resolved = resolve(identifier).join();
+			if (noDownloadPackages.contains(resolved) || packagesByNameAndVersion.containsKey(resolved))
+				return resolved;
+
+			packagesByNameAndVersion.put(resolved, packages.get(resolved).join());
+			dependencies.get(resolved).forEach(i -> collect(i, packagesByNameAndVersion));
 
-		ValidationPackageDescriptor descriptor = getDescriptorAndHandleException(vPackage);
-		descriptor.getDependencyIdentifiers().forEach(
-				i -> downloadPackageWithDependencies(i, packagesByNameAndVersion, allPackagesByNameAndVersion));
+			return resolved;
+		}
+
+		void close()
+		{
+			executor.close();
+		}
 	}
 
-	private ValidationPackage downloadAndHandleException(ValidationPackageIdentifier identifier)
+	private ValidationPackageIdentifier resolveWildcard(ValidationPackageIdentifier identifier)
 	{
-		if (identifier.version().matches("\\d+\\.\\d+\\.x"))
-		{
-			String versoinPrefix = identifier.version().substring(0, identifier.version().length() - 1);
+		String versoinPrefix = identifier.version().substring(0, identifier.version().length() - 1);
 
-			PackageVersions versions = validationPackageClient.list(identifier.name());
-			Optional<String> latest = versions.getLatest(versoinPrefix);
+		PackageVersions versions = validationPackageClient.list(identifier.name());
+		Optional<String> latest = versions.getLatest(versoinPrefix);
 
-			if (latest.isPresent())
-				identifier = new ValidationPackageIdentifier(identifier.name(), latest.get());
-		}
+		if (latest.isPresent())
+			return new ValidationPackageIdentifier(identifier.name(), latest.get());
+		else
+			return identifier;
+	}
 
+	private ValidationPackage downloadAndHandleException(ValidationPackageIdentifier identifier)
+	{
 		try
 		{
 			logger.debug("Downloading validation package {}", identifier);
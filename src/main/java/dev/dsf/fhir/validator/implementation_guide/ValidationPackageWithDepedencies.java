@@ -3,12 +3,12 @@ package dev.dsf.fhir.validator.implementation_guide;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -21,7 +21,6 @@ import org.hl7.fhir.r4.model.MetadataResource;
 import org.hl7.fhir.r4.model.NamingSystem;
 import org.hl7.fhir.r4.model.StructureDefinition;
 import org.hl7.fhir.r4.model.StructureDefinition.StructureDefinitionDifferentialComponent;
-import org.hl7.fhir.r4.model.UriType;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,8 +52,7 @@ public class ValidationPackageWithDepedencies extends ValidationPackage
 
 	private final List<ValidationPackage> dependencies = new ArrayList<>();
 
-	private Map<String, List<StructureDefinition>> structureDefinitionsByUrl;
-	private Map<String, StructureDefinition> structureDefinitionsByUrlAndVersion;
+	private StructureDefinitionDependencyGraph structureDefinitionDependencyGraph;
 
 	public ValidationPackageWithDepedencies(ValidationPackage validationPackage, List<ValidationPackage> dependencies)
 	{
@@ -69,12 +67,28 @@ public class ValidationPackageWithDepedencies extends ValidationPackage
 		return Collections.unmodifiableList(dependencies);
 	}
 
+	/**
+	 * Parses resources of this package and all dependencies, entries from all packages are parsed concurrently if an
+	 * executor is given.
+	 */
 	@Override
-	public void parseResources(FhirContext context)
+	public void parseResources(FhirContext context, Executor executor)
 	{
-		super.parseResources(context);
+		parseResources(Stream.concat(Stream.of(this), getDependencies().stream()).toList(), context, executor);
+	}
+
+	/**
+	 * Removes not reachable resources from this package only, dependencies are not modified.
+	 */
+	@Override
+	public void retainResources(ReachableConformanceResources reachable)
+	{
+		super.retainResources(reachable);
 
-		getDependencies().forEach(p -> p.parseResources(context));
+		synchronized (this)
+		{
+			structureDefinitionDependencyGraph = null;
+		}
 	}
 
 	private <R extends MetadataResource> List<R> getAll(Function<ValidationSupportResources, List<R>> accessor)
@@ -89,6 +103,16 @@ public class ValidationPackageWithDepedencies extends ValidationPackage
 		return getAll(ValidationSupportResources::getCodeSystems);
 	}
 
+	/**
+	 * @return CodeSystems of this package and all dependencies, not yet parsed CodeSystems are parsed on first access
+	 */
+	public List<LazyMetadataResource<CodeSystem>> getAllLazyCodeSystems()
+	{
+		return Stream.concat(Stream.of(this), getDependencies().stream())
+				.map(ValidationPackage::getValidationSupportResources)
+				.map(ValidationSupportResources::getLazyCodeSystems).flatMap(List::stream).toList();
+	}
+
 	public List<NamingSystem> getAllNamingSystems()
 	{
 		return getAll(ValidationSupportResources::getNamingSystems);
@@ -110,107 +134,35 @@ public class ValidationPackageWithDepedencies extends ValidationPackage
 				getAllValueSets());
 	}
 
-	private Map<String, List<StructureDefinition>> getStructureDefinitionsByUrl()
+	/**
+	 * Computed once on first access, package resources need to be parsed.
+	 *
+	 * @return dependency graph of all StructureDefinitions from this package and its dependencies
+	 * @see #parseResources(FhirContext)
+	 */
+	public synchronized StructureDefinitionDependencyGraph getStructureDefinitionDependencyGraph()
 	{
-		if (structureDefinitionsByUrl == null)
-			structureDefinitionsByUrl = getAllStructureDefinitions().stream().filter(StructureDefinition::hasUrl)
-					.collect(Collectors.toMap(StructureDefinition::getUrl, Collections::singletonList, (sd1, sd2) ->
-					{
-						List<StructureDefinition> sds = new ArrayList<>();
-						sds.addAll(sd1);
-						sds.addAll(sd2);
-						return sds;
-					}));
-
-		return structureDefinitionsByUrl;
-	}
-
-	private Map<String, StructureDefinition> getStructureDefinitionsByUrlAndVersion()
-	{
-		if (structureDefinitionsByUrlAndVersion == null)
-			structureDefinitionsByUrlAndVersion = getAllStructureDefinitions().stream()
-					.filter(StructureDefinition::hasUrl).filter(StructureDefinition::hasVersion)
-					.collect(Collectors.toMap(s -> s.getUrl() + "|" + s.getVersion(), Function.identity()));
-
-		return structureDefinitionsByUrlAndVersion;
-	}
-
-	public List<StructureDefinition> getStructureDefinitionDependencies(StructureDefinition structureDefinition)
-	{
-		return doGetDependencies(structureDefinition, new HashSet<>());
-	}
-
-	private List<StructureDefinition> doGetDependencies(StructureDefinition structureDefinition, Set<String> visited)
-	{
-		if (visited.contains(structureDefinition.getUrl())
-				|| visited.contains(structureDefinition.getUrl() + "|" + structureDefinition.getVersion()))
-			return Collections.emptyList();
-		else
+		if (structureDefinitionDependencyGraph == null)
 		{
-			visited.add(structureDefinition.getUrl());
-			visited.add(structureDefinition.getUrl() + "|" + structureDefinition.getVersion());
-		}
+			structureDefinitionDependencyGraph = StructureDefinitionDependencyGraph.from(getAllStructureDefinitions());
 
-		List<StructureDefinition> dependencies = new ArrayList<>();
-		Set<StructureDefinition> baseDefinitions = getStructureDefinitionsByUrl(
-				structureDefinition.getBaseDefinition());
-
-		baseDefinitions.forEach(sd -> dependencies.addAll(doGetDependencies(sd, visited)));
-		dependencies.addAll(baseDefinitions);
+			logger.debug("StructureDefinition dependency graph for package (incl. dependencies) {}|{}: {} nodes, {} edges",
+					getName(), getVersion(), structureDefinitionDependencyGraph.getNodeCount(),
+					structureDefinitionDependencyGraph.getEdgeCount());
+		}
 
-		structureDefinition.getDifferential().getElement().stream().forEach(e ->
-		{
-			if (e.hasPath() && "Extension.url".equals(e.getPath()) && e.hasFixed() && e.getFixed() instanceof UriType)
-			{
-				UriType t = (UriType) e.getFixed();
-				Set<StructureDefinition> extensions = getStructureDefinitionsByUrl(t.getValue());
-				extensions.forEach(sd -> dependencies.addAll(doGetDependencies(sd, visited)));
-				dependencies.addAll(extensions);
-			}
-
-			if (e.hasType())
-			{
-				e.getType().forEach(t ->
-				{
-					if (t.hasProfile())
-					{
-						t.getProfile().forEach(p ->
-						{
-							Set<StructureDefinition> profiles = getStructureDefinitionsByUrl(p.getValue());
-							profiles.forEach(sd -> dependencies.addAll(doGetDependencies(sd, visited)));
-							dependencies.addAll(profiles);
-						});
-					}
-
-					if (t.hasTargetProfile())
-					{
-						t.getTargetProfile().forEach(p ->
-						{
-							Set<StructureDefinition> targetProfiles = getStructureDefinitionsByUrl(p.getValue());
-							targetProfiles.forEach(sd -> dependencies.addAll(doGetDependencies(sd, visited)));
-							dependencies.addAll(targetProfiles);
-						});
-					}
-				});
-			}
-		});
-
-		return dependencies;
+		return structureDefinitionDependencyGraph;
 	}
 
-	private Set<StructureDefinition> getStructureDefinitionsByUrl(String sdUrl)
+	/**
+	 * @param structureDefinition
+	 *            not <code>null</code>
+	 * @return transitive dependencies in dependency first order
+	 * @see #getStructureDefinitionDependencyGraph()
+	 */
+	public List<StructureDefinition> getStructureDefinitionDependencies(StructureDefinition structureDefinition)
 	{
-		Set<StructureDefinition> sds = new HashSet<>();
-
-		List<StructureDefinition> byUrl = getStructureDefinitionsByUrl().get(sdUrl);
-		if (byUrl != null)
-			sds.addAll(byUrl);
-
-		StructureDefinition byUrlAndVersion = getStructureDefinitionsByUrlAndVersion().get(sdUrl);
-		if (byUrlAndVersion != null)
-			sds.add(byUrlAndVersion);
-
-		return sds;
+		return getStructureDefinitionDependencyGraph().getDependencies(structureDefinition);
 	}
 
 	// TODO what about ValueSets from base profiles ?
@@ -3,6 +3,7 @@ package dev.dsf.fhir.validator.implementation_guide;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
 
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.NamingSystem;
@@ -11,16 +12,39 @@ import org.hl7.fhir.r4.model.ValueSet;
 
 public class ValidationSupportResources
 {
-	private final List<CodeSystem> codeSystems = new ArrayList<>();
+	private final List<LazyMetadataResource<CodeSystem>> codeSystems = new ArrayList<>();
 	private final List<NamingSystem> namingSystems = new ArrayList<>();
 	private final List<StructureDefinition> structureDefinitions = new ArrayList<>();
 	private final List<ValueSet> valueSets = new ArrayList<>();
 
+	/**
+	 * @param codeSystems
+	 *            may be <code>null</code>, CodeSystems are parsed on first access
+	 * @param namingSystems
+	 *            may be <code>null</code>
+	 * @param structureDefinitions
+	 *            may be <code>null</code>
+	 * @param valueSets
+	 *            may be <code>null</code>
+	 * @return resources with lazily parsed CodeSystems
+	 */
+	public static ValidationSupportResources withLazyCodeSystems(List<LazyMetadataResource<CodeSystem>> codeSystems,
+			List<NamingSystem> namingSystems, List<StructureDefinition> structureDefinitions, List<ValueSet> valueSets)
+	{
+		ValidationSupportResources resources = new ValidationSupportResources(null, namingSystems,
+				structureDefinitions, valueSets);
+
+		if (codeSystems != null)
+			resources.codeSystems.addAll(codeSystems);
+
+		return resources;
+	}
+
 	public ValidationSupportResources(List<CodeSystem> codeSystems, List<NamingSystem> namingSystems,
 			List<StructureDefinition> structureDefinitions, List<ValueSet> valueSets)
 	{
 		if (codeSystems != null)
-			this.codeSystems.addAll(codeSystems);
+			codeSystems.stream().map(LazyMetadataResource::of).forEach(this.codeSystems::add);
 		if (namingSystems != null)
 			this.namingSystems.addAll(namingSystems);
 		if (structureDefinitions != null)
@@ -29,7 +53,17 @@ public class ValidationSupportResources
 			this.valueSets.addAll(valueSets);
 	}
 
+	/**
+	 * Parses all not yet parsed CodeSystems, use {@link #getLazyCodeSystems()} to access CodeSystems without parsing.
+	 *
+	 * @return successfully parsed CodeSystems
+	 */
 	public List<CodeSystem> getCodeSystems()
+	{
+		return codeSystems.stream().map(LazyMetadataResource::get).filter(Objects::nonNull).toList();
+	}
+
+	public List<LazyMetadataResource<CodeSystem>> getLazyCodeSystems()
 	{
 		return Collections.unmodifiableList(codeSystems);
 	}
@@ -48,4 +82,17 @@ public class ValidationSupportResources
 	{
 		return Collections.unmodifiableList(valueSets);
 	}
+
+	/**
+	 * @param reachable
+	 *            not <code>null</code>
+	 * @return new resources with reachable StructureDefinitions, ValueSets and CodeSystems, NamingSystems are not
+	 *         filtered
+	 */
+	public ValidationSupportResources retain(ReachableConformanceResources reachable)
+	{
+		return withLazyCodeSystems(codeSystems.stream().filter(c -> reachable.containsCodeSystem(c.getUrl())).toList(),
+				namingSystems, structureDefinitions.stream().filter(reachable::contains).toList(),
+				valueSets.stream().filter(reachable::contains).toList());
+	}
 }
@@ -8,20 +8,27 @@ import java.nio.file.Paths;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.function.BiFunction;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.core.config.Configurator;
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.hl7.fhir.r4.model.Enumerations.BindingStrength;
+import org.hl7.fhir.r4.model.Patient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
@@ -40,22 +47,36 @@ import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.i18n.HapiLocalizer;
 import de.hsheilbronn.mi.utils.crypto.io.PemReader;
 import de.hsheilbronn.mi.utils.crypto.keystore.KeyStoreCreator;
+import dev.dsf.fhir.validator.cache.AbstractFhirResourceFileSystemCache.Format;
+import dev.dsf.fhir.validator.cache.CacheBundle;
+import dev.dsf.fhir.validator.cache.CacheCodec;
+import dev.dsf.fhir.validator.cache.CachePruner;
+import dev.dsf.fhir.validator.cache.MemoryCache;
 import dev.dsf.fhir.validator.client.TerminologyServerClient;
 import dev.dsf.fhir.validator.client.TerminologyServerClientJersey;
+import dev.dsf.fhir.validator.image.ValidationImageStore;
+import dev.dsf.fhir.validator.implementation_guide.ConformanceResourcePruner;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageClient;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageClientJersey;
-import dev.dsf.fhir.validator.implementation_guide.ValidationPackageClientWithFileSystemCache;
+import dev.dsf.fhir.validator.implementation_guide.ValidationPackageClientWithTarStore;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageIdentifier;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageManager;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageManagerImpl;
 import dev.dsf.fhir.validator.main.ValidationMain.Output;
+import dev.dsf.fhir.validator.server.ValidationServer;
+import dev.dsf.fhir.validator.service.ResourceValidator;
+import dev.dsf.fhir.validator.service.ResourceValidatorImpl;
+import dev.dsf.fhir.validator.service.ResourceValidatorPool;
 import dev.dsf.fhir.validator.service.ValidatorFactory;
 import dev.dsf.fhir.validator.service.ValidatorFactoryImpl;
+import dev.dsf.fhir.validator.service.ValidatorFactoryImpl.SnapshotGenerationMode;
+import dev.dsf.fhir.validator.service.ValidatorFactoryImpl.ValueSetExpansionMode;
 import dev.dsf.fhir.validator.structure_definition.SnapshotGenerator;
 import dev.dsf.fhir.validator.structure_definition.SnapshotGeneratorImpl;
 import dev.dsf.fhir.validator.structure_definition.SnapshotGeneratorWithFileSystemCache;
 import dev.dsf.fhir.validator.structure_definition.SnapshotGeneratorWithModifiers;
 import dev.dsf.fhir.validator.structure_definition.StructureDefinitionModifier;
+import dev.dsf.fhir.validator.support.ExpandedValueSetIndexCache;
 import dev.dsf.fhir.validator.value_set.ValueSetExpander;
 import dev.dsf.fhir.validator.value_set.ValueSetExpanderImpl;
 import dev.dsf.fhir.validator.value_set.ValueSetExpanderWithFileSystemCache;
@@ -77,6 +98,11 @@ public class ValidationConfig implements InitializingBean
 		OK, NOT_OK, DISABLED
 	}
 
+	public static enum BundleEntryValidation
+	{
+		SEQUENTIAL, PLATFORM_THREADS, VIRTUAL_THREADS
+	}
+
 	public static enum LogLevel
 	{
 		TRACE(Level.TRACE), DEBUG(Level.DEBUG), INFO(Level.INFO), WARN(Level.WARN), ERROR(Level.ERROR), FATAL(
@@ -110,6 +136,12 @@ public class ValidationConfig implements InitializingBean
 	@Value("${dev.dsf.validation.package.cacheFolder:${java.io.tmpdir}/dsf_validation_cache/Package}")
 	private String packageCacheFolder;
 
+	@Value("${dev.dsf.validation.package.cacheMaxBytes:0}")
+	private long packageCacheMaxBytes;
+
+	@Value("${dev.dsf.validation.package.cacheMaxAgeDays:0}")
+	private long packageCacheMaxAgeDays;
+
 	@Value("${dev.dsf.validation.package.server.baseUrl:https://packages.simplifier.net}")
 	private String packageServerBaseUrl;
 
@@ -137,18 +169,69 @@ public class ValidationConfig implements InitializingBean
 	@Value("${dev.dsf.validation.package.client.timeout.read:300000}")
 	private int packageClientReadTimeout;
 
+	@Value("${dev.dsf.validation.package.client.maxConcurrentDownloads:4}")
+	private int packageClientMaxConcurrentDownloads;
+
+	@Value("${dev.dsf.validation.package.prune:false}")
+	private boolean packagePrune;
+
+	@Value("#{'${dev.dsf.validation.package.prune.profiles:}'.trim().split('(,[ ]?)|(\\n)')}")
+	private List<String> packagePruneProfiles;
+
+	@Value("${dev.dsf.validation.package.parse.threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+	private int packageParseThreads;
+
 	@Value("${dev.dsf.validation.package.client.verbose:false}")
 	private boolean packageClientVerbose;
 
 	@Value("#{'${dev.dsf.validation.valueset.bindingStrength:required,extensible,preferred,example}'.trim().split('(,[ ]?)|(\\n)')}")
 	private List<String> valueSetExpansionBindingStrengths;
 
+	@Value("${dev.dsf.validation.valueset.index.maxConcepts:5000000}")
+	private long valueSetIndexMaxConcepts;
+
+	@Value("${dev.dsf.validation.valueset.index.compactExpansions:false}")
+	private boolean valueSetIndexCompactExpansions;
+
+	@Value("${dev.dsf.validation.cache.deflateLevel:6}")
+	private int cacheDeflateLevel;
+
+	@Value("${dev.dsf.validation.cache.bundle:#{null}}")
+	private String cacheBundleFile;
+
+	@Value("${dev.dsf.validation.cache.prune.interval:0}")
+	private long cachePruneInterval;
+
 	@Value("${dev.dsf.validation.valueset.cacheFolder:${java.io.tmpdir}/dsf_validation_cache/ValueSet}")
 	private String valueSetCacheFolder;
 
+	@Value("${dev.dsf.validation.valueset.cacheMaxBytes:0}")
+	private long valueSetCacheMaxBytes;
+
+	@Value("${dev.dsf.validation.valueset.cacheMaxAgeDays:0}")
+	private long valueSetCacheMaxAgeDays;
+
 	@Value("${dev.dsf.validation.valueset.cacheDraftResources:true}")
 	private boolean valueSetCacheDraftResources;
 
+	@Value("${dev.dsf.validation.valueset.cacheFormat:JSON}")
+	private Format valueSetCacheFormat;
+
+	@Value("${dev.dsf.validation.valueset.cacheCodec:GZIP}")
+	private CacheCodec.Type valueSetCacheCodec;
+
+	@Value("${dev.dsf.validation.valueset.memoryCacheMaxBytes:67108864}")
+	private long valueSetMemoryCacheMaxBytes;
+
+	@Value("${dev.dsf.validation.valueset.expansion.threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+	private int valueSetExpansionThreads;
+
+	@Value("${dev.dsf.validation.valueset.expansion.mode:EAGER}")
+	private ValueSetExpansionMode valueSetExpansionMode;
+
+	@Value("${dev.dsf.validation.valueset.expansion.server.maxConcurrentRequests:4}")
+	private int valueSetExpansionServerMaxConcurrentRequests;
+
 	@Value("${dev.dsf.validation.valueset.expansion.server.baseUrl:https://ontoserver.mii-termserv.de/fhir}")
 	private String valueSetExpansionServerBaseUrl;
 
@@ -183,12 +266,57 @@ public class ValidationConfig implements InitializingBean
 			+ "dev.dsf.fhir.validator.structure_definition.SliceMinFixer" + "}'.trim().split('(,[ ]?)|(\\n)')}")
 	private List<String> structureDefinitionModifierClasses;
 
+	@Value("${dev.dsf.validation.structuredefinition.snapshot.mode:EAGER}")
+	private SnapshotGenerationMode snapshotGenerationMode;
+
+	@Value("${dev.dsf.validation.structuredefinition.snapshot.threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+	private int snapshotGenerationThreads;
+
 	@Value("${dev.dsf.validation.structuredefinition.cacheFolder:${java.io.tmpdir}/dsf_validation_cache/StructureDefinition}")
 	private String structureDefinitionCacheFolder;
 
+	@Value("${dev.dsf.validation.structuredefinition.cacheMaxBytes:0}")
+	private long structureDefinitionCacheMaxBytes;
+
+	@Value("${dev.dsf.validation.structuredefinition.cacheMaxAgeDays:0}")
+	private long structureDefinitionCacheMaxAgeDays;
+
 	@Value("${dev.dsf.validation.structuredefinition.cacheDraftResources:true}")
 	private boolean structureDefinitionCacheDraftResources;
 
+	@Value("${dev.dsf.validation.structuredefinition.cacheFormat:JSON}")
+	private Format structureDefinitionCacheFormat;
+
+	@Value("${dev.dsf.validation.structuredefinition.cacheCodec:GZIP}")
+	private CacheCodec.Type structureDefinitionCacheCodec;
+
+	@Value("${dev.dsf.validation.structuredefinition.memoryCacheMaxBytes:67108864}")
+	private long structureDefinitionMemoryCacheMaxBytes;
+
+	@Value("${dev.dsf.validation.bundle.entry:SEQUENTIAL}")
+	private BundleEntryValidation bundleEntryValidation;
+
+	@Value("${dev.dsf.validation.bundle.entry.threads:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+	private int bundleEntryValidationThreads;
+
+	@Value("${dev.dsf.validation.resource.validator.pool.size:0}")
+	private int resourceValidatorPoolSize;
+
+	@Value("${dev.dsf.validation.resource.validator.pool.borrowTimeout:60000}")
+	private long resourceValidatorPoolBorrowTimeout;
+
+	@Value("${dev.dsf.validation.support.cache.maxBytes:33554432}")
+	private long validationSupportCacheMaxBytes;
+
+	@Value("${dev.dsf.validation.support.cache.timeout:600000}")
+	private long validationSupportCacheTimeout;
+
+	@Value("${dev.dsf.validation.image:false}")
+	private boolean validationImageEnabled;
+
+	@Value("${dev.dsf.validation.image.cacheFolder:${java.io.tmpdir}/dsf_validation_cache/Image}")
+	private String validationImageCacheFolder;
+
 	@Value("${java.io.tmpdir}")
 	private String systemTempFolder;
 
@@ -198,6 +326,31 @@ public class ValidationConfig implements InitializingBean
 	@Value("${dsf.dev.validation.output.pretty:true}")
 	private boolean outputPretty;
 
+	// set by ValidationMain if started in server mode
+	@Value("${dev.dsf.validation.server.enabled:false}")
+	private boolean serverEnabled;
+
+	@Value("${dev.dsf.validation.server.bindAddress:127.0.0.1}")
+	private String serverBindAddress;
+
+	@Value("${dev.dsf.validation.server.port:8080}")
+	private int serverPort;
+
+	@Value("${dev.dsf.validation.server.maxConcurrentRequests:#{T(java.lang.Runtime).getRuntime().availableProcessors()}}")
+	private int serverMaxConcurrentRequests;
+
+	@Value("${dev.dsf.validation.server.requestQueueTimeout:30000}")
+	private long serverRequestQueueTimeout;
+
+	@Value("${dev.dsf.validation.server.maxRequestSize:104857600}")
+	private long serverMaxRequestSize;
+
+	@Value("${dev.dsf.validation.server.maxBufferedRequests:0}")
+	private int serverMaxBufferedRequests;
+
+	@Value("${dev.dsf.validation.server.statisticsInterval:0}")
+	private long serverStatisticsInterval;
+
 	@Value("${dsf.dev.validation.proxy.url:#{null}}")
 	private String proxyUrl;
 
@@ -214,6 +367,31 @@ public class ValidationConfig implements InitializingBean
 
 		if (EnumSet.of(LogLevel.ERROR, LogLevel.WARN, LogLevel.OFF).contains(logLevel))
 			Configurator.setLevel(LogManager.getRootLogger(), logLevel.level());
+
+		// pooled validators are not shared, every concurrently validated resource needs its own
+		if (resourceValidatorPoolSize > 0 && resourceValidatorPoolSize < resourceValidatorConcurrency())
+			throw new IllegalArgumentException("Resource validator pool size " + resourceValidatorPoolSize
+					+ " < concurrently validated resources " + resourceValidatorConcurrency()
+					+ ", configure 'dev.dsf.validation.resource.validator.pool.size' >= "
+					+ (serverEnabled ? "'dev.dsf.validation.server.maxConcurrentRequests' plus " : "")
+					+ "'dev.dsf.validation.bundle.entry.threads' (if not SEQUENTIAL) or 0 (derived)");
+	}
+
+	/**
+	 * @return number of resources validated concurrently, by concurrent bundle entry validation and in server mode
+	 *         additionally by concurrent requests validating single resources
+	 */
+	private int resourceValidatorConcurrency()
+	{
+		int entries = BundleEntryValidation.SEQUENTIAL.equals(bundleEntryValidation) ? 1
+				: Math.max(1, bundleEntryValidationThreads);
+
+		if (!serverEnabled)
+			return entries;
+
+		// bundle entry validation executor is shared by all requests
+		return BundleEntryValidation.SEQUENTIAL.equals(bundleEntryValidation) ? serverMaxConcurrentRequests
+				: entries + serverMaxConcurrentRequests;
 	}
 
 	@Bean
@@ -244,7 +422,23 @@ public class ValidationConfig implements InitializingBean
 	public ValidationMain validatorMain()
 	{
 		return new ValidationMain(fhirContext(), validationPackageManager(), validatorFactory(),
-				validationPackageIdentifiers(), output, outputPretty);
+				validationPackageIdentifiers(), output, outputPretty, Duration.ofMillis(serverStatisticsInterval));
+	}
+
+	@Bean
+	public ValidationServer validationServer()
+	{
+		return new ValidationServer(fhirContext(), serverBindAddress, serverPort, serverMaxConcurrentRequests,
+				serverRequestQueueTimeout, serverMaxRequestSize, serverMaxBufferedRequests(), output, outputPretty);
+	}
+
+	/**
+	 * @return configured value or if not configured (0) twice the number of concurrent requests, request bodies can be
+	 *         read while other requests are validated
+	 */
+	private int serverMaxBufferedRequests()
+	{
+		return serverMaxBufferedRequests > 0 ? serverMaxBufferedRequests : 2 * serverMaxConcurrentRequests;
 	}
 
 	@Bean
@@ -254,17 +448,174 @@ public class ValidationConfig implements InitializingBean
 				.filter(Predicate.not(String::isBlank)).map(ValidationPackageIdentifier::fromString)
 				.collect(Collectors.toList());
 
-		return new ValidationPackageManagerImpl(validationPackageClient(), objectMapper(), fhirContext(), noDownload);
+		return new ValidationPackageManagerImpl(validationPackageClient(), objectMapper(), fhirContext(), noDownload,
+				packageClientMaxConcurrentDownloads);
 	}
 
 	@Bean
 	public ValidatorFactory validatorFactory()
 	{
-		EnumSet<BindingStrength> bindingStrengths = EnumSet.copyOf(
-				valueSetExpansionBindingStrengths.stream().map(BindingStrength::fromCode).collect(Collectors.toList()));
+		ValidatorFactoryImpl.Settings settings = ValidatorFactoryImpl.Settings.defaults()
+				.withValueSetBindingStrengths(valueSetBindingStrengths())
+				.withResourceValidatorFactory(resourceValidatorFactory())
+				.withBundleEntryValidationExecutor(bundleEntryValidationExecutor())
+				.withValidationImageStore(validationImageStore())
+				.withExpandedValueSetIndexCache(expandedValueSetIndexCache())
+				.withValueSetExpansion(valueSetExpansionExecutor(), valueSetExpansionServerMaxConcurrentRequests)
+				.withSnapshotGenerationExecutor(snapshotGenerationExecutor())
+				.withResourceParsingExecutor(resourceParsingExecutor())
+				.withConformanceResourcePruner(conformanceResourcePruner())
+				.withValueSetExpansionMode(valueSetExpansionMode).withSnapshotGenerationMode(snapshotGenerationMode)
+				.withValidationSupportCache(validationSupportCacheMaxBytes,
+						Duration.ofMillis(validationSupportCacheTimeout));
 
 		return new ValidatorFactoryImpl(fhirContext(), internalSnapshotGeneratorFactory(),
-				internalValueSetExpanderFactory(), terminologyServerClient(), bindingStrengths);
+				internalValueSetExpanderFactory(), terminologyServerClient(), settings);
+	}
+
+	@Bean
+	public ConformanceResourcePruner conformanceResourcePruner()
+	{
+		if (!packagePrune)
+			return null;
+
+		return new ConformanceResourcePruner(fhirContext(), packagePruneProfiles);
+	}
+
+	@Bean
+	public ExecutorService resourceParsingExecutor()
+	{
+		logger.debug("Package resource parsing with {} threads", Math.max(1, packageParseThreads));
+
+		return packageParseThreads > 1 ? Executors.newFixedThreadPool(packageParseThreads) : null;
+	}
+
+	@Bean
+	public ExecutorService snapshotGenerationExecutor()
+	{
+		logger.debug("StructureDefinition snapshot generation with {} threads", Math.max(1, snapshotGenerationThreads));
+
+		return snapshotGenerationThreads > 1 ? Executors.newFixedThreadPool(snapshotGenerationThreads) : null;
+	}
+
+	@Bean
+	public ExecutorService valueSetExpansionExecutor()
+	{
+		logger.debug("Internal ValueSet expansion with {} threads, max {} concurrent terminology server requests",
+				Math.max(1, valueSetExpansionThreads), Math.max(1, valueSetExpansionServerMaxConcurrentRequests));
+
+		return valueSetExpansionThreads > 1 ? Executors.newFixedThreadPool(valueSetExpansionThreads) : null;
+	}
+
+	@Bean
+	public ExpandedValueSetIndexCache expandedValueSetIndexCache()
+	{
+		return new ExpandedValueSetIndexCache(valueSetIndexMaxConcepts, valueSetIndexCompactExpansions);
+	}
+
+	@Bean
+	public EnumSet<BindingStrength> valueSetBindingStrengths()
+	{
+		return EnumSet.copyOf(
+				valueSetExpansionBindingStrengths.stream().map(BindingStrength::fromCode).collect(Collectors.toList()));
+	}
+
+	@Bean
+	public ValidationImageStore validationImageStore()
+	{
+		if (!validationImageEnabled)
+			return null;
+
+		List<String> modifierClasses = Stream
+				.concat(structureDefinitionModifierClasses.stream(), valueSetModifierClasses.stream()).toList();
+
+		return new ValidationImageStore(validationImageCacheFolder(), fhirContext(), modifierClasses,
+				valueSetBindingStrengths(), valueSetExpansionServerBaseUrl, conformanceResourcePruner());
+	}
+
+	@Bean
+	public Path validationImageCacheFolder()
+	{
+		return cacheFolder("Image", validationImageCacheFolder);
+	}
+
+	@Bean
+	public CacheBundle cacheBundle()
+	{
+		Map<String, Path> cacheFolders = new LinkedHashMap<>();
+		cacheFolders.put("Package", packageCacheFolder());
+		cacheFolders.put("StructureDefinition", structureDefinitionCacheFolder());
+		cacheFolders.put("ValueSet", valueSetCacheFolder());
+
+		if (validationImageEnabled)
+			cacheFolders.put("Image", validationImageCacheFolder());
+
+		return new CacheBundle(cacheFolders, objectMapper());
+	}
+
+	@Bean
+	public CachePruner cachePruner()
+	{
+		return new CachePruner(List.of(
+				new CachePruner.Budget("Package", packageCacheFolder(), packageCacheMaxBytes,
+						Duration.ofDays(packageCacheMaxAgeDays)),
+				new CachePruner.Budget("StructureDefinition", structureDefinitionCacheFolder(),
+						structureDefinitionCacheMaxBytes, Duration.ofDays(structureDefinitionCacheMaxAgeDays)),
+				new CachePruner.Budget("ValueSet", valueSetCacheFolder(), valueSetCacheMaxBytes,
+						Duration.ofDays(valueSetCacheMaxAgeDays))),
+				Duration.ofMillis(cachePruneInterval));
+	}
+
+	/**
+	 * Loads the cache bundle configured via <code>dev.dsf.validation.cache.bundle</code> into the package store and
+	 * cache folders.
+	 *
+	 * @return <code>true</code> if a cache bundle is configured and was loaded
+	 * @throws IOException
+	 *             if the configured cache bundle could not be loaded
+	 */
+	public boolean loadCacheBundle() throws IOException
+	{
+		if (cacheBundleFile == null || cacheBundleFile.isBlank())
+			return false;
+
+		cacheBundle().load(Paths.get(cacheBundleFile));
+		return true;
+	}
+
+	@Bean
+	public BiFunction<FhirContext, IValidationSupport, ResourceValidator> resourceValidatorFactory()
+	{
+		int concurrency = resourceValidatorConcurrency();
+		int poolSize = resourceValidatorPoolSize > 0 ? resourceValidatorPoolSize : concurrency;
+
+		// bundle entries validated concurrently need a thread safe pool, see BundleValidatorImpl
+		if (poolSize <= 1 && concurrency <= 1)
+			return ResourceValidatorImpl::new;
+
+		logger.debug("Using resource validator pool with {} validators{}, borrow timeout {} ms", poolSize,
+				resourceValidatorPoolSize > 0 ? "" : " (derived from concurrency)", resourceValidatorPoolBorrowTimeout);
+
+		// initializes validator stacks, profiles are loaded via the shared validation support on first use
+		return (fc, vs) -> new ResourceValidatorPool(poolSize, resourceValidatorPoolBorrowTimeout,
+				() -> new ResourceValidatorImpl(fc, vs), List.of(new Patient()));
+	}
+
+	@Bean
+	public ExecutorService bundleEntryValidationExecutor()
+	{
+		logger.debug("Bundle entry validation: {}{}", bundleEntryValidation,
+				BundleEntryValidation.SEQUENTIAL.equals(bundleEntryValidation) ? ""
+						: " with max " + bundleEntryValidationThreads + " concurrent entries");
+
+		// bounded, entries of all bundles share one budget, queued entries do not wait for a pooled validator
+		return switch (bundleEntryValidation)
+		{
+			case SEQUENTIAL -> null;
+			case PLATFORM_THREADS -> Executors.newFixedThreadPool(bundleEntryValidationThreads);
+			case VIRTUAL_THREADS -> Executors.newFixedThreadPool(bundleEntryValidationThreads,
+					Thread.ofVirtual().name("bundle-entry-", 0).factory());
+		};
 	}
 
 	private StructureDefinitionModifier createStructureDefinitionModifier(String className)
@@ -291,11 +642,22 @@ public class ValidationConfig implements InitializingBean
 		List<StructureDefinitionModifier> structureDefinitionModifiers = structureDefinitionModifierClasses.stream()
 				.map(this::createStructureDefinitionModifier).collect(Collectors.toList());
 
-		return (fc, vs) -> new SnapshotGeneratorWithFileSystemCache(structureDefinitionCacheFolder(), fc,
+		return (fc, vs) -> new SnapshotGeneratorWithFileSystemCache(structureDefinitionCacheFolder(),
+				structureDefinitionCacheFormat, structureDefinitionCacheCodec.toCodec(cacheDeflateLevel),
+				structureDefinitionMemoryCache(), fc,
 				new SnapshotGeneratorWithModifiers(new SnapshotGeneratorImpl(fc, vs), structureDefinitionModifiers),
+				"modifiers:" + String.join(",", structureDefinitionModifierClasses), vs,
 				structureDefinitionCacheDraftResources);
 	}
 
+	@Bean
+	public MemoryCache structureDefinitionMemoryCache()
+	{
+		return structureDefinitionMemoryCacheMaxBytes > 0
+				? new MemoryCache("StructureDefinition", structureDefinitionMemoryCacheMaxBytes)
+				: null;
+	}
+
 	@Bean
 	public Path structureDefinitionCacheFolder()
 	{
@@ -305,9 +667,10 @@ public class ValidationConfig implements InitializingBean
 	@Bean
 	public BiFunction<FhirContext, IValidationSupport, ValueSetExpander> internalValueSetExpanderFactory()
 	{
-		return (fc, vs) -> new ValueSetExpanderWithFileSystemCache(valueSetCacheFolder(), fc,
+		return (fc, vs) -> new ValueSetExpanderWithFileSystemCache(valueSetCacheFolder(), valueSetCacheFormat,
+				valueSetCacheCodec.toCodec(cacheDeflateLevel), valueSetMemoryCache(), fc,
 				new ValueSetExpanderWithModifiers(new ValueSetExpanderImpl(fc, vs), valueSetModifiers()),
-				valueSetCacheDraftResources);
+				"internal,modifiers:" + String.join(",", valueSetModifierClasses), vs, valueSetCacheDraftResources);
 	}
 
 	private Path cacheFolder(String cacheFolderType, String cacheFolder)
@@ -403,7 +766,7 @@ public class ValidationConfig implements InitializingBean
 	@Bean
 	public ValidationPackageClient validationPackageClient()
 	{
-		return new ValidationPackageClientWithFileSystemCache(packageCacheFolder(), objectMapper(),
+		return new ValidationPackageClientWithTarStore(packageCacheFolder(), objectMapper(),
 				validationPackageClientJersey());
 	}
 
@@ -436,9 +799,11 @@ public class ValidationConfig implements InitializingBean
 	@Bean
 	public TerminologyServerClient terminologyServerClient()
 	{
-		return new ValueSetExpansionClientWithFileSystemCache(valueSetCacheFolder(), fhirContext(),
+		return new ValueSetExpansionClientWithFileSystemCache(valueSetCacheFolder(), valueSetCacheFormat,
+				valueSetCacheCodec.toCodec(cacheDeflateLevel), valueSetMemoryCache(), fhirContext(),
 				new ValueSetExpansionClientWithModifiers(
 						new ValueSetExpansionClientStarVersion(terminologyServerClientJersey()), valueSetModifiers()),
+				"server:" + valueSetExpansionServerBaseUrl + ",modifiers:" + String.join(",", valueSetModifierClasses),
 				valueSetCacheDraftResources);
 	}
 
@@ -466,6 +831,12 @@ public class ValidationConfig implements InitializingBean
 		}
 	}
 
+	@Bean
+	public MemoryCache valueSetMemoryCache()
+	{
+		return valueSetMemoryCacheMaxBytes > 0 ? new MemoryCache("ValueSet", valueSetMemoryCacheMaxBytes) : null;
+	}
+
 	@Bean
 	public Path valueSetCacheFolder()
 	{
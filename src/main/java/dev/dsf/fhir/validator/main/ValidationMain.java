@@ -1,13 +1,22 @@
 package dev.dsf.fhir.validator.main;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
@@ -21,12 +30,17 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.validation.ValidationResult;
+import dev.dsf.fhir.validator.cache.CacheBundle;
+import dev.dsf.fhir.validator.cache.CachePruner;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageIdentifier;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageManager;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageWithDepedencies;
 import dev.dsf.fhir.validator.main.ValidationConfig.TerminologyServerConnectionTestStatus;
+import dev.dsf.fhir.validator.server.ValidationServer;
 import dev.dsf.fhir.validator.service.BundleValidator;
 import dev.dsf.fhir.validator.service.ValidatorFactory;
+import dev.dsf.fhir.validator.service.ValidatorFactoryImpl.SnapshotGenerationMode;
+import dev.dsf.fhir.validator.service.ValidatorFactoryImpl.ValueSetExpansionMode;
 
 public class ValidationMain implements InitializingBean
 {
@@ -59,34 +73,135 @@ public class ValidationMain implements InitializingBean
 		JSON, XML
 	}
 
+	public static final String SERVER_MODE_ARGUMENT = "--server";
+	public static final String PREPARE_MODE_ARGUMENT = "--prepare";
+	public static final String CACHE_REPORT_ARGUMENT = "--cache-report";
+	public static final String CACHE_PRUNE_ARGUMENT = "--cache-prune";
+
 	public static void main(String[] args)
 	{
 		if (args.length == 0)
 		{
-			logger.warn("No files to validated specified");
+			logger.warn(
+					"No files to validated specified, use {} to start in server mode, {} <archive> to write a cache bundle or {}, {} to report or prune caches",
+					SERVER_MODE_ARGUMENT, PREPARE_MODE_ARGUMENT, CACHE_REPORT_ARGUMENT, CACHE_PRUNE_ARGUMENT);
 			System.exit(1);
 		}
+		else if (PREPARE_MODE_ARGUMENT.equals(args[0]) && args.length != 2)
+		{
+			logger.warn("No cache bundle archive specified, use {} <archive>", PREPARE_MODE_ARGUMENT);
+			System.exit(1);
+		}
+
+		boolean serverMode = args.length == 1 && SERVER_MODE_ARGUMENT.equals(args[0]);
+		boolean prepareMode = args.length == 2 && PREPARE_MODE_ARGUMENT.equals(args[0]);
+		boolean cacheReportMode = args.length == 1 && CACHE_REPORT_ARGUMENT.equals(args[0]);
+		boolean cachePruneMode = args.length == 1 && CACHE_PRUNE_ARGUMENT.equals(args[0]);
+
+		Path prepareCacheFolder = null;
+
+		if (serverMode)
+		{
+			// requests are validated concurrently, resource validator pool size derived from request concurrency
+			System.setProperty("dev.dsf.validation.server.enabled", Boolean.TRUE.toString());
+		}
+		else if (prepareMode)
+		{
+			// cache bundle needs to contain all expansions and snapshots
+			System.setProperty("dev.dsf.validation.valueset.expansion.mode", ValueSetExpansionMode.EAGER.name());
+			System.setProperty("dev.dsf.validation.structuredefinition.snapshot.mode",
+					SnapshotGenerationMode.EAGER.name());
+
+			// cache bundle should only contain files of this run, not other entries of shared cache folders
+			prepareCacheFolder = setPrepareCacheFolders();
+		}
 
 		try (AnnotationConfigApplicationContext springContext = new AnnotationConfigApplicationContext(
 				ValidationConfig.class))
 		{
 			ValidationConfig config = springContext.getBean(ValidationConfig.class);
+			CachePruner cachePruner = springContext.getBean(CachePruner.class);
+
+			if (cacheReportMode || cachePruneMode)
+			{
+				cachePruner.log(cachePruneMode ? cachePruner.prune() : cachePruner.report(), cachePruneMode);
+				return;
+			}
+
+			boolean cacheBundleLoaded = config.loadCacheBundle();
+
+			// cache bundle needs to contain all cache entries
+			if (!prepareMode)
+				cachePruner.start();
+
 			TerminologyServerConnectionTestStatus status = config.testConnectionToTerminologyServer();
 
-			if (TerminologyServerConnectionTestStatus.OK.equals(status))
+			if (cacheBundleLoaded && TerminologyServerConnectionTestStatus.NOT_OK.equals(status))
+				logger.warn("Terminology server not available, continuing with cache bundle");
+
+			if (TerminologyServerConnectionTestStatus.OK.equals(status)
+					|| (cacheBundleLoaded && TerminologyServerConnectionTestStatus.NOT_OK.equals(status)))
 			{
 				ValidationMain main = springContext.getBean(ValidationMain.class);
 
-				BundleValidator bundleValidator = main.createBundleValidator();
+				if (serverMode)
+					main.runServer(springContext.getBean(ValidationServer.class));
+				else if (prepareMode)
+					main.prepare(springContext.getBean(CacheBundle.class), Paths.get(args[1]));
+				else
+				{
+					BundleValidator bundleValidator = main.createBundleValidator();
 
-				main.validate(bundleValidator, args);
+					main.validate(bundleValidator, args);
+				}
 			}
 		}
 		catch (Exception e)
 		{
 			logger.error("", e);
+			deletePrepareCacheFolder(prepareCacheFolder);
 			System.exit(1);
 		}
+
+		deletePrepareCacheFolder(prepareCacheFolder);
+	}
+
+	private static Path setPrepareCacheFolders()
+	{
+		try
+		{
+			Path folder = Files.createTempDirectory("dsf_validation_prepare");
+			logger.info("Preparing cache bundle in fresh cache folders at {}", folder.toAbsolutePath().toString());
+
+			System.setProperty("dev.dsf.validation.package.cacheFolder", folder.resolve("Package").toString());
+			System.setProperty("dev.dsf.validation.valueset.cacheFolder", folder.resolve("ValueSet").toString());
+			System.setProperty("dev.dsf.validation.structuredefinition.cacheFolder",
+					folder.resolve("StructureDefinition").toString());
+			System.setProperty("dev.dsf.validation.image.cacheFolder", folder.resolve("Image").toString());
+
+			return folder;
+		}
+		catch (IOException e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void deletePrepareCacheFolder(Path folder)
+	{
+		if (folder == null)
+			return;
+
+		try (Stream<Path> files = Files.walk(folder))
+		{
+			for (Path file : files.sorted(Comparator.reverseOrder()).toList())
+				Files.deleteIfExists(file);
+		}
+		catch (IOException e)
+		{
+			logger.warn("Unable to delete cache folders at {}: {} - {}", folder.toAbsolutePath().toString(),
+					e.getClass().getName(), e.getMessage());
+		}
 	}
 
 	private final FhirContext fhirContext;
@@ -96,10 +211,27 @@ public class ValidationMain implements InitializingBean
 	private final List<ValidationPackageIdentifier> validationPackageIdentifiers = new ArrayList<>();
 	private final Output output;
 	private final boolean outputPretty;
+	private final Duration serverStatisticsInterval;
 
+	/**
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param packageManager
+	 *            not <code>null</code>
+	 * @param validatorFactory
+	 *            not <code>null</code>
+	 * @param validationPackageIdentifiers
+	 *            may be <code>null</code>
+	 * @param output
+	 *            not <code>null</code>
+	 * @param outputPretty
+	 * @param serverStatisticsInterval
+	 *            may be <code>null</code>, statistics are logged periodically in server mode if &gt; 0, otherwise only
+	 *            on shutdown
+	 */
 	public ValidationMain(FhirContext fhirContext, ValidationPackageManager packageManager,
 			ValidatorFactory validatorFactory, List<ValidationPackageIdentifier> validationPackageIdentifiers,
-			Output output, boolean outputPretty)
+			Output output, boolean outputPretty, Duration serverStatisticsInterval)
 	{
 		this.fhirContext = fhirContext;
 		this.packageManager = packageManager;
@@ -110,6 +242,7 @@ public class ValidationMain implements InitializingBean
 
 		this.output = output;
 		this.outputPretty = outputPretty;
+		this.serverStatisticsInterval = serverStatisticsInterval;
 	}
 
 	@Override
@@ -122,13 +255,17 @@ public class ValidationMain implements InitializingBean
 		Objects.requireNonNull(output, "output");
 	}
 
-	private BundleValidator createBundleValidator()
+	private List<ValidationPackageWithDepedencies> downloadPackagesWithDependencies()
 	{
 		logger.info("Downloading FHIR validation packages {} and dependencies",
 				validationPackageIdentifiers.toString());
-		List<ValidationPackageWithDepedencies> packagesWithDependencies = packageManager
-				.downloadPackagesWithDependencies(
-						validationPackageIdentifiers.toArray(ValidationPackageIdentifier[]::new));
+		return packageManager.downloadPackagesWithDependencies(
+				validationPackageIdentifiers.toArray(ValidationPackageIdentifier[]::new));
+	}
+
+	private BundleValidator createBundleValidator()
+	{
+		List<ValidationPackageWithDepedencies> packagesWithDependencies = downloadPackagesWithDependencies();
 
 		logger.info("Expanding ValueSets and generating StructureDefinition snapshots");
 		IValidationSupport validationSupport = validatorFactory
@@ -137,6 +274,90 @@ public class ValidationMain implements InitializingBean
 		return validatorFactory.createBundleValidator(validationSupport, packagesWithDependencies);
 	}
 
+	/**
+	 * Downloads packages, expands ValueSets and generates StructureDefinition snapshots, then writes the package store
+	 * and cache folders to the given cache bundle archive.
+	 *
+	 * @param cacheBundle
+	 *            not <code>null</code>
+	 * @param archive
+	 *            not <code>null</code>
+	 * @throws IOException
+	 *             if the cache bundle could not be written
+	 */
+	public void prepare(CacheBundle cacheBundle, Path archive) throws IOException
+	{
+		Objects.requireNonNull(cacheBundle, "cacheBundle");
+		Objects.requireNonNull(archive, "archive");
+
+		List<ValidationPackageWithDepedencies> packagesWithDependencies = downloadPackagesWithDependencies();
+
+		logger.info("Expanding ValueSets and generating StructureDefinition snapshots");
+		validatorFactory.expandValueSetsAndGenerateStructureDefinitionSnapshots(packagesWithDependencies);
+
+		List<String> packages = packagesWithDependencies.stream()
+				.flatMap(p -> Stream.concat(Stream.of(p), p.getDependencies().stream()))
+				.map(p -> p.getIdentifier().toString()).distinct().toList();
+
+		logger.info("Writing cache bundle to {}", archive.toAbsolutePath().toString());
+		cacheBundle.write(archive, packages);
+	}
+
+	/**
+	 * Starts the given server, creates the {@link BundleValidator} and marks the server as ready. Logs statistics
+	 * periodically if configured. Blocks until the JVM is shut down.
+	 *
+	 * @param server
+	 *            not <code>null</code>
+	 * @throws IOException
+	 *             if the server could not be started
+	 * @throws InterruptedException
+	 */
+	public void runServer(ValidationServer server) throws IOException, InterruptedException
+	{
+		Objects.requireNonNull(server, "server");
+
+		ScheduledExecutorService statistics = Executors.newSingleThreadScheduledExecutor(r ->
+		{
+			Thread thread = new Thread(r, "validation-statistics");
+			thread.setDaemon(true);
+			return thread;
+		});
+
+		CountDownLatch stopped = new CountDownLatch(1);
+		Runtime.getRuntime().addShutdownHook(new Thread(() ->
+		{
+			statistics.shutdownNow();
+			server.stop();
+			stopped.countDown();
+		}, "validation-server-shutdown"));
+
+		server.start();
+		server.setReady(createBundleValidator());
+
+		if (serverStatisticsInterval != null && serverStatisticsInterval.toMillis() > 0)
+		{
+			logger.debug("Logging statistics every {} ms", serverStatisticsInterval.toMillis());
+			statistics.scheduleWithFixedDelay(this::logStatistics, serverStatisticsInterval.toMillis(),
+					serverStatisticsInterval.toMillis(), TimeUnit.MILLISECONDS);
+		}
+
+		stopped.await();
+	}
+
+	private void logStatistics()
+	{
+		try
+		{
+			validatorFactory.logStatistics();
+		}
+		catch (Exception e)
+		{
+			// not stopping periodic logging
+			logger.warn("Unable to log statistics: {} - {}", e.getClass().getName(), e.getMessage());
+		}
+	}
+
 	public void validate(BundleValidator validator, String[] files)
 	{
 		Arrays.stream(files).map(this::read).filter(r -> r != null).forEach(r ->
@@ -0,0 +1,449 @@
+package dev.dsf.fhir.validator.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueSeverity;
+import org.hl7.fhir.r4.model.OperationOutcome.IssueType;
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import dev.dsf.fhir.validator.main.ValidationMain.Output;
+import dev.dsf.fhir.validator.service.BundleValidator;
+import dev.dsf.fhir.validator.service.ResourceValidatorPool.PoolExhaustedException;
+
+/**
+ * HTTP server keeping a {@link BundleValidator} resident. Supported endpoints:
+ * <ul>
+ * <li><code>POST /{resourceType}/$validate</code>, returns an {@link OperationOutcome}</li>
+ * <li><code>POST /Bundle/$validate-entries</code>, returns the given {@link Bundle} with
+ * <code>entry.response.outcome</code> properties</li>
+ * <li><code>GET /health/live</code></li>
+ * <li><code>GET /health/ready</code>, status 200 only after a {@link BundleValidator} was set via
+ * {@link #setReady(BundleValidator)}</li>
+ * </ul>
+ */
+public class ValidationServer implements InitializingBean
+{
+	private static final Logger logger = LoggerFactory.getLogger(ValidationServer.class);
+
+	private static final Pattern VALIDATE_PATH = Pattern.compile("^/([A-Z][A-Za-z]+)/\\$validate$");
+	private static final String VALIDATE_ENTRIES_PATH = "/Bundle/$validate-entries";
+	private static final String LIVE_PATH = "/health/live";
+	private static final String READY_PATH = "/health/ready";
+
+	private static final String MEDIA_TYPE_FHIR_JSON = "application/fhir+json";
+	private static final String MEDIA_TYPE_FHIR_XML = "application/fhir+xml";
+	private static final String MEDIA_TYPE_JSON = "application/json";
+
+	private final FhirContext fhirContext;
+	private final String bindAddress;
+	private final int port;
+	private final int maxConcurrentRequests;
+	private final long requestQueueTimeoutMillis;
+	private final long maxRequestSize;
+	private final int maxBufferedRequests;
+	private final Output defaultOutput;
+	private final boolean outputPretty;
+
+	private final Semaphore requestPermits;
+	private final Semaphore bodyPermits;
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder rejectedRequests = new LongAdder();
+
+	private volatile BundleValidator validator;
+	private HttpServer server;
+	private ExecutorService executor;
+
+	/**
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param bindAddress
+	 *            not <code>null</code>
+	 * @param port
+	 *            <code>&gt;= 0</code>
+	 * @param maxConcurrentRequests
+	 *            <code>&gt; 0</code>, number of concurrently processed validation requests
+	 * @param requestQueueTimeoutMillis
+	 *            <code>&gt;= 0</code>, time a validation request waits for processing before being rejected with status
+	 *            429
+	 * @param maxRequestSize
+	 *            <code>&gt; 0</code>, max request body size in bytes
+	 * @param maxBufferedRequests
+	 *            <code>&gt;= maxConcurrentRequests</code>, number of request bodies read or held in memory while
+	 *            validating or waiting for processing, memory used by request bodies is limited to
+	 *            <code>maxBufferedRequests * maxRequestSize</code>
+	 * @param defaultOutput
+	 *            not <code>null</code>, used if the request does not specify an accepted FHIR media type
+	 * @param outputPretty
+	 */
+	public ValidationServer(FhirContext fhirContext, String bindAddress, int port, int maxConcurrentRequests,
+			long requestQueueTimeoutMillis, long maxRequestSize, int maxBufferedRequests, Output defaultOutput,
+			boolean outputPretty)
+	{
+		this.fhirContext = fhirContext;
+		this.bindAddress = bindAddress;
+		this.port = port;
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.requestQueueTimeoutMillis = requestQueueTimeoutMillis;
+		this.maxRequestSize = maxRequestSize;
+		this.maxBufferedRequests = maxBufferedRequests;
+		this.defaultOutput = defaultOutput;
+		this.outputPretty = outputPretty;
+
+		requestPermits = new Semaphore(Math.max(1, maxConcurrentRequests), true);
+		bodyPermits = new Semaphore(Math.max(1, maxBufferedRequests), true);
+	}
+
+	@Override
+	public void afterPropertiesSet() throws Exception
+	{
+		Objects.requireNonNull(fhirContext, "fhirContext");
+		Objects.requireNonNull(bindAddress, "bindAddress");
+		Objects.requireNonNull(defaultOutput, "defaultOutput");
+
+		if (port < 0)
+			throw new IllegalArgumentException("port < 0");
+		if (maxConcurrentRequests <= 0)
+			throw new IllegalArgumentException("maxConcurrentRequests <= 0");
+		if (requestQueueTimeoutMillis < 0)
+			throw new IllegalArgumentException("requestQueueTimeoutMillis < 0");
+		if (maxRequestSize <= 0)
+			throw new IllegalArgumentException("maxRequestSize <= 0");
+		if (maxBufferedRequests < maxConcurrentRequests)
+			throw new IllegalArgumentException("maxBufferedRequests < maxConcurrentRequests");
+	}
+
+	public synchronized void start() throws IOException
+	{
+		if (server != null)
+			throw new IllegalStateException("Server already started");
+
+		executor = Executors.newVirtualThreadPerTaskExecutor();
+
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		server.setExecutor(executor);
+		server.createContext("/", this::handle);
+		server.start();
+
+		logger.info("Validation server listening on {}:{}", bindAddress, server.getAddress().getPort());
+	}
+
+	public synchronized void stop()
+	{
+		if (server == null)
+			return;
+
+		logger.info("Stopping validation server");
+
+		server.stop(5);
+		executor.close();
+
+		server = null;
+		executor = null;
+	}
+
+	/**
+	 * Marks the server as ready, validation requests will be answered with status 503 until this method is called.
+	 *
+	 * @param validator
+	 *            not <code>null</code>
+	 */
+	public void setReady(BundleValidator validator)
+	{
+		this.validator = Objects.requireNonNull(validator, "validator");
+
+		logger.info("Validation server ready");
+	}
+
+	public boolean isReady()
+	{
+		return validator != null;
+	}
+
+	private void handle(HttpExchange exchange) throws IOException
+	{
+		try (exchange)
+		{
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getPath();
+
+			if ("GET".equals(method) && LIVE_PATH.equals(path))
+				sendStatus(exchange, 200, "UP");
+			else if ("GET".equals(method) && READY_PATH.equals(path))
+				sendStatus(exchange, isReady() ? 200 : 503, isReady() ? "UP" : "DOWN");
+			else if ("POST".equals(method) && VALIDATE_ENTRIES_PATH.equals(path))
+				handleValidationRequest(exchange, null);
+			else
+			{
+				Matcher matcher = VALIDATE_PATH.matcher(path);
+
+				if ("POST".equals(method) && matcher.matches())
+					handleValidationRequest(exchange, matcher.group(1));
+				else if (VALIDATE_ENTRIES_PATH.equals(path) || matcher.matches() || LIVE_PATH.equals(path)
+						|| READY_PATH.equals(path))
+					sendOutcome(exchange, 405, IssueType.NOTSUPPORTED, "Method " + method + " not allowed");
+				else
+					sendOutcome(exchange, 404, IssueType.NOTFOUND, "Path " + path + " not found");
+			}
+		}
+		catch (Exception e)
+		{
+			logger.error("Error while handling request", e);
+		}
+	}
+
+	/**
+	 * @param exchange
+	 *            not <code>null</code>
+	 * @param resourceType
+	 *            <code>null</code> for bundle entry validation
+	 */
+	private void handleValidationRequest(HttpExchange exchange, String resourceType) throws IOException
+	{
+		requests.increment();
+
+		BundleValidator validator = this.validator;
+		if (validator == null)
+		{
+			sendOutcome(exchange, 503, IssueType.TRANSIENT, "Validator not ready");
+			return;
+		}
+
+		// body permits limit memory used by request bodies, including chunked bodies without Content-Length
+		if (!tryAcquire(bodyPermits))
+		{
+			rejectedRequests.increment();
+			logger.warn("Rejecting validation request, {} request bodies buffered", maxBufferedRequests);
+			sendOutcome(exchange, 429, IssueType.THROTTLED, "Too many buffered validation requests");
+			return;
+		}
+
+		try
+		{
+			// read before acquiring a request permit, slow uploads do not block validation of other requests
+			byte[] body = readBody(exchange);
+			if (body == null)
+				return;
+
+			if (!tryAcquire(requestPermits))
+			{
+				rejectedRequests.increment();
+				logger.warn("Rejecting validation request, {} requests in progress", maxConcurrentRequests);
+				sendOutcome(exchange, 429, IssueType.THROTTLED, "Too many concurrent validation requests");
+				return;
+			}
+
+			try
+			{
+				validate(exchange, resourceType, validator, body);
+			}
+			finally
+			{
+				requestPermits.release();
+			}
+		}
+		finally
+		{
+			bodyPermits.release();
+		}
+	}
+
+	private boolean tryAcquire(Semaphore permits)
+	{
+		try
+		{
+			return permits.tryAcquire(requestQueueTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private void validate(HttpExchange exchange, String resourceType, BundleValidator validator, byte[] body)
+			throws IOException
+	{
+		try
+		{
+			Resource resource = parseResource(exchange, body);
+
+			if (resource == null)
+				return;
+
+			if (resourceType == null && !(resource instanceof Bundle))
+				sendOutcome(exchange, 400, IssueType.INVALID, "Bundle expected");
+			else if (resourceType != null && !resourceType.equals(resource.getResourceType().name()))
+				sendOutcome(exchange, 400, IssueType.INVALID,
+						"Resource of type " + resourceType + " expected, not " + resource.getResourceType().name());
+			else
+			{
+				long t0 = System.currentTimeMillis();
+
+				IBaseResource result = resourceType == null ? validator.validate((Bundle) resource)
+						: validator.validate(resource).toOperationOutcome();
+
+				logger.debug("{} validated in {} ms", resource.getResourceType().name(),
+						System.currentTimeMillis() - t0);
+
+				send(exchange, 200, result);
+			}
+		}
+		catch (PoolExhaustedException e)
+		{
+			rejectedRequests.increment();
+			sendOutcome(exchange, 503, IssueType.TRANSIENT, e.getMessage());
+		}
+		catch (Exception e)
+		{
+			logger.warn("Error while validating: {} - {}", e.getClass().getName(), e.getMessage());
+			sendOutcome(exchange, 500, IssueType.EXCEPTION, "Error while validating");
+		}
+	}
+
+	/**
+	 * @return <code>null</code> if the request body is larger than the max request size, status 413 sent
+	 */
+	private byte[] readBody(HttpExchange exchange) throws IOException
+	{
+		// rejected without reading the body if the announced size is too large
+		if (getContentLength(exchange) > maxRequestSize)
+		{
+			sendOutcome(exchange, 413, IssueType.TOOCOSTLY, "Request body larger than " + maxRequestSize + " bytes");
+			return null;
+		}
+
+		byte[] body;
+		try (InputStream in = exchange.getRequestBody())
+		{
+			body = in.readNBytes((int) Math.min(Integer.MAX_VALUE - 8, maxRequestSize + 1));
+		}
+
+		if (body.length > maxRequestSize)
+		{
+			sendOutcome(exchange, 413, IssueType.TOOCOSTLY, "Request body larger than " + maxRequestSize + " bytes");
+			return null;
+		}
+
+		return body;
+	}
+
+	/**
+	 * @return <code>-1</code> if the request has no valid <code>Content-Length</code> header
+	 */
+	private long getContentLength(HttpExchange exchange)
+	{
+		String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+
+		try
+		{
+			return contentLength == null ? -1 : Long.parseLong(contentLength.trim());
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+
+	private Resource parseResource(HttpExchange exchange, byte[] body) throws IOException
+	{
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		IParser parser = contentType != null && contentType.contains("xml") ? fhirContext.newXmlParser()
+				: fhirContext.newJsonParser();
+
+		try
+		{
+			IBaseResource resource = parser.parseResource(new String(body, StandardCharsets.UTF_8));
+
+			if (resource instanceof Resource r)
+				return r;
+
+			sendOutcome(exchange, 400, IssueType.INVALID, "Unsupported resource");
+			return null;
+		}
+		catch (DataFormatException e)
+		{
+			sendOutcome(exchange, 400, IssueType.STRUCTURE, "Unable to parse resource: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private void sendOutcome(HttpExchange exchange, int status, IssueType type, String message) throws IOException
+	{
+		OperationOutcome outcome = new OperationOutcome();
+		outcome.addIssue().setSeverity(status >= 500 ? IssueSeverity.FATAL : IssueSeverity.ERROR).setCode(type)
+				.setDiagnostics(message);
+
+		send(exchange, status, outcome);
+	}
+
+	private void send(HttpExchange exchange, int status, IBaseResource resource) throws IOException
+	{
+		Output output = getOutput(exchange);
+		IParser parser = Output.XML.equals(output) ? fhirContext.newXmlParser() : fhirContext.newJsonParser();
+
+		byte[] body = parser.setPrettyPrint(outputPretty).encodeResourceToString(resource)
+				.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type",
+				(Output.XML.equals(output) ? MEDIA_TYPE_FHIR_XML : MEDIA_TYPE_FHIR_JSON) + ";charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+
+	private Output getOutput(HttpExchange exchange)
+	{
+		String accept = exchange.getRequestHeaders().getFirst("Accept");
+
+		if (accept == null)
+			return defaultOutput;
+		else if (accept.contains(MEDIA_TYPE_FHIR_XML) || accept.contains("application/xml"))
+			return Output.XML;
+		else if (accept.contains(MEDIA_TYPE_FHIR_JSON) || accept.contains(MEDIA_TYPE_JSON))
+			return Output.JSON;
+		else
+			return defaultOutput;
+	}
+
+	private void sendStatus(HttpExchange exchange, int status, String value) throws IOException
+	{
+		byte[] body = ("{\"status\":\"" + value + "\",\"requests\":" + requests.sum() + ",\"rejectedRequests\":"
+				+ rejectedRequests.sum() + ",\"availableRequestPermits\":" + requestPermits.availablePermits() + "}")
+				.getBytes(StandardCharsets.UTF_8);
+
+		exchange.getResponseHeaders().set("Content-Type", MEDIA_TYPE_JSON + ";charset=UTF-8");
+		exchange.sendResponseHeaders(status, body.length);
+
+		try (OutputStream out = exchange.getResponseBody())
+		{
+			out.write(body);
+		}
+	}
+}
@@ -6,6 +6,9 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -33,10 +36,48 @@ public class BundleValidatorImpl implements BundleValidator
 	private final ResourceValidator delegate;
 	private final Set<String> expectedStructureDefinitionUrls;
 	private final Set<String> expectedStructureDefinitionUrlsWithVersion;
-
+	private final ExecutorService entryValidationExecutor;
+
+	/**
+	 * Bundle entries will be validated sequentially by the calling thread.
+	 *
+	 * @param delegate
+	 *            not <code>null</code>
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param packagesWithDependencies
+	 *            not <code>null</code>
+	 */
 	public BundleValidatorImpl(ResourceValidator delegate, FhirContext fhirContext,
 			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
 	{
+		this(delegate, fhirContext, packagesWithDependencies, null);
+	}
+
+	/**
+	 * @param delegate
+	 *            not <code>null</code>, needs to be a {@link ResourceValidatorPool} if a <b>entryValidationExecutor</b>
+	 *            is given
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param packagesWithDependencies
+	 *            not <code>null</code>
+	 * @param entryValidationExecutor
+	 *            may be <code>null</code>, bundle entries will be validated concurrently using the given executor if
+	 *            not <code>null</code>
+	 * @throws IllegalArgumentException
+	 *             if a <b>entryValidationExecutor</b> is given and the <b>delegate</b> is not a
+	 *             {@link ResourceValidatorPool}
+	 */
+	public BundleValidatorImpl(ResourceValidator delegate, FhirContext fhirContext,
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies,
+			ExecutorService entryValidationExecutor)
+	{
+		// ResourceValidatorImpl is not thread safe
+		if (entryValidationExecutor != null && !(delegate instanceof ResourceValidatorPool))
+			throw new IllegalArgumentException(
+					"delegate not a " + ResourceValidatorPool.class.getSimpleName() + ", entryValidationExecutor given");
+
 		this.fhirContext = Objects.requireNonNull(fhirContext, "fhirContext");
 
 		Set<StructureDefinition> sds = new HashSet<>();
@@ -56,6 +97,7 @@ public class BundleValidatorImpl implements BundleValidator
 				.map(sd -> sd.getUrl() + "|" + sd.getVersion()).collect(Collectors.toSet());
 
 		this.delegate = Objects.requireNonNull(delegate, "delegate");
+		this.entryValidationExecutor = entryValidationExecutor;
 	}
 
 	@Override
@@ -99,10 +141,42 @@ public class BundleValidatorImpl implements BundleValidator
 	{
 		Objects.requireNonNull(bundle, "bundle");
 
-		bundle.getEntry().stream().forEach(this::validateAndSetOutcome);
+		if (entryValidationExecutor == null)
+			bundle.getEntry().stream().forEach(this::validateAndSetOutcome);
+		else
+			validateConcurrentlyAndSetOutcomes(bundle.getEntry());
+
 		return bundle;
 	}
 
+	private void validateConcurrentlyAndSetOutcomes(List<BundleEntryComponent> entries)
+	{
+		List<BundleEntryComponent> entriesWithResource = entries.stream().filter(BundleEntryComponent::hasResource)
+				.toList();
+
+		List<CompletableFuture<OperationOutcome>> outcomes = entriesWithResource.stream()
+				.map(BundleEntryComponent::getResource)
+				.map(r -> CompletableFuture.supplyAsync(() -> (OperationOutcome) validate(r).toOperationOutcome(),
+						entryValidationExecutor))
+				.toList();
+
+		try
+		{
+			// setting outcomes in bundle entry order, from calling thread
+			for (int i = 0; i < entriesWithResource.size(); i++)
+				entriesWithResource.get(i).getResponse().setOutcome(outcomes.get(i).join());
+		}
+		catch (CompletionException e)
+		{
+			outcomes.forEach(f -> f.cancel(false));
+
+			if (e.getCause() instanceof RuntimeException r)
+				throw r;
+			else
+				throw e;
+		}
+	}
+
 	private void validateAndSetOutcome(BundleEntryComponent entry)
 	{
 		if (entry.hasResource())
@@ -0,0 +1,160 @@
+package dev.dsf.fhir.validator.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.validation.ValidationResult;
+
+/**
+ * Thread safe {@link ResourceValidator} handing out one pre-initialized {@link ResourceValidator} per call. All pooled
+ * validators are expected to share the same {@link ca.uhn.fhir.context.support.IValidationSupport}.
+ * <p>
+ * Validating the warm-up resources initializes the per validator state, e.g. worker context, FHIRPath engine and base
+ * resource definitions. Package profiles, snapshots and expansions are fetched from the shared validation support and
+ * cached there, not per pooled validator.
+ */
+public class ResourceValidatorPool implements ResourceValidator
+{
+	private static final Logger logger = LoggerFactory.getLogger(ResourceValidatorPool.class);
+
+	public static class PoolExhaustedException extends RuntimeException
+	{
+		private static final long serialVersionUID = 1L;
+
+		public PoolExhaustedException(String message)
+		{
+			super(message);
+		}
+	}
+
+	public record Statistics(int size, int available, long validations, long waits, long timeouts,
+			long maxWaitTimeMillis)
+	{
+	}
+
+	private final int size;
+	private final long borrowTimeoutMillis;
+	private final BlockingQueue<ResourceValidator> validators;
+
+	private final LongAdder validations = new LongAdder();
+	private final LongAdder waits = new LongAdder();
+	private final LongAdder timeouts = new LongAdder();
+	private final AtomicLong maxWaitTimeMillis = new AtomicLong();
+
+	/**
+	 * @param size
+	 *            <code>&gt; 0</code>
+	 * @param borrowTimeoutMillis
+	 *            <code>&gt;= 0</code>, max time to wait for a free validator
+	 * @param validatorFactory
+	 *            not <code>null</code>, called <b>size</b> times
+	 * @param warmUpResources
+	 *            may be <code>null</code>, will be validated once by every pooled validator before being added to the
+	 *            pool
+	 */
+	public ResourceValidatorPool(int size, long borrowTimeoutMillis,
+			Supplier<? extends ResourceValidator> validatorFactory, Collection<? extends Resource> warmUpResources)
+	{
+		if (size <= 0)
+			throw new IllegalArgumentException("size <= 0");
+		if (borrowTimeoutMillis < 0)
+			throw new IllegalArgumentException("borrowTimeoutMillis < 0");
+		Objects.requireNonNull(validatorFactory, "validatorFactory");
+
+		this.size = size;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.validators = new ArrayBlockingQueue<>(size);
+
+		List<Resource> warmUp = warmUpResources == null ? List.of() : new ArrayList<>(warmUpResources);
+
+		for (int i = 0; i < size; i++)
+		{
+			long t0 = System.currentTimeMillis();
+
+			ResourceValidator validator = validatorFactory.get();
+			warmUp.forEach(r -> validator.validate(r.copy()));
+			validators.add(validator);
+
+			logger.debug("Resource validator {}/{} created and initialized in {} ms", i + 1, size,
+					System.currentTimeMillis() - t0);
+		}
+	}
+
+	@Override
+	public ValidationResult validate(Resource resource)
+	{
+		ResourceValidator validator = borrow();
+
+		try
+		{
+			validations.increment();
+			return validator.validate(resource);
+		}
+		finally
+		{
+			validators.add(validator);
+		}
+	}
+
+	private ResourceValidator borrow()
+	{
+		ResourceValidator validator = validators.poll();
+		if (validator != null)
+			return validator;
+
+		waits.increment();
+		long t0 = System.currentTimeMillis();
+
+		try
+		{
+			validator = validators.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new PoolExhaustedException("Interrupted while waiting for resource validator");
+		}
+
+		long waitTime = System.currentTimeMillis() - t0;
+		maxWaitTimeMillis.accumulateAndGet(waitTime, Math::max);
+
+		if (validator == null)
+		{
+			timeouts.increment();
+			logger.warn("No resource validator available after {} ms, pool size {}", waitTime, size);
+
+			throw new PoolExhaustedException(
+					"No resource validator available after " + waitTime + " ms, pool size " + size);
+		}
+
+		logger.debug("Waited {} ms for resource validator", waitTime);
+		return validator;
+	}
+
+	public Statistics getStatistics()
+	{
+		return new Statistics(size, validators.size(), validations.sum(), waits.sum(), timeouts.sum(),
+				maxWaitTimeMillis.get());
+	}
+
+	public void logStatistics()
+	{
+		Statistics s = getStatistics();
+
+		logger.info("Resource validator pool: {} of {} validators available, {} validations, {} waits (max {} ms), "
+				+ "{} timeouts", s.available(), s.size(), s.validations(), s.waits(), s.maxWaitTimeMillis(),
+				s.timeouts());
+	}
+}
@@ -75,4 +75,12 @@ public interface ValidatorFactory
 	 */
 	BundleValidator createBundleValidator(IValidationSupport validationSupport,
 			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies);
+
+	/**
+	 * Logs statistics of validator pools and validation support caches created by this factory, does nothing by
+	 * default.
+	 */
+	default void logStatistics()
+	{
+	}
 }
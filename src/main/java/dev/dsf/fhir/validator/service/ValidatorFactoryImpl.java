@@ -1,57 +1,329 @@
 package dev.dsf.fhir.validator.service;
 
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
 import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain.CacheConfiguration;
 import org.hl7.fhir.r4.model.Enumerations.BindingStrength;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.MetadataResource;
 import org.hl7.fhir.r4.model.StructureDefinition;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.terminologies.ValueSetExpander.ValueSetExpansionOutcome;
 import org.hl7.fhir.utilities.validation.ValidationMessage.IssueSeverity;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import dev.dsf.fhir.validator.client.TerminologyServerClient;
+import dev.dsf.fhir.validator.image.ValidationImage;
+import dev.dsf.fhir.validator.image.ValidationImage.EntryType;
+import dev.dsf.fhir.validator.image.ValidationImageStore;
+import dev.dsf.fhir.validator.implementation_guide.ConformanceResourcePruner;
+import dev.dsf.fhir.validator.implementation_guide.StructureDefinitionDependencyGraph;
+import dev.dsf.fhir.validator.implementation_guide.ValidationPackage;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageIdentifier;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageWithDepedencies;
 import dev.dsf.fhir.validator.structure_definition.SnapshotGenerator;
 import dev.dsf.fhir.validator.structure_definition.SnapshotGenerator.SnapshotWithValidationMessages;
 import dev.dsf.fhir.validator.support.CodeValidatorForExpandedValueSets;
+import dev.dsf.fhir.validator.support.ExpandedValueSetIndexCache;
 import dev.dsf.fhir.validator.support.NonValidatingValidationSupport;
 import dev.dsf.fhir.validator.support.QuietCommonCodeSystemsTerminologyService;
+import dev.dsf.fhir.validator.support.ValidationSupportWithCache;
 import dev.dsf.fhir.validator.support.ValidationSupportWithCustomResources;
+import dev.dsf.fhir.validator.support.ValidationSupportWithLazySnapshots;
+import dev.dsf.fhir.validator.support.ValidationSupportWithLazyValueSetExpansion;
+import dev.dsf.fhir.validator.support.ValidationSupportWithValidationImage;
 import dev.dsf.fhir.validator.value_set.ValueSetExpander;
 import jakarta.ws.rs.WebApplicationException;
 
-public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
+public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean, DisposableBean
 {
 	private static final Logger logger = LoggerFactory.getLogger(ValidatorFactoryImpl.class);
 
+	public static enum ValueSetExpansionMode
+	{
+		/**
+		 * All ValueSets expanded at startup
+		 */
+		EAGER,
+
+		/**
+		 * ValueSets expanded on first use
+		 */
+		LAZY,
+
+		/**
+		 * ValueSets expanded on first use, expansion of all ValueSets started in background after startup
+		 */
+		LAZY_WITH_PREFETCH
+	}
+
+	public static enum SnapshotGenerationMode
+	{
+		/**
+		 * Snapshots of all StructureDefinitions generated at startup
+		 */
+		EAGER,
+
+		/**
+		 * Snapshots generated on first use, incl. dependencies
+		 */
+		LAZY
+	}
+
 	public static final EnumSet<BindingStrength> DEFAULT_VALUE_SET_BINDING_STRENGTHS = EnumSet
 			.allOf(BindingStrength.class);
 
+	/**
+	 * Optional settings of the {@link ValidatorFactoryImpl}, defaults: sequential bundle entry validation, resource
+	 * parsing, ValueSet expansion and snapshot generation at startup, no validation images, no pruning, default
+	 * validation support cache.
+	 */
+	public static final class Settings
+	{
+		private EnumSet<BindingStrength> valueSetBindingStrengths = DEFAULT_VALUE_SET_BINDING_STRENGTHS;
+		private BiFunction<FhirContext, IValidationSupport, ResourceValidator> resourceValidatorFactory = ResourceValidatorImpl::new;
+		private ExecutorService bundleEntryValidationExecutor;
+		private ValidationImageStore validationImageStore;
+		private ExpandedValueSetIndexCache expandedValueSetIndexCache = new ExpandedValueSetIndexCache();
+		private ExecutorService valueSetExpansionExecutor;
+		private int terminologyServerMaxConcurrentRequests = 1;
+		private ExecutorService snapshotGenerationExecutor;
+		private ExecutorService resourceParsingExecutor;
+		private ConformanceResourcePruner conformanceResourcePruner;
+		private ValueSetExpansionMode valueSetExpansionMode = ValueSetExpansionMode.EAGER;
+		private SnapshotGenerationMode snapshotGenerationMode = SnapshotGenerationMode.EAGER;
+		private long validationSupportCacheMaxBytes = ValidationSupportWithCache.DEFAULT_MAX_BYTES;
+		private Duration validationSupportCacheTimeout = ValidationSupportWithCache.DEFAULT_TIMEOUT;
+
+		private Settings()
+		{
+		}
+
+		public static Settings defaults()
+		{
+			return new Settings();
+		}
+
+		/**
+		 * @param valueSetBindingStrengths
+		 *            not <code>null</code>
+		 * @return this
+		 */
+		public Settings withValueSetBindingStrengths(EnumSet<BindingStrength> valueSetBindingStrengths)
+		{
+			this.valueSetBindingStrengths = valueSetBindingStrengths;
+			return this;
+		}
+
+		/**
+		 * @param resourceValidatorFactory
+		 *            not <code>null</code>, needs to create {@link ResourceValidatorPool}s if a bundle entry validation
+		 *            executor is given
+		 * @return this
+		 */
+		public Settings withResourceValidatorFactory(
+				BiFunction<FhirContext, IValidationSupport, ResourceValidator> resourceValidatorFactory)
+		{
+			this.resourceValidatorFactory = resourceValidatorFactory;
+			return this;
+		}
+
+		/**
+		 * @param bundleEntryValidationExecutor
+		 *            may be <code>null</code>, bundle entries will be validated sequentially if <code>null</code>
+		 * @return this
+		 */
+		public Settings withBundleEntryValidationExecutor(ExecutorService bundleEntryValidationExecutor)
+		{
+			this.bundleEntryValidationExecutor = bundleEntryValidationExecutor;
+			return this;
+		}
+
+		/**
+		 * @param validationImageStore
+		 *            may be <code>null</code>, validation images will not be used if <code>null</code>
+		 * @return this
+		 */
+		public Settings withValidationImageStore(ValidationImageStore validationImageStore)
+		{
+			this.validationImageStore = validationImageStore;
+			return this;
+		}
+
+		/**
+		 * @param expandedValueSetIndexCache
+		 *            not <code>null</code>
+		 * @return this
+		 */
+		public Settings withExpandedValueSetIndexCache(ExpandedValueSetIndexCache expandedValueSetIndexCache)
+		{
+			this.expandedValueSetIndexCache = expandedValueSetIndexCache;
+			return this;
+		}
+
+		/**
+		 * @param valueSetExpansionExecutor
+		 *            may be <code>null</code>, internal ValueSet expansions will run sequentially on the calling thread
+		 *            if <code>null</code>
+		 * @param terminologyServerMaxConcurrentRequests
+		 *            maximum number of concurrent expansion requests to the terminology server, external ValueSet
+		 *            expansions will run one at a time if &lt;= 1
+		 * @return this
+		 */
+		public Settings withValueSetExpansion(ExecutorService valueSetExpansionExecutor,
+				int terminologyServerMaxConcurrentRequests)
+		{
+			this.valueSetExpansionExecutor = valueSetExpansionExecutor;
+			this.terminologyServerMaxConcurrentRequests = terminologyServerMaxConcurrentRequests;
+			return this;
+		}
+
+		/**
+		 * @param snapshotGenerationExecutor
+		 *            may be <code>null</code>, snapshots will be generated sequentially on the calling thread if
+		 *            <code>null</code>
+		 * @return this
+		 */
+		public Settings withSnapshotGenerationExecutor(ExecutorService snapshotGenerationExecutor)
+		{
+			this.snapshotGenerationExecutor = snapshotGenerationExecutor;
+			return this;
+		}
+
+		/**
+		 * @param resourceParsingExecutor
+		 *            may be <code>null</code>, package resources will be parsed sequentially on the calling thread if
+		 *            <code>null</code>
+		 * @return this
+		 */
+		public Settings withResourceParsingExecutor(ExecutorService resourceParsingExecutor)
+		{
+			this.resourceParsingExecutor = resourceParsingExecutor;
+			return this;
+		}
+
+		/**
+		 * @param conformanceResourcePruner
+		 *            may be <code>null</code>, all package resources will be used if <code>null</code>
+		 * @return this
+		 */
+		public Settings withConformanceResourcePruner(ConformanceResourcePruner conformanceResourcePruner)
+		{
+			this.conformanceResourcePruner = conformanceResourcePruner;
+			return this;
+		}
+
+		/**
+		 * @param valueSetExpansionMode
+		 *            not <code>null</code>, validation images are not written if not {@link ValueSetExpansionMode#EAGER}
+		 * @return this
+		 */
+		public Settings withValueSetExpansionMode(ValueSetExpansionMode valueSetExpansionMode)
+		{
+			this.valueSetExpansionMode = valueSetExpansionMode;
+			return this;
+		}
+
+		/**
+		 * @param snapshotGenerationMode
+		 *            not <code>null</code>, validation images are not written if not {@link SnapshotGenerationMode#EAGER}
+		 * @return this
+		 */
+		public Settings withSnapshotGenerationMode(SnapshotGenerationMode snapshotGenerationMode)
+		{
+			this.snapshotGenerationMode = snapshotGenerationMode;
+			return this;
+		}
+
+		/**
+		 * @param validationSupportCacheMaxBytes
+		 *            maximum size of the cache around the returned validation support, the validation support is not
+		 *            cached if &lt;= 0
+		 * @param validationSupportCacheTimeout
+		 *            may be <code>null</code>, time entries of the validation support cache expire after being cached,
+		 *            no expiration if <code>null</code> or zero
+		 * @return this
+		 */
+		public Settings withValidationSupportCache(long validationSupportCacheMaxBytes,
+				Duration validationSupportCacheTimeout)
+		{
+			this.validationSupportCacheMaxBytes = validationSupportCacheMaxBytes;
+			this.validationSupportCacheTimeout = validationSupportCacheTimeout;
+			return this;
+		}
+	}
+
+	private static final int LOGGED_FIRST_USES = 10;
+
 	private final FhirContext fhirContext;
 	private final BiFunction<FhirContext, IValidationSupport, SnapshotGenerator> internalSnapshotGeneratorFactory;
 	private final BiFunction<FhirContext, IValidationSupport, ValueSetExpander> internalValueSetExpanderFactory;
 	private final TerminologyServerClient terminologyServerClient;
 	private final EnumSet<BindingStrength> valueSetBindingStrengths;
+	private final BiFunction<FhirContext, IValidationSupport, ResourceValidator> resourceValidatorFactory;
+	private final ExecutorService bundleEntryValidationExecutor;
+	private final ValidationImageStore validationImageStore;
+	private final ExpandedValueSetIndexCache expandedValueSetIndexCache;
+	private final ExecutorService valueSetExpansionExecutor;
+	private final int terminologyServerMaxConcurrentRequests;
+	private final ExecutorService snapshotGenerationExecutor;
+	private final ExecutorService resourceParsingExecutor;
+	private final ConformanceResourcePruner conformanceResourcePruner;
+	private final ValueSetExpansionMode valueSetExpansionMode;
+	private final SnapshotGenerationMode snapshotGenerationMode;
+	private final long validationSupportCacheMaxBytes;
+	private final Duration validationSupportCacheTimeout;
+
+	// statistics logged on destroy, not preventing garbage collection of unused validation supports and validators
+	private final Set<ValidationSupportWithCache> cachedValidationSupports = Collections
+			.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+	private final Set<ResourceValidatorPool> resourceValidatorPools = Collections
+			.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+	private final Set<ValidationSupportWithLazyValueSetExpansion> lazyValueSetExpansionSupports = Collections
+			.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+	private final Set<ValidationSupportWithLazySnapshots> lazySnapshotSupports = Collections
+			.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+
+	// used by lazy ValueSet expansion supports, closed on destroy
+	private final List<ValueSetExpansions> lazyValueSetExpansions = Collections.synchronizedList(new ArrayList<>());
 
 	/**
 	 * @param fhirContext
@@ -89,11 +361,48 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 			BiFunction<FhirContext, IValidationSupport, ValueSetExpander> internalValueSetExpanderFactory,
 			TerminologyServerClient terminologyServerClient, EnumSet<BindingStrength> valueSetBindingStrengths)
 	{
+		this(fhirContext, internalSnapshotGeneratorFactory, internalValueSetExpanderFactory, terminologyServerClient,
+				Settings.defaults().withValueSetBindingStrengths(valueSetBindingStrengths));
+	}
+
+	/**
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param internalSnapshotGeneratorFactory
+	 *            not <code>null</code>
+	 * @param internalValueSetExpanderFactory
+	 *            not <code>null</code>
+	 * @param terminologyServerClient
+	 *            not <code>null</code>
+	 * @param settings
+	 *            not <code>null</code>
+	 * @see Settings#defaults()
+	 */
+	public ValidatorFactoryImpl(FhirContext fhirContext,
+			BiFunction<FhirContext, IValidationSupport, SnapshotGenerator> internalSnapshotGeneratorFactory,
+			BiFunction<FhirContext, IValidationSupport, ValueSetExpander> internalValueSetExpanderFactory,
+			TerminologyServerClient terminologyServerClient, Settings settings)
+	{
+		Objects.requireNonNull(settings, "settings");
+
 		this.fhirContext = fhirContext;
 		this.internalSnapshotGeneratorFactory = internalSnapshotGeneratorFactory;
 		this.internalValueSetExpanderFactory = internalValueSetExpanderFactory;
 		this.terminologyServerClient = terminologyServerClient;
-		this.valueSetBindingStrengths = valueSetBindingStrengths;
+		this.valueSetBindingStrengths = settings.valueSetBindingStrengths;
+		this.resourceValidatorFactory = settings.resourceValidatorFactory;
+		this.bundleEntryValidationExecutor = settings.bundleEntryValidationExecutor;
+		this.validationImageStore = settings.validationImageStore;
+		this.expandedValueSetIndexCache = settings.expandedValueSetIndexCache;
+		this.valueSetExpansionExecutor = settings.valueSetExpansionExecutor;
+		this.terminologyServerMaxConcurrentRequests = settings.terminologyServerMaxConcurrentRequests;
+		this.snapshotGenerationExecutor = settings.snapshotGenerationExecutor;
+		this.resourceParsingExecutor = settings.resourceParsingExecutor;
+		this.conformanceResourcePruner = settings.conformanceResourcePruner;
+		this.valueSetExpansionMode = settings.valueSetExpansionMode;
+		this.snapshotGenerationMode = settings.snapshotGenerationMode;
+		this.validationSupportCacheMaxBytes = settings.validationSupportCacheMaxBytes;
+		this.validationSupportCacheTimeout = settings.validationSupportCacheTimeout;
 	}
 
 	@Override
@@ -104,6 +413,61 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 		Objects.requireNonNull(internalValueSetExpanderFactory, "internalValueSetExpanderFactory");
 		Objects.requireNonNull(terminologyServerClient, "terminologyServerClient");
 		Objects.requireNonNull(valueSetBindingStrengths, "valueSetBindingStrengths");
+		Objects.requireNonNull(resourceValidatorFactory, "resourceValidatorFactory");
+		Objects.requireNonNull(expandedValueSetIndexCache, "expandedValueSetIndexCache");
+		Objects.requireNonNull(valueSetExpansionMode, "valueSetExpansionMode");
+		Objects.requireNonNull(snapshotGenerationMode, "snapshotGenerationMode");
+	}
+
+	@Override
+	public void destroy() throws Exception
+	{
+		List<ValueSetExpansions> expansions;
+		synchronized (lazyValueSetExpansions)
+		{
+			expansions = new ArrayList<>(lazyValueSetExpansions);
+			lazyValueSetExpansions.clear();
+		}
+
+		expansions.forEach(ValueSetExpansions::close);
+
+		logStatistics();
+	}
+
+	@Override
+	public void logStatistics()
+	{
+		List<ValidationSupportWithLazyValueSetExpansion> lazySupports;
+		synchronized (lazyValueSetExpansionSupports)
+		{
+			lazySupports = new ArrayList<>(lazyValueSetExpansionSupports);
+		}
+
+		lazySupports.forEach(ValidationSupportWithLazyValueSetExpansion::logStatistics);
+
+		List<ValidationSupportWithLazySnapshots> snapshotSupports;
+		synchronized (lazySnapshotSupports)
+		{
+			snapshotSupports = new ArrayList<>(lazySnapshotSupports);
+		}
+
+		snapshotSupports.forEach(s -> s.logStatistics(LOGGED_FIRST_USES));
+
+		List<ResourceValidatorPool> pools;
+		synchronized (resourceValidatorPools)
+		{
+			pools = new ArrayList<>(resourceValidatorPools);
+		}
+
+		pools.forEach(ResourceValidatorPool::logStatistics);
+
+		List<ValidationSupportWithCache> supports;
+		synchronized (cachedValidationSupports)
+		{
+			supports = new ArrayList<>(cachedValidationSupports);
+		}
+
+		supports.forEach(ValidationSupportWithCache::logStatistics);
 	}
 
 	@Override
@@ -113,9 +477,8 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 		Objects.requireNonNull(validationSupport, "validationSupport");
 		Objects.requireNonNull(packageWithDependencies, "packageWithDependencies");
 
-		BundleValidatorImpl validator = new BundleValidatorImpl(
-				new ResourceValidatorImpl(fhirContext, validationSupport), fhirContext,
-				Collections.singletonList(packageWithDependencies));
+		BundleValidatorImpl validator = new BundleValidatorImpl(createResourceValidator(validationSupport),
+				fhirContext, Collections.singletonList(packageWithDependencies), bundleEntryValidationExecutor);
 
 		return validator;
 	}
@@ -126,8 +489,18 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 	{
 		Objects.requireNonNull(validationSupport, "validationSupport");
 
-		BundleValidatorImpl validator = new BundleValidatorImpl(
-				new ResourceValidatorImpl(fhirContext, validationSupport), fhirContext, packagesWithDependencies);
+		BundleValidatorImpl validator = new BundleValidatorImpl(createResourceValidator(validationSupport),
+				fhirContext, packagesWithDependencies, bundleEntryValidationExecutor);
+
+		return validator;
+	}
+
+	private ResourceValidator createResourceValidator(IValidationSupport validationSupport)
+	{
+		ResourceValidator validator = resourceValidatorFactory.apply(fhirContext, validationSupport);
+
+		if (validator instanceof ResourceValidatorPool pool)
+			resourceValidatorPools.add(pool);
 
 		return validator;
 	}
@@ -136,76 +509,344 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 	public IValidationSupport expandValueSetsAndGenerateStructureDefinitionSnapshots(
 			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
 	{
+		IValidationSupport supportChain = createRootSupport(packagesWithDependencies);
+
+		if (validationSupportCacheMaxBytes <= 0)
+			return supportChain;
+
+		ValidationSupportWithCache cached = new ValidationSupportWithCache(supportChain,
+				validationSupportCacheMaxBytes, validationSupportCacheTimeout);
+		cachedValidationSupports.add(cached);
+
+		logger.debug("Caching validation support with max {} KiB{}", validationSupportCacheMaxBytes / 1024,
+				validationSupportCacheTimeout != null && validationSupportCacheTimeout.toMillis() > 0
+						? ", entries expire after " + validationSupportCacheTimeout.toMillis() + " ms"
+						: "");
+
+		return cached;
+	}
+
+	private IValidationSupport createRootSupport(
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	{
+		if (validationImageStore != null)
+		{
+			Optional<ValidationImage> image = validationImageStore.read(packagesWithDependencies);
+
+			if (image.isPresent())
+			{
+				// package resources needed to create bundle validator
+				parseResources(packagesWithDependencies);
+
+				// deserializes all ValueSets of the image, may remove expansion.contains elements
+				expandedValueSetIndexCache.index(image.get().getAll(EntryType.VALUE_SET));
+
+				return createSupportChain(fhirContext, rootSupportChainCacheConfiguration(),
+						new ValidationSupportWithValidationImage(fhirContext, image.get()));
+			}
+		}
+
+		parseResources(packagesWithDependencies);
+
+		if (!ValueSetExpansionMode.EAGER.equals(valueSetExpansionMode))
+			return withLazyExpandedValueSets(packagesWithDependencies);
+
+		// failed expansions and snapshot generations are retried on next start, not persisted in a validation image
+		AtomicInteger failed = new AtomicInteger();
+
 		List<ValueSet> expandedValueSets = new ArrayList<>();
+		try (ValueSetExpansions expansions = new ValueSetExpansions())
+		{
+			for (ValidationPackageWithDepedencies packageWithDependencies : packagesWithDependencies)
+			{
+				expandedValueSets.addAll(withExpandedValueSets(expansions, packageWithDependencies, failed));
+			}
+		}
+
+		ValidationSupportWithCustomResources snapshotsAndExpandedValueSets = new ValidationSupportWithCustomResources(
+				fhirContext, null, null, expandedValueSets);
+
+		IValidationSupport supportChain;
+		if (SnapshotGenerationMode.LAZY.equals(snapshotGenerationMode))
+		{
+			supportChain = withLazySnapshots(packagesWithDependencies, snapshotsAndExpandedValueSets);
+
+			if (validationImageStore != null)
+				logger.info("Not writing validation image, snapshots are generated on first use");
+		}
+		else
+		{
+			supportChain = withSnapshots(snapshotsAndExpandedValueSets, packagesWithDependencies, failed);
+
+			if (validationImageStore != null && failed.get() > 0)
+				logger.warn("Not writing validation image, {} ValueSet expansion{} or snapshot generation{} failed",
+						failed.get(), failed.get() == 1 ? "" : "s", failed.get() == 1 ? "" : "s");
+			else if (validationImageStore != null)
+				validationImageStore.write(packagesWithDependencies,
+						getImageResources(snapshotsAndExpandedValueSets, packagesWithDependencies));
+		}
+
+		// may remove expansion.contains elements, needs to run after writing the validation image
+		expandedValueSetIndexCache.index(expandedValueSets);
+
+		return supportChain;
+	}
+
+	private void parseResources(Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	{
+		// dependencies may be shared by multiple packages
+		List<ValidationPackage> packages = packagesWithDependencies.stream()
+				.flatMap(p -> Stream.concat(Stream.of(p), p.getDependencies().stream())).toList();
+
+		long start = System.currentTimeMillis();
+		ValidationPackage.parseResources(packages, fhirContext, resourceParsingExecutor);
+		logger.debug("Package resources parsed in {} ms", System.currentTimeMillis() - start);
+
+		if (conformanceResourcePruner != null)
+			conformanceResourcePruner.prune(packagesWithDependencies);
+	}
+
+	private List<MetadataResource> getImageResources(ValidationSupportWithCustomResources snapshotsAndExpandedValueSets,
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	{
+		// snapshots and expanded ValueSets last, image entries override earlier entries with the same url
+		Set<MetadataResource> resources = Collections.newSetFromMap(new IdentityHashMap<>());
+		List<MetadataResource> ordered = new ArrayList<>();
+
+		Stream.of(getAll(ValidationPackageWithDepedencies::getAllStructureDefinitions, packagesWithDependencies),
+				getAll(ValidationPackageWithDepedencies::getAllCodeSystems, packagesWithDependencies),
+				getAll(ValidationPackageWithDepedencies::getAllValueSets, packagesWithDependencies),
+				snapshotsAndExpandedValueSets.fetchAllConformanceResources()).flatMap(List::stream)
+				.map(r -> (MetadataResource) r).filter(resources::add).forEach(ordered::add);
+
+		return ordered;
+	}
+
+	private IValidationSupport withLazyExpandedValueSets(
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	{
+		// used by the returned support chain, closed on destroy
+		ValueSetExpansions expansions = new ValueSetExpansions();
+		lazyValueSetExpansions.add(expansions);
+
+		List<ValueSet> valueSets = new ArrayList<>();
+		Map<ValueSet, Function<ValueSet, CompletableFuture<Optional<ValueSet>>>> byValueSet = new IdentityHashMap<>();
 		for (ValidationPackageWithDepedencies packageWithDependencies : packagesWithDependencies)
 		{
-			packageWithDependencies.parseResources(fhirContext);
-			expandedValueSets.addAll(withExpandedValueSets(packageWithDependencies));
+			Function<ValueSet, CompletableFuture<Optional<ValueSet>>> expansion = expansions
+					.forPackage(packageWithDependencies);
+
+			packageWithDependencies.getValueSetsIncludingDependencies(valueSetBindingStrengths, fhirContext)
+					.forEach(v ->
+					{
+						byValueSet.putIfAbsent(v, expansion);
+						valueSets.add(v);
+					});
 		}
 
-		return withSnapshots(expandedValueSets, packagesWithDependencies);
+		ValidationSupportWithLazyValueSetExpansion lazy = new ValidationSupportWithLazyValueSetExpansion(fhirContext,
+				valueSets, v -> byValueSet.get(v).apply(v));
+		lazyValueSetExpansionSupports.add(lazy);
+
+		if (validationImageStore != null)
+			logger.info("Not writing validation image, ValueSets are expanded on first use");
+
+		logger.info("{} ValueSets will be expanded on first use{}", valueSets.size(),
+				ValueSetExpansionMode.LAZY_WITH_PREFETCH.equals(valueSetExpansionMode) ? ", prefetching in background"
+						: "");
+
+		if (ValueSetExpansionMode.LAZY_WITH_PREFETCH.equals(valueSetExpansionMode))
+			expansions.prefetch(lazy);
+
+		if (SnapshotGenerationMode.LAZY.equals(snapshotGenerationMode))
+			return withLazySnapshots(packagesWithDependencies, lazy);
+
+		ValidationSupportWithCustomResources snapshots = new ValidationSupportWithCustomResources(fhirContext);
+
+		// snapshot generation without ValueSet expansions
+		withSnapshots(snapshots, packagesWithDependencies, new AtomicInteger());
+
+		return createSupportChain(fhirContext, rootSupportChainCacheConfiguration(), packagesWithDependencies, lazy,
+				snapshots);
 	}
 
-	private List<ValueSet> withExpandedValueSets(ValidationPackageWithDepedencies packageWithDependencies)
+	private List<ValueSet> withExpandedValueSets(ValueSetExpansions expansions,
+			ValidationPackageWithDepedencies packageWithDependencies, AtomicInteger failed)
 	{
-		List<ValueSet> expandedValueSets = new ArrayList<>();
-		ValueSetExpander expander = internalValueSetExpanderFactory.apply(fhirContext,
-				createSupportChain(fhirContext, new ValidationSupportWithCustomResources(fhirContext, null, null, null),
-						Collections.singletonList(packageWithDependencies)));
+		Function<ValueSet, CompletableFuture<Optional<ValueSet>>> expansion = expansions
+				.forPackage(packageWithDependencies);
 
-		packageWithDependencies.getValueSetsIncludingDependencies(valueSetBindingStrengths, fhirContext).forEach(v ->
+		List<CompletableFuture<Optional<ValueSet>>> expanded = packageWithDependencies
+				.getValueSetsIncludingDependencies(valueSetBindingStrengths, fhirContext).stream().map(expansion)
+				.toList();
+
+		// keeping ValueSet order independent of completion order
+		List<ValueSet> valueSets = new ArrayList<>();
+		for (CompletableFuture<Optional<ValueSet>> e : expanded)
 		{
-			logger.debug("Expanding ValueSet {}|{} from package (incl. dependencies) {}", v.getUrl(), v.getVersion(),
-					packageWithDependencies.getIdentifier().toString());
+			e.join().ifPresentOrElse(valueSets::add, failed::incrementAndGet);
+		}
 
-			// ValueSet uses filter or import in compose
-			if (v.hasCompose() && ((v.getCompose().hasInclude()
-					&& (v.getCompose().getInclude().stream().anyMatch(c -> c.hasFilter() || c.hasValueSet())))
-					|| (v.getCompose().hasExclude()
-							&& v.getCompose().getExclude().stream().anyMatch(c -> c.hasFilter() || c.hasValueSet()))))
-			{
-				expandExternal(expandedValueSets, v, packageWithDependencies.getIdentifier());
-			}
+		return valueSets;
+	}
+
+	/**
+	 * Internal ValueSet expansion with fallback to the terminology server, terminology server requests are limited
+	 * across all packages.
+	 */
+	private final class ValueSetExpansions implements AutoCloseable
+	{
+		private final Executor internalExecutor = valueSetExpansionExecutor != null ? valueSetExpansionExecutor
+				: Runnable::run;
+		// blocking terminology server requests do not block internal expansion threads, limited by the semaphore
+		private final ExecutorService externalExecutor = Executors.newVirtualThreadPerTaskExecutor();
+		private final Semaphore terminologyServerRequests = new Semaphore(
+				Math.max(1, terminologyServerMaxConcurrentRequests));
+
+		// only used if no internal expansion executor configured
+		private ExecutorService prefetchExecutor;
+
+		/**
+		 * Starts prefetching on the internal expansion executor, or on a separate thread if not configured, internal
+		 * expansions would otherwise run on the calling thread.
+		 */
+		synchronized void prefetch(ValidationSupportWithLazyValueSetExpansion lazy)
+		{
+			if (valueSetExpansionExecutor != null)
+				valueSetExpansionExecutor.execute(lazy::prefetch);
 			else
 			{
-				// will try external expansion if internal not successful
-				expandInternal(expandedValueSets, expander, v, packageWithDependencies.getIdentifier());
+				if (prefetchExecutor == null)
+					prefetchExecutor = Executors.newSingleThreadExecutor(r ->
+					{
+						Thread thread = new Thread(r, "valueset-prefetch");
+						thread.setDaemon(true);
+						return thread;
+					});
+
+				prefetchExecutor.execute(lazy::prefetch);
 			}
-		});
+		}
+
+		Function<ValueSet, CompletableFuture<Optional<ValueSet>>> forPackage(
+				ValidationPackageWithDepedencies packageWithDependencies)
+		{
+			ValidationSupportChain supportChain = createSupportChain(fhirContext, CacheConfiguration.defaultValues(),
+					Collections.singletonList(packageWithDependencies),
+					new ValidationSupportWithCustomResources(fhirContext));
+			ValidationPackageIdentifier identifier = packageWithDependencies.getIdentifier();
+
+			// expanders are not guaranteed to be thread safe, each expander used by one expansion at a time
+			Queue<ValueSetExpander> expanders = new ConcurrentLinkedQueue<>();
+			Function<ValueSet, InternalExpansion> internal = v ->
+			{
+				ValueSetExpander expander = expanders.poll();
+				if (expander == null)
+					expander = internalValueSetExpanderFactory.apply(fhirContext, supportChain);
+
+				try
+				{
+					return expandInternal(expander, v, identifier);
+				}
+				finally
+				{
+					expanders.add(expander);
+				}
+			};
+
+			return v ->
+			{
+				logger.debug("Expanding ValueSet {}|{} from package (incl. dependencies) {}", v.getUrl(),
+						v.getVersion(), identifier.toString());
+
+				Supplier<Optional<ValueSet>> external = () -> expandExternal(terminologyServerRequests, v, identifier);
 
-		return expandedValueSets;
+				if (usesFilterOrImport(v))
+				{
+					return CompletableFuture.supplyAsync(external, externalExecutor);
+				}
+				else
+				{
+					// will try external expansion if internal not successful
+					return CompletableFuture.supplyAsync(() -> internal.apply(v), internalExecutor)
+							.thenCompose(r -> r.tryExternal() ? CompletableFuture.supplyAsync(external, externalExecutor)
+									: CompletableFuture.completedFuture(r.expansion()));
+				}
+			};
+		}
+
+		/**
+		 * Interrupts running prefetch and external expansions, eager expansions are completed before closing.
+		 */
+		@Override
+		public synchronized void close()
+		{
+			if (prefetchExecutor != null)
+				prefetchExecutor.shutdownNow();
+
+			externalExecutor.shutdownNow();
+		}
+	}
+
+	private static boolean usesFilterOrImport(ValueSet v)
+	{
+		return v.hasCompose() && ((v.getCompose().hasInclude()
+				&& (v.getCompose().getInclude().stream().anyMatch(c -> c.hasFilter() || c.hasValueSet())))
+				|| (v.getCompose().hasExclude()
+						&& v.getCompose().getExclude().stream().anyMatch(c -> c.hasFilter() || c.hasValueSet())));
 	}
 
-	private void expandExternal(List<ValueSet> expandedValueSets, ValueSet v,
+	private Optional<ValueSet> expandExternal(Semaphore terminologyServerRequests, ValueSet v,
 			ValidationPackageIdentifier validationPackageIdentifier)
 	{
 		try
 		{
-			ValueSet expansion = terminologyServerClient.expand(v);
-			expandedValueSets.add(expansion);
+			terminologyServerRequests.acquire();
+			try
+			{
+				return Optional.of(terminologyServerClient.expand(v));
+			}
+			finally
+			{
+				terminologyServerRequests.release();
+			}
 		}
-		catch (WebApplicationException e)
+		catch (InterruptedException e)
 		{
-			logger.warn(
-					"Unable to expand ValueSet {}|{} from package (incl. dependencies) {} externally, this may result in incomplete validation: {} - {}",
-					v.getUrl(), v.getVersion(), validationPackageIdentifier.toString(), e.getClass().getName(),
-					e.getMessage());
-			getOutcome(e).ifPresent(m -> logger.debug("Expansion error response: {}", m));
-			logger.debug("ValueSet with error while expanding: {}",
-					fhirContext.newJsonParser().encodeResourceToString(v));
+			Thread.currentThread().interrupt();
+
+			// interrupted on destroy
+			logger.debug("External expansion of ValueSet {}|{} from package (incl. dependencies) {} interrupted",
+					v.getUrl(), v.getVersion(), validationPackageIdentifier.toString());
 		}
 		catch (Exception e)
 		{
-			logger.warn(
-					"Unable to expand ValueSet {}|{} from package (incl. dependencies) {} externally, this may result in incomplete validation: {} - {}",
-					v.getUrl(), v.getVersion(), validationPackageIdentifier.toString(), e.getClass().getName(),
-					e.getMessage());
+			logExternalExpansionError(v, validationPackageIdentifier, e);
+
+			if (e instanceof WebApplicationException w)
+				getOutcome(w).ifPresent(m -> logger.debug("Expansion error response: {}", m));
+
 			logger.debug("ValueSet with error while expanding: {}",
 					fhirContext.newJsonParser().encodeResourceToString(v));
 		}
+
+		return Optional.empty();
+	}
+
+	private void logExternalExpansionError(ValueSet v, ValidationPackageIdentifier validationPackageIdentifier,
+			Exception e)
+	{
+		logger.warn(
+				"Unable to expand ValueSet {}|{} from package (incl. dependencies) {} externally, this may result in incomplete validation: {} - {}",
+				v.getUrl(), v.getVersion(), validationPackageIdentifier.toString(), e.getClass().getName(),
+				e.getMessage());
+	}
+
+	private static record InternalExpansion(Optional<ValueSet> expansion, boolean tryExternal)
+	{
 	}
 
-	private void expandInternal(List<ValueSet> expandedValueSets, ValueSetExpander expander, ValueSet v,
+	private InternalExpansion expandInternal(ValueSetExpander expander, ValueSet v,
 			ValidationPackageIdentifier validationPackageIdentifier)
 	{
 		try
@@ -213,10 +854,13 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 			ValueSetExpansionOutcome expansion = expander.expand(v);
 
 			if (expansion.getError() != null)
+			{
 				logger.warn("Unable to expand ValueSet {}|{} from package (incl. dependencies) {} internally: {}",
 						v.getUrl(), v.getVersion(), validationPackageIdentifier.toString(), expansion.getError());
+				return new InternalExpansion(Optional.empty(), false);
+			}
 			else
-				expandedValueSets.add(expansion.getValueset());
+				return new InternalExpansion(Optional.of(expansion.getValueset()), false);
 		}
 		catch (Exception e)
 		{
@@ -225,7 +869,7 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 					v.getUrl(), v.getVersion(), validationPackageIdentifier.toString(), e.getClass().getName(),
 					e.getMessage());
 
-			expandExternal(expandedValueSets, v, validationPackageIdentifier);
+			return new InternalExpansion(Optional.empty(), true);
 		}
 	}
 
@@ -240,43 +884,132 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 			return Optional.empty();
 	}
 
-	private IValidationSupport withSnapshots(List<ValueSet> expandedValueSets,
-			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	private IValidationSupport withSnapshots(ValidationSupportWithCustomResources snapshotsAndExpandedValueSets,
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies, AtomicInteger failed)
 	{
 		Map<String, StructureDefinition> snapshots = new HashMap<>();
 
-		ValidationSupportWithCustomResources snapshotsAndExpandedValueSets = new ValidationSupportWithCustomResources(
-				fhirContext, null, null, expandedValueSets);
-		ValidationSupportChain supportChain = createSupportChain(fhirContext, snapshotsAndExpandedValueSets,
-				packagesWithDependencies);
+		// also returned as root support, chain cache needed while generating snapshots
+		ValidationSupportChain supportChain = createSupportChain(fhirContext, CacheConfiguration.defaultValues(),
+				packagesWithDependencies, snapshotsAndExpandedValueSets);
 
-		SnapshotGenerator generator = internalSnapshotGeneratorFactory.apply(fhirContext, supportChain);
+		// ProfileUtilities and worker contexts are not thread safe, each generator used by one generation at a time
+		Queue<SnapshotGenerator> generators = new ConcurrentLinkedQueue<>();
+		BiFunction<StructureDefinition, ValidationPackageIdentifier, Optional<StructureDefinition>> generate = (sd,
+				identifier) ->
+		{
+			SnapshotGenerator generator = generators.poll();
+			if (generator == null)
+				generator = internalSnapshotGeneratorFactory.apply(fhirContext, supportChain);
+
+			try
+			{
+				return createSnapshot(generator, sd, identifier);
+			}
+			finally
+			{
+				generators.add(generator);
+			}
+		};
 
 		for (ValidationPackageWithDepedencies packageWithDependencies : packagesWithDependencies)
 		{
-			packageWithDependencies.getValidationSupportResources().getStructureDefinitions().stream()
-					.filter(s -> s.hasDifferential() && !s.hasSnapshot())
-					.forEach(diff -> createSnapshot(packageWithDependencies, snapshotsAndExpandedValueSets, snapshots,
-							generator, diff, packageWithDependencies.getIdentifier()));
+			List<StructureDefinition> diffs = packageWithDependencies.getValidationSupportResources()
+					.getStructureDefinitions().stream().filter(s -> s.hasDifferential() && !s.hasSnapshot())
+					.toList();
+
+			diffs.forEach(diff -> logDependencies(packageWithDependencies, diff));
+
+			List<SnapshotWave> waves = createSnapshotWaves(packageWithDependencies, diffs, snapshots);
+			for (int i = 0; i < waves.size(); i++)
+			{
+				SnapshotWave wave = waves.get(i);
+
+				logger.debug(
+						"Generating snapshots for {} StructureDefinitions from package (incl. dependencies) {}, wave {}/{}{}",
+						wave.structureDefinitions().size(), packageWithDependencies.getIdentifier().toString(), i + 1,
+						waves.size(), wave.cyclic() ? " with cyclic dependencies" : "");
+
+				// wave with cyclic dependencies runs sequentially in dependency first order
+				boolean parallel = snapshotGenerationExecutor != null && !wave.cyclic();
+
+				List<CompletableFuture<Optional<StructureDefinition>>> results = wave.structureDefinitions().stream()
+						.map(sd ->
+						{
+							// registered immediately, snapshots may be used within a sequentially generated wave
+							Supplier<Optional<StructureDefinition>> createAndRegister = () -> generate
+									.apply(sd, packageWithDependencies.getIdentifier()).map(snapshot ->
+									{
+										snapshotsAndExpandedValueSets.addOrReplace(snapshot);
+										return snapshot;
+									});
+
+							return parallel
+									? CompletableFuture.supplyAsync(createAndRegister, snapshotGenerationExecutor)
+									: CompletableFuture.completedFuture(createAndRegister.get());
+						}).toList();
+
+				results.stream().map(CompletableFuture::join).forEach(result -> result.ifPresentOrElse(
+						snapshot -> snapshots.put(snapshot.getUrl() + "|" + snapshot.getVersion(), snapshot),
+						failed::incrementAndGet));
+			}
 		}
 
 		return supportChain;
 	}
 
-	private void createSnapshot(ValidationPackageWithDepedencies packageWithDependencies,
-			ValidationSupportWithCustomResources snapshotsAndExpandedValueSets,
-			Map<String, StructureDefinition> snapshots, SnapshotGenerator generator, StructureDefinition diff,
-			ValidationPackageIdentifier validationPackageIdentifier)
+	private IValidationSupport withLazySnapshots(
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies,
+			IValidationSupport expandedValueSets)
 	{
-		if (snapshots.containsKey(diff.getUrl() + "|" + diff.getVersion()))
-			return;
+		Map<StructureDefinition, ValidationPackageIdentifier> identifiers = new IdentityHashMap<>();
+		packagesWithDependencies.forEach(p -> p.getAllStructureDefinitions()
+				.forEach(sd -> identifiers.putIfAbsent(sd, p.getIdentifier())));
 
-		List<StructureDefinition> definitions = new ArrayList<>();
-		definitions.addAll(packageWithDependencies.getStructureDefinitionDependencies(diff));
-		definitions.add(diff);
+		List<StructureDefinition> differentials = identifiers.keySet().stream()
+				.filter(sd -> sd.hasDifferential() && !sd.hasSnapshot()).toList();
+		StructureDefinitionDependencyGraph graph = StructureDefinitionDependencyGraph.from(identifiers.keySet());
+
+		// generators are not guaranteed to be thread safe, each generator used by one generation at a time
+		AtomicReference<ValidationSupportChain> supportChain = new AtomicReference<>();
+		Queue<SnapshotGenerator> generators = new ConcurrentLinkedQueue<>();
+		Function<StructureDefinition, Optional<StructureDefinition>> createSnapshot = sd ->
+		{
+			SnapshotGenerator generator = generators.poll();
+			if (generator == null)
+				generator = internalSnapshotGeneratorFactory.apply(fhirContext, supportChain.get());
+
+			try
+			{
+				return createSnapshot(generator, sd, identifiers.get(sd));
+			}
+			finally
+			{
+				generators.add(generator);
+			}
+		};
+
+		ValidationSupportWithLazySnapshots snapshots = new ValidationSupportWithLazySnapshots(fhirContext,
+				differentials, graph::getDependencies, createSnapshot);
+		lazySnapshotSupports.add(snapshots);
+
+		// also returned as root support, chain cache disabled: differentials returned for cyclic dependencies while
+		// generating must not be cached, root support cached by ValidationSupportWithCache if configured
+		supportChain.set(createSupportChain(fhirContext, CacheConfiguration.disabled(), packagesWithDependencies,
+				snapshots, expandedValueSets));
+
+		logger.info("{} StructureDefinition snapshots will be generated on first use", differentials.size());
+
+		return supportChain.get();
+	}
 
-		logger.debug("Generating snapshot for {}|{} from package (incl. dependencies) {}, base {}, dependencies {}",
-				diff.getUrl(), diff.getVersion(), validationPackageIdentifier.toString(), diff.getBaseDefinition(),
+	private void logDependencies(ValidationPackageWithDepedencies packageWithDependencies, StructureDefinition diff)
+	{
+		List<StructureDefinition> definitions = packageWithDependencies.getStructureDefinitionDependencies(diff);
+
+		logger.debug("Snapshot for {}|{} from package (incl. dependencies) {}, base {}, dependencies {}",
+				diff.getUrl(), diff.getVersion(), packageWithDependencies.getIdentifier().toString(),
+				diff.getBaseDefinition(),
 				definitions.stream()
 						.filter(sd -> !sd.equals(diff) && !sd.getUrl().equals(diff.getBaseDefinition())
 								&& !(sd.getUrl() + "|" + sd.getVersion()).equals(diff.getBaseDefinition()))
@@ -294,70 +1027,147 @@ public class ValidatorFactoryImpl implements ValidatorFactory, InitializingBean
 		{
 			logger.warn(
 					"StructureDefinition {}|{} from package (incl. dependencies) {}, has dependencies with no active status [{}]",
-					diff.getUrl(), diff.getVersion(), validationPackageIdentifier.toString(),
+					diff.getUrl(), diff.getVersion(), packageWithDependencies.getIdentifier().toString(),
 					dependenciesWithDifferentStatus);
 		}
+	}
 
-		definitions.stream().filter(sd -> sd.hasDifferential() && !sd.hasSnapshot()
-				&& !snapshots.containsKey(sd.getUrl() + "|" + sd.getVersion())).forEach(sd ->
-				{
-					try
-					{
-						logger.debug("Generating snapshot for {}|{} from package (incl. dependencies) {}", sd.getUrl(),
-								sd.getVersion(), validationPackageIdentifier.toString());
-						SnapshotWithValidationMessages snapshot = generator.generateSnapshot(sd);
+	private static record SnapshotWave(List<StructureDefinition> structureDefinitions, boolean cyclic)
+	{
+	}
 
-						if (snapshot.getSnapshot().hasSnapshot())
-						{
-							snapshots.put(snapshot.getSnapshot().getUrl() + "|" + snapshot.getSnapshot().getVersion(),
-									snapshot.getSnapshot());
-							snapshotsAndExpandedValueSets.addOrReplace(snapshot.getSnapshot());
-						}
-						else
-							logger.error(
-									"Error while generating snapshot for {}|{} from package (incl. dependencies) {}: Not snaphsot returned from generator",
-									diff.getUrl(), diff.getVersion(), validationPackageIdentifier.toString());
-
-						snapshot.getMessages().forEach(m ->
-						{
-							if (EnumSet.of(IssueSeverity.FATAL, IssueSeverity.ERROR, IssueSeverity.WARNING)
-									.contains(m.getLevel()))
-								logger.warn("{}|{} {}: {}", diff.getUrl(), diff.getVersion(), m.getLevel(),
-										m.toString());
-							else
-								logger.info("{}|{} {}: {}", diff.getUrl(), diff.getVersion(), m.getLevel(),
-										m.toString());
-						});
-					}
-					catch (Exception e)
-					{
-						logger.error(
-								"Error while generating snapshot for {}|{} from package (incl. dependencies) {}: {} - {}",
-								diff.getUrl(), diff.getVersion(), validationPackageIdentifier.toString(),
-								e.getClass().getName(), e.getMessage());
-					}
-				});
+	/**
+	 * Topological waves of the StructureDefinitions without snapshot from the given differentials and their
+	 * dependencies (base definitions, extensions and profiles). StructureDefinitions within a wave only depend on
+	 * StructureDefinitions from earlier waves. StructureDefinitions with cyclic dependencies are returned in a last
+	 * wave, in dependency first order.
+	 */
+	private List<SnapshotWave> createSnapshotWaves(
+			ValidationPackageWithDepedencies packageWithDependencies, List<StructureDefinition> diffs,
+			Map<String, StructureDefinition> snapshots)
+	{
+		Map<String, StructureDefinition> nodes = new LinkedHashMap<>();
+		Map<String, Set<String>> dependencies = new HashMap<>();
+
+		for (StructureDefinition diff : diffs)
+		{
+			Stream.concat(packageWithDependencies.getStructureDefinitionDependencies(diff).stream(), Stream.of(diff))
+					.filter(sd -> sd.hasDifferential() && !sd.hasSnapshot())
+					.filter(sd -> !snapshots.containsKey(sd.getUrl() + "|" + sd.getVersion()))
+					.forEach(sd -> nodes.putIfAbsent(sd.getUrl() + "|" + sd.getVersion(), sd));
+		}
+
+		nodes.forEach((key, sd) -> dependencies.put(key,
+				packageWithDependencies.getStructureDefinitionDependencies(sd).stream()
+						.map(d -> d.getUrl() + "|" + d.getVersion()).filter(nodes::containsKey)
+						.filter(d -> !d.equals(key)).collect(Collectors.toSet())));
+
+		List<SnapshotWave> waves = new ArrayList<>();
+		Set<String> done = new HashSet<>();
+
+		while (done.size() < nodes.size())
+		{
+			List<String> wave = nodes.keySet().stream().filter(k -> !done.contains(k))
+					.filter(k -> done.containsAll(dependencies.get(k))).toList();
 
-		logger.debug("Generating snapshot for {}|{} from package (incl. dependencies) {} [Done]", diff.getUrl(),
-				diff.getVersion(), validationPackageIdentifier.toString());
+			if (wave.isEmpty())
+			{
+				waves.add(new SnapshotWave(nodes.entrySet().stream().filter(e -> !done.contains(e.getKey()))
+						.map(Entry::getValue).toList(), true));
+				break;
+			}
+
+			waves.add(new SnapshotWave(wave.stream().map(nodes::get).toList(), false));
+			done.addAll(wave);
+		}
+
+		return waves;
 	}
 
-	private ValidationSupportChain createSupportChain(FhirContext context,
-			IValidationSupport snapshotsAndExpandedValueSets,
-			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies)
+	private Optional<StructureDefinition> createSnapshot(SnapshotGenerator generator, StructureDefinition sd,
+			ValidationPackageIdentifier validationPackageIdentifier)
+	{
+		try
+		{
+			logger.debug("Generating snapshot for {}|{} from package (incl. dependencies) {}", sd.getUrl(),
+					sd.getVersion(), validationPackageIdentifier.toString());
+			SnapshotWithValidationMessages snapshot = generator.generateSnapshot(sd);
+
+			snapshot.getMessages().forEach(m ->
+			{
+				if (EnumSet.of(IssueSeverity.FATAL, IssueSeverity.ERROR, IssueSeverity.WARNING).contains(m.getLevel()))
+					logger.warn("{}|{} {}: {}", sd.getUrl(), sd.getVersion(), m.getLevel(), m.toString());
+				else
+					logger.info("{}|{} {}: {}", sd.getUrl(), sd.getVersion(), m.getLevel(), m.toString());
+			});
+
+			if (snapshot.getSnapshot().hasSnapshot())
+			{
+				logger.debug("Generating snapshot for {}|{} from package (incl. dependencies) {} [Done]", sd.getUrl(),
+						sd.getVersion(), validationPackageIdentifier.toString());
+
+				return Optional.of(snapshot.getSnapshot());
+			}
+			else
+			{
+				logger.error(
+						"Error while generating snapshot for {}|{} from package (incl. dependencies) {}: Not snaphsot returned from generator",
+						sd.getUrl(), sd.getVersion(), validationPackageIdentifier.toString());
+
+				return Optional.empty();
+			}
+		}
+		catch (Exception e)
+		{
+			logger.error("Error while generating snapshot for {}|{} from package (incl. dependencies) {}: {} - {}",
+					sd.getUrl(), sd.getVersion(), validationPackageIdentifier.toString(), e.getClass().getName(),
+					e.getMessage());
+
+			return Optional.empty();
+		}
+	}
+
+	/**
+	 * @return chain cache disabled if the root support is cached by a {@link ValidationSupportWithCache}
+	 */
+	private CacheConfiguration rootSupportChainCacheConfiguration()
+	{
+		return validationSupportCacheMaxBytes > 0 ? CacheConfiguration.disabled() : CacheConfiguration.defaultValues();
+	}
+
+	private ValidationSupportChain createSupportChain(FhirContext context, CacheConfiguration cacheConfiguration,
+			Collection<? extends ValidationPackageWithDepedencies> packagesWithDependencies,
+			IValidationSupport... snapshotsAndExpandedValueSets)
+	{
+		ValidationSupportWithCustomResources packageResources = new ValidationSupportWithCustomResources(context,
+				getAll(ValidationPackageWithDepedencies::getAllStructureDefinitions, packagesWithDependencies), null,
+				getAll(ValidationPackageWithDepedencies::getAllValueSets, packagesWithDependencies));
+
+		// CodeSystems parsed on first fetch
+		getAll(ValidationPackageWithDepedencies::getAllLazyCodeSystems, packagesWithDependencies)
+				.forEach(c -> packageResources.addOrReplace(c.getUrl(), c.getVersion(), c::get));
+
+		return createSupportChain(context, cacheConfiguration,
+				Stream.concat(Arrays.stream(snapshotsAndExpandedValueSets), Stream.of(packageResources))
+						.toArray(IValidationSupport[]::new));
+	}
+
+	private ValidationSupportChain createSupportChain(FhirContext context, CacheConfiguration cacheConfiguration,
+			IValidationSupport... conformanceResources)
 	{
-		return new ValidationSupportChain(new CodeValidatorForExpandedValueSets(context),
-				new InMemoryTerminologyServerValidationSupport(context), snapshotsAndExpandedValueSets,
-				new ValidationSupportWithCustomResources(context,
-						getAll(ValidationPackageWithDepedencies::getAllStructureDefinitions, packagesWithDependencies),
-						getAll(ValidationPackageWithDepedencies::getAllCodeSystems, packagesWithDependencies),
-						getAll(ValidationPackageWithDepedencies::getAllValueSets, packagesWithDependencies)),
-				new DefaultProfileValidationSupport(context), new QuietCommonCodeSystemsTerminologyService(context),
-				// TODO remove NonValidatingValidationSupport
-				new NonValidatingValidationSupport(context, "http://fhir.de/CodeSystem/bfarm/icd-10-gm",
-						"http://fhir.de/CodeSystem/dimdi/icd-10-gm", "http://fhir.de/CodeSystem/bfarm/ops",
-						"http://fhir.de/CodeSystem/dimdi/ops", "http://fhir.de/CodeSystem/ifa/pzn",
-						"http://snomed.info/sct", "http://loinc.org", "http://varnomen.hgvs.org"));
+		List<IValidationSupport> supports = new ArrayList<>();
+		supports.add(new CodeValidatorForExpandedValueSets(context, expandedValueSetIndexCache));
+		supports.add(new InMemoryTerminologyServerValidationSupport(context));
+		supports.addAll(Arrays.asList(conformanceResources));
+		supports.add(new DefaultProfileValidationSupport(context));
+		supports.add(new QuietCommonCodeSystemsTerminologyService(context));
+		// TODO remove NonValidatingValidationSupport
+		supports.add(new NonValidatingValidationSupport(context, "http://fhir.de/CodeSystem/bfarm/icd-10-gm",
+				"http://fhir.de/CodeSystem/dimdi/icd-10-gm", "http://fhir.de/CodeSystem/bfarm/ops",
+				"http://fhir.de/CodeSystem/dimdi/ops", "http://fhir.de/CodeSystem/ifa/pzn", "http://snomed.info/sct",
+				"http://loinc.org", "http://varnomen.hgvs.org"));
+
+		return new ValidationSupportChain(cacheConfiguration, supports);
 	}
 
 	private <V> List<V> getAll(Function<ValidationPackageWithDepedencies, List<V>> mapper,
@@ -5,17 +5,26 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.stream.Stream;
 
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
 import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.StructureDefinition.StructureDefinitionSnapshotComponent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
 import dev.dsf.fhir.validator.cache.AbstractFhirResourceFileSystemCache;
 import dev.dsf.fhir.validator.cache.AbstractFileSystemCache;
+import dev.dsf.fhir.validator.cache.BinaryResourceFormat;
+import dev.dsf.fhir.validator.cache.CacheCodec;
+import dev.dsf.fhir.validator.cache.MemoryCache;
+import dev.dsf.fhir.validator.implementation_guide.StructureDefinitionDependencyGraph;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageClientWithFileSystemCache;
 import dev.dsf.fhir.validator.structure_definition.SnapshotGenerator.SnapshotWithValidationMessages;
 
@@ -26,8 +35,13 @@ public class SnapshotGeneratorWithFileSystemCache
 	private static final Logger logger = LoggerFactory.getLogger(ValidationPackageClientWithFileSystemCache.class);
 
 	private final SnapshotGenerator delegate;
+	private final String delegateFingerprint;
+	private final IValidationSupport validationSupport;
 	private final boolean cacheDraftResources;
 
+	private final Map<StructureDefinitionSnapshotComponent, String> snapshotFingerprints = Collections
+			.synchronizedMap(new IdentityHashMap<>());
+
 	/**
 	 * For JSON content with gzip compression using the <code>.json.xz</code> file name suffix.
 	 *
@@ -45,9 +59,44 @@ public class SnapshotGeneratorWithFileSystemCache
 	public SnapshotGeneratorWithFileSystemCache(Path cacheFolder, FhirContext fhirContext, SnapshotGenerator delegate,
 			boolean cacheDraftResources)
 	{
-		super(cacheFolder, StructureDefinition.class, fhirContext);
+		this(cacheFolder, Format.JSON, CacheCodec.GZIP, null, fhirContext, delegate, null, null,
+				cacheDraftResources);
+	}
+
+	/**
+	 * For content encoded with the given format and compressed with the given codec, gzip compressed JSON entries are
+	 * migrated on first read. Cache entries are keyed by the content of the differential, the delegate fingerprint
+	 * and, if a validation support is given, the snapshots or differentials of base definitions, type profiles and
+	 * extensions used by the differential.
+	 *
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @param format
+	 *            not <code>null</code>
+	 * @param codec
+	 *            not <code>null</code>
+	 * @param memoryCache
+	 *            may be <code>null</code>, in-memory tier in front of the cache folder
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param delegate
+	 *            not <code>null</code>
+	 * @param delegateFingerprint
+	 *            may be <code>null</code>, configuration of the delegate affecting generated snapshots, e.g.
+	 *            StructureDefinition modifier classes
+	 * @param validationSupport
+	 *            may be <code>null</code>, used to fingerprint dependencies
+	 * @param cacheDraftResources
+	 */
+	public SnapshotGeneratorWithFileSystemCache(Path cacheFolder, Format format, CacheCodec codec,
+			MemoryCache memoryCache, FhirContext fhirContext, SnapshotGenerator delegate, String delegateFingerprint,
+			IValidationSupport validationSupport, boolean cacheDraftResources)
+	{
+		super(cacheFolder, format, codec, memoryCache, StructureDefinition.class, fhirContext);
 
 		this.delegate = delegate;
+		this.delegateFingerprint = delegateFingerprint;
+		this.validationSupport = validationSupport;
 		this.cacheDraftResources = cacheDraftResources;
 	}
 
@@ -60,6 +109,8 @@ public class SnapshotGeneratorWithFileSystemCache
 				fhirContext);
 
 		this.delegate = delegate;
+		this.delegateFingerprint = null;
+		this.validationSupport = null;
 		this.cacheDraftResources = cacheDraftResources;
 	}
 
@@ -86,26 +137,46 @@ public class SnapshotGeneratorWithFileSystemCache
 		Objects.requireNonNull(structureDefinition.getUrl(), "structureDefinition.url");
 		Objects.requireNonNull(structureDefinition.getVersion(), "structureDefinition.version");
 
-		try
-		{
-			SnapshotWithValidationMessages read = readResourceFromCache(structureDefinition.getUrl(),
-					structureDefinition.getVersion(),
-					// needs to return original structureDefinition object with included snapshot
-					sd -> new SnapshotWithValidationMessages(structureDefinition.setSnapshot(sd.getSnapshot()),
-							Collections.emptyList()));
-			if (read != null)
-				return read;
-			else
-				return generateSnapshotAndWriteToCache(structureDefinition);
-		}
-		catch (IOException e)
-		{
-			throw new RuntimeException(e);
-		}
+		// before generating, the delegate may modify the differential
+		String cacheEntryId = cacheEntryId(structureDefinition.getUrl(), structureDefinition.getVersion(),
+				structureDefinition, dependencyFingerprints(structureDefinition));
+
+		return readResourceFromCacheOrCreate(cacheEntryId,
+				// needs to return original structureDefinition object with included snapshot
+				sd -> new SnapshotWithValidationMessages(structureDefinition.setSnapshot(sd.getSnapshot()),
+						Collections.emptyList()),
+				() -> generateSnapshotAndWriteToCache(structureDefinition, cacheEntryId));
+	}
+
+	private Stream<String> dependencyFingerprints(StructureDefinition structureDefinition)
+	{
+		Stream<String> configuration = Stream.of("delegate:" + Objects.toString(delegateFingerprint, ""));
+
+		if (validationSupport == null)
+			return configuration;
+		else
+			return Stream.concat(configuration,
+					StructureDefinitionDependencyGraph.getDirectDependencyUrls(structureDefinition).stream()
+							.map(url -> "dependency:" + url + ":" + dependencyFingerprint(url)));
+	}
+
+	/**
+	 * Dependencies with snapshot are fingerprinted by their snapshot, covering their own dependencies. Differentials
+	 * may be modified by the delegate, snapshots are identical whether generated or read from the cache.
+	 */
+	private String dependencyFingerprint(String url)
+	{
+		if (!(validationSupport.fetchStructureDefinition(url) instanceof StructureDefinition dependency))
+			return "missing";
+		else if (dependency.hasSnapshot())
+			return "snapshot:"
+					+ snapshotFingerprints.computeIfAbsent(dependency.getSnapshot(), BinaryResourceFormat::fingerprint);
+		else
+			return "differential:" + BinaryResourceFormat.fingerprint(dependency);
 	}
 
-	private SnapshotWithValidationMessages generateSnapshotAndWriteToCache(StructureDefinition structureDefinition)
-			throws IOException
+	private SnapshotWithValidationMessages generateSnapshotAndWriteToCache(StructureDefinition structureDefinition,
+			String cacheEntryId) throws IOException
 	{
 		SnapshotWithValidationMessages snapshot = delegate.generateSnapshot(structureDefinition);
 
@@ -123,8 +194,7 @@ public class SnapshotGeneratorWithFileSystemCache
 			return snapshot;
 		}
 		else
-			return writeResourceToCache(snapshot, SnapshotWithValidationMessages::getSnapshot,
-					StructureDefinition::getUrl, StructureDefinition::getVersion);
+			return writeResourceToCache(snapshot, SnapshotWithValidationMessages::getSnapshot, cacheEntryId);
 	}
 
 	@Override
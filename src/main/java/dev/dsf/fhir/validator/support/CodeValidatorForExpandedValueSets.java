@@ -4,32 +4,40 @@ import static org.apache.commons.lang3.StringUtils.defaultString;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
-import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
 import org.hl7.fhir.utilities.validation.ValidationMessage;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.ConceptValidationOptions;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.context.support.ValidationSupportContext;
+import dev.dsf.fhir.validator.support.ExpandedValueSetIndex.Concept;
 
 public class CodeValidatorForExpandedValueSets implements IValidationSupport
 {
-	private static record Concept(String system, String version, String code, String display)
-	{
-	}
-
 	private final FhirContext fhirContext;
+	private final ExpandedValueSetIndexCache indexCache;
 
 	public CodeValidatorForExpandedValueSets(FhirContext fhirContext)
+	{
+		this(fhirContext, new ExpandedValueSetIndexCache());
+	}
+
+	/**
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param indexCache
+	 *            not <code>null</code>, may be shared with other instances
+	 */
+	public CodeValidatorForExpandedValueSets(FhirContext fhirContext, ExpandedValueSetIndexCache indexCache)
 	{
 		this.fhirContext = fhirContext;
+		this.indexCache = indexCache;
 	}
 
 	@Override
@@ -51,14 +59,26 @@ public class CodeValidatorForExpandedValueSets implements IValidationSupport
 		if (valueSet == null || !(valueSet instanceof ValueSet) || !((ValueSet) valueSet).hasExpansion())
 			return new CodeValidationResult().setSeverity(IssueSeverity.ERROR).setMessage("ValueSet not supported");
 
-		ValueSetExpansionComponent expansion = ((ValueSet) valueSet).getExpansion();
+		ExpandedValueSetIndex index = indexCache.get((ValueSet) valueSet);
 
-		return doValidateCodeInValueSet(supportContext, options, codeSystem, code, display, expansion);
+		// compacted expansion without index, following supports of the chain may validate the code
+		if (index == null)
+			return null;
+
+		return doValidateCodeInValueSet(supportContext, options, codeSystem, code, display, index);
 	}
 
 	public CodeValidationResult doValidateCodeInValueSet(ValidationSupportContext supportContext,
 			ConceptValidationOptions options, String targetCodeSystem, String targetCode, String targetDisplay,
 			ValueSetExpansionComponent expansion)
+	{
+		return doValidateCodeInValueSet(supportContext, options, targetCodeSystem, targetCode, targetDisplay,
+				indexCache.get(expansion));
+	}
+
+	public CodeValidationResult doValidateCodeInValueSet(ValidationSupportContext supportContext,
+			ConceptValidationOptions options, String targetCodeSystem, String targetCode, String targetDisplay,
+			ExpandedValueSetIndex index)
 	{
 		String targetCodeSystemVersion = null;
 
@@ -77,9 +97,6 @@ public class CodeValidatorForExpandedValueSets implements IValidationSupport
 					targetCodeSystemVersion != null ? (targetCodeSystem + "|" + targetCodeSystemVersion)
 							: targetCodeSystem);
 
-		List<Concept> codes = new ArrayList<>();
-		flatten(expansion.getContains(), codes);
-
 		String codeSystemName = null;
 		String codeSystemVersion = null;
 		String codeSystemContentMode = null;
@@ -94,34 +111,27 @@ public class CodeValidatorForExpandedValueSets implements IValidationSupport
 		else
 			codeSystemVersion = targetCodeSystemVersion;
 
+		List<Concept> codes = index.find(defaultString(targetCode), codeSystemCaseSensitive);
+
 		for (Concept nextExpansionCode : codes)
 		{
-			boolean codeMatches;
-			if (codeSystemCaseSensitive)
-				codeMatches = defaultString(targetCode).equals(nextExpansionCode.code());
-			else
-				codeMatches = defaultString(targetCode).equalsIgnoreCase(nextExpansionCode.code());
-
-			if (codeMatches)
+			if (options.isInferSystem()
+					|| (nextExpansionCode.system().equals(targetCodeSystem) && (targetCodeSystemVersion == null
+							|| targetCodeSystemVersion.equals(nextExpansionCode.version()))))
 			{
-				if (options.isInferSystem()
-						|| (nextExpansionCode.system().equals(targetCodeSystem) && (targetCodeSystemVersion == null
-								|| targetCodeSystemVersion.equals(nextExpansionCode.version()))))
+				if (!options.isValidateDisplay() || (isBlank(nextExpansionCode.display()) || isBlank(targetDisplay)
+						|| nextExpansionCode.display().equals(targetDisplay)))
 				{
-					if (!options.isValidateDisplay() || (isBlank(nextExpansionCode.display()) || isBlank(targetDisplay)
-							|| nextExpansionCode.display().equals(targetDisplay)))
-					{
-						return new CodeValidationResult().setCode(targetCode).setDisplay(nextExpansionCode.display())
-								.setCodeSystemName(codeSystemName).setCodeSystemVersion(codeSystemVersion);
-					}
-					else
-					{
-						return new CodeValidationResult().setSeverity(IssueSeverity.ERROR)
-								.setDisplay(nextExpansionCode.display())
-								.setMessage("Concept Display \"" + targetDisplay + "\" does not match expected \""
-										+ nextExpansionCode.display() + "\"")
-								.setCodeSystemName(codeSystemName).setCodeSystemVersion(codeSystemVersion);
-					}
+					return new CodeValidationResult().setCode(targetCode).setDisplay(nextExpansionCode.display())
+							.setCodeSystemName(codeSystemName).setCodeSystemVersion(codeSystemVersion);
+				}
+				else
+				{
+					return new CodeValidationResult().setSeverity(IssueSeverity.ERROR)
+							.setDisplay(nextExpansionCode.display())
+							.setMessage("Concept Display \"" + targetDisplay + "\" does not match expected \""
+									+ nextExpansionCode.display() + "\"")
+							.setCodeSystemName(codeSystemName).setCodeSystemVersion(codeSystemVersion);
 				}
 			}
 		}
@@ -143,14 +153,4 @@ public class CodeValidatorForExpandedValueSets implements IValidationSupport
 
 		return new CodeValidationResult().setSeverity(IssueSeverity.fromCode(severity.toCode())).setMessage(message);
 	}
-
-	private void flatten(List<ValueSetExpansionContainsComponent> components, List<Concept> concepts)
-	{
-		for (ValueSetExpansionContainsComponent next : components)
-		{
-			concepts.add(new Concept(next.getSystem(), next.getVersion(), next.getCode(), next.getDisplay()));
-
-			flatten(next.getContains(), concepts);
-		}
-	}
 }
@@ -0,0 +1,229 @@
+package dev.dsf.fhir.validator.support;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+
+/**
+ * Immutable, compact code index of a {@link ValueSetExpansionComponent}, including nested <code>contains</code>
+ * elements. Safe for concurrent use.
+ * <p>
+ * Concepts are stored column-wise in arrays sorted by code, systems and versions are interned in per index tables.
+ * Lookups use binary search, a second permutation sorted by case-folded code supports case-insensitive CodeSystems.
+ * Codes are case-folded per code point like {@link String#equalsIgnoreCase(String)} compares characters, not via
+ * {@link String#toLowerCase(java.util.Locale)}, which differs for some non-ASCII code points (e.g. U+0130, U+017F). No
+ * references to the HAPI model are kept.
+ */
+public final class ExpandedValueSetIndex
+{
+	public static record Concept(String system, String version, String code, String display)
+	{
+	}
+
+	private static final int NO_VERSION = -1;
+
+	// rough estimates for 64 bit JVMs with compressed oops and compact strings
+	private static final long OBJECT_HEADER_BYTES = 16;
+	private static final long REFERENCE_BYTES = 4;
+	private static final long STRING_BYTES = 24 + OBJECT_HEADER_BYTES;
+
+	public static ExpandedValueSetIndex from(ValueSetExpansionComponent expansion)
+	{
+		List<ValueSetExpansionContainsComponent> concepts = new ArrayList<>();
+		flatten(expansion.getContains(), concepts);
+
+		return new ExpandedValueSetIndex(concepts);
+	}
+
+	private static void flatten(List<ValueSetExpansionContainsComponent> components,
+			List<ValueSetExpansionContainsComponent> concepts)
+	{
+		for (ValueSetExpansionContainsComponent next : components)
+		{
+			if (next.hasCode())
+				concepts.add(next);
+
+			flatten(next.getContains(), concepts);
+		}
+	}
+
+	private final String[] systems;
+	private final String[] versions;
+
+	// sorted by code, stable: concepts with equal codes in expansion order
+	private final String[] codes;
+	private final int[] systemIds;
+	private final int[] versionIds;
+	private final String[] displays;
+
+	// positions into the arrays above, sorted by case-folded code, stable: equal case-folded codes in expansion order
+	private final String[] caseFoldedCodes;
+	private final int[] caseFoldedPositions;
+
+	private final long estimatedMemoryBytes;
+
+	private ExpandedValueSetIndex(List<ValueSetExpansionContainsComponent> concepts)
+	{
+		int size = concepts.size();
+
+		Map<String, Integer> systemTable = new HashMap<>();
+		Map<String, Integer> versionTable = new HashMap<>();
+
+		Integer[] byCode = new Integer[size];
+		for (int i = 0; i < size; i++)
+			byCode[i] = i;
+		Arrays.sort(byCode, Comparator.comparing(i -> concepts.get(i).getCode()));
+
+		codes = new String[size];
+		systemIds = new int[size];
+		versionIds = new int[size];
+		displays = new String[size];
+
+		for (int i = 0; i < size; i++)
+		{
+			ValueSetExpansionContainsComponent concept = concepts.get(byCode[i]);
+
+			codes[i] = concept.getCode();
+			systemIds[i] = systemTable.computeIfAbsent(concept.getSystem(), s -> systemTable.size());
+			versionIds[i] = concept.hasVersion()
+					? versionTable.computeIfAbsent(concept.getVersion(), v -> versionTable.size())
+					: NO_VERSION;
+			displays[i] = concept.getDisplay();
+		}
+
+		systems = table(systemTable);
+		versions = table(versionTable);
+
+		Integer[] byCaseFoldedCode = new Integer[size];
+		String[] caseFolded = new String[size];
+		for (int i = 0; i < size; i++)
+		{
+			byCaseFoldedCode[i] = i;
+			caseFolded[i] = caseFold(codes[i]);
+		}
+		Arrays.sort(byCaseFoldedCode,
+				Comparator.<Integer, String> comparing(i -> caseFolded[i]).thenComparing(i -> byCode[i]));
+
+		caseFoldedCodes = new String[size];
+		caseFoldedPositions = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			caseFoldedPositions[i] = byCaseFoldedCode[i];
+			caseFoldedCodes[i] = caseFolded[byCaseFoldedCode[i]];
+		}
+
+		estimatedMemoryBytes = estimateMemoryBytes();
+	}
+
+	private static String[] table(Map<String, Integer> values)
+	{
+		String[] table = new String[values.size()];
+		values.forEach((value, id) -> table[id] = value);
+		return table;
+	}
+
+	private static String caseFold(String code)
+	{
+		int[] codePoints = code.codePoints().map(c -> Character.toLowerCase(Character.toUpperCase(c))).toArray();
+		String caseFolded = new String(codePoints, 0, codePoints.length);
+
+		// sharing the code string if already lower case
+		return caseFolded.equals(code) ? code : caseFolded;
+	}
+
+	private long estimateMemoryBytes()
+	{
+		Set<String> strings = Collections.newSetFromMap(new IdentityHashMap<>());
+		Arrays.stream(systems).forEach(strings::add);
+		Arrays.stream(versions).forEach(strings::add);
+		Arrays.stream(codes).forEach(strings::add);
+		Arrays.stream(displays).forEach(strings::add);
+		Arrays.stream(caseFoldedCodes).forEach(strings::add);
+
+		long stringBytes = strings.stream().filter(Objects::nonNull).mapToLong(s -> STRING_BYTES + s.length())
+				.sum();
+		long arrayBytes = 8 * OBJECT_HEADER_BYTES
+				+ (systems.length + versions.length + 3L * codes.length) * REFERENCE_BYTES
+				+ 3L * codes.length * Integer.BYTES;
+
+		return stringBytes + arrayBytes;
+	}
+
+	/**
+	 * @param code
+	 *            not <code>null</code>
+	 * @param caseSensitive
+	 * @return concepts with the given code in expansion order, empty list if none found
+	 */
+	public List<Concept> find(String code, boolean caseSensitive)
+	{
+		List<Concept> found = new ArrayList<>(1);
+
+		if (caseSensitive)
+		{
+			for (int i = firstIndexOf(codes, code); i >= 0 && i < codes.length && codes[i].equals(code); i++)
+				found.add(concept(i));
+		}
+		else
+		{
+			String caseFolded = caseFold(code);
+			for (int i = firstIndexOf(caseFoldedCodes, caseFolded); i >= 0 && i < caseFoldedCodes.length
+					&& caseFoldedCodes[i].equals(caseFolded); i++)
+			{
+				int position = caseFoldedPositions[i];
+				if (code.equalsIgnoreCase(codes[position]))
+					found.add(concept(position));
+			}
+		}
+
+		return found;
+	}
+
+	private static int firstIndexOf(String[] sorted, String value)
+	{
+		int low = 0, high = sorted.length;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (sorted[middle].compareTo(value) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		return low < sorted.length && sorted[low].equals(value) ? low : -1;
+	}
+
+	private Concept concept(int position)
+	{
+		return new Concept(systems[systemIds[position]],
+				versionIds[position] == NO_VERSION ? null : versions[versionIds[position]], codes[position],
+				displays[position]);
+	}
+
+	/**
+	 * @return number of concepts in the index
+	 */
+	public int size()
+	{
+		return codes.length;
+	}
+
+	/**
+	 * @return estimated heap memory used by this index in bytes
+	 */
+	public long getEstimatedMemoryBytes()
+	{
+		return estimatedMemoryBytes;
+	}
+}
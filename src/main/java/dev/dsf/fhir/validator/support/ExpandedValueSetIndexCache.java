@@ -0,0 +1,210 @@
+package dev.dsf.fhir.validator.support;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+/**
+ * Bounded cache of {@link ExpandedValueSetIndex}s shared by all validation threads. Entries are weighted by the number
+ * of indexed concepts, least recently used indices are evicted if the configured maximum number of concepts is
+ * exceeded. ValueSets are cached by url, version, expansion identifier and timestamp. ValueSets without url, expansion
+ * identifier or timestamp and expansions given without ValueSet are cached by identity of the expansion until garbage
+ * collected, different expansions of the same ValueSet can not be told apart otherwise. Expansions are expected not to
+ * be modified after being indexed.
+ * <p>
+ * If configured to compact expansions, indices created via {@link #index(Collection)} for ValueSets with url, expansion
+ * identifier and timestamp are pinned and never evicted, the <code>expansion.contains</code> elements of the given
+ * ValueSets are removed afterwards. Code validation is then only possible via the pinned index. Compacted expansions
+ * without pinned index, e.g. copies with a different expansion identifier or timestamp, are not indexed, a warning is
+ * logged once per ValueSet.
+ */
+public class ExpandedValueSetIndexCache
+{
+	private static final Logger logger = LoggerFactory.getLogger(ExpandedValueSetIndexCache.class);
+
+	public static final long DEFAULT_MAX_CONCEPTS = 5_000_000;
+
+	public static record Statistics(long valueSets, long pinnedValueSets, long concepts, long maxConcepts,
+			long evictions, long estimatedMemoryBytes)
+	{
+	}
+
+	private static record Key(String url, String version, String expansionIdentifier, Date expansionTimestamp)
+	{
+		/**
+		 * @return <code>null</code> if the given ValueSet has no url, expansion identifier or expansion timestamp
+		 */
+		static Key from(ValueSet valueSet)
+		{
+			if (!valueSet.hasUrl() || !valueSet.getExpansion().hasIdentifier()
+					|| !valueSet.getExpansion().hasTimestamp())
+				return null;
+
+			return new Key(valueSet.getUrl(), valueSet.getVersion(), valueSet.getExpansion().getIdentifier(),
+					valueSet.getExpansion().getTimestamp());
+		}
+	}
+
+	private final long maxConcepts;
+	private final boolean compactExpansions;
+	private final Cache<Key, ExpandedValueSetIndex> indices;
+	private final Cache<ValueSetExpansionComponent, ExpandedValueSetIndex> expansionIndices;
+	private final Map<Key, ExpandedValueSetIndex> pinnedIndices = new ConcurrentHashMap<>();
+	private final Set<Key> compactedWithoutIndex = ConcurrentHashMap.newKeySet();
+
+	public ExpandedValueSetIndexCache()
+	{
+		this(DEFAULT_MAX_CONCEPTS, false);
+	}
+
+	/**
+	 * @param maxConcepts
+	 *            &gt; 0, not applicable to pinned indices
+	 * @param compactExpansions
+	 *            <code>true</code> to pin indices and remove <code>expansion.contains</code> elements from ValueSets
+	 *            given to {@link #index(Collection)}
+	 */
+	public ExpandedValueSetIndexCache(long maxConcepts, boolean compactExpansions)
+	{
+		if (maxConcepts <= 0)
+			throw new IllegalArgumentException("maxConcepts <= 0");
+
+		this.maxConcepts = maxConcepts;
+		this.compactExpansions = compactExpansions;
+		this.indices = Caffeine.newBuilder().maximumWeight(maxConcepts)
+				.<Key, ExpandedValueSetIndex> weigher((k, v) -> Math.max(1, v.size())).recordStats().build();
+		// weak keys are compared by identity
+		this.expansionIndices = Caffeine.newBuilder().weakKeys().maximumWeight(maxConcepts)
+				.<ValueSetExpansionComponent, ExpandedValueSetIndex> weigher((k, v) -> Math.max(1, v.size()))
+				.recordStats().build();
+	}
+
+	/**
+	 * Creates indices for the given expanded ValueSets, ValueSets without expansion are ignored. If configured to
+	 * compact expansions, indices for ValueSets with url, expansion identifier and timestamp are pinned and the
+	 * <code>expansion.contains</code> elements removed from the given ValueSets.
+	 *
+	 * @param expandedValueSets
+	 *            not <code>null</code>
+	 */
+	public void index(Collection<? extends ValueSet> expandedValueSets)
+	{
+		expandedValueSets.stream().filter(ValueSet::hasExpansion).forEach(v ->
+		{
+			Key key = Key.from(v);
+
+			if (compactExpansions && key != null)
+				compact(v, key);
+			else
+				get(v);
+		});
+
+		Statistics statistics = getStatistics();
+		logger.info(
+				"Expanded ValueSet index contains {} ValueSets ({} pinned) with {} concepts (max {} unpinned), ~{} KiB",
+				statistics.valueSets(), statistics.pinnedValueSets(), statistics.concepts(),
+				statistics.maxConcepts(), statistics.estimatedMemoryBytes() / 1024);
+	}
+
+	private void compact(ValueSet expandedValueSet, Key key)
+	{
+		ExpandedValueSetIndex index = ExpandedValueSetIndex.from(expandedValueSet.getExpansion());
+
+		pinnedIndices.put(key, index);
+		indices.invalidate(key);
+
+		if (!expandedValueSet.getExpansion().hasTotal())
+			expandedValueSet.getExpansion().setTotal(index.size());
+		expandedValueSet.getExpansion().setContains(null);
+
+		logger.debug("ValueSet {}|{} compacted, {} concepts, ~{} KiB", expandedValueSet.getUrl(),
+				expandedValueSet.getVersion(), index.size(), index.getEstimatedMemoryBytes() / 1024);
+	}
+
+	/**
+	 * @param expandedValueSet
+	 *            not <code>null</code>
+	 * @return index of the given ValueSet expansion, created if not already cached, <code>null</code> if the expansion
+	 *         was compacted and no pinned index exists
+	 */
+	public ExpandedValueSetIndex get(ValueSet expandedValueSet)
+	{
+		Key key = Key.from(expandedValueSet);
+		if (key == null)
+			return get(expandedValueSet.getExpansion());
+
+		ExpandedValueSetIndex pinned = pinnedIndices.get(key);
+		if (pinned != null)
+			return pinned;
+
+		if (compactExpansions && isCompacted(expandedValueSet))
+		{
+			if (compactedWithoutIndex.add(key))
+				logger.warn(
+						"No index for compacted ValueSet {}|{} with expansion identifier {} and timestamp {}, {} concepts not indexed",
+						expandedValueSet.getUrl(), expandedValueSet.getVersion(), key.expansionIdentifier(),
+						key.expansionTimestamp(), expandedValueSet.getExpansion().getTotal());
+
+			return null;
+		}
+
+		return indices.get(key, k ->
+		{
+			ExpandedValueSetIndex index = ExpandedValueSetIndex.from(expandedValueSet.getExpansion());
+
+			logger.trace("Indexed ValueSet {}|{} with {} concepts, ~{} KiB", expandedValueSet.getUrl(),
+					expandedValueSet.getVersion(), index.size(), index.getEstimatedMemoryBytes() / 1024);
+
+			return index;
+		});
+	}
+
+	private static boolean isCompacted(ValueSet expandedValueSet)
+	{
+		return !expandedValueSet.getExpansion().hasContains() && expandedValueSet.getExpansion().getTotal() > 0;
+	}
+
+	/**
+	 * @param expansion
+	 *            not <code>null</code>
+	 * @return index of the given expansion, created if not already cached for the given instance
+	 */
+	public ExpandedValueSetIndex get(ValueSetExpansionComponent expansion)
+	{
+		return expansionIndices.get(expansion, ExpandedValueSetIndex::from);
+	}
+
+	public Statistics getStatistics()
+	{
+		long concepts = 0, memory = 0;
+		for (ExpandedValueSetIndex index : indices.asMap().values())
+		{
+			concepts += index.size();
+			memory += index.getEstimatedMemoryBytes();
+		}
+		for (ExpandedValueSetIndex index : expansionIndices.asMap().values())
+		{
+			concepts += index.size();
+			memory += index.getEstimatedMemoryBytes();
+		}
+		for (ExpandedValueSetIndex index : pinnedIndices.values())
+		{
+			concepts += index.size();
+			memory += index.getEstimatedMemoryBytes();
+		}
+
+		return new Statistics(indices.estimatedSize() + expansionIndices.estimatedSize() + pinnedIndices.size(),
+				pinnedIndices.size(), concepts, maxConcepts,
+				indices.stats().evictionCount() + expansionIndices.stats().evictionCount(), memory);
+	}
+}
@@ -0,0 +1,404 @@
+package dev.dsf.fhir.validator.support;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.function.Function;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.ConceptValidationOptions;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.LookupCodeRequest;
+import ca.uhn.fhir.context.support.TranslateConceptResults;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+import dev.dsf.fhir.validator.cache.BinaryResourceFormat;
+
+/**
+ * Memoizes the resource fetches, support checks and code validations of a root validation support, e.g. a
+ * {@link org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain}. Found and not found results are cached,
+ * misses do not walk all supports of the chain again. Every method uses its own bounded cache, entries are weighted
+ * by the estimated size of keys and cached code validation results; cached resources are weighted as references, they
+ * are retained by the delegate anyway. Entries expire after the configured timeout. Thread safe.
+ * <p>
+ * Cached resources and code validation results are shared by all callers and must not be modified. Values are loaded
+ * without holding a lock, concurrent first calls with the same arguments may call the delegate more than once.
+ * Expansions, code lookups, translations and snapshot generation are not cached.
+ */
+public class ValidationSupportWithCache implements IValidationSupport
+{
+	private static final Logger logger = LoggerFactory.getLogger(ValidationSupportWithCache.class);
+
+	public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	public static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(10);
+
+	private static final int ENTRY_OVERHEAD_BYTES = 64;
+	private static final int ISSUE_OVERHEAD_BYTES = 128;
+
+	public static record Statistics(String method, long hits, long misses, long evictions, long entries,
+			long weightBytes, long maxWeightBytes)
+	{
+		public double hitRatio()
+		{
+			return hits + misses == 0 ? 0d : (double) hits / (hits + misses);
+		}
+	}
+
+	private static record CodeKey(boolean inferSystem, boolean validateDisplay, String system, String code,
+			String display, String valueSet)
+	{
+		static CodeKey from(ConceptValidationOptions options, String system, String code, String display,
+				String valueSet)
+		{
+			return new CodeKey(options != null && options.isInferSystem(),
+					options != null && options.isValidateDisplay(), system, code, display, valueSet);
+		}
+
+		int weight()
+		{
+			return ENTRY_OVERHEAD_BYTES + stringWeight(system) + stringWeight(code) + stringWeight(display)
+					+ stringWeight(valueSet);
+		}
+	}
+
+	private final class MethodCache<K, V>
+	{
+		final String method;
+		final long maxWeightBytes;
+		final Cache<K, Optional<V>> entries;
+
+		MethodCache(String method, long maxWeightBytes, Function<K, Integer> keyWeigher,
+				Function<V, Integer> valueWeigher)
+		{
+			this.method = method;
+			this.maxWeightBytes = maxWeightBytes;
+
+			Caffeine<K, Optional<V>> builder = Caffeine.newBuilder().maximumWeight(maxWeightBytes)
+					.<K, Optional<V>> weigher((k, v) -> Math.max(1,
+							keyWeigher.apply(k) + v.map(valueWeigher).orElse(0)))
+					.recordStats();
+			if (timeout != null && timeout.toMillis() > 0)
+				builder.expireAfterWrite(timeout);
+
+			this.entries = builder.build();
+		}
+
+		/**
+		 * Not using {@link Cache#get(Object, Function)}, loading via the delegate may call this cache recursively
+		 * using the root support of the validation support context.
+		 */
+		V get(K key, Function<K, V> loader)
+		{
+			Optional<V> cached = entries.getIfPresent(key);
+			if (cached != null)
+				return cached.orElse(null);
+
+			V value = loader.apply(key);
+			entries.put(key, Optional.ofNullable(value));
+			return value;
+		}
+
+		Statistics getStatistics()
+		{
+			CacheStats stats = entries.stats();
+			long weight = entries.policy().eviction().map(e -> e.weightedSize().orElse(0L)).orElse(0L);
+
+			return new Statistics(method, stats.hitCount(), stats.missCount(), stats.evictionCount(),
+					entries.estimatedSize(), weight, maxWeightBytes);
+		}
+	}
+
+	private final IValidationSupport delegate;
+	private final Duration timeout;
+
+	private final MethodCache<String, IBaseResource> structureDefinitions;
+	private final MethodCache<String, IBaseResource> valueSets;
+	private final MethodCache<String, IBaseResource> codeSystems;
+	private final MethodCache<String, Boolean> valueSetSupported;
+	private final MethodCache<String, Boolean> codeSystemSupported;
+	private final MethodCache<CodeKey, CodeValidationResult> codeValidations;
+	private final MethodCache<CodeKey, CodeValidationResult> codeValidationsInValueSet;
+
+	// compose fingerprints of not expanded ValueSets, identity keys
+	private final Cache<ValueSet, String> composeFingerprints = Caffeine.newBuilder().weakKeys().build();
+
+	// expansion fingerprints of ValueSets without expansion identifier or timestamp, identity keys
+	private final Cache<ValueSet, String> expansionFingerprints = Caffeine.newBuilder().weakKeys().build();
+
+	public ValidationSupportWithCache(IValidationSupport delegate)
+	{
+		this(delegate, DEFAULT_MAX_BYTES, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * @param delegate
+	 *            not <code>null</code>
+	 * @param maxBytes
+	 *            &gt; 0, a quarter shared by the resource fetch and support caches, the rest by the code validation
+	 *            caches
+	 * @param timeout
+	 *            time entries expire after being cached, <code>null</code> or zero for no expiration
+	 */
+	public ValidationSupportWithCache(IValidationSupport delegate, long maxBytes, Duration timeout)
+	{
+		Objects.requireNonNull(delegate, "delegate");
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes <= 0");
+
+		this.delegate = delegate;
+		this.timeout = timeout;
+
+		long lookupBytes = Math.max(1, maxBytes / 20);
+		long codeValidationBytes = Math.max(1, maxBytes * 3 / 8);
+
+		structureDefinitions = new MethodCache<>("fetchStructureDefinition", lookupBytes,
+				ValidationSupportWithCache::keyWeight, r -> 0);
+		valueSets = new MethodCache<>("fetchValueSet", lookupBytes, ValidationSupportWithCache::keyWeight, r -> 0);
+		codeSystems = new MethodCache<>("fetchCodeSystem", lookupBytes, ValidationSupportWithCache::keyWeight,
+				r -> 0);
+		valueSetSupported = new MethodCache<>("isValueSetSupported", lookupBytes,
+				ValidationSupportWithCache::keyWeight, b -> 0);
+		codeSystemSupported = new MethodCache<>("isCodeSystemSupported", lookupBytes,
+				ValidationSupportWithCache::keyWeight, b -> 0);
+		codeValidations = new MethodCache<>("validateCode", codeValidationBytes, CodeKey::weight,
+				ValidationSupportWithCache::resultWeight);
+		codeValidationsInValueSet = new MethodCache<>("validateCodeInValueSet", codeValidationBytes, CodeKey::weight,
+				ValidationSupportWithCache::resultWeight);
+	}
+
+	private static int keyWeight(String key)
+	{
+		return ENTRY_OVERHEAD_BYTES + stringWeight(key);
+	}
+
+	private static int stringWeight(String value)
+	{
+		return value == null ? 0 : 2 * value.length();
+	}
+
+	private static int resultWeight(CodeValidationResult result)
+	{
+		return ENTRY_OVERHEAD_BYTES + stringWeight(result.getCode()) + stringWeight(result.getDisplay())
+				+ stringWeight(result.getMessage()) + stringWeight(result.getCodeSystemName())
+				+ stringWeight(result.getCodeSystemVersion()) + stringWeight(result.getSourceDetails())
+				+ (result.getIssues() == null ? 0 : result.getIssues().size() * ISSUE_OVERHEAD_BYTES);
+	}
+
+	public IValidationSupport getDelegate()
+	{
+		return delegate;
+	}
+
+	@Override
+	public FhirContext getFhirContext()
+	{
+		return delegate.getFhirContext();
+	}
+
+	@Override
+	public IBaseResource fetchStructureDefinition(String url)
+	{
+		return url == null ? delegate.fetchStructureDefinition(url)
+				: structureDefinitions.get(url, delegate::fetchStructureDefinition);
+	}
+
+	@Override
+	public IBaseResource fetchValueSet(String url)
+	{
+		return url == null ? delegate.fetchValueSet(url) : valueSets.get(url, delegate::fetchValueSet);
+	}
+
+	@Override
+	public IBaseResource fetchCodeSystem(String url)
+	{
+		return url == null ? delegate.fetchCodeSystem(url) : codeSystems.get(url, delegate::fetchCodeSystem);
+	}
+
+	@Override
+	public <T extends IBaseResource> T fetchResource(Class<T> type, String url)
+	{
+		if (url == null)
+			return delegate.fetchResource(type, url);
+		else if (StructureDefinition.class.equals(type))
+			return type.cast(fetchStructureDefinition(url));
+		else if (ValueSet.class.equals(type))
+			return type.cast(fetchValueSet(url));
+		else if (CodeSystem.class.equals(type))
+			return type.cast(fetchCodeSystem(url));
+		else
+			return delegate.fetchResource(type, url);
+	}
+
+	@Override
+	public boolean isValueSetSupported(ValidationSupportContext supportContext, String valueSetUrl)
+	{
+		return valueSetUrl == null ? delegate.isValueSetSupported(supportContext, valueSetUrl)
+				: valueSetSupported.get(valueSetUrl, url -> delegate.isValueSetSupported(supportContext, url));
+	}
+
+	@Override
+	public boolean isCodeSystemSupported(ValidationSupportContext supportContext, String system)
+	{
+		return system == null ? delegate.isCodeSystemSupported(supportContext, system)
+				: codeSystemSupported.get(system, s -> delegate.isCodeSystemSupported(supportContext, s));
+	}
+
+	@Override
+	public CodeValidationResult validateCode(ValidationSupportContext supportContext, ConceptValidationOptions options,
+			String codeSystem, String code, String display, String valueSetUrl)
+	{
+		return codeValidations.get(CodeKey.from(options, codeSystem, code, display, valueSetUrl),
+				k -> delegate.validateCode(supportContext, options, codeSystem, code, display, valueSetUrl));
+	}
+
+	/**
+	 * Results are only cached for ValueSets with url, keyed by url, version and expansion identifier and timestamp, by
+	 * url, version and an expansion fingerprint if expanded without identifier or timestamp, or by url, version and a
+	 * compose fingerprint if not expanded.
+	 */
+	@Override
+	public CodeValidationResult validateCodeInValueSet(ValidationSupportContext supportContext,
+			ConceptValidationOptions options, String codeSystem, String code, String display, IBaseResource valueSet)
+	{
+		if (!(valueSet instanceof ValueSet v) || !v.hasUrl())
+			return delegate.validateCodeInValueSet(supportContext, options, codeSystem, code, display, valueSet);
+
+		return codeValidationsInValueSet.get(CodeKey.from(options, codeSystem, code, display, valueSetKey(v)),
+				k -> delegate.validateCodeInValueSet(supportContext, options, codeSystem, code, display, valueSet));
+	}
+
+	private String valueSetKey(ValueSet valueSet)
+	{
+		// not expanded ValueSets with the same url and version may differ in compose
+		if (!valueSet.hasExpansion())
+			return valueSet.getUrl() + "|" + valueSet.getVersion() + "|false|" + composeFingerprints.get(valueSet,
+					v -> v.hasCompose() ? BinaryResourceFormat.fingerprint(v.getCompose()) : "");
+
+		// expansions without identifier or timestamp of ValueSets with the same url and version may differ in contains
+		if (!valueSet.getExpansion().hasIdentifier() || !valueSet.getExpansion().hasTimestamp())
+			return valueSet.getUrl() + "|" + valueSet.getVersion() + "|true|" + expansionFingerprints.get(valueSet,
+					v -> BinaryResourceFormat.fingerprint(v.getExpansion()));
+
+		return valueSet.getUrl() + "|" + valueSet.getVersion() + "|true|" + valueSet.getExpansion().getIdentifier()
+				+ "|" + valueSet.getExpansion().getTimestamp().getTime();
+	}
+
+	@Override
+	public ValueSetExpansionOutcome expandValueSet(ValidationSupportContext supportContext,
+			ValueSetExpansionOptions expansionOptions, IBaseResource valueSetToExpand)
+	{
+		return delegate.expandValueSet(supportContext, expansionOptions, valueSetToExpand);
+	}
+
+	@Override
+	public ValueSetExpansionOutcome expandValueSet(ValidationSupportContext supportContext,
+			ValueSetExpansionOptions expansionOptions, String valueSetUrlToExpand)
+	{
+		return delegate.expandValueSet(supportContext, expansionOptions, valueSetUrlToExpand);
+	}
+
+	@Override
+	public List<IBaseResource> fetchAllConformanceResources()
+	{
+		return delegate.fetchAllConformanceResources();
+	}
+
+	@Override
+	public <T extends IBaseResource> List<T> fetchAllSearchParameters()
+	{
+		return delegate.fetchAllSearchParameters();
+	}
+
+	@Override
+	public <T extends IBaseResource> List<T> fetchAllStructureDefinitions()
+	{
+		return delegate.fetchAllStructureDefinitions();
+	}
+
+	@Override
+	public <T extends IBaseResource> List<T> fetchAllNonBaseStructureDefinitions()
+	{
+		return delegate.fetchAllNonBaseStructureDefinitions();
+	}
+
+	@Override
+	public byte[] fetchBinary(String binaryKey)
+	{
+		return delegate.fetchBinary(binaryKey);
+	}
+
+	@Override
+	public boolean isRemoteTerminologyServiceConfigured()
+	{
+		return delegate.isRemoteTerminologyServiceConfigured();
+	}
+
+	@Override
+	public LookupCodeResult lookupCode(ValidationSupportContext supportContext, LookupCodeRequest request)
+	{
+		return delegate.lookupCode(supportContext, request);
+	}
+
+	@Override
+	public IBaseResource generateSnapshot(ValidationSupportContext supportContext, IBaseResource input, String url,
+			String webUrl, String profileName)
+	{
+		return delegate.generateSnapshot(supportContext, input, url, webUrl, profileName);
+	}
+
+	@Override
+	public TranslateConceptResults translateConcept(TranslateCodeRequest request)
+	{
+		return delegate.translateConcept(request);
+	}
+
+	@Override
+	public boolean isCodeableConceptValidationSuccessfulIfNotAllCodingsAreValid()
+	{
+		return delegate.isCodeableConceptValidationSuccessfulIfNotAllCodingsAreValid();
+	}
+
+	@Override
+	public void invalidateCaches()
+	{
+		caches().forEach(c -> c.entries.invalidateAll());
+
+		delegate.invalidateCaches();
+	}
+
+	/**
+	 * @return statistics per cached method
+	 */
+	public List<Statistics> getStatistics()
+	{
+		return caches().stream().map(MethodCache::getStatistics).toList();
+	}
+
+	private List<MethodCache<?, ?>> caches()
+	{
+		return List.of(structureDefinitions, valueSets, codeSystems, valueSetSupported, codeSystemSupported,
+				codeValidations, codeValidationsInValueSet);
+	}
+
+	public void logStatistics()
+	{
+		for (Statistics s : getStatistics())
+		{
+			logger.info("Validation support cache {}: {} hits, {} misses (hit ratio {}), {} evictions, {} entries, "
+					+ "{} of {} KiB", s.method(), s.hits(), s.misses(), String.format("%.2f", s.hitRatio()),
+					s.evictions(), s.entries(), s.weightBytes() / 1024, s.maxWeightBytes() / 1024);
+		}
+	}
+}
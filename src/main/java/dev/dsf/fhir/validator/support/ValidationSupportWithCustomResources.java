@@ -2,9 +2,10 @@ package dev.dsf.fhir.validator.support;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -18,13 +19,18 @@ import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.IValidationSupport;
 import ca.uhn.fhir.context.support.ValidationSupportContext;
 
+/**
+ * Thread safe, resources may be added or replaced while in use. CodeSystems may be added as suppliers, called on first
+ * fetch.
+ */
 public class ValidationSupportWithCustomResources implements IValidationSupport
 {
 	private final FhirContext context;
 
-	private final Map<String, StructureDefinition> structureDefinitionsByUrl = new HashMap<>();
-	private final Map<String, CodeSystem> codeSystemsByUrl = new HashMap<>();
-	private final Map<String, ValueSet> valueSetsByUrl = new HashMap<>();
+	private final Map<String, StructureDefinition> structureDefinitionsByUrl = new ConcurrentHashMap<>();
+	private final Map<String, CodeSystem> codeSystemsByUrl = new ConcurrentHashMap<>();
+	private final Map<String, Supplier<CodeSystem>> lazyCodeSystemsByUrl = new ConcurrentHashMap<>();
+	private final Map<String, ValueSet> valueSetsByUrl = new ConcurrentHashMap<>();
 
 	public ValidationSupportWithCustomResources(FhirContext context)
 	{
@@ -54,6 +60,8 @@ public class ValidationSupportWithCustomResources implements IValidationSupport
 	@Override
 	public List<IBaseResource> fetchAllConformanceResources()
 	{
+		lazyCodeSystemsByUrl.keySet().forEach(this::fetchCodeSystem);
+
 		return Stream
 				.concat(codeSystemsByUrl.values().stream(),
 						Stream.concat(fetchAllStructureDefinitions().stream(), valueSetsByUrl.values().stream()))
@@ -77,11 +85,14 @@ public class ValidationSupportWithCustomResources implements IValidationSupport
 	@Override
 	public StructureDefinition fetchStructureDefinition(String url)
 	{
-		return structureDefinitionsByUrl.getOrDefault(url, null);
+		return url == null ? null : structureDefinitionsByUrl.get(url);
 	}
 
 	public void addOrReplace(StructureDefinition s)
 	{
+		if (!s.hasUrl())
+			return;
+
 		structureDefinitionsByUrl.put(s.getUrl(), s);
 		structureDefinitionsByUrl.put(s.getUrl() + "|" + s.getVersion(), s);
 	}
@@ -89,36 +100,81 @@ public class ValidationSupportWithCustomResources implements IValidationSupport
 	@Override
 	public CodeSystem fetchCodeSystem(String url)
 	{
-		return codeSystemsByUrl.getOrDefault(url, null);
+		if (url == null)
+			return null;
+
+		CodeSystem codeSystem = codeSystemsByUrl.get(url);
+		if (codeSystem != null)
+			return codeSystem;
+
+		Supplier<CodeSystem> lazyCodeSystem = lazyCodeSystemsByUrl.get(url);
+		if (lazyCodeSystem == null)
+			return null;
+
+		codeSystem = lazyCodeSystem.get();
+		if (codeSystem != null)
+		{
+			codeSystemsByUrl.putIfAbsent(url, codeSystem);
+			lazyCodeSystemsByUrl.remove(url, lazyCodeSystem);
+		}
+
+		return codeSystem;
 	}
 
 	@Override
 	public boolean isCodeSystemSupported(ValidationSupportContext theRootValidationSupport, String url)
 	{
-		CodeSystem codeSystem = codeSystemsByUrl.get(url);
+		CodeSystem codeSystem = fetchCodeSystem(url);
 		return codeSystem != null && CodeSystemContentMode.COMPLETE.equals(codeSystem.getContent());
 	}
 
 	public void addOrReplace(CodeSystem s)
 	{
+		if (!s.hasUrl())
+			return;
+
+		lazyCodeSystemsByUrl.remove(s.getUrl());
+		lazyCodeSystemsByUrl.remove(s.getUrl() + "|" + s.getVersion());
+
 		codeSystemsByUrl.put(s.getUrl(), s);
 		codeSystemsByUrl.put(s.getUrl() + "|" + s.getVersion(), s);
 	}
 
+	/**
+	 * @param url
+	 *            not <code>null</code>
+	 * @param version
+	 *            may be <code>null</code>
+	 * @param codeSystem
+	 *            not <code>null</code>, called on first fetch by <b>url</b> or <b>url|version</b>, needs to return the
+	 *            same instance on every call, may return <code>null</code>
+	 */
+	public void addOrReplace(String url, String version, Supplier<CodeSystem> codeSystem)
+	{
+		codeSystemsByUrl.remove(url);
+		codeSystemsByUrl.remove(url + "|" + version);
+
+		lazyCodeSystemsByUrl.put(url, codeSystem);
+		lazyCodeSystemsByUrl.put(url + "|" + version, codeSystem);
+	}
+
 	@Override
 	public ValueSet fetchValueSet(String url)
 	{
-		return valueSetsByUrl.getOrDefault(url, null);
+		return url == null ? null : valueSetsByUrl.get(url);
 	}
 
 	@Override
 	public boolean isValueSetSupported(ValidationSupportContext theRootValidationSupport, String url)
 	{
-		return valueSetsByUrl.containsKey(url);
+		return url != null && valueSetsByUrl.containsKey(url);
 	}
 
 	public void addOrReplace(ValueSet s)
 	{
+		if (!s.hasUrl())
+			return;
+
 		valueSetsByUrl.put(s.getUrl(), s);
 		valueSetsByUrl.put(s.getUrl() + "|" + s.getVersion(), s);
 	}
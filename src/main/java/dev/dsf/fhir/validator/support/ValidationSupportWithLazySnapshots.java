@@ -0,0 +1,294 @@
+package dev.dsf.fhir.validator.support;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+
+/**
+ * Generates snapshots of differential only StructureDefinitions on first fetch, dependencies first. Generated snapshots
+ * are returned for all further fetches. A generating thread claims the StructureDefinition and all its not yet
+ * generated dependencies, concurrent fetches of claimed StructureDefinitions wait for the running generation,
+ * StructureDefinitions with unrelated dependencies are generated concurrently. Claims are taken all at once. Fetches
+ * from within snapshot generation of StructureDefinitions not claimed by the generating thread claim and generate them
+ * as well, or wait for other threads generating them. Fetches of StructureDefinitions claimed by the generating thread
+ * (cyclic dependencies), or claimed by threads waiting for the generating thread, return <code>null</code>, allowing
+ * following supports of a validation support chain to return the differential; results of the following supports must
+ * therefore not be cached while generating. Thread safe.
+ */
+public class ValidationSupportWithLazySnapshots implements IValidationSupport
+{
+	private static final Logger logger = LoggerFactory.getLogger(ValidationSupportWithLazySnapshots.class);
+
+	/**
+	 * @param url
+	 *            url of the fetched StructureDefinition
+	 * @param version
+	 *            version of the fetched StructureDefinition
+	 * @param millis
+	 *            time to generate the snapshot incl. not yet generated dependencies
+	 * @param generatedSnapshots
+	 *            number of snapshots generated incl. dependencies
+	 */
+	public static record FirstUse(String url, String version, long millis, int generatedSnapshots)
+	{
+	}
+
+	private final FhirContext context;
+	private final Function<StructureDefinition, List<StructureDefinition>> dependencies;
+	private final Function<StructureDefinition, Optional<StructureDefinition>> snapshotGenerator;
+
+	private final Map<String, StructureDefinition> differentialsByUrl = new HashMap<>();
+	private final Set<StructureDefinition> differentials = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private final Map<StructureDefinition, Optional<StructureDefinition>> snapshots = new ConcurrentHashMap<>();
+
+	// claimed StructureDefinitions by generating thread and threads waiting for claims of other threads while holding
+	// claims, guarded by claimsLock
+	private final Map<StructureDefinition, Thread> claims = new IdentityHashMap<>();
+	private final Map<Thread, Thread> waitingForClaims = new HashMap<>();
+	private final ReentrantLock claimsLock = new ReentrantLock();
+	private final Condition claimsReleased = claimsLock.newCondition();
+	private final Queue<FirstUse> firstUses = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param context
+	 *            not <code>null</code>
+	 * @param differentials
+	 *            not <code>null</code>, StructureDefinitions without snapshot, later entries replace earlier entries
+	 *            with the same url or url|version
+	 * @param dependencies
+	 *            not <code>null</code>, transitive dependencies of a StructureDefinition in dependency first order
+	 * @param snapshotGenerator
+	 *            not <code>null</code>, returns a StructureDefinition with snapshot or empty if generation failed,
+	 *            called concurrently for StructureDefinitions with unrelated dependencies
+	 */
+	public ValidationSupportWithLazySnapshots(FhirContext context,
+			Collection<? extends StructureDefinition> differentials,
+			Function<StructureDefinition, List<StructureDefinition>> dependencies,
+			Function<StructureDefinition, Optional<StructureDefinition>> snapshotGenerator)
+	{
+		this.context = context;
+		this.dependencies = dependencies;
+		this.snapshotGenerator = snapshotGenerator;
+
+		differentials.stream().filter(StructureDefinition::hasUrl).forEach(sd ->
+		{
+			differentialsByUrl.put(sd.getUrl(), sd);
+			differentialsByUrl.put(sd.getUrl() + "|" + sd.getVersion(), sd);
+		});
+		this.differentials.addAll(differentialsByUrl.values());
+	}
+
+	@Override
+	public FhirContext getFhirContext()
+	{
+		return context;
+	}
+
+	@Override
+	public StructureDefinition fetchStructureDefinition(String url)
+	{
+		StructureDefinition differential = url == null ? null : differentialsByUrl.get(url);
+		if (differential == null)
+			return null;
+
+		Optional<StructureDefinition> snapshot = snapshots.get(differential);
+		if (snapshot != null)
+			return snapshot.orElse(null);
+
+		Claim claim = claim(differential);
+
+		// fetch from within snapshot generation, dependency with cyclic dependencies not generated yet
+		if (claim == null)
+			return null;
+
+		// generated while waiting for claims
+		if (claim.claimed().isEmpty())
+			return snapshots.get(differential).orElse(null);
+
+		try
+		{
+			long start = System.currentTimeMillis();
+
+			// claimed in dependency first order, fetched StructureDefinition last
+			for (StructureDefinition sd : claim.claimed())
+				snapshot = generate(sd);
+
+			// dependencies fetched from within snapshot generation are part of the outer first use
+			if (!claim.nested())
+			{
+				FirstUse firstUse = new FirstUse(differential.getUrl(), differential.getVersion(),
+						System.currentTimeMillis() - start, claim.claimed().size());
+				firstUses.add(firstUse);
+
+				logger.info("Snapshot for {}|{} generated on first use in {} ms, {} snapshots incl. dependencies",
+						firstUse.url(), firstUse.version(), firstUse.millis(), firstUse.generatedSnapshots());
+			}
+
+			return snapshot.orElse(null);
+		}
+		finally
+		{
+			release(claim.claimed());
+		}
+	}
+
+	/**
+	 * @param claimed
+	 *            claimed not yet generated dependencies and the fetched StructureDefinition in dependency first order,
+	 *            empty if generated while waiting
+	 * @param nested
+	 *            <code>true</code> if claimed from within snapshot generation
+	 */
+	private static record Claim(List<StructureDefinition> claimed, boolean nested)
+	{
+	}
+
+	/**
+	 * @return <code>null</code> if the given StructureDefinition is claimed by the current thread, or if waiting for
+	 *         claims of other threads would deadlock, else the claim
+	 */
+	private Claim claim(StructureDefinition differential)
+	{
+		Thread current = Thread.currentThread();
+		List<StructureDefinition> dependencies = this.dependencies.apply(differential);
+
+		claimsLock.lock();
+		try
+		{
+			boolean nested = claims.containsValue(current);
+
+			while (true)
+			{
+				if (snapshots.containsKey(differential))
+					return new Claim(List.of(), nested);
+
+				// cyclic dependency, generation running in an outer fetch of this thread
+				if (current.equals(claims.get(differential)))
+					return null;
+
+				// dependencies claimed by this thread are generated by outer fetches of this thread
+				Set<StructureDefinition> toGenerate = Collections.newSetFromMap(new IdentityHashMap<>());
+				List<StructureDefinition> ordered = Stream
+						.concat(dependencies.stream().filter(sd -> sd != differential), Stream.of(differential))
+						.filter(differentials::contains).filter(sd -> !snapshots.containsKey(sd))
+						.filter(sd -> !current.equals(claims.get(sd))).filter(toGenerate::add).toList();
+
+				Optional<Thread> claimedBy = ordered.stream().map(claims::get).filter(t -> t != null).findFirst();
+				if (claimedBy.isEmpty())
+				{
+					ordered.forEach(sd -> claims.put(sd, current));
+					return new Claim(ordered, nested);
+				}
+
+				if (!nested)
+					claimsReleased.awaitUninterruptibly();
+				else if (waitsFor(claimedBy.get(), current))
+					return null;
+				else
+				{
+					// other threads may wait for claims of this thread
+					waitingForClaims.put(current, claimedBy.get());
+					try
+					{
+						claimsReleased.awaitUninterruptibly();
+					}
+					finally
+					{
+						waitingForClaims.remove(current);
+					}
+				}
+			}
+		}
+		finally
+		{
+			claimsLock.unlock();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the given thread waits directly or indirectly for claims of the given other thread
+	 */
+	private boolean waitsFor(Thread thread, Thread other)
+	{
+		for (Thread t = thread; t != null; t = waitingForClaims.get(t))
+		{
+			if (t.equals(other))
+				return true;
+		}
+
+		return false;
+	}
+
+	private void release(List<StructureDefinition> claimed)
+	{
+		claimsLock.lock();
+		try
+		{
+			claimed.forEach(claims::remove);
+			claimsReleased.signalAll();
+		}
+		finally
+		{
+			claimsLock.unlock();
+		}
+	}
+
+	private Optional<StructureDefinition> generate(StructureDefinition differential)
+	{
+		Optional<StructureDefinition> snapshot = snapshotGenerator.apply(differential);
+		snapshots.put(differential, snapshot);
+
+		return snapshot;
+	}
+
+	/**
+	 * @return StructureDefinitions fetched so far with first use latency, slowest first
+	 */
+	public List<FirstUse> getFirstUses()
+	{
+		return firstUses.stream().sorted(Comparator.comparingLong(FirstUse::millis).reversed()).toList();
+	}
+
+	/**
+	 * Logs number and total latency of snapshots generated on first use, and the slowest first uses.
+	 *
+	 * @param maxFirstUses
+	 *            maximum number of first uses logged
+	 */
+	public void logStatistics(int maxFirstUses)
+	{
+		List<FirstUse> firstUses = getFirstUses();
+
+		logger.info("Lazy snapshot generation: {} of {} snapshots generated, {} first uses in {} ms total{}",
+				snapshots.size(), differentials.size(), firstUses.size(),
+				firstUses.stream().mapToLong(FirstUse::millis).sum(),
+				firstUses.isEmpty() ? ""
+						: ", slowest "
+								+ firstUses.stream().limit(maxFirstUses)
+										.map(f -> f.url() + "|" + f.version() + " " + f.millis() + " ms ("
+												+ f.generatedSnapshots() + " snapshots)")
+										.collect(Collectors.joining(", ", "[", "]")));
+	}
+}
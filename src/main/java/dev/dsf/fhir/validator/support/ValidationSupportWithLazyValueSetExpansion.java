@@ -0,0 +1,138 @@
+package dev.dsf.fhir.validator.support;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.hl7.fhir.r4.model.ValueSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+
+/**
+ * Expands ValueSets on first fetch and returns the expanded ValueSet for all further fetches. Concurrent first fetches
+ * of the same ValueSet wait for a single expansion. If the expansion fails <code>null</code> is returned, allowing
+ * following supports of a validation support chain to return the not expanded ValueSet. Thread safe.
+ */
+public class ValidationSupportWithLazyValueSetExpansion implements IValidationSupport
+{
+	private static final Logger logger = LoggerFactory.getLogger(ValidationSupportWithLazyValueSetExpansion.class);
+
+	public static record Statistics(long valueSets, long requested, long expanded, long failed)
+	{
+	}
+
+	private final FhirContext context;
+	private final Function<ValueSet, CompletableFuture<Optional<ValueSet>>> expansion;
+
+	private final Map<String, ValueSet> valueSetsByUrl = new ConcurrentHashMap<>();
+	private final Set<ValueSet> valueSets = Collections.newSetFromMap(new IdentityHashMap<>());
+	private final Map<ValueSet, CompletableFuture<Optional<ValueSet>>> expansions = Collections
+			.synchronizedMap(new IdentityHashMap<>());
+
+	private final AtomicLong expanded = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * @param context
+	 *            not <code>null</code>
+	 * @param valueSets
+	 *            not <code>null</code>, ValueSets to expand on first fetch, later entries replace earlier entries with
+	 *            the same url or url|version
+	 * @param expansion
+	 *            not <code>null</code>, returns an expanded copy of the given ValueSet or empty if expansion not
+	 *            possible, may complete the returned future on the calling thread
+	 */
+	public ValidationSupportWithLazyValueSetExpansion(FhirContext context, Collection<? extends ValueSet> valueSets,
+			Function<ValueSet, CompletableFuture<Optional<ValueSet>>> expansion)
+	{
+		this.context = context;
+		this.expansion = expansion;
+
+		valueSets.stream().filter(ValueSet::hasUrl).forEach(v ->
+		{
+			valueSetsByUrl.put(v.getUrl(), v);
+			valueSetsByUrl.put(v.getUrl() + "|" + v.getVersion(), v);
+		});
+		this.valueSets.addAll(valueSetsByUrl.values());
+	}
+
+	@Override
+	public FhirContext getFhirContext()
+	{
+		return context;
+	}
+
+	@Override
+	public ValueSet fetchValueSet(String url)
+	{
+		ValueSet valueSet = url == null ? null : valueSetsByUrl.get(url);
+		if (valueSet == null)
+			return null;
+
+		return expand(valueSet).join().orElse(null);
+	}
+
+	private CompletableFuture<Optional<ValueSet>> expand(ValueSet valueSet)
+	{
+		CompletableFuture<Optional<ValueSet>> existing = expansions.get(valueSet);
+		if (existing != null)
+			return existing;
+
+		// not using computeIfAbsent, expansion may complete on the calling thread
+		CompletableFuture<Optional<ValueSet>> future = new CompletableFuture<>();
+		existing = expansions.putIfAbsent(valueSet, future);
+		if (existing != null)
+			return existing;
+
+		logger.debug("Expanding ValueSet {}|{} on first use", valueSet.getUrl(), valueSet.getVersion());
+
+		expansion.apply(valueSet).whenComplete((result, exception) ->
+		{
+			if (exception != null)
+			{
+				logger.warn("Unable to expand ValueSet {}|{}: {} - {}", valueSet.getUrl(), valueSet.getVersion(),
+						exception.getClass().getName(), exception.getMessage());
+				result = Optional.empty();
+			}
+
+			(result.isPresent() ? expanded : failed).incrementAndGet();
+			future.complete(result);
+		});
+
+		return future;
+	}
+
+	/**
+	 * Starts the expansion of all not yet expanded ValueSets, returns without waiting for running expansions if the
+	 * configured expansion function completes asynchronously.
+	 */
+	public void prefetch()
+	{
+		logger.debug("Prefetching {} ValueSet expansions", valueSets.size());
+
+		valueSets.forEach(this::expand);
+	}
+
+	public Statistics getStatistics()
+	{
+		return new Statistics(valueSets.size(), expansions.size(), expanded.get(), failed.get());
+	}
+
+	public void logStatistics()
+	{
+		Statistics s = getStatistics();
+
+		logger.info("Lazy ValueSet expansion: {} of {} ValueSets requested, {} expanded, {} failed", s.requested(),
+				s.valueSets(), s.expanded(), s.failed());
+	}
+}
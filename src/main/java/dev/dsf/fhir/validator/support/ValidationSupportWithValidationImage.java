@@ -0,0 +1,92 @@
+package dev.dsf.fhir.validator.support;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.CodeSystem.CodeSystemContentMode;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.ValueSet;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import dev.dsf.fhir.validator.image.ValidationImage;
+import dev.dsf.fhir.validator.image.ValidationImage.EntryType;
+
+public class ValidationSupportWithValidationImage implements IValidationSupport
+{
+	private final FhirContext context;
+	private final ValidationImage image;
+
+	public ValidationSupportWithValidationImage(FhirContext context, ValidationImage image)
+	{
+		this.context = context;
+		this.image = image;
+	}
+
+	@Override
+	public FhirContext getFhirContext()
+	{
+		return context;
+	}
+
+	@Override
+	public List<IBaseResource> fetchAllConformanceResources()
+	{
+		List<IBaseResource> resources = new ArrayList<>();
+		resources.addAll(image.getAll(EntryType.CODE_SYSTEM));
+		resources.addAll(image.getAll(EntryType.STRUCTURE_DEFINITION));
+		resources.addAll(image.getAll(EntryType.VALUE_SET));
+		return resources;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<StructureDefinition> fetchAllStructureDefinitions()
+	{
+		return image.getAll(EntryType.STRUCTURE_DEFINITION);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public List<StructureDefinition> fetchAllNonBaseStructureDefinitions()
+	{
+		return image.getAll(EntryType.STRUCTURE_DEFINITION);
+	}
+
+	@Override
+	public StructureDefinition fetchStructureDefinition(String url)
+	{
+		return image.get(EntryType.STRUCTURE_DEFINITION, url);
+	}
+
+	@Override
+	public CodeSystem fetchCodeSystem(String url)
+	{
+		return image.get(EntryType.CODE_SYSTEM, url);
+	}
+
+	@Override
+	public boolean isCodeSystemSupported(ValidationSupportContext theRootValidationSupport, String url)
+	{
+		if (!image.contains(EntryType.CODE_SYSTEM, url))
+			return false;
+
+		CodeSystem codeSystem = fetchCodeSystem(url);
+		return codeSystem != null && CodeSystemContentMode.COMPLETE.equals(codeSystem.getContent());
+	}
+
+	@Override
+	public ValueSet fetchValueSet(String url)
+	{
+		return image.get(EntryType.VALUE_SET, url);
+	}
+
+	@Override
+	public boolean isValueSetSupported(ValidationSupportContext theRootValidationSupport, String url)
+	{
+		return image.contains(EntryType.VALUE_SET, url);
+	}
+}
@@ -4,8 +4,17 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.hl7.fhir.r4.model.CanonicalType;
+import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.terminologies.ValueSetExpander.ValueSetExpansionOutcome;
@@ -14,8 +23,13 @@ import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.InitializingBean;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.IValidationSupport;
 import dev.dsf.fhir.validator.cache.AbstractFhirResourceFileSystemCache;
 import dev.dsf.fhir.validator.cache.AbstractFileSystemCache;
+import dev.dsf.fhir.validator.cache.BinaryResourceFormat;
+import dev.dsf.fhir.validator.cache.CacheCodec;
+import dev.dsf.fhir.validator.cache.MemoryCache;
+import dev.dsf.fhir.validator.cache.Sha256;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageClientWithFileSystemCache;
 
 public class ValueSetExpanderWithFileSystemCache
@@ -25,8 +39,12 @@ public class ValueSetExpanderWithFileSystemCache
 	private static final Logger logger = LoggerFactory.getLogger(ValidationPackageClientWithFileSystemCache.class);
 
 	private final ValueSetExpander delegate;
+	private final String delegateFingerprint;
+	private final IValidationSupport validationSupport;
 	private final boolean cacheDraftResources;
 
+	private final Map<CodeSystem, String> codeSystemFingerprints = Collections.synchronizedMap(new IdentityHashMap<>());
+
 	/**
 	 * For JSON content with gzip compression using the <code>.json.xz</code> file name suffix.
 	 *
@@ -44,9 +62,42 @@ public class ValueSetExpanderWithFileSystemCache
 	public ValueSetExpanderWithFileSystemCache(Path cacheFolder, FhirContext fhirContext, ValueSetExpander delegate,
 			boolean cacheDraftResources)
 	{
-		super(cacheFolder, ValueSet.class, fhirContext);
+		this(cacheFolder, Format.JSON, CacheCodec.GZIP, null, fhirContext, delegate, null, null, cacheDraftResources);
+	}
+
+	/**
+	 * For content encoded with the given format and compressed with the given codec, gzip compressed JSON entries are
+	 * migrated on first read. Cache entries are keyed by the content of the ValueSet, the delegate fingerprint and, if
+	 * a validation support is given, the CodeSystems and ValueSets included or excluded by the ValueSet.
+	 *
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @param format
+	 *            not <code>null</code>
+	 * @param codec
+	 *            not <code>null</code>
+	 * @param memoryCache
+	 *            may be <code>null</code>, in-memory tier in front of the cache folder
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param delegate
+	 *            not <code>null</code>
+	 * @param delegateFingerprint
+	 *            may be <code>null</code>, configuration of the delegate affecting expansions, e.g. ValueSet modifier
+	 *            classes
+	 * @param validationSupport
+	 *            may be <code>null</code>, used to fingerprint dependencies
+	 * @param cacheDraftResources
+	 */
+	public ValueSetExpanderWithFileSystemCache(Path cacheFolder, Format format, CacheCodec codec,
+			MemoryCache memoryCache, FhirContext fhirContext, ValueSetExpander delegate, String delegateFingerprint,
+			IValidationSupport validationSupport, boolean cacheDraftResources)
+	{
+		super(cacheFolder, format, codec, memoryCache, ValueSet.class, fhirContext);
 
 		this.delegate = delegate;
+		this.delegateFingerprint = delegateFingerprint;
+		this.validationSupport = validationSupport;
 		this.cacheDraftResources = cacheDraftResources;
 	}
 
@@ -58,6 +109,8 @@ public class ValueSetExpanderWithFileSystemCache
 		super(cacheFolder, fileNameSuffix, outCompressorFactory, inCompressorFactory, ValueSet.class, fhirContext);
 
 		this.delegate = delegate;
+		this.delegateFingerprint = null;
+		this.validationSupport = null;
 		this.cacheDraftResources = cacheDraftResources;
 	}
 
@@ -83,23 +136,63 @@ public class ValueSetExpanderWithFileSystemCache
 		Objects.requireNonNull(valueSet.getUrl(), "valueSet.url");
 		Objects.requireNonNull(valueSet.getVersion(), "valueSet.version");
 
-		try
-		{
-			ValueSetExpansionOutcome read = readResourceFromCache(valueSet.getUrl(), valueSet.getVersion(),
-					ValueSetExpansionOutcome::new);
+		String cacheEntryId = cacheEntryId(valueSet.getUrl(), valueSet.getVersion(), valueSet,
+				dependencyFingerprints(valueSet));
 
-			if (read != null)
-				return read;
-			else
-				return downloadAndWriteToCache(valueSet);
-		}
-		catch (IOException e)
+		return readResourceFromCacheOrCreate(cacheEntryId, ValueSetExpansionOutcome::new,
+				() -> downloadAndWriteToCache(valueSet, cacheEntryId));
+	}
+
+	private Stream<String> dependencyFingerprints(ValueSet valueSet)
+	{
+		Stream<String> configuration = Stream.of("delegate:" + Objects.toString(delegateFingerprint, ""));
+
+		if (validationSupport == null)
+			return configuration;
+		else
 		{
-			throw new RuntimeException(e);
+			Set<String> visited = new HashSet<>();
+			visited.add(valueSet.getUrl());
+			visited.add(valueSet.getUrl() + "|" + valueSet.getVersion());
+
+			return Stream.concat(configuration, composeFingerprints(valueSet, visited));
 		}
 	}
 
-	private ValueSetExpansionOutcome downloadAndWriteToCache(ValueSet valueSet) throws IOException
+	private Stream<String> composeFingerprints(ValueSet valueSet, Set<String> visited)
+	{
+		if (!valueSet.hasCompose())
+			return Stream.empty();
+
+		return Stream.concat(valueSet.getCompose().getInclude().stream(), valueSet.getCompose().getExclude().stream())
+				.flatMap(c -> Stream.concat(
+						c.hasSystem() ? Stream.of("codesystem:" + c.getSystem() + "|" + c.getVersion() + ":"
+								+ codeSystemFingerprint(c.getSystem())) : Stream.empty(),
+						c.getValueSet().stream().filter(CanonicalType::hasValue).map(CanonicalType::getValue)
+								.map(url -> "valueset:" + url + ":" + valueSetFingerprint(url, visited))));
+	}
+
+	private String codeSystemFingerprint(String system)
+	{
+		if (!(validationSupport.fetchCodeSystem(system) instanceof CodeSystem codeSystem))
+			return "missing";
+		else
+			return codeSystemFingerprints.computeIfAbsent(codeSystem, BinaryResourceFormat::fingerprint);
+	}
+
+	private String valueSetFingerprint(String url, Set<String> visited)
+	{
+		if (!visited.add(url))
+			return "cyclic";
+		else if (!(validationSupport.fetchValueSet(url) instanceof ValueSet included))
+			return "missing";
+		else
+			return Sha256.hex(Stream.concat(Stream.of(BinaryResourceFormat.fingerprint(included, "expansion")),
+					composeFingerprints(included, visited)).collect(Collectors.joining("\n")));
+	}
+
+	private ValueSetExpansionOutcome downloadAndWriteToCache(ValueSet valueSet, String cacheEntryId)
+			throws IOException
 	{
 		ValueSetExpansionOutcome expanded = delegate.expand(valueSet);
 
@@ -110,7 +203,6 @@ public class ValueSetExpanderWithFileSystemCache
 			return expanded;
 		}
 		else
-			return writeResourceToCache(expanded, ValueSetExpansionOutcome::getValueset, ValueSet::getUrl,
-					ValueSet::getVersion);
+			return writeResourceToCache(expanded, ValueSetExpansionOutcome::getValueset, cacheEntryId);
 	}
 }
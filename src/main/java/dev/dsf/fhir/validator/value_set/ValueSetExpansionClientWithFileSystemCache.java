@@ -6,6 +6,7 @@ import java.nio.file.Path;
 import java.util.List;
 import java.util.Objects;
 import java.util.function.Function;
+import java.util.stream.Stream;
 
 import org.hl7.fhir.r4.model.CapabilityStatement;
 import org.hl7.fhir.r4.model.Coding;
@@ -18,6 +19,8 @@ import org.springframework.beans.factory.InitializingBean;
 import ca.uhn.fhir.context.FhirContext;
 import dev.dsf.fhir.validator.cache.AbstractFhirResourceFileSystemCache;
 import dev.dsf.fhir.validator.cache.AbstractFileSystemCache;
+import dev.dsf.fhir.validator.cache.CacheCodec;
+import dev.dsf.fhir.validator.cache.MemoryCache;
 import dev.dsf.fhir.validator.client.TerminologyServerClient;
 import dev.dsf.fhir.validator.implementation_guide.ValidationPackageClientWithFileSystemCache;
 import jakarta.ws.rs.WebApplicationException;
@@ -28,6 +31,7 @@ public class ValueSetExpansionClientWithFileSystemCache extends AbstractFhirReso
 	private static final Logger logger = LoggerFactory.getLogger(ValidationPackageClientWithFileSystemCache.class);
 
 	private final TerminologyServerClient delegate;
+	private final String delegateFingerprint;
 	private final boolean cacheDraftResources;
 
 	/**
@@ -47,9 +51,39 @@ public class ValueSetExpansionClientWithFileSystemCache extends AbstractFhirReso
 	public ValueSetExpansionClientWithFileSystemCache(Path cacheFolder, FhirContext fhirContext,
 			TerminologyServerClient delegate, boolean cacheDraftResources)
 	{
-		super(cacheFolder, ValueSet.class, fhirContext);
+		this(cacheFolder, Format.JSON, CacheCodec.GZIP, null, fhirContext, delegate, null, cacheDraftResources);
+	}
+
+	/**
+	 * For content encoded with the given format and compressed with the given codec, gzip compressed JSON entries are
+	 * migrated on first read. Cache entries are keyed by the content of the ValueSet and the delegate fingerprint,
+	 * CodeSystem versions used by the terminology server are not part of the key.
+	 *
+	 * @param cacheFolder
+	 *            not <code>null</code>
+	 * @param format
+	 *            not <code>null</code>
+	 * @param codec
+	 *            not <code>null</code>
+	 * @param memoryCache
+	 *            may be <code>null</code>, in-memory tier in front of the cache folder
+	 * @param fhirContext
+	 *            not <code>null</code>
+	 * @param delegate
+	 *            not <code>null</code>
+	 * @param delegateFingerprint
+	 *            may be <code>null</code>, configuration of the delegate affecting expansions, e.g. terminology server
+	 *            base url and ValueSet modifier classes
+	 * @param cacheDraftResources
+	 */
+	public ValueSetExpansionClientWithFileSystemCache(Path cacheFolder, Format format, CacheCodec codec,
+			MemoryCache memoryCache, FhirContext fhirContext, TerminologyServerClient delegate,
+			String delegateFingerprint, boolean cacheDraftResources)
+	{
+		super(cacheFolder, format, codec, memoryCache, ValueSet.class, fhirContext);
 
 		this.delegate = delegate;
+		this.delegateFingerprint = delegateFingerprint;
 		this.cacheDraftResources = cacheDraftResources;
 	}
 
@@ -61,6 +95,7 @@ public class ValueSetExpansionClientWithFileSystemCache extends AbstractFhirReso
 		super(cacheFolder, fileNameSuffix, outCompressorFactory, inCompressorFactory, ValueSet.class, fhirContext);
 
 		this.delegate = delegate;
+		this.delegateFingerprint = null;
 		this.cacheDraftResources = cacheDraftResources;
 	}
 
@@ -86,15 +121,14 @@ public class ValueSetExpansionClientWithFileSystemCache extends AbstractFhirReso
 		Objects.requireNonNull(valueSet.getUrl(), "valueSet.url");
 		Objects.requireNonNull(valueSet.getVersion(), "valueSet.version");
 
-		ValueSet read = readResourceFromCache(valueSet.getUrl(), valueSet.getVersion(), Function.identity());
+		String cacheEntryId = cacheEntryId(valueSet.getUrl(), valueSet.getVersion(), valueSet,
+				Stream.of("delegate:" + Objects.toString(delegateFingerprint, "")));
 
-		if (read != null)
-			return read;
-		else
-			return expandAndWriteToCache(valueSet);
+		return readResourceFromCacheOrCreate(cacheEntryId, Function.identity(),
+				() -> expandAndWriteToCache(valueSet, cacheEntryId));
 	}
 
-	private ValueSet expandAndWriteToCache(ValueSet valueSet)
+	private ValueSet expandAndWriteToCache(ValueSet valueSet, String cacheEntryId)
 	{
 		Objects.requireNonNull(valueSet, "valueSet");
 
@@ -107,7 +141,7 @@ public class ValueSetExpansionClientWithFileSystemCache extends AbstractFhirReso
 			return expanded;
 		}
 		else
-			return writeResourceToCache(expanded, Function.identity(), ValueSet::getUrl, ValueSet::getVersion);
+			return writeResourceToCache(expanded, Function.identity(), cacheEntryId);
 	}
 
 	@Override
@@ -0,0 +1,236 @@
+package dev.dsf.fhir.validator.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.common.hapi.validation.support.InMemoryTerminologyServerValidationSupport;
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.BooleanType;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Enumerations.AdministrativeGender;
+import org.hl7.fhir.r4.model.Enumerations.PublicationStatus;
+import org.hl7.fhir.r4.model.Extension;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.Narrative.NarrativeStatus;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Observation.ObservationStatus;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Period;
+import org.hl7.fhir.r4.model.Quantity;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.StructureDefinition;
+import org.hl7.fhir.r4.model.UriType;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.junit.jupiter.api.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.support.DefaultProfileValidationSupport;
+import ca.uhn.fhir.context.support.IValidationSupport;
+import ca.uhn.fhir.context.support.ValidationSupportContext;
+import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
+
+public class BinaryResourceFormatTest
+{
+	private final FhirContext context = FhirContext.forR4Cached();
+
+	private Resource roundTrip(Resource resource) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryResourceFormat.write(resource, out);
+
+		return BinaryResourceFormat.read(new ByteArrayInputStream(out.toByteArray()));
+	}
+
+	private void assertRoundTrip(Resource resource) throws IOException
+	{
+		Resource decoded = roundTrip(resource);
+
+		assertNotNull(decoded);
+		assertEquals(resource.getClass(), decoded.getClass());
+		assertTrue(resource.equalsDeep(decoded), () -> "Decoded " + describe(resource) + " not equal");
+
+		// equalsDeep does not compare all elements, e.g. narrative div
+		assertEquals(context.newJsonParser().encodeResourceToString(resource),
+				context.newJsonParser().encodeResourceToString(decoded), () -> describe(resource) + " JSON differs");
+	}
+
+	private static String describe(Resource resource)
+	{
+		return resource.fhirType() + (resource instanceof StructureDefinition sd ? " " + sd.getUrl()
+				: resource instanceof ValueSet v ? " " + v.getUrl() : "");
+	}
+
+	@Test
+	public void testCoreStructureDefinitions() throws Exception
+	{
+		List<IBaseResource> structureDefinitions = new DefaultProfileValidationSupport(context)
+				.fetchAllStructureDefinitions();
+
+		assertFalse(structureDefinitions.isEmpty());
+
+		for (IBaseResource sd : structureDefinitions)
+			assertRoundTrip((StructureDefinition) sd);
+	}
+
+	@Test
+	public void testExpandedCoreValueSets() throws Exception
+	{
+		IValidationSupport support = new ValidationSupportChain(new DefaultProfileValidationSupport(context),
+				new InMemoryTerminologyServerValidationSupport(context));
+		ValidationSupportContext supportContext = new ValidationSupportContext(support);
+
+		for (String url : List.of("http://hl7.org/fhir/ValueSet/administrative-gender",
+				"http://hl7.org/fhir/ValueSet/observation-status", "http://hl7.org/fhir/ValueSet/resource-types"))
+		{
+			IBaseResource valueSet = support.fetchValueSet(url);
+			assertNotNull(valueSet, url);
+
+			IValidationSupport.ValueSetExpansionOutcome outcome = support.expandValueSet(supportContext,
+					new ValueSetExpansionOptions(), valueSet);
+			assertNotNull(outcome, url);
+			assertNotNull(outcome.getValueSet(), () -> url + ": " + outcome.getError());
+
+			ValueSet expanded = (ValueSet) outcome.getValueSet();
+			assertTrue(expanded.getExpansion().hasContains(), url);
+
+			assertRoundTrip(expanded);
+		}
+	}
+
+	@Test
+	public void testExpandedValueSetWithParametersAndNestedContains() throws Exception
+	{
+		ValueSet valueSet = new ValueSet();
+		valueSet.setUrl("http://example.org/fhir/ValueSet/test").setVersion("1.0.0")
+				.setStatus(PublicationStatus.ACTIVE);
+		valueSet.getCompose().addInclude().setSystem("http://example.org/fhir/CodeSystem/test");
+		valueSet.getExpansion().setIdentifier("urn:uuid:7b4b1e5e-4c4e-4a39-9f0a-1d5c8a0a1b2c")
+				.setTimestampElement(new DateTimeType("2025-01-01T10:00:00+01:00")).setTotal(3);
+		valueSet.getExpansion().addParameter().setName("excludeNested").setValue(new BooleanType(false));
+		valueSet.getExpansion().addParameter().setName("used-codesystem")
+				.setValue(new UriType("http://example.org/fhir/CodeSystem/test|1.0.0"));
+
+		ValueSetExpansionContainsComponent parent = valueSet.getExpansion().addContains()
+				.setSystem("http://example.org/fhir/CodeSystem/test").setCode("parent").setDisplay("Parent")
+				.setAbstract(true);
+		parent.addContains().setSystem("http://example.org/fhir/CodeSystem/test").setCode("child")
+				.setDisplay("Child").addDesignation().setLanguage("de").setValue("Kind");
+		valueSet.getExpansion().addContains().setSystem("http://example.org/fhir/CodeSystem/test")
+				.setCode("other").setDisplay("Other äöü");
+
+		assertRoundTrip(valueSet);
+	}
+
+	@Test
+	public void testPrimitiveExtensions() throws Exception
+	{
+		Patient patient = new Patient();
+		patient.setId("test");
+		patient.getMeta().addProfile("http://example.org/fhir/StructureDefinition/patient");
+		patient.getText().setStatus(NarrativeStatus.GENERATED)
+				.setDivAsString("<div xmlns=\"http://www.w3.org/1999/xhtml\"><p>Test</p></div>");
+
+		// primitive with value and extension
+		patient.getBirthDateElement().setValueAsString("2000-01-01");
+		patient.getBirthDateElement().addExtension("http://hl7.org/fhir/StructureDefinition/patient-birthTime",
+				new DateTimeType("2000-01-01T12:00:00+01:00"));
+
+		// primitive with extension only
+		patient.getGenderElement().addExtension("http://hl7.org/fhir/StructureDefinition/data-absent-reason",
+				new CodeType("unknown"));
+
+		// repeating primitive, extension on second value only
+		HumanName name = patient.addName().setFamily("Test");
+		name.addGiven("A");
+		StringType given = name.addGivenElement();
+		given.setValue("B");
+		given.addExtension("http://hl7.org/fhir/StructureDefinition/iso21090-EN-qualifier",
+				new CodeType("CL"));
+
+		assertRoundTrip(patient);
+	}
+
+	@Test
+	public void testChoiceElements() throws Exception
+	{
+		Patient patient = new Patient();
+		patient.setId("patient");
+		patient.setGender(AdministrativeGender.FEMALE);
+
+		Observation observation = new Observation();
+		observation.setStatus(ObservationStatus.FINAL);
+		observation.getCode().addCoding().setSystem("http://loinc.org").setCode("8302-2");
+		observation.setSubject(new Reference("#patient"));
+		observation.addContained(patient);
+
+		// complex choice types
+		observation.setValue(new Quantity().setValue(new BigDecimal("1.50")).setUnit("m")
+				.setSystem("http://unitsofmeasure.org").setCode("m"));
+		observation.setEffective(new Period().setStartElement(new DateTimeType("2025-01-01T10:00:00Z")));
+
+		// choice types in extensions, primitive choice value with extension
+		StringType note = new StringType("note");
+		note.addExtension("http://example.org/fhir/StructureDefinition/note-source", new UriType("urn:test"));
+		observation.addExtension(new Extension("http://example.org/fhir/StructureDefinition/note", note));
+		observation.addExtension(new Extension("http://example.org/fhir/StructureDefinition/category",
+				new CodeableConcept(new Coding("http://example.org/fhir/CodeSystem/test", "test", "Test"))));
+
+		observation.addComponent().setCode(new CodeableConcept(new Coding("http://loinc.org", "8867-4", null)))
+				.setValue(new StringType("component"));
+
+		assertRoundTrip(observation);
+	}
+
+	@Test
+	public void testMatches() throws Exception
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryResourceFormat.write(new Patient(), out);
+
+		assertTrue(BinaryResourceFormat.matches(new BufferedInputStream(new ByteArrayInputStream(out.toByteArray()))));
+		assertFalse(BinaryResourceFormat.matches(new BufferedInputStream(
+				new ByteArrayInputStream("{\"resourceType\":\"Patient\"}".getBytes(StandardCharsets.UTF_8)))));
+	}
+
+	@Test
+	public void testReadNotBinary() throws Exception
+	{
+		assertThrows(IOException.class, () -> BinaryResourceFormat.read(
+				new ByteArrayInputStream("{\"resourceType\":\"Patient\"}".getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	public void testFingerprintEqualForEqualContent() throws Exception
+	{
+		Stream.of("http://hl7.org/fhir/StructureDefinition/Patient",
+				"http://hl7.org/fhir/StructureDefinition/Observation").forEach(url ->
+				{
+					StructureDefinition sd = (StructureDefinition) new DefaultProfileValidationSupport(context)
+							.fetchStructureDefinition(url);
+					StructureDefinition copy = sd.copy();
+
+					assertEquals(BinaryResourceFormat.fingerprint(sd), BinaryResourceFormat.fingerprint(copy));
+					assertEquals(BinaryResourceFormat.fingerprint(sd, "snapshot"),
+							BinaryResourceFormat.fingerprint(copy.setSnapshot(null), "snapshot"));
+				});
+	}
+}
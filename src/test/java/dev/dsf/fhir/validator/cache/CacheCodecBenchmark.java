@@ -0,0 +1,194 @@
+package dev.dsf.fhir.validator.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import org.hl7.fhir.r4.model.Resource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import dev.dsf.fhir.validator.cache.AbstractFhirResourceFileSystemCache.Format;
+
+/**
+ * Compares read throughput of {@link CacheCodec}s and content {@link Format}s using the entries of an existing file
+ * system cache folder, e.g. <code>${java.io.tmpdir}/dsf_validation_cache/ValueSet</code>. Entries are re-encoded in
+ * memory with every format and codec, decompression and decompression plus decoding are measured separately.
+ * <p>
+ * Arguments: <code>cacheFolder [iterations]</code>, run with test classpath, e.g. via <code>exec:java</code>
+ */
+public final class CacheCodecBenchmark
+{
+	private static final Logger logger = LoggerFactory.getLogger(CacheCodecBenchmark.class);
+
+	private static final List<CacheCodec> CODECS = List.of(CacheCodec.NONE, CacheCodec.GZIP, CacheCodec.deflate(1),
+			CacheCodec.deflate(6), CacheCodec.LZ4);
+
+	private CacheCodecBenchmark()
+	{
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		if (args.length < 1)
+		{
+			logger.warn("Cache folder not specified, arguments: cacheFolder [iterations]");
+			return;
+		}
+
+		Path cacheFolder = Paths.get(args[0]);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		IParser parser = FhirContext.forR4().newJsonParser();
+
+		List<Resource> resources = readEntries(cacheFolder, parser);
+		List<byte[]> json = encodeAll(resources, Format.JSON, parser);
+		long totalBytes = json.stream().mapToLong(e -> e.length).sum();
+
+		logger.info("{} entries with {} KiB uncompressed JSON read from {}, {} iterations per format and codec",
+				resources.size(), totalBytes / 1024, cacheFolder.toAbsolutePath().toString(), iterations);
+
+		for (Format format : Format.values())
+		{
+			List<byte[]> entries = format == Format.JSON ? json : encodeAll(resources, format, parser);
+
+			for (CacheCodec codec : CODECS)
+			{
+				List<byte[]> compressed = new ArrayList<>(entries.size());
+				for (byte[] entry : entries)
+					compressed.add(compress(codec, entry));
+
+				long compressedBytes = compressed.stream().mapToLong(e -> e.length).sum();
+
+				// warm up
+				decompressAll(codec, compressed, null, parser);
+				decompressAll(codec, compressed, format, parser);
+
+				long decompressNanos = 0, decodeNanos = 0;
+				for (int i = 0; i < iterations; i++)
+				{
+					long t0 = System.nanoTime();
+					decompressAll(codec, compressed, null, parser);
+					long t1 = System.nanoTime();
+					decompressAll(codec, compressed, format, parser);
+					long t2 = System.nanoTime();
+
+					decompressNanos += t1 - t0;
+					decodeNanos += t2 - t1;
+				}
+
+				// throughput relative to the uncompressed JSON size for comparability between formats
+				logger.info("{} {}: {} KiB ({}% of JSON), decompress {} MiB/s, decompress and decode {} MiB/s",
+						format, codec.getName(), compressedBytes / 1024,
+						totalBytes == 0 ? 0 : compressedBytes * 100 / totalBytes,
+						throughput(totalBytes * iterations, decompressNanos),
+						throughput(totalBytes * iterations, decodeNanos));
+			}
+		}
+	}
+
+	private static List<Resource> readEntries(Path cacheFolder, IParser parser) throws IOException
+	{
+		List<Resource> entries = new ArrayList<>();
+
+		try (Stream<Path> files = Files.list(cacheFolder))
+		{
+			for (Path file : files.filter(Files::isRegularFile).toList())
+			{
+				for (Format format : Format.values())
+				{
+					Optional<CacheCodec> codec = codecOf(file, format);
+					if (codec.isEmpty())
+						continue;
+
+					try (InputStream in = codec.get().decompress(new BufferedInputStream(Files.newInputStream(file))))
+					{
+						entries.add(decode(in, format, parser));
+					}
+				}
+			}
+		}
+
+		return entries;
+	}
+
+	private static Optional<CacheCodec> codecOf(Path file, Format format)
+	{
+		String fileName = file.getFileName().toString();
+
+		// longest suffix first, no compression matches all
+		return CODECS.stream().filter(c -> fileName.endsWith(format.getContentSuffix() + c.getFileNameSuffix()))
+				.max((c1, c2) -> Integer.compare(c1.getFileNameSuffix().length(), c2.getFileNameSuffix().length()));
+	}
+
+	private static List<byte[]> encodeAll(List<Resource> resources, Format format, IParser parser)
+			throws IOException
+	{
+		List<byte[]> encoded = new ArrayList<>(resources.size());
+		for (Resource resource : resources)
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (format == Format.BINARY)
+				BinaryResourceFormat.write(resource, out);
+			else
+				out.write(parser.encodeResourceToString(resource).getBytes(StandardCharsets.UTF_8));
+
+			encoded.add(out.toByteArray());
+		}
+
+		return encoded;
+	}
+
+	private static Resource decode(InputStream in, Format format, IParser parser) throws IOException
+	{
+		if (format == Format.BINARY)
+			return BinaryResourceFormat.read(in);
+		else
+			return (Resource) parser.parseResource(new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	private static byte[] compress(CacheCodec codec, byte[] entry) throws IOException
+	{
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try (OutputStream out = codec.compress(compressed))
+		{
+			out.write(entry);
+		}
+
+		return compressed.toByteArray();
+	}
+
+	private static void decompressAll(CacheCodec codec, List<byte[]> compressed, Format format, IParser parser)
+			throws IOException
+	{
+		for (byte[] entry : compressed)
+		{
+			try (InputStream in = codec.decompress(new ByteArrayInputStream(entry)))
+			{
+				if (format == null)
+					in.readAllBytes();
+				else
+					decode(in, format, parser);
+			}
+		}
+	}
+
+	private static long throughput(long bytes, long nanos)
+	{
+		return nanos == 0 ? 0 : (long) (bytes / (1024d * 1024d) / (nanos / 1_000_000_000d));
+	}
+}
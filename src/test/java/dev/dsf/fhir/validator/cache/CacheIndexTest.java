@@ -0,0 +1,175 @@
+package dev.dsf.fhir.validator.cache;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CacheIndexTest
+{
+	@TempDir
+	private Path cacheFolder;
+
+	private Path indexFile()
+	{
+		return cacheFolder.resolve(CacheIndex.INDEX_FILE_NAME);
+	}
+
+	private void writeIndex(List<String> lines, String lastLine) throws Exception
+	{
+		Files.writeString(indexFile(), String.join("\n", lines) + "\n" + lastLine, StandardCharsets.UTF_8);
+	}
+
+	private List<String> accessLines(String fileName, int count)
+	{
+		List<String> lines = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+			lines.add("@ " + fileName + " " + (3000 + i));
+
+		return lines;
+	}
+
+	@Test
+	public void testReplayLog() throws Exception
+	{
+		writeIndex(List.of("+ a 10 11 1000 1000", "+ b 20 22 1000 1000", "+ c 30 33 1000 1000", "@ a 2000",
+				"- b", "+ c 31 " + CacheIndex.UNKNOWN_CHECKSUM + " 1500 1500", "@ unknown 2000", "- unknown"), "");
+
+		CacheIndex index = CacheIndex.of(cacheFolder);
+
+		assertEquals(2, index.list().size());
+
+		CacheIndex.Entry a = index.get(cacheFolder.resolve("a"));
+		assertNotNull(a);
+		assertEquals(new CacheIndex.Entry("a", 10, 11, 1000, 2000), a);
+
+		assertNull(index.get(cacheFolder.resolve("b")));
+
+		CacheIndex.Entry c = index.get(cacheFolder.resolve("c"));
+		assertNotNull(c);
+		assertEquals(new CacheIndex.Entry("c", 31, CacheIndex.UNKNOWN_CHECKSUM, 1500, 1500), c);
+		assertFalse(c.hasChecksum());
+	}
+
+	@Test
+	public void testReplayLogWithTruncatedLastLine() throws Exception
+	{
+		// written by a process killed while appending
+		writeIndex(List.of("+ a 10 11 1000 1000", "+ b 20 22 1000 1000"), "+ c 30 3");
+
+		CacheIndex index = CacheIndex.of(cacheFolder);
+
+		assertEquals(2, index.list().size());
+		assertNotNull(index.get(cacheFolder.resolve("a")));
+		assertNotNull(index.get(cacheFolder.resolve("b")));
+		assertNull(index.get(cacheFolder.resolve("c")));
+	}
+
+	@Test
+	public void testReplayLogIgnoresMalformedLines() throws Exception
+	{
+		writeIndex(List.of("+ a 10 11 1000 1000", "+ b 20 2x 1000 1000", "-", "@ a", "* a 10 11 1000 1000",
+				"+ c 30 33 1000 1000 1000"), "");
+
+		CacheIndex index = CacheIndex.of(cacheFolder);
+
+		assertEquals(List.of(new CacheIndex.Entry("a", 10, 11, 1000, 1000)), index.list());
+	}
+
+	@Test
+	public void testCompactedIfMostlyOutdated() throws Exception
+	{
+		// 1 entry, 1001 outdated lines
+		List<String> lines = new ArrayList<>();
+		lines.add("+ a 10 11 1000 1000");
+		lines.addAll(accessLines("a", 1000));
+		writeIndex(lines, "@ a 5000");
+
+		CacheIndex index = CacheIndex.of(cacheFolder);
+
+		assertEquals(new CacheIndex.Entry("a", 10, 11, 1000, 5000), index.get(cacheFolder.resolve("a")));
+		assertEquals(List.of("+ a 10 11 1000 5000"), Files.readAllLines(indexFile(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testNotCompactedBelowThreshold() throws Exception
+	{
+		// 1 entry, 1000 outdated lines
+		List<String> lines = new ArrayList<>();
+		lines.add("+ a 10 11 1000 1000");
+		lines.addAll(accessLines("a", 999));
+		writeIndex(lines, "@ a 5000");
+
+		CacheIndex index = CacheIndex.of(cacheFolder);
+
+		assertEquals(new CacheIndex.Entry("a", 10, 11, 1000, 5000), index.get(cacheFolder.resolve("a")));
+		assertEquals(1001, Files.readAllLines(indexFile(), StandardCharsets.UTF_8).size());
+	}
+
+	@Test
+	public void testCreatedFromListingAndPersisted() throws Exception
+	{
+		Files.writeString(cacheFolder.resolve("a"), "0123456789", StandardCharsets.UTF_8);
+		Files.writeString(cacheFolder.resolve(".a.lock"), "", StandardCharsets.UTF_8);
+
+		CacheIndex index = CacheIndex.of(cacheFolder);
+
+		CacheIndex.Entry a = index.get(cacheFolder.resolve("a"));
+		assertNotNull(a);
+		assertEquals(10, a.size());
+		assertEquals(CacheIndex.UNKNOWN_CHECKSUM, a.checksum());
+		assertNull(index.get(cacheFolder.resolve(".a.lock")));
+
+		index.putChecksum(a, 42);
+		index.remove(cacheFolder.resolve("b"));
+
+		// reloaded from the persisted log, invalidate deletes the log
+		String log = Files.readString(indexFile(), StandardCharsets.UTF_8);
+		CacheIndex.invalidate(cacheFolder);
+		Files.writeString(indexFile(), log, StandardCharsets.UTF_8);
+
+		assertEquals(1, index.list().size());
+		assertEquals(a.withChecksum(42), index.get(cacheFolder.resolve("a")));
+	}
+
+	@Test
+	public void testRefreshReplacedFile() throws Exception
+	{
+		CacheIndex index = CacheIndex.of(cacheFolder);
+		assertEquals(0, index.list().size());
+
+		// written by another process after the index was created
+		Path file = cacheFolder.resolve("a");
+		Files.writeString(file, "0123456789", StandardCharsets.UTF_8);
+
+		CacheIndex.Entry a = index.refresh(file);
+		assertNotNull(a);
+		index.putChecksum(a, 42);
+		CacheIndex.Entry withChecksum = index.get(file);
+
+		assertEquals(withChecksum, index.refresh(file));
+
+		// replaced by another process with same size content
+		Files.writeString(file, "9876543210", StandardCharsets.UTF_8);
+		Files.setLastModifiedTime(file, FileTime.fromMillis(withChecksum.created() + 1000));
+
+		CacheIndex.Entry refreshed = index.refresh(file);
+		assertNotNull(refreshed);
+		assertEquals(10, refreshed.size());
+		assertFalse(refreshed.hasChecksum());
+
+		Files.delete(file);
+		assertNull(index.refresh(file));
+		assertNull(index.get(file));
+	}
+}
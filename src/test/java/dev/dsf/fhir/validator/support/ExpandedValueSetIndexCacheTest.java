@@ -0,0 +1,90 @@
+package dev.dsf.fhir.validator.support;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.Test;
+
+public class ExpandedValueSetIndexCacheTest
+{
+	private static ValueSet expandedValueSet(String identifier, Date timestamp, String code)
+	{
+		ValueSet valueSet = new ValueSet().setUrl("http://test.com/fhir/ValueSet/test").setVersion("1.0.0");
+		valueSet.getExpansion().setIdentifier(identifier).setTimestamp(timestamp).addContains()
+				.setSystem("http://test.com/fhir/CodeSystem/test").setCode(code);
+
+		return valueSet;
+	}
+
+	@Test
+	public void testDifferentExpansionsWithoutIdentifierAndTimestamp() throws Exception
+	{
+		ExpandedValueSetIndexCache cache = new ExpandedValueSetIndexCache();
+
+		ValueSet a = expandedValueSet(null, null, "a");
+		ValueSet b = expandedValueSet(null, null, "b");
+
+		ExpandedValueSetIndex indexA = cache.get(a);
+		ExpandedValueSetIndex indexB = cache.get(b);
+
+		assertFalse(indexA.find("a", true).isEmpty());
+		assertTrue(indexA.find("b", true).isEmpty());
+		assertFalse(indexB.find("b", true).isEmpty());
+		assertTrue(indexB.find("a", true).isEmpty());
+
+		// cached by identity of the expansion
+		assertSame(indexA, cache.get(a));
+		assertSame(indexA, cache.get(a.getExpansion()));
+	}
+
+	@Test
+	public void testDifferentExpansionsWithoutTimestamp() throws Exception
+	{
+		ExpandedValueSetIndexCache cache = new ExpandedValueSetIndexCache();
+
+		ExpandedValueSetIndex indexA = cache.get(expandedValueSet("urn:uuid:1", null, "a"));
+		ExpandedValueSetIndex indexB = cache.get(expandedValueSet("urn:uuid:1", null, "b"));
+
+		assertTrue(indexA.find("b", true).isEmpty());
+		assertFalse(indexB.find("b", true).isEmpty());
+	}
+
+	@Test
+	public void testSameExpansionSharedByIdentifierAndTimestamp() throws Exception
+	{
+		ExpandedValueSetIndexCache cache = new ExpandedValueSetIndexCache();
+		Date timestamp = new Date();
+
+		ExpandedValueSetIndex index = cache.get(expandedValueSet("urn:uuid:1", timestamp, "a"));
+
+		assertSame(index, cache.get(expandedValueSet("urn:uuid:1", timestamp, "a")));
+	}
+
+	@Test
+	public void testCompactOnlyWithIdentifierAndTimestamp() throws Exception
+	{
+		ExpandedValueSetIndexCache cache = new ExpandedValueSetIndexCache(
+				ExpandedValueSetIndexCache.DEFAULT_MAX_CONCEPTS, true);
+
+		ValueSet identified = expandedValueSet("urn:uuid:1", new Date(), "a");
+		ValueSet anonymous = expandedValueSet(null, null, "b");
+		cache.index(List.of(identified, anonymous));
+
+		assertFalse(identified.getExpansion().hasContains());
+		assertEquals(1, identified.getExpansion().getTotal());
+		assertNotNull(cache.get(identified));
+		assertFalse(cache.get(identified).find("a", true).isEmpty());
+
+		assertTrue(anonymous.getExpansion().hasContains());
+		assertFalse(cache.get(anonymous).find("b", true).isEmpty());
+
+		assertEquals(1, cache.getStatistics().pinnedValueSets());
+	}
+}
@@ -0,0 +1,121 @@
+package dev.dsf.fhir.validator.support;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionComponent;
+import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.junit.jupiter.api.Test;
+
+import dev.dsf.fhir.validator.support.ExpandedValueSetIndex.Concept;
+
+public class ExpandedValueSetIndexTest
+{
+	private static List<String> systems(List<Concept> concepts)
+	{
+		return concepts.stream().map(Concept::system).toList();
+	}
+
+	@Test
+	public void testCaseSensitiveLookup() throws Exception
+	{
+		ValueSetExpansionComponent expansion = new ValueSetExpansionComponent();
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/a").setVersion("1.0.0").setCode("ABC")
+				.setDisplay("Upper");
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/b").setCode("abc").setDisplay("Lower");
+
+		ExpandedValueSetIndex index = ExpandedValueSetIndex.from(expansion);
+		assertEquals(2, index.size());
+
+		List<Concept> upper = index.find("ABC", true);
+		assertEquals(List.of(new Concept("http://test.com/fhir/CodeSystem/a", "1.0.0", "ABC", "Upper")), upper);
+
+		List<Concept> lower = index.find("abc", true);
+		assertEquals(1, lower.size());
+		assertNull(lower.get(0).version());
+		assertEquals("Lower", lower.get(0).display());
+
+		assertTrue(index.find("aBc", true).isEmpty());
+		assertTrue(index.find("ab", true).isEmpty());
+		assertTrue(index.find("abcd", true).isEmpty());
+	}
+
+	@Test
+	public void testCaseFoldedLookup() throws Exception
+	{
+		ValueSetExpansionComponent expansion = new ValueSetExpansionComponent();
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/a").setCode("ABC");
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/b").setCode("abc");
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/c").setCode("other");
+
+		ExpandedValueSetIndex index = ExpandedValueSetIndex.from(expansion);
+
+		assertEquals(List.of("http://test.com/fhir/CodeSystem/a", "http://test.com/fhir/CodeSystem/b"),
+				systems(index.find("aBc", false)));
+		assertEquals(List.of("http://test.com/fhir/CodeSystem/c"), systems(index.find("OTHER", false)));
+		assertTrue(index.find("ab", false).isEmpty());
+	}
+
+	@Test
+	public void testCaseFoldedLookupLikeEqualsIgnoreCase() throws Exception
+	{
+		// U+0130 and U+017F are equal ignoring case to i and s, but not via toLowerCase(Locale.ROOT)
+		ValueSetExpansionComponent expansion = new ValueSetExpansionComponent();
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/a").setCode("İd");
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/b").setCode("ſet");
+
+		ExpandedValueSetIndex index = ExpandedValueSetIndex.from(expansion);
+
+		assertTrue("İd".equalsIgnoreCase("id"));
+		assertEquals(List.of("http://test.com/fhir/CodeSystem/a"), systems(index.find("id", false)));
+		assertEquals(List.of("http://test.com/fhir/CodeSystem/a"), systems(index.find("ID", false)));
+		assertTrue(index.find("id", true).isEmpty());
+
+		assertTrue("ſet".equalsIgnoreCase("SET"));
+		assertEquals(List.of("http://test.com/fhir/CodeSystem/b"), systems(index.find("SET", false)));
+		assertEquals(List.of("http://test.com/fhir/CodeSystem/b"), systems(index.find("set", false)));
+	}
+
+	@Test
+	public void testDuplicateCodesInExpansionOrder() throws Exception
+	{
+		ValueSetExpansionComponent expansion = new ValueSetExpansionComponent();
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/e").setCode("B");
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/a").setCode("b");
+		ValueSetExpansionContainsComponent parent = expansion.addContains()
+				.setSystem("http://test.com/fhir/CodeSystem/b").setCode("a");
+		parent.addContains().setSystem("http://test.com/fhir/CodeSystem/d").setCode("b");
+		expansion.addContains().setSystem("http://test.com/fhir/CodeSystem/c").setCode("b");
+
+		// abstract concepts without code are not indexed, nested contains still are
+		ValueSetExpansionContainsComponent group = expansion.addContains().setAbstract(true);
+		group.addContains().setSystem("http://test.com/fhir/CodeSystem/f").setCode("b");
+
+		ExpandedValueSetIndex index = ExpandedValueSetIndex.from(expansion);
+		assertEquals(6, index.size());
+
+		assertEquals(
+				List.of("http://test.com/fhir/CodeSystem/a", "http://test.com/fhir/CodeSystem/d",
+						"http://test.com/fhir/CodeSystem/c", "http://test.com/fhir/CodeSystem/f"),
+				systems(index.find("b", true)));
+		assertEquals(
+				List.of("http://test.com/fhir/CodeSystem/e", "http://test.com/fhir/CodeSystem/a",
+						"http://test.com/fhir/CodeSystem/d", "http://test.com/fhir/CodeSystem/c",
+						"http://test.com/fhir/CodeSystem/f"),
+				systems(index.find("b", false)));
+		assertEquals(List.of("http://test.com/fhir/CodeSystem/b"), systems(index.find("A", false)));
+	}
+
+	@Test
+	public void testEmptyExpansion() throws Exception
+	{
+		ExpandedValueSetIndex index = ExpandedValueSetIndex.from(new ValueSetExpansionComponent());
+
+		assertEquals(0, index.size());
+		assertTrue(index.find("a", true).isEmpty());
+		assertTrue(index.find("a", false).isEmpty());
+	}
+}